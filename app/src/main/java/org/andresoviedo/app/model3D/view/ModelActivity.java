@@ -28,6 +28,8 @@ import org.andresoviedo.android_3d_model_engine.collision.CollisionController;
 import org.andresoviedo.android_3d_model_engine.collision.CollisionEvent;
 import org.andresoviedo.android_3d_model_engine.controller.TouchController;
 import org.andresoviedo.android_3d_model_engine.controller.TouchEvent;
+import org.andresoviedo.android_3d_model_engine.drawer.GLValidator;
+import org.andresoviedo.android_3d_model_engine.drawer.VertexLayout;
 import org.andresoviedo.android_3d_model_engine.event.SelectedObjectEvent;
 import org.andresoviedo.android_3d_model_engine.model.Projection;
 import org.andresoviedo.android_3d_model_engine.services.LoaderTask;
@@ -36,6 +38,7 @@ import org.andresoviedo.android_3d_model_engine.view.FPSEvent;
 import org.andresoviedo.android_3d_model_engine.view.ModelSurfaceView;
 import org.andresoviedo.android_3d_model_engine.view.ViewEvent;
 import org.andresoviedo.app.model3D.demo.DemoLoaderTask;
+import org.andresoviedo.dddmodel2.BuildConfig;
 import org.andresoviedo.dddmodel2.R;
 import org.andresoviedo.util.android.ContentUtils;
 import org.andresoviedo.util.event.EventListener;
@@ -135,6 +138,10 @@ public class ModelActivity extends Activity implements EventListener {
             Log.i("ModelActivity", "Loading GLSurfaceView...");
             glView = new ModelSurfaceView(this, backgroundColor, this.scene);
             glView.addListener(this);
+            glView.setVertexFormat(VertexLayout.Format.QUANTIZED);
+            if (BuildConfig.DEBUG) {
+                glView.setGLValidation(GLValidator.Mode.SAMPLED, GLValidator.DEFAULT_SAMPLE_RATE);
+            }
             setContentView(glView);
 //            scene.setView(glView);
         } catch (Exception e) {
@@ -0,0 +1,391 @@
+package org.andresoviedo.android_3d_model_engine.animation;
+
+import android.opengl.Matrix;
+import android.util.Log;
+
+import org.andresoviedo.android_3d_model_engine.model.AnimatedModel;
+import org.andresoviedo.util.math.Quaternion;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Animation baked for a skeleton. The key frames of the {@link Animation}, maps of joint transforms indexed by the
+ * joint name, are compiled once into tracks indexed by joint: the times of the keys and the packed translation,
+ * rotation (quaternion) and scale of every key.
+ * <p>
+ * The joints are sorted so that every parent comes before its children, so the pose is evaluated with a flat loop,
+ * without hashing nor allocating. Every track remembers its last key, so playing the animation the key is found
+ * without searching, and seeking the animation is a binary search.
+ * <p>
+ * The leaf joints can be skipped (i.e. the model is small on the screen, see {@link AnimationLod}): they keep their last
+ * local transform, so they still follow their parents.
+ *
+ * @author andresoviedo
+ */
+public final class AnimationClip {
+
+    // skeleton, parents first
+    private final Joint rootJoint;
+    private final Joint[] joints;
+    private final int[] parents;
+    private final boolean[] leaves;
+    private final float[] bindLocalTransforms;
+    private final float[] inverseBindTransforms;
+
+    // tracks, indexed by joint. null if the joint is not animated
+    private final float[][] times;
+    private final float[][] translations;
+    private final float[][] rotations;
+    private final float[][] scales;
+    // last key of every track
+    private final int[] cursors;
+
+    // local & model space transforms, 16 floats per joint
+    private final float[] localTransforms;
+    private final float[] modelTransforms;
+
+    private AnimationClip(Joint rootJoint, Joint[] joints, int[] parents, float[][] times, float[][] translations,
+                          float[][] rotations, float[][] scales) {
+        this.rootJoint = rootJoint;
+        this.joints = joints;
+        this.parents = parents;
+        this.times = times;
+        this.translations = translations;
+        this.rotations = rotations;
+        this.scales = scales;
+        this.cursors = new int[joints.length];
+        this.leaves = new boolean[joints.length];
+        this.bindLocalTransforms = new float[joints.length * 16];
+        this.inverseBindTransforms = new float[joints.length * 16];
+        this.localTransforms = new float[joints.length * 16];
+        this.modelTransforms = new float[joints.length * 16];
+        for (int j = 0; j < joints.length; j++) {
+            leaves[j] = joints[j].getChildren().isEmpty();
+            System.arraycopy(joints[j].getBindLocalTransform(), 0, bindLocalTransforms, j * 16, 16);
+            System.arraycopy(joints[j].getBindLocalTransform(), 0, localTransforms, j * 16, 16);
+            if (joints[j].getInverseBindTransform() != null) {
+                System.arraycopy(joints[j].getInverseBindTransform(), 0, inverseBindTransforms, j * 16, 16);
+            } else {
+                Log.e("AnimationClip", "joint with inverseBindTransform null: " + joints[j].getName() + ", index: "
+                        + joints[j].getIndex());
+                Matrix.setIdentityM(inverseBindTransforms, j * 16);
+            }
+        }
+    }
+
+    /**
+     * Compile the animation for the skeleton. The key frames must be complete (see {@link Animator})
+     *
+     * @param animation the animation
+     * @param rootJoint the skeleton
+     * @return the baked animation
+     */
+    public static AnimationClip compile(Animation animation, Joint rootJoint) {
+
+        // sort joints: parents first
+        final List<Joint> joints = new ArrayList<>();
+        final List<Integer> parents = new ArrayList<>();
+        addJoints(rootJoint, -1, joints, parents);
+
+        final int count = joints.size();
+        final float[][] times = new float[count][];
+        final float[][] translations = new float[count][];
+        final float[][] rotations = new float[count][];
+        final float[][] scales = new float[count][];
+
+        final KeyFrame[] keyFrames = animation.getKeyFrames();
+        final float[] key = new float[10];
+        final float[] temp = new float[16];
+        int keys = 0;
+        for (int j = 0; j < count; j++) {
+            final String name = joints.get(j).getName();
+
+            // pack every key of the joint
+            float[] jointTimes = new float[keyFrames.length];
+            float[] jointTranslations = new float[keyFrames.length * 3];
+            float[] jointRotations = new float[keyFrames.length * 4];
+            float[] jointScales = new float[keyFrames.length * 3];
+            int k = 0;
+            for (KeyFrame keyFrame : keyFrames) {
+                final JointTransform transform = keyFrame.getTransforms().get(name);
+                if (transform == null) continue;
+                toKey(transform, key, temp);
+                jointTimes[k] = keyFrame.getTimeStamp();
+                System.arraycopy(key, 0, jointTranslations, k * 3, 3);
+                System.arraycopy(key, 3, jointRotations, k * 4, 4);
+                System.arraycopy(key, 7, jointScales, k * 3, 3);
+
+                // nlerp takes the shortest path
+                if (k > 0 && dot(jointRotations, (k - 1) * 4, jointRotations, k * 4) < 0) {
+                    for (int i = k * 4; i < k * 4 + 4; i++) jointRotations[i] = -jointRotations[i];
+                }
+
+                // drop the keys in the middle of a constant run
+                if (k > 1 && equals(jointTranslations, jointRotations, jointScales, k - 2, k - 1)
+                        && equals(jointTranslations, jointRotations, jointScales, k - 1, k)) {
+                    jointTimes[k - 1] = jointTimes[k];
+                    System.arraycopy(jointTranslations, k * 3, jointTranslations, (k - 1) * 3, 3);
+                    System.arraycopy(jointRotations, k * 4, jointRotations, (k - 1) * 4, 4);
+                    System.arraycopy(jointScales, k * 3, jointScales, (k - 1) * 3, 3);
+                    continue;
+                }
+                k++;
+            }
+            if (k == 0) continue;
+
+            times[j] = Arrays.copyOf(jointTimes, k);
+            translations[j] = Arrays.copyOf(jointTranslations, k * 3);
+            rotations[j] = Arrays.copyOf(jointRotations, k * 4);
+            scales[j] = Arrays.copyOf(jointScales, k * 3);
+            keys += k;
+        }
+
+        final int[] parentIndices = new int[count];
+        for (int j = 0; j < count; j++) {
+            parentIndices[j] = parents.get(j);
+        }
+
+        // log event
+        Log.i("AnimationClip", "Compiled animation. joints: " + count + ", key frames: " + keyFrames.length
+                + ", keys: " + keys);
+        return new AnimationClip(rootJoint, joints.toArray(new Joint[0]), parentIndices, times, translations,
+                rotations, scales);
+    }
+
+    private static void addJoints(Joint joint, int parent, List<Joint> joints, List<Integer> parents) {
+        final int index = joints.size();
+        joints.add(joint);
+        parents.add(parent);
+        for (int i = 0; i < joint.getChildren().size(); i++) {
+            addJoints(joint.getChildren().get(i), index, joints, parents);
+        }
+    }
+
+    /**
+     * Convert the transform to translation (3), rotation (quaternion, 4) and scale (3). The missing components
+     * are the identity
+     */
+    private static void toKey(JointTransform transform, float[] ret, float[] temp) {
+        final Float[] location = transform.getLocation();
+        final Float[] scale = transform.getScale();
+        for (int i = 0; i < 3; i++) {
+            ret[i] = location != null && location[i] != null ? location[i] : 0;
+            ret[7 + i] = scale != null && scale[i] != null ? scale[i] : 1;
+        }
+
+        Quaternion q = transform.getQRotation();
+        if (q == null) {
+            // euler angles, same order as the interpolated transform
+            final Float[] rotation = transform.getRotation();
+            Matrix.setIdentityM(temp, 0);
+            if (rotation != null) {
+                if (rotation[2] != null) Matrix.rotateM(temp, 0, rotation[2], 0, 0, 1);
+                if (rotation[1] != null) Matrix.rotateM(temp, 0, rotation[1], 0, 1, 0);
+                if (rotation[0] != null) Matrix.rotateM(temp, 0, rotation[0], 1, 0, 0);
+            }
+            q = Quaternion.fromMatrix(temp);
+        }
+        final float length = (float) Math.sqrt(q.getX() * q.getX() + q.getY() * q.getY() + q.getZ() * q.getZ()
+                + q.getW() * q.getW());
+        ret[3] = q.getX() / length;
+        ret[4] = q.getY() / length;
+        ret[5] = q.getZ() / length;
+        ret[6] = q.getW() / length;
+    }
+
+    private static float dot(float[] a, int aOffset, float[] b, int bOffset) {
+        return a[aOffset] * b[bOffset] + a[aOffset + 1] * b[bOffset + 1] + a[aOffset + 2] * b[bOffset + 2]
+                + a[aOffset + 3] * b[bOffset + 3];
+    }
+
+    private static boolean equals(float[] translations, float[] rotations, float[] scales, int a, int b) {
+        for (int i = 0; i < 3; i++) {
+            if (translations[a * 3 + i] != translations[b * 3 + i]) return false;
+            if (scales[a * 3 + i] != scales[b * 3 + i]) return false;
+        }
+        for (int i = 0; i < 4; i++) {
+            if (rotations[a * 4 + i] != rotations[b * 4 + i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the skeleton the animation was compiled for
+     */
+    public Joint getRootJoint() {
+        return rootJoint;
+    }
+
+    public int getJointCount() {
+        return joints.length;
+    }
+
+    /**
+     * @return the keys of all the tracks
+     */
+    int getKeyCount() {
+        int ret = 0;
+        for (float[] keys : times) {
+            if (keys != null) ret += keys.length;
+        }
+        return ret;
+    }
+
+    /**
+     * Pose the skeleton at the specified time: updates the animated transform of every joint, and writes the joint
+     * matrices in the back buffer of the {@link Pose} of the model, ready to be swapped in
+     *
+     * @param time  time of the animation, in seconds
+     * @param model the model to update
+     */
+    public void apply(float time, AnimatedModel model) {
+        apply(time, model, false);
+    }
+
+    /**
+     * Pose the skeleton at the specified time, optionally skipping the leaf joints
+     *
+     * @param time       time of the animation, in seconds
+     * @param model      the model to update
+     * @param skipLeaves true to keep the last local transform of the leaf joints
+     */
+    public void apply(float time, AnimatedModel model, boolean skipLeaves) {
+        final Pose pose = model.getPose();
+        final float[][] jointTransforms = pose.getBackBuffer();
+        sample(time, skipLeaves);
+        for (int j = 0; j < joints.length; j++) {
+            final int offset = j * 16;
+            final int parent = parents[j];
+
+            // model space: parent * local
+            if (parent == -1) {
+                System.arraycopy(localTransforms, offset, modelTransforms, offset, 16);
+            } else {
+                Matrix.multiplyMM(modelTransforms, offset, modelTransforms, parent * 16, localTransforms, offset);
+            }
+
+            // bind pose to current pose
+            final Joint joint = joints[j];
+            Matrix.multiplyMM(joint.getAnimatedTransform(), 0, modelTransforms, offset, inverseBindTransforms, offset);
+            if (joint.getIndex() != -1) {
+                // setup only if its used by vertices. if no index no place for it into animated array
+                System.arraycopy(joint.getAnimatedTransform(), 0, jointTransforms[joint.getIndex()], 0, 16);
+            }
+        }
+        pose.publish();
+    }
+
+    /**
+     * Interpolate the local transforms of the joints
+     */
+    private void sample(float time, boolean skipLeaves) {
+        for (int j = 0; j < joints.length; j++) {
+            final int offset = j * 16;
+            final float[] keys = times[j];
+            if (skipLeaves && leaves[j]) {
+                continue;
+            }
+            if (keys == null) {
+                System.arraycopy(bindLocalTransforms, offset, localTransforms, offset, 16);
+                continue;
+            }
+
+            // previous & next key. Before the first key or after the last one, the key is held
+            final int previous = findKey(keys, time, cursors[j]);
+            cursors[j] = previous;
+            int next = previous;
+            float progression = 0;
+            if (previous < keys.length - 1 && time > keys[previous]) {
+                next = previous + 1;
+                progression = (time - keys[previous]) / (keys[next] - keys[previous]);
+            }
+
+            interpolate(j, previous, next, progression, localTransforms, offset);
+        }
+    }
+
+    /**
+     * Find the last key at or before the time. While playing, the key is the same as the previous time or the next
+     * one, so these are checked first. Otherwise (seek or loop) the key is searched
+     *
+     * @param keys   times of the keys
+     * @param time   the time
+     * @param cursor key found the previous time
+     * @return index of the key, 0 if the time is before the first key
+     */
+    static int findKey(float[] keys, float time, int cursor) {
+        if (keys[cursor] <= time) {
+            if (cursor == keys.length - 1 || keys[cursor + 1] > time) return cursor;
+            if (cursor + 2 == keys.length || keys[cursor + 2] > time) return cursor + 1;
+        } else if (cursor == 0) {
+            return 0;
+        }
+
+        // binary search
+        int low = 0;
+        int high = keys.length - 1;
+        while (low < high) {
+            final int middle = (low + high + 1) >>> 1;
+            if (keys[middle] <= time) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Interpolate the keys of the joint: lerp of translation & scale, nlerp of the rotation. The result is
+     * translation * rotation * scale
+     */
+    private void interpolate(int joint, int a, int b, float progression, float[] ret, int offset) {
+        final float[] t = translations[joint];
+        final float[] r = rotations[joint];
+        final float[] s = scales[joint];
+
+        final float tx = lerp(t[a * 3], t[b * 3], progression);
+        final float ty = lerp(t[a * 3 + 1], t[b * 3 + 1], progression);
+        final float tz = lerp(t[a * 3 + 2], t[b * 3 + 2], progression);
+        final float sx = lerp(s[a * 3], s[b * 3], progression);
+        final float sy = lerp(s[a * 3 + 1], s[b * 3 + 1], progression);
+        final float sz = lerp(s[a * 3 + 2], s[b * 3 + 2], progression);
+        float x = lerp(r[a * 4], r[b * 4], progression);
+        float y = lerp(r[a * 4 + 1], r[b * 4 + 1], progression);
+        float z = lerp(r[a * 4 + 2], r[b * 4 + 2], progression);
+        float w = lerp(r[a * 4 + 3], r[b * 4 + 3], progression);
+        if (progression != 0) {
+            final float length = (float) Math.sqrt(x * x + y * y + z * z + w * w);
+            x /= length;
+            y /= length;
+            z /= length;
+            w /= length;
+        }
+
+        // same layout as Quaternion.toRotationMatrix
+        final float xy = x * y, xz = x * z, xw = x * w, yz = y * z, yw = y * w, zw = z * w;
+        final float xx = x * x, yy = y * y, zz = z * z;
+        ret[offset] = (1 - 2 * (yy + zz)) * sx;
+        ret[offset + 1] = 2 * (xy - zw) * sx;
+        ret[offset + 2] = 2 * (xz + yw) * sx;
+        ret[offset + 3] = 0;
+        ret[offset + 4] = 2 * (xy + zw) * sy;
+        ret[offset + 5] = (1 - 2 * (xx + zz)) * sy;
+        ret[offset + 6] = 2 * (yz - xw) * sy;
+        ret[offset + 7] = 0;
+        ret[offset + 8] = 2 * (xz - yw) * sz;
+        ret[offset + 9] = 2 * (yz + xw) * sz;
+        ret[offset + 10] = (1 - 2 * (xx + yy)) * sz;
+        ret[offset + 11] = 0;
+        ret[offset + 12] = tx;
+        ret[offset + 13] = ty;
+        ret[offset + 14] = tz;
+        ret[offset + 15] = 1;
+    }
+
+    private static float lerp(float a, float b, float progression) {
+        return a + (b - a) * progression;
+    }
+}
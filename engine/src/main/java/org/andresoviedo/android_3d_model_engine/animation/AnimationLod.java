@@ -0,0 +1,126 @@
+package org.andresoviedo.android_3d_model_engine.animation;
+
+/**
+ * Level of detail of the animations: how often the pose of a model is evaluated, depending on how big the model is on
+ * the screen and whether it's visible. The models covering a small part of the screen are posed every 2nd or 4th
+ * frame (the joint matrices are interpolated in between, see {@link Pose#swap(int)}), the tiny or off-screen models
+ * keep their pose, and the leaf joints (fingers, toes, etc) of the small models are not animated.<p>
+ * The screen size is the fraction of the viewport covered by the bounding box of the model, i.e. 1 if it fills the
+ * viewport. This class doesn't depend on Android, so the policy can be tested on the JVM.
+ *
+ * @author andresoviedo
+ */
+public final class AnimationLod {
+
+    /**
+     * Update rate of the pose
+     */
+    public enum Rate {
+        FULL(1), HALF(2), QUARTER(4), FROZEN(0);
+
+        private final int interval;
+
+        Rate(int interval) {
+            this.interval = interval;
+        }
+
+        /**
+         * @return frames between the evaluations of the pose, 0 if it's not evaluated
+         */
+        public int getInterval() {
+            return interval;
+        }
+
+        /**
+         * @return the rate with more detail
+         */
+        public Rate max(Rate other) {
+            return other.ordinal() < ordinal() ? other : this;
+        }
+    }
+
+    /**
+     * Default screen sizes: full rate, half rate, quarter rate & animated leaf joints
+     */
+    public static final float FULL_SIZE = 0.2f;
+    public static final float HALF_SIZE = 0.08f;
+    public static final float QUARTER_SIZE = 0.02f;
+    public static final float LEAF_SIZE = 0.1f;
+
+    private final float fullSize;
+    private final float halfSize;
+    private final float quarterSize;
+    private final float leafSize;
+
+    public AnimationLod() {
+        this(FULL_SIZE, HALF_SIZE, QUARTER_SIZE, LEAF_SIZE);
+    }
+
+    /**
+     * @param fullSize    min screen size to evaluate the pose every frame
+     * @param halfSize    min screen size to evaluate the pose every 2nd frame
+     * @param quarterSize min screen size to evaluate the pose every 4th frame. The smaller models are frozen
+     * @param leafSize    min screen size to animate the leaf joints
+     */
+    public AnimationLod(float fullSize, float halfSize, float quarterSize, float leafSize) {
+        this.fullSize = fullSize;
+        this.halfSize = halfSize;
+        this.quarterSize = quarterSize;
+        this.leafSize = leafSize;
+    }
+
+    /**
+     * @param screenSize fraction of the viewport covered by the model
+     * @param visible    false if the model is out of the view
+     * @return the update rate of the pose
+     */
+    public Rate getRate(float screenSize, boolean visible) {
+        if (!visible) return Rate.FROZEN;
+        if (screenSize >= fullSize) return Rate.FULL;
+        if (screenSize >= halfSize) return Rate.HALF;
+        if (screenSize >= quarterSize) return Rate.QUARTER;
+        return Rate.FROZEN;
+    }
+
+    /**
+     * @param screenSize fraction of the viewport covered by the model
+     * @return true if the leaf joints keep their pose
+     */
+    public boolean isLeafCulled(float screenSize) {
+        return screenSize < leafSize;
+    }
+
+    /**
+     * Project the corners of the bounding box to the viewport
+     *
+     * @param bounds         the bounding box, in world space: min x, y, z and max x, y, z
+     * @param viewProjection the view projection matrix, column major
+     * @return fraction of the width or height of the viewport covered by the box, whichever is bigger. 1 if the
+     * camera is inside the box or any corner is behind the camera, 0 if the box is out of the viewport
+     */
+    public static float getScreenSize(float[] bounds, float[] viewProjection) {
+        final float[] m = viewProjection;
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (int corner = 0; corner < 8; corner++) {
+            final float x = (corner & 1) == 0 ? bounds[0] : bounds[3];
+            final float y = (corner & 2) == 0 ? bounds[1] : bounds[4];
+            final float z = (corner & 4) == 0 ? bounds[2] : bounds[5];
+            final float w = m[3] * x + m[7] * y + m[11] * z + m[15];
+            if (w <= 0) return 1;
+
+            // normalized device coordinates
+            final float ndcX = (m[0] * x + m[4] * y + m[8] * z + m[12]) / w;
+            final float ndcY = (m[1] * x + m[5] * y + m[9] * z + m[13]) / w;
+            minX = Math.min(minX, ndcX);
+            maxX = Math.max(maxX, ndcX);
+            minY = Math.min(minY, ndcY);
+            maxY = Math.max(maxY, ndcY);
+        }
+
+        // part in the viewport, that is 2 units wide & high
+        final float width = Math.min(maxX, 1) - Math.max(minX, -1);
+        final float height = Math.min(maxY, 1) - Math.max(minY, -1);
+        if (width <= 0 || height <= 0) return 0;
+        return Math.max(0, Math.min(1, Math.max(width, height) / 2));
+    }
+}
@@ -0,0 +1,295 @@
+package org.andresoviedo.android_3d_model_engine.animation;
+
+import android.util.Log;
+
+import org.andresoviedo.android_3d_model_engine.model.AnimatedModel;
+import org.andresoviedo.android_3d_model_engine.model.Object3DData;
+import org.andresoviedo.util.math.Frustum;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Animates all the models of the scene. The poses are evaluated by a pool of workers, a task per skeleton (the
+ * models sharing a {@link Pose} are evaluated once), and written in the back buffer of the pose. At the start of
+ * every frame, the GL thread swaps in the poses evaluated since the last frame and starts evaluating the next ones,
+ * so the models are drawn with the pose of the previous frame while the workers evaluate the current one. If a pose
+ * is still being evaluated, the skeleton keeps its previous pose for another frame.
+ * <p>
+ * With no workers, the poses are evaluated and swapped in by the calling thread, so the result is deterministic
+ * (i.e. for testing).
+ * <p>
+ * Once the {@link #setViewProjection(float[]) view} is known, the update rate of every skeleton is chosen by the
+ * {@link AnimationLod level of detail} of its most detailed model. The poses updated every few frames are evaluated
+ * that many frames ahead, and the joint matrices are interpolated until then.
+ *
+ * @author andresoviedo
+ */
+public final class AnimationSystem {
+
+    // pose being evaluated. GL thread only, except the done flag
+    private final class Task implements Runnable {
+
+        private final Pose pose;
+        private AnimatedModel model;
+        private AnimationClip clip;
+        private float time;
+        private boolean skipLeaves;
+
+        // frame the skeleton was last seen, with the detail of its most detailed model
+        private long frame;
+        private AnimationLod.Rate rate;
+        private float screenSize;
+
+        // frame the pose was last evaluated (0 if never) & frames to reach it
+        private long evaluatedFrame;
+        private int interval = 1;
+        private volatile boolean done = true;
+
+        private Task(Pose pose) {
+            this.pose = pose;
+        }
+
+        @Override
+        public void run() {
+            try {
+                clip.apply(time, model, skipLeaves);
+            } catch (RuntimeException e) {
+                Log.e("AnimationSystem", "Error animating " + model.getId() + ": " + e.getMessage(), e);
+            } finally {
+                done = true;
+            }
+        }
+    }
+
+    private final Animator animator = new Animator();
+    private final ThreadPoolExecutor executor;
+
+    // tasks by pose. GL thread only
+    private final Map<Pose, Task> tasks = new IdentityHashMap<>();
+    private long frame;
+    private float lastTime = -1;
+
+    // level of detail. GL thread only
+    private AnimationLod lod = new AnimationLod();
+    private final float[] viewProjection = new float[16];
+    private final Frustum frustum = new Frustum();
+    private final float[] bounds = new float[6];
+    private boolean hasView;
+
+    // stats
+    private long evaluated;
+    private long delayed;
+    private long saved;
+    private float savedStart = -1;
+    private long savedAtStart;
+    private float savedPerSecond;
+
+    /**
+     * Evaluate the poses with a worker per available processor, but the GL thread one
+     */
+    public AnimationSystem() {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    /**
+     * @param threads number of workers. 0 to evaluate the poses in the calling thread
+     */
+    public AnimationSystem(int threads) {
+        if (threads > 0) {
+            this.executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            this.executor.allowCoreThreadTimeOut(true);
+        } else {
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Complete & bake the animation of the model, so it's not done when drawing it. Can be called from the loader
+     * thread, before the model is added to the scene
+     *
+     * @param obj the model
+     */
+    public void prepare(Object3DData obj) {
+        if (!(obj instanceof AnimatedModel) || ((AnimatedModel) obj).getAnimation() == null) return;
+        animator.prepare((AnimatedModel) obj);
+    }
+
+    /**
+     * @param lod the level of detail of the animations, or null to evaluate every pose every frame
+     */
+    public void setLod(AnimationLod lod) {
+        this.lod = lod;
+    }
+
+    /**
+     * Set the view the models are drawn with, so their level of detail can be chosen. Must be called from the GL
+     * thread
+     *
+     * @param viewProjection the view projection matrix
+     */
+    public void setViewProjection(float[] viewProjection) {
+        System.arraycopy(viewProjection, 0, this.viewProjection, 0, 16);
+        frustum.update(this.viewProjection);
+        hasView = true;
+    }
+
+    /**
+     * Swap in the evaluated poses and start evaluating the poses of the models at the specified time. Must be called
+     * from the GL thread at the start of the frame
+     *
+     * @param objects the models
+     * @param time    time, in seconds. Every animation loops over its length
+     */
+    public void update(List<Object3DData> objects, float time) {
+        frame++;
+        final float frameTime = lastTime >= 0 && time > lastTime ? time - lastTime : 0;
+        lastTime = time;
+
+        // a task per skeleton, with the detail of its most detailed model
+        for (int i = 0; i < objects.size(); i++) {
+            final Object3DData obj = objects.get(i);
+            if (!(obj instanceof AnimatedModel)) continue;
+            final AnimatedModel model = (AnimatedModel) obj;
+            if (model.getAnimation() == null || model.getRootJoint() == null) continue;
+
+            final Pose pose = model.getPose();
+            Task task = tasks.get(pose);
+            if (task == null) {
+                task = new Task(pose);
+                tasks.put(pose, task);
+            }
+            final float screenSize = getScreenSize(model);
+            final AnimationLod.Rate rate = getRate(model, screenSize);
+            if (task.frame != frame) {
+                task.frame = frame;
+                task.model = model;
+                task.rate = rate;
+                task.screenSize = screenSize;
+            } else {
+                task.rate = task.rate.max(rate);
+                task.screenSize = Math.max(task.screenSize, screenSize);
+            }
+        }
+
+        for (Iterator<Task> it = tasks.values().iterator(); it.hasNext(); ) {
+            final Task task = it.next();
+
+            // forget the models no longer in the scene
+            if (task.frame != frame) {
+                if (task.done) {
+                    it.remove();
+                }
+                continue;
+            }
+            update(task, time, frameTime);
+        }
+
+        // evaluations saved per second
+        if (savedStart < 0 || time < savedStart) {
+            savedStart = time;
+            savedAtStart = saved;
+        } else if (time - savedStart >= 1) {
+            savedPerSecond = (saved - savedAtStart) / (time - savedStart);
+            savedStart = time;
+            savedAtStart = saved;
+        }
+
+        // log event
+        if (frame % 1000 == 0) {
+            Log.v("AnimationSystem", "Frames: " + frame + ", poses: " + evaluated + ", delayed: " + delayed
+                    + ", saved: " + saved + " (" + savedPerSecond + "/s)");
+        }
+    }
+
+    private void update(Task task, float time, float frameTime) {
+        final Pose pose = task.pose;
+
+        // the workers didn't finish the previous pose. keep drawing the current one
+        if (!task.done) {
+            pose.step();
+            delayed++;
+            return;
+        }
+        pose.swap(task.interval);
+        pose.step();
+
+        // evaluate the next pose, unless it's not due at this rate. frozen poses are evaluated once
+        final int interval = task.rate.getInterval();
+        if (task.evaluatedFrame != 0 && (interval == 0 || frame - task.evaluatedFrame < interval)) {
+            saved++;
+            return;
+        }
+        task.evaluatedFrame = frame;
+        task.interval = Math.max(1, interval);
+
+        // the pose is reached in interval frames, so it's evaluated that ahead
+        task.clip = animator.prepare(task.model);
+        task.skipLeaves = hasView && lod != null && lod.isLeafCulled(task.screenSize);
+        task.time = (time + (task.interval - 1) * frameTime) % task.model.getAnimation().getLength();
+        evaluated++;
+        if (executor == null) {
+            task.run();
+            pose.swap(task.interval);
+            pose.step();
+        } else {
+            task.done = false;
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * @return fraction of the viewport covered by the model, 1 if the view is unknown
+     */
+    private float getScreenSize(AnimatedModel model) {
+        if (!hasView || lod == null || model.getVertexBuffer() == null) return 1;
+        return AnimationLod.getScreenSize(model.getWorldBounds(), viewProjection);
+    }
+
+    private AnimationLod.Rate getRate(AnimatedModel model, float screenSize) {
+        if (!hasView || lod == null || model.getVertexBuffer() == null) return AnimationLod.Rate.FULL;
+
+        // the bounds are the bind pose ones, so they are enlarged for the animation
+        final float[] worldBounds = model.getWorldBounds();
+        for (int i = 0; i < 3; i++) {
+            final float margin = (worldBounds[i + 3] - worldBounds[i]) / 2;
+            bounds[i] = worldBounds[i] - margin;
+            bounds[i + 3] = worldBounds[i + 3] + margin;
+        }
+        return lod.getRate(screenSize, model.isVisible() && frustum.intersects(bounds));
+    }
+
+    /**
+     * @return pose evaluations saved by the level of detail, per second
+     */
+    public float getSavedPerSecond() {
+        return savedPerSecond;
+    }
+
+    /**
+     * @return number of poses evaluated
+     */
+    long getEvaluatedCount() {
+        return evaluated;
+    }
+
+    /**
+     * @return number of times a skeleton kept its pose because the workers didn't finish the previous one
+     */
+    long getDelayedCount() {
+        return delayed;
+    }
+
+    /**
+     * @return number of pose evaluations saved by the level of detail
+     */
+    long getSavedCount() {
+        return saved;
+    }
+}
@@ -39,7 +39,7 @@ public class KeyFrame {
 	/**
 	 * @return The time in seconds of the keyframe in the animation.
 	 */
-	protected float getTimeStamp() {
+	public float getTimeStamp() {
 		return timeStamp;
 	}
 
@@ -49,7 +49,7 @@ public class KeyFrame {
 	 *         they correspond to. This basically represents the "pose" at this
 	 *         keyframe.
 	 */
-	protected Map<String, JointTransform> getTransforms() {
+	public Map<String, JointTransform> getTransforms() {
 		return pose;
 	}
 
@@ -0,0 +1,140 @@
+package org.andresoviedo.android_3d_model_engine.animation;
+
+import android.opengl.Matrix;
+
+/**
+ * Double buffered joint matrices of a skeleton. The renderer reads the front buffer while the next pose is written in
+ * the back buffer (i.e. by a worker thread), and the GL thread swaps them at the start of the frame. The pose is
+ * shared by the models drawn with the same skeleton (clones, wireframe, normals, etc).
+ * <p>
+ * Until the first pose is swapped in, the joint matrices are the identity, so the model is drawn in bind pose.
+ * <p>
+ * A pose evaluated for a few frames ahead (see {@link AnimationLod}) is reached by interpolating the joint matrices from
+ * the pose drawn at the time, so the model keeps moving smoothly. The matrices are blended element by element, which is
+ * close enough for the few frames between the poses.
+ *
+ * @author andresoviedo
+ */
+public final class Pose {
+
+    private float[][] front;
+    private float[][] back;
+
+    // the back buffer has a new pose
+    private volatile boolean ready;
+
+    // number of poses swapped in or interpolated
+    private long version;
+
+    // interpolation: pose drawn when the last pose was swapped in, and the last pose. null until needed
+    private float[][] from;
+    private float[][] to;
+    private int step;
+    private int steps;
+
+    public Pose(int jointCount) {
+        this.front = new float[jointCount][16];
+        this.back = new float[jointCount][16];
+        for (int i = 0; i < jointCount; i++) {
+            Matrix.setIdentityM(front[i], 0);
+            Matrix.setIdentityM(back[i], 0);
+        }
+    }
+
+    /**
+     * @return the joint matrices to draw, indexed by joint index
+     */
+    public float[][] getJointTransforms() {
+        return front;
+    }
+
+    /**
+     * @return the joint matrices the next pose is written to
+     */
+    float[][] getBackBuffer() {
+        return back;
+    }
+
+    /**
+     * The back buffer is complete, so it can be swapped in
+     */
+    void publish() {
+        ready = true;
+    }
+
+    /**
+     * Swap in the last published pose, if any. Must be called from the GL thread, when no pose is being written
+     *
+     * @return true if the buffers were swapped
+     */
+    public boolean swap() {
+        return swap(1);
+    }
+
+    /**
+     * Swap in the last published pose, if any, to be reached in the specified frames. Until then, every
+     * {@link #step()} interpolates the joint matrices. Must be called from the GL thread, when no pose is being written
+     *
+     * @param frames frames to reach the pose. 1 to draw it right away
+     * @return true if the buffers were swapped
+     */
+    public boolean swap(int frames) {
+        if (!ready) return false;
+        if (frames <= 1) {
+            final float[][] temp = front;
+            front = back;
+            back = temp;
+            steps = 0;
+        } else {
+            if (from == null) {
+                from = new float[front.length][16];
+                to = new float[front.length][16];
+            }
+            for (int i = 0; i < front.length; i++) {
+                System.arraycopy(front[i], 0, from[i], 0, 16);
+            }
+            final float[][] temp = to;
+            to = back;
+            back = temp;
+            step = 0;
+            steps = frames;
+        }
+        ready = false;
+        version++;
+        return true;
+    }
+
+    /**
+     * Move the interpolation to the next frame. Must be called from the GL thread, once per frame
+     *
+     * @return true if the joint matrices changed
+     */
+    public boolean step() {
+        if (step >= steps) return false;
+        step++;
+        if (step == steps) {
+            for (int i = 0; i < front.length; i++) {
+                System.arraycopy(to[i], 0, front[i], 0, 16);
+            }
+        } else {
+            final float progression = (float) step / steps;
+            for (int i = 0; i < front.length; i++) {
+                final float[] a = from[i];
+                final float[] b = to[i];
+                final float[] ret = front[i];
+                for (int j = 0; j < 16; j++) {
+                    ret[j] = a[j] + (b[j] - a[j]) * progression;
+                }
+            }
+        }
+        version++;
+        return true;
+    }
+
+    /**
+     * @return number of poses swapped in, so the users of the pose (i.e. cpu skinning) can tell when it changed
+     */
+    public long getVersion() {
+        return version;
+    }
+}
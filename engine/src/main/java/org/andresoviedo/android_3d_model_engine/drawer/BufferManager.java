@@ -0,0 +1,440 @@
+package org.andresoviedo.android_3d_model_engine.drawer;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import org.andresoviedo.android_3d_model_engine.model.AnimatedModel;
+import org.andresoviedo.android_3d_model_engine.model.Object3DData;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * GPU resident copies of the vertex and index buffers. Every buffer is uploaded to a buffer object the first time it's
+ * drawn, and then it's drawn from the GPU, so the geometry is not copied by the driver on every frame. Buffers are
+ * identified by the instance, so replacing a buffer of the object uploads the new one, while buffers updated in place
+ * must be {@link #invalidate(Object3DData) invalidated}. Invalidated buffers are uploaded again as
+ * <code>GL_DYNAMIC_DRAW</code>, the others are <code>GL_STATIC_DRAW</code>.<p>
+ * Buffer objects not drawn for {@link #MAX_UNUSED_FRAMES} frames (i.e. the object was removed from the scene) are
+ * deleted.<p>
+ * With an interleaved {@link VertexLayout.Format format}, the vertex attributes of every object are uploaded in a single
+ * (optionally quantized) buffer, built the first time the object is drawn.<p>
+ * The OpenGL calls are done through a {@link Sink}, so the buffer management can be tested without a GPU. The default
+ * sink calls the {@link #setGL(GL20) GL} of the drawers, so the uploads are validated like the draws.
+ *
+ * @author andresoviedo
+ */
+public final class BufferManager {
+
+    /**
+     * Number of frames a buffer object is kept without being drawn
+     */
+    public static final int MAX_UNUSED_FRAMES = 60;
+
+    /**
+     * Creates, uploads and binds the buffer objects. Called from the GL thread
+     */
+    public interface Sink {
+
+        /**
+         * @return the id of the new buffer object, or 0 if it couldn't be created
+         */
+        int create();
+
+        /**
+         * Bind the buffer object and upload the data
+         *
+         * @param target <code>GL_ARRAY_BUFFER</code> or <code>GL_ELEMENT_ARRAY_BUFFER</code>
+         * @param id     the buffer object
+         * @param data   the data, positioned at 0
+         * @param size   size in bytes
+         * @param usage  <code>GL_STATIC_DRAW</code> or <code>GL_DYNAMIC_DRAW</code>
+         */
+        void upload(int target, int id, Buffer data, int size, int usage);
+
+        /**
+         * @param target <code>GL_ARRAY_BUFFER</code> or <code>GL_ELEMENT_ARRAY_BUFFER</code>
+         * @param id     the buffer object or 0 to unbind it
+         */
+        void bind(int target, int id);
+
+        void delete(int id);
+    }
+
+    private static final class Entry {
+
+        private final int id;
+        private int size;
+        private boolean dirty;
+        private boolean dynamic;
+        private int frame;
+
+        private Entry(int id) {
+            this.id = id;
+        }
+    }
+
+    private final Sink sink;
+
+    // buffer objects by buffer instance
+    private final Map<Buffer, Entry> buffers = new IdentityHashMap<>();
+
+    // interleaved vertices by object
+    private VertexLayout.Format format = VertexLayout.Format.SEPARATE;
+    private final Map<Object3DData, VertexLayout> layouts = new IdentityHashMap<>();
+
+    // bound buffer objects, so redundant binds are skipped
+    private int arrayBuffer;
+    private int elementArrayBuffer;
+
+    private int frame;
+
+    // stats
+    private int uploads;
+    private long uploadedBytes;
+    private long residentBytes;
+    private long savedBytes;
+
+    public BufferManager() {
+        this(new GLSink(new AndroidGL20()));
+    }
+
+    public BufferManager(Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * @param gl the OpenGL calls of the default sink, i.e. validated or not
+     */
+    public void setGL(GL20 gl) {
+        if (sink instanceof GLSink) {
+            ((GLSink) sink).gl = gl;
+        }
+    }
+
+    /**
+     * @param format the format of the vertex attributes of the objects drawn from now on
+     */
+    public void setVertexFormat(VertexLayout.Format format) {
+        if (this.format == format) return;
+        this.format = format;
+        for (VertexLayout layout : layouts.values()) {
+            delete(layout);
+        }
+        layouts.clear();
+    }
+
+    public VertexLayout.Format getVertexFormat() {
+        return format;
+    }
+
+    /**
+     * Get the interleaved vertices of the object, building them if the object is drawn for the first time or its
+     * buffers were replaced
+     *
+     * @param obj the object
+     * @return the layout, or null if the attributes are drawn from separate buffers
+     */
+    public VertexLayout getLayout(Object3DData obj) {
+        if (format == VertexLayout.Format.SEPARATE) {
+            return null;
+        }
+        VertexLayout layout = layouts.get(obj);
+        if (layout == null || !layout.isBuiltFrom(obj)) {
+            if (layout != null) {
+                delete(layout);
+            }
+            layout = VertexLayout.build(obj, format);
+            if (layout == null) {
+                layouts.remove(obj);
+                return null;
+            }
+            layouts.put(obj, layout);
+            savedBytes += layout.getSourceBytes() - layout.getBytes();
+        }
+        layout.frame = frame;
+        return layout;
+    }
+
+    /**
+     * Bind the vertex attribute buffer, uploading it if it's not uploaded yet or it was invalidated
+     *
+     * @param data the vertex attribute data
+     * @return the buffer object or 0 if the client side array should be used
+     */
+    public int bindArray(Buffer data) {
+        final int id = bind(GLES20.GL_ARRAY_BUFFER, data);
+        if (id != arrayBuffer) {
+            sink.bind(GLES20.GL_ARRAY_BUFFER, id);
+            arrayBuffer = id;
+        }
+        return id;
+    }
+
+    /**
+     * Bind the index buffer, uploading it if it's not uploaded yet or it was invalidated
+     *
+     * @param data the indices or null to unbind the index buffer
+     * @return the buffer object or 0 if the client side array should be used
+     */
+    public int bindElements(Buffer data) {
+        final int id = bind(GLES20.GL_ELEMENT_ARRAY_BUFFER, data);
+        if (id != elementArrayBuffer) {
+            sink.bind(GLES20.GL_ELEMENT_ARRAY_BUFFER, id);
+            elementArrayBuffer = id;
+        }
+        return id;
+    }
+
+    /**
+     * Unbind the buffer objects, so client side arrays can be used
+     */
+    public void unbind() {
+        bindArray(null);
+        bindElements(null);
+    }
+
+    private int bind(int target, Buffer data) {
+        if (data == null) {
+            return 0;
+        }
+        Entry entry = buffers.get(data);
+        if (entry == null) {
+            final int id = sink.create();
+            if (id == 0) {
+                Log.e("BufferManager", "Error creating buffer object");
+                return 0;
+            }
+            entry = new Entry(id);
+            buffers.put(data, entry);
+            upload(target, entry, data);
+        } else if (entry.dirty) {
+            entry.dynamic = true;
+            upload(target, entry, data);
+        }
+        entry.frame = frame;
+        return entry.id;
+    }
+
+    private void upload(int target, Entry entry, Buffer data) {
+        final int size = data.capacity() * bytesPerElement(data);
+        data.position(0);
+        sink.upload(target, entry.id, data, size, entry.dynamic ? GLES20.GL_DYNAMIC_DRAW : GLES20.GL_STATIC_DRAW);
+        if (target == GLES20.GL_ARRAY_BUFFER) {
+            arrayBuffer = entry.id;
+        } else {
+            elementArrayBuffer = entry.id;
+        }
+        residentBytes += size - entry.size;
+        entry.size = size;
+        entry.dirty = false;
+        uploads++;
+        uploadedBytes += size;
+    }
+
+    /**
+     * The buffers of the object were updated in place, so they are uploaded again the next time they are drawn
+     *
+     * @param obj the object
+     */
+    public void invalidate(Object3DData obj) {
+        final VertexLayout layout = layouts.remove(obj);
+        if (layout != null) {
+            delete(layout);
+        }
+        for (Buffer buffer : getBuffers(obj)) {
+            final Entry entry = buffers.get(buffer);
+            if (entry != null) {
+                entry.dirty = true;
+            }
+        }
+    }
+
+    /**
+     * A buffer of the object was updated in place, so it's uploaded again the next time it's drawn. The other buffers
+     * of the object are kept
+     *
+     * @param obj    the object
+     * @param buffer the buffer updated
+     */
+    public void invalidate(Object3DData obj, Buffer buffer) {
+        final VertexLayout layout = layouts.remove(obj);
+        if (layout != null) {
+            delete(layout);
+        }
+        final Entry entry = buffers.get(buffer);
+        if (entry != null) {
+            entry.dirty = true;
+        }
+    }
+
+    /**
+     * Delete the buffer objects of the object
+     *
+     * @param obj the object
+     */
+    public void delete(Object3DData obj) {
+        final VertexLayout layout = layouts.remove(obj);
+        if (layout != null) {
+            delete(layout);
+        }
+        for (Buffer buffer : getBuffers(obj)) {
+            final Entry entry = buffers.remove(buffer);
+            if (entry != null) {
+                delete(entry);
+            }
+        }
+    }
+
+    /**
+     * Ends the frame, deleting the buffer objects not drawn lately
+     */
+    public void endFrame() {
+        frame++;
+        final Iterator<VertexLayout> layoutsIt = layouts.values().iterator();
+        while (layoutsIt.hasNext()) {
+            final VertexLayout layout = layoutsIt.next();
+            if (frame - layout.frame > MAX_UNUSED_FRAMES) {
+                layoutsIt.remove();
+                savedBytes -= layout.getSourceBytes() - layout.getBytes();
+            }
+        }
+        final Iterator<Entry> it = buffers.values().iterator();
+        while (it.hasNext()) {
+            final Entry entry = it.next();
+            if (frame - entry.frame > MAX_UNUSED_FRAMES) {
+                it.remove();
+                delete(entry);
+            }
+        }
+    }
+
+    /**
+     * Forget all the buffer objects without deleting them, i.e. the GL context was lost
+     */
+    public void clear() {
+        buffers.clear();
+        arrayBuffer = 0;
+        elementArrayBuffer = 0;
+        residentBytes = 0;
+    }
+
+    private void delete(VertexLayout layout) {
+        savedBytes -= layout.getSourceBytes() - layout.getBytes();
+        final Entry entry = buffers.remove(layout.getData());
+        if (entry != null) {
+            delete(entry);
+        }
+    }
+
+    private void delete(Entry entry) {
+        if (entry.id == arrayBuffer) arrayBuffer = 0;
+        if (entry.id == elementArrayBuffer) elementArrayBuffer = 0;
+        sink.delete(entry.id);
+        residentBytes -= entry.size;
+    }
+
+    private static List<Buffer> getBuffers(Object3DData obj) {
+        final List<Buffer> ret = new ArrayList<>();
+        ret.add(obj.getVertexBuffer());
+        ret.add(obj.getNormalsBuffer());
+        ret.add(obj.getColorsBuffer());
+        ret.add(obj.getTextureBuffer());
+        ret.add(obj.getDrawOrder());
+        ret.add(obj.getInstanceTransformsBuffer());
+        if (obj instanceof AnimatedModel) {
+            ret.add(((AnimatedModel) obj).getVertexWeights());
+            ret.add(((AnimatedModel) obj).getJointIds());
+        }
+        if (obj.getElements() != null) {
+            for (int i = 0; i < obj.getElements().size(); i++) {
+                ret.add(obj.getElements().get(i).getIndexBuffer());
+            }
+        }
+        return ret;
+    }
+
+    private static int bytesPerElement(Buffer buffer) {
+        if (buffer instanceof ByteBuffer) return 1;
+        if (buffer instanceof ShortBuffer) return 2;
+        // float & int
+        return 4;
+    }
+
+    public int size() {
+        return buffers.size();
+    }
+
+    public int getUploads() {
+        return uploads;
+    }
+
+    public long getUploadedBytes() {
+        return uploadedBytes;
+    }
+
+    public long getResidentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * @return bytes saved by the layouts of the objects, compared to separate float buffers
+     */
+    public long getSavedBytes() {
+        return savedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "BufferManager{" +
+                "buffers=" + buffers.size() +
+                ", residentBytes=" + residentBytes +
+                ", uploads=" + uploads +
+                ", uploadedBytes=" + uploadedBytes +
+                ", format=" + format +
+                ", layouts=" + layouts.size() +
+                ", savedBytes=" + savedBytes +
+                '}';
+    }
+
+    /**
+     * Uploads the buffers to the GPU
+     */
+    static final class GLSink implements Sink {
+
+        private GL20 gl;
+
+        GLSink(GL20 gl) {
+            this.gl = gl;
+        }
+
+        @Override
+        public int create() {
+            final int[] handle = new int[1];
+            gl.glGenBuffers(1, handle, 0);
+            return handle[0];
+        }
+
+        @Override
+        public void upload(int target, int id, Buffer data, int size, int usage) {
+            gl.glBindBuffer(target, id);
+            gl.glBufferData(target, size, data, usage);
+        }
+
+        @Override
+        public void bind(int target, int id) {
+            gl.glBindBuffer(target, id);
+        }
+
+        @Override
+        public void delete(int id) {
+            gl.glDeleteBuffers(1, new int[]{id}, 0);
+        }
+    }
+}
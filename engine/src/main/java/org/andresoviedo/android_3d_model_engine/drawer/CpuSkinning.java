@@ -0,0 +1,432 @@
+package org.andresoviedo.android_3d_model_engine.drawer;
+
+import android.opengl.Matrix;
+import android.util.Log;
+
+import org.andresoviedo.android_3d_model_engine.animation.Pose;
+import org.andresoviedo.android_3d_model_engine.model.AnimatedModel;
+import org.andresoviedo.android_3d_model_engine.model.Object3DData;
+import org.andresoviedo.util.io.IOUtils;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Skins the animated models on the CPU, for the skeletons having more joints than the vertex shader can hold. The
+ * joint matrices are uniforms, and every <code>mat4</code> takes 4 of the <code>GL_MAX_VERTEX_UNIFORM_VECTORS</code>
+ * (128 at least), so the shader holds {@link #getMaxJoints(int) a few joints} on some devices.<p>
+ * Every skinned model is drawn with a proxy object, not animated, sharing everything with the model but the positions
+ * and normals, that are deformed with the joint ids & weights every time the {@link Pose} changes and uploaded again as
+ * <code>GL_DYNAMIC_DRAW</code>. The vertices are split in ranges, skinned by a pool of workers, with flat loops over
+ * primitive arrays (the bind shape transform and the joint offsets are precomputed), so the JIT keeps them tight.<p>
+ * The positions are skinned like the vertex shader does, with the weights normalized like the perspective division
+ * does. The normals, that the shader doesn't skin, are transformed by the weighted joint rotations.
+ *
+ * @author andresoviedo
+ */
+public final class CpuSkinning {
+
+    /**
+     * Max joints of the vertex shader, even if the device supports more
+     */
+    public static final int MAX_JOINTS = 60;
+
+    /**
+     * Uniform vectors of the animated vertex shader, but the joints: MVP (12) & bind shape (4) matrices, position
+     * scale & offset, color, light & camera positions
+     */
+    static final int RESERVED_UNIFORM_VECTORS = 21;
+
+    /**
+     * Vertices skinned by the calling thread, unless there are more
+     */
+    private static final int MIN_VERTICES_PER_TASK = 4096;
+
+    // vertices of a model, ready to skin
+    private static final class Mesh {
+
+        // buffers of the model, so the mesh is built again if they are replaced
+        private final FloatBuffer vertexBuffer;
+        private final FloatBuffer normalsBuffer;
+        private final FloatBuffer jointIds;
+        private final FloatBuffer vertexWeights;
+
+        private final Object3DData skinned;
+
+        // bind pose, with the bind shape transform applied
+        private final float[] positions;
+        private final float[] normals;
+
+        // influences: offset of the joint matrix & weight. invalid joints have no weight
+        private final int influences;
+        private final int[] joints;
+        private final float[] weights;
+
+        // packed joint matrices & result
+        private final float[] matrices;
+        private final float[] skinnedPositions;
+        private final float[] skinnedNormals;
+
+        // ranges of vertices
+        private final List<Callable<Void>> tasks = new ArrayList<>();
+
+        // pose skinned
+        private Pose pose;
+        private long version;
+        private int frame;
+
+        private Mesh(AnimatedModel model, Object3DData skinned, float[] positions, float[] normals, int influences,
+                     int[] joints, float[] weights) {
+            this.vertexBuffer = model.getVertexBuffer();
+            this.normalsBuffer = model.getNormalsBuffer();
+            this.jointIds = model.getJointIds();
+            this.vertexWeights = model.getVertexWeights();
+            this.skinned = skinned;
+            this.positions = positions;
+            this.normals = normals;
+            this.influences = influences;
+            this.joints = joints;
+            this.weights = weights;
+            this.matrices = new float[model.getBoneCount() * 16];
+            this.skinnedPositions = new float[positions.length];
+            this.skinnedNormals = normals != null ? new float[normals.length] : null;
+        }
+
+        private boolean isBuiltFrom(AnimatedModel model) {
+            return model.getVertexBuffer() == vertexBuffer && model.getNormalsBuffer() == normalsBuffer
+                    && model.getJointIds() == jointIds && model.getVertexWeights() == vertexWeights
+                    && model.getDrawOrder() == skinned.getDrawOrder() && model.getElements() == skinned.getElements()
+                    && model.getBoneCount() * 16 == matrices.length;
+        }
+    }
+
+    private final BufferManager buffers;
+    private final ThreadPoolExecutor executor;
+    private final int threads;
+    private final int minVerticesPerTask;
+
+    // joints supported by the vertex shader
+    private int maxJoints = MAX_JOINTS;
+
+    // skinned models. GL thread only
+    private final Map<AnimatedModel, Mesh> meshes = new IdentityHashMap<>();
+    private int frame;
+
+    // stats
+    private long skinned;
+
+    /**
+     * Skin with a worker per available processor. The GL thread waits for them anyway
+     *
+     * @param buffers the buffers to invalidate when the vertices change
+     */
+    public CpuSkinning(BufferManager buffers) {
+        this(buffers, Runtime.getRuntime().availableProcessors(), MIN_VERTICES_PER_TASK);
+    }
+
+    /**
+     * @param buffers            the buffers to invalidate when the vertices change
+     * @param threads            number of workers. 0 or 1 to skin in the calling thread
+     * @param minVerticesPerTask min vertices of every range
+     */
+    public CpuSkinning(BufferManager buffers, int threads, int minVerticesPerTask) {
+        this.buffers = buffers;
+        this.threads = threads;
+        this.minVerticesPerTask = Math.max(1, minVerticesPerTask);
+        if (threads > 1) {
+            this.executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            this.executor.allowCoreThreadTimeOut(true);
+        } else {
+            this.executor = null;
+        }
+    }
+
+    /**
+     * @param maxVertexUniformVectors <code>GL_MAX_VERTEX_UNIFORM_VECTORS</code>, 0 if unknown
+     * @return the joint matrices the animated vertex shader can hold
+     */
+    public static int getMaxJoints(int maxVertexUniformVectors) {
+        if (maxVertexUniformVectors <= 0) return MAX_JOINTS;
+        return Math.max(0, Math.min(MAX_JOINTS, (maxVertexUniformVectors - RESERVED_UNIFORM_VECTORS) / 4));
+    }
+
+    /**
+     * @param maxJoints the joint matrices the animated vertex shader can hold
+     */
+    public void setMaxJoints(int maxJoints) {
+        Log.i("CpuSkinning", "Max joints: " + maxJoints);
+        this.maxJoints = maxJoints;
+    }
+
+    public int getMaxJoints() {
+        return maxJoints;
+    }
+
+    /**
+     * @param obj the object to draw
+     * @return true if the object is animated, but its skeleton doesn't fit in the vertex shader
+     */
+    public boolean isRequired(Object3DData obj) {
+        if (!(obj instanceof AnimatedModel)) return false;
+        final AnimatedModel model = (AnimatedModel) obj;
+        return model.getAnimation() != null && model.getJointsData() != null && model.getJointIds() != null
+                && model.getVertexWeights() != null && model.getVertexBuffer() != null
+                && model.getBoneCount() > maxJoints;
+    }
+
+    /**
+     * Get the object to draw the model in its current pose, skinning it again if the pose changed. Must be called from
+     * the GL thread
+     *
+     * @param model the model
+     * @return the model skinned, not animated
+     */
+    public Object3DData skin(AnimatedModel model) {
+        Mesh mesh = meshes.get(model);
+        if (mesh == null || !mesh.isBuiltFrom(model)) {
+            mesh = build(model);
+            meshes.put(model, mesh);
+        }
+        mesh.frame = frame;
+
+        // same pose, same vertices
+        final Pose pose = model.getPose();
+        if (mesh.pose == pose && mesh.version == pose.getVersion()) {
+            return mesh.skinned;
+        }
+        mesh.pose = pose;
+        mesh.version = pose.getVersion();
+
+        // pack the joint matrices
+        final float[][] jointTransforms = pose.getJointTransforms();
+        for (int i = 0; i < jointTransforms.length && i * 16 < mesh.matrices.length; i++) {
+            System.arraycopy(jointTransforms[i], 0, mesh.matrices, i * 16, 16);
+        }
+
+        // skin
+        if (mesh.tasks.size() == 1) {
+            skin(mesh, 0, mesh.positions.length / 3);
+        } else {
+            invokeAll(mesh.tasks);
+        }
+        skinned++;
+
+        // upload the new vertices
+        final FloatBuffer vertexBuffer = mesh.skinned.getVertexBuffer();
+        vertexBuffer.position(0);
+        vertexBuffer.put(mesh.skinnedPositions);
+        vertexBuffer.position(0);
+        buffers.invalidate(mesh.skinned, vertexBuffer);
+        if (mesh.skinnedNormals != null) {
+            final FloatBuffer normalsBuffer = mesh.skinned.getNormalsBuffer();
+            normalsBuffer.position(0);
+            normalsBuffer.put(mesh.skinnedNormals);
+            normalsBuffer.position(0);
+            buffers.invalidate(mesh.skinned, normalsBuffer);
+        }
+        return mesh.skinned;
+    }
+
+    /**
+     * Ends the frame, forgetting the models not drawn lately
+     */
+    public void endFrame() {
+        frame++;
+        for (Iterator<Mesh> it = meshes.values().iterator(); it.hasNext(); ) {
+            if (frame - it.next().frame > BufferManager.MAX_UNUSED_FRAMES) {
+                it.remove();
+            }
+        }
+    }
+
+    private Mesh build(final AnimatedModel model) {
+        final FloatBuffer vertexBuffer = model.getVertexBuffer();
+        final FloatBuffer normalsBuffer = model.getNormalsBuffer();
+        final FloatBuffer jointIds = model.getJointIds();
+        final FloatBuffer vertexWeights = model.getVertexWeights();
+        final int vertices = vertexBuffer.capacity() / 3;
+        final int influences = vertices > 0 ? jointIds.capacity() / vertices : 0;
+        final int bones = model.getBoneCount();
+        Log.i("CpuSkinning", "Skinning " + model.getId() + " on the cpu. vertices: " + vertices + ", joints: "
+                + bones + ", influences: " + influences);
+
+        // bind pose
+        final float[] bindShapeMatrix = model.getBindShapeMatrix();
+        final float[] positions = new float[vertices * 3];
+        final float[] vertex = {0, 0, 0, 1};
+        final float[] shaped = new float[4];
+        for (int i = 0; i < positions.length; i += 3) {
+            vertex[0] = vertexBuffer.get(i);
+            vertex[1] = vertexBuffer.get(i + 1);
+            vertex[2] = vertexBuffer.get(i + 2);
+            Matrix.multiplyMV(shaped, 0, bindShapeMatrix, 0, vertex, 0);
+            positions[i] = shaped[0];
+            positions[i + 1] = shaped[1];
+            positions[i + 2] = shaped[2];
+        }
+        float[] normals = null;
+        if (normalsBuffer != null && normalsBuffer.capacity() == positions.length) {
+            normals = new float[positions.length];
+            vertex[3] = 0;
+            for (int i = 0; i < normals.length; i += 3) {
+                vertex[0] = normalsBuffer.get(i);
+                vertex[1] = normalsBuffer.get(i + 1);
+                vertex[2] = normalsBuffer.get(i + 2);
+                Matrix.multiplyMV(shaped, 0, bindShapeMatrix, 0, vertex, 0);
+                normals[i] = shaped[0];
+                normals[i + 1] = shaped[1];
+                normals[i + 2] = shaped[2];
+            }
+        }
+
+        // influences
+        final int[] joints = new int[vertices * influences];
+        final float[] weights = new float[joints.length];
+        for (int i = 0; i < joints.length; i++) {
+            final int joint = (int) jointIds.get(i);
+            if (joint >= 0 && joint < bones && i < vertexWeights.capacity()) {
+                joints[i] = joint * 16;
+                weights[i] = vertexWeights.get(i);
+            }
+        }
+
+        // proxy, sharing everything but the deformed vertices
+        final Object3DData skinned = new Object3DData(IOUtils.createFloatBuffer(positions.length),
+                model.getDrawOrder());
+        skinned.setNormalsBuffer(normals != null ? IOUtils.createFloatBuffer(normals.length) : normalsBuffer)
+                .setColorsBuffer(model.getColorsBuffer())
+                .setTextureBuffer(model.getTextureBuffer())
+                .setModelMatrix(model.getModelMatrix())
+                .setReadOnly(true)
+                .setDrawMode(model.getDrawMode())
+                .setDrawUsingArrays(model.isDrawUsingArrays())
+                .setId(model.getId() + "_skinned");
+        skinned.setMaterial(model.getMaterial());
+        skinned.setElements(model.getElements());
+
+        // ranges of vertices
+        final Mesh mesh = new Mesh(model, skinned, positions, normals, influences, joints, weights);
+        final int ranges = executor == null ? 1 : Math.max(1, Math.min(threads, vertices / minVerticesPerTask));
+        for (int r = 0; r < ranges; r++) {
+            final int from = (int) ((long) vertices * r / ranges);
+            final int to = (int) ((long) vertices * (r + 1) / ranges);
+            final Mesh target = mesh;
+            mesh.tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    skin(target, from, to);
+                    return null;
+                }
+            });
+        }
+        return mesh;
+    }
+
+    private static void skin(Mesh mesh, int from, int to) {
+        skin(mesh.matrices, mesh.positions, mesh.normals, mesh.influences, mesh.joints, mesh.weights,
+                mesh.skinnedPositions, mesh.skinnedNormals, from, to);
+    }
+
+    /**
+     * Skin the vertices of the range. The matrices are packed, column major
+     *
+     * @param joints offsets of the joint matrices of every influence
+     * @param normals the normals or null
+     */
+    static void skin(float[] matrices, float[] positions, float[] normals, int influences, int[] joints,
+                     float[] weights, float[] skinnedPositions, float[] skinnedNormals, int from, int to) {
+        for (int v = from; v < to; v++) {
+            final int p = v * 3;
+            final float x = positions[p];
+            final float y = positions[p + 1];
+            final float z = positions[p + 2];
+            float sx = 0, sy = 0, sz = 0, sw = 0;
+            for (int k = v * influences, end = k + influences; k < end; k++) {
+                final float w = weights[k];
+                final int m = joints[k];
+                sx += w * (matrices[m] * x + matrices[m + 4] * y + matrices[m + 8] * z + matrices[m + 12]);
+                sy += w * (matrices[m + 1] * x + matrices[m + 5] * y + matrices[m + 9] * z + matrices[m + 13]);
+                sz += w * (matrices[m + 2] * x + matrices[m + 6] * y + matrices[m + 10] * z + matrices[m + 14]);
+                sw += w;
+            }
+
+            // no weights: keep the bind pose
+            if (sw == 0) {
+                skinnedPositions[p] = x;
+                skinnedPositions[p + 1] = y;
+                skinnedPositions[p + 2] = z;
+                if (normals != null) {
+                    skinnedNormals[p] = normals[p];
+                    skinnedNormals[p + 1] = normals[p + 1];
+                    skinnedNormals[p + 2] = normals[p + 2];
+                }
+                continue;
+            }
+            if (sw != 1) {
+                sx /= sw;
+                sy /= sw;
+                sz /= sw;
+            }
+            skinnedPositions[p] = sx;
+            skinnedPositions[p + 1] = sy;
+            skinnedPositions[p + 2] = sz;
+            if (normals == null) continue;
+
+            // normals: rotation only
+            final float nx = normals[p];
+            final float ny = normals[p + 1];
+            final float nz = normals[p + 2];
+            sx = 0;
+            sy = 0;
+            sz = 0;
+            for (int k = v * influences, end = k + influences; k < end; k++) {
+                final float w = weights[k];
+                final int m = joints[k];
+                sx += w * (matrices[m] * nx + matrices[m + 4] * ny + matrices[m + 8] * nz);
+                sy += w * (matrices[m + 1] * nx + matrices[m + 5] * ny + matrices[m + 9] * nz);
+                sz += w * (matrices[m + 2] * nx + matrices[m + 6] * ny + matrices[m + 10] * nz);
+            }
+            final float length = (float) Math.sqrt(sx * sx + sy * sy + sz * sz);
+            if (length > 0) {
+                sx /= length;
+                sy /= length;
+                sz /= length;
+            }
+            skinnedNormals[p] = sx;
+            skinnedNormals[p + 1] = sy;
+            skinnedNormals[p + 2] = sz;
+        }
+    }
+
+    private void invokeAll(List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Log.e("CpuSkinning", "Error skinning model: " + e.getCause().getMessage(), e.getCause());
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * @return number of times a model was skinned
+     */
+    long getSkinnedCount() {
+        return skinned;
+    }
+}
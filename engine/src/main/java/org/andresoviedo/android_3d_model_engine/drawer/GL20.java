@@ -0,0 +1,124 @@
+package org.andresoviedo.android_3d_model_engine.drawer;
+
+import java.nio.Buffer;
+
+/**
+ * The OpenGL ES 2.0 calls used by the drawers and by the uploads of the buffers and the textures. The default
+ * implementation is {@link AndroidGL20}, but the drawers can be run against a recording implementation to test them
+ * without a GPU.<p>
+ * The instanced draws of OpenGL ES 3.0 are only called if {@link #supportsInstancing()}, and the program binaries
+ * only if {@link #supportsProgramBinary()}.
+ *
+ * @author andresoviedo
+ */
+public interface GL20 {
+
+    void glUseProgram(int program);
+
+    int glGetAttribLocation(int program, String name);
+
+    int glGetUniformLocation(int program, String name);
+
+    void glEnableVertexAttribArray(int index);
+
+    void glDisableVertexAttribArray(int index);
+
+    void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, Buffer ptr);
+
+    void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, int offset);
+
+    void glVertexAttrib4fv(int index, float[] values, int offset);
+
+    void glUniform1i(int location, int x);
+
+    void glUniform3fv(int location, int count, float[] v, int offset);
+
+    void glUniform4fv(int location, int count, float[] v, int offset);
+
+    void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset);
+
+    void glActiveTexture(int texture);
+
+    void glBindTexture(int target, int texture);
+
+    void glGenBuffers(int n, int[] buffers, int offset);
+
+    void glBindBuffer(int target, int buffer);
+
+    void glBufferData(int target, int size, Buffer data, int usage);
+
+    void glDeleteBuffers(int n, int[] buffers, int offset);
+
+    void glGenTextures(int n, int[] textures, int offset);
+
+    void glTexImage2D(int target, int level, int internalformat, int width, int height, int border, int format,
+                      int type, Buffer pixels);
+
+    void glTexSubImage2D(int target, int level, int xoffset, int yoffset, int width, int height, int format,
+                         int type, Buffer pixels);
+
+    void glTexParameteri(int target, int pname, int param);
+
+    void glDeleteTextures(int n, int[] textures, int offset);
+
+    void glDrawArrays(int mode, int first, int count);
+
+    void glDrawElements(int mode, int count, int type, Buffer indices);
+
+    void glDrawElements(int mode, int count, int type, int offset);
+
+    /**
+     * @return true if the context is OpenGL ES 3.0 or later, so the instanced draws can be called
+     */
+    boolean supportsInstancing();
+
+    void glVertexAttribDivisor(int index, int divisor);
+
+    void glDrawArraysInstanced(int mode, int first, int count, int instances);
+
+    void glDrawElementsInstanced(int mode, int count, int type, Buffer indices, int instances);
+
+    void glDrawElementsInstanced(int mode, int count, int type, int offset, int instances);
+
+    int glCreateShader(int type);
+
+    void glShaderSource(int shader, String string);
+
+    void glCompileShader(int shader);
+
+    void glGetShaderiv(int shader, int pname, int[] params, int offset);
+
+    String glGetShaderInfoLog(int shader);
+
+    void glDeleteShader(int shader);
+
+    int glCreateProgram();
+
+    void glAttachShader(int program, int shader);
+
+    void glBindAttribLocation(int program, int index, String name);
+
+    void glLinkProgram(int program);
+
+    void glGetProgramiv(int program, int pname, int[] params, int offset);
+
+    String glGetProgramInfoLog(int program);
+
+    void glDeleteProgram(int program);
+
+    String glGetString(int name);
+
+    /**
+     * @return true if the context is OpenGL ES 3.0 or later and the driver has at least one program binary format
+     */
+    boolean supportsProgramBinary();
+
+    void glProgramParameteri(int program, int pname, int value);
+
+    void glGetProgramBinary(int program, int bufSize, int[] length, int lengthOffset, int[] binaryFormat,
+                            int binaryFormatOffset, Buffer binary);
+
+    void glProgramBinary(int program, int binaryFormat, Buffer binary, int length);
+
+    int glGetError();
+}
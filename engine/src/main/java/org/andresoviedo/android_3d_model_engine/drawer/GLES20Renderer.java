@@ -1,22 +1,22 @@
 package org.andresoviedo.android_3d_model_engine.drawer;
 
 import android.opengl.GLES20;
+import android.opengl.Matrix;
 import android.os.SystemClock;
 import android.util.Log;
-import android.util.SparseArray;
 
 import org.andresoviedo.android_3d_model_engine.model.AnimatedModel;
 import org.andresoviedo.android_3d_model_engine.model.Element;
 import org.andresoviedo.android_3d_model_engine.model.Object3DData;
-import org.andresoviedo.util.android.GLUtil;
 import org.andresoviedo.util.io.IOUtils;
 
 import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -44,6 +44,9 @@ class GLES20Renderer implements Renderer {
 
     private final static float[] DEFAULT_COLOR = {1.0f, 1.0f, 1.0f, 1.0f};
     private final static float[] NO_COLOR_MASK = {1.0f, 1.0f, 1.0f, 1.0f};
+    private final static float[] NO_POSITION_SCALE = {1.0f, 1.0f, 1.0f};
+    private final static float[] NO_POSITION_OFFSET = {0.0f, 0.0f, 0.0f};
+    private final static float[] IDENTITY_MATRIX = {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1};
 
     // specification
     private final String id;
@@ -52,59 +55,67 @@ class GLES20Renderer implements Renderer {
     // opengl program
     private final int mProgram;
 
+    // opengl calls, skipping the redundant state changes
+    private final StateTracker gl;
+
+    // attribute & uniform locations, indexed by ShaderVariable
+    private final int[] locations;
+
+    // joint matrices, uploaded at once
+    private float[] jointMatrices = new float[0];
+
+    // vertex & index buffer objects
+    private final BufferManager buffers;
+
     // animation data
     // put 0 to draw progressively, -1 to draw at once
     private long counter = -1;
     private double shift = -1d;
 
+    // instances of the bound object: 0 if it's drawn once. Instanced draws if supported, otherwise a draw per instance
+    private int instances;
+    private boolean instancing;
+    private float[] instanceTransforms;
+    private float[] modelMatrix;
+    private final float[] instanceModelMatrix = new float[16];
+
     // does the device support drawElements for GL_UNSIGNED_INT or not?
     private boolean drawUsingUnsignedInt = true;
+    private boolean drawUsingUnsignedIntChecked = false;
 
-    /**
-     * Textures cache
-     */
-    private Map<Object, Integer> textures = new HashMap<>();
-    /**
-     * Join transform names cache (optimization)
-     */
-    private final SparseArray<String> cache1 = new SparseArray<>();
     /**
      * Runtime flags
      */
     private static Map<Object, Object> flags = new HashMap<>();
 
-    static GLES20Renderer getInstance(String id, String vertexShaderCode, String fragmentShaderCode) {
-        Set<String> shaderFeatures = new HashSet<>();
-        testShaderFeature(shaderFeatures, vertexShaderCode, "u_MMatrix");
-        testShaderFeature(shaderFeatures, vertexShaderCode, "a_Position");
-        testShaderFeature(shaderFeatures, vertexShaderCode, "a_Normal");
-        testShaderFeature(shaderFeatures, vertexShaderCode, "a_Color");
-        testShaderFeature(shaderFeatures, vertexShaderCode, "a_TexCoordinate");
-        testShaderFeature(shaderFeatures, vertexShaderCode, "u_LightPos");
-        testShaderFeature(shaderFeatures, vertexShaderCode, "in_jointIndices");
-        testShaderFeature(shaderFeatures, vertexShaderCode, "in_weights");
-        testShaderFeature(shaderFeatures, fragmentShaderCode, "u_TextureCube");
-        return new GLES20Renderer(id, vertexShaderCode, fragmentShaderCode, shaderFeatures);
-    }
+    static GLES20Renderer getInstance(String id, String vertexShaderCode, String fragmentShaderCode,
+                                      Set<String> features, BufferManager buffers, StateTracker gl,
+                                      ProgramCache programs) {
+        Log.i("GLES20Renderer", "Compiling 3D Drawer... " + id);
 
-    private static void testShaderFeature(Set<String> outputFeatures, String shaderCode, String feature) {
-        if (shaderCode.contains(feature)) {
-            outputFeatures.add(feature);
+        // compile program, or load its binary. The instance matrix takes 4 locations, so it's located by the linker
+        final List<String> attributes = new ArrayList<>();
+        for (ShaderVariable variable : ShaderVariable.values()) {
+            if (variable.attribute && variable != ShaderVariable.A_INSTANCE_MATRIX
+                    && features.contains(variable.name)) {
+                attributes.add(variable.name);
+            }
         }
+        int program = programs.build(gl, vertexShaderCode, fragmentShaderCode, attributes.toArray(new String[0]));
+
+        return new GLES20Renderer(id, program, features, buffers, gl);
     }
 
-    private GLES20Renderer(String id, String vertexShaderCode, String fragmentShaderCode, Set<String> features) {
+    GLES20Renderer(String id, int program, Set<String> features, BufferManager buffers, StateTracker gl) {
 
         this.id = id;
         this.features = features;
-        Log.i("GLES20Renderer", "Compiling 3D Drawer... " + id);
-
-        // load shaders
-        int vertexShader = GLUtil.loadShader(GLES20.GL_VERTEX_SHADER, vertexShaderCode);
-        int fragmentShader = GLUtil.loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentShaderCode);
+        this.buffers = buffers;
+        this.gl = gl;
+        this.mProgram = program;
 
-        // compile program
-        mProgram = GLUtil.createAndLinkProgram(vertexShader, fragmentShader, features.toArray(new String[0]));
+        // resolve locations once
+        this.locations = ShaderVariable.resolve(gl, program);
 
         flags.clear();
         Log.d("GLES20Renderer", "Compiled 3D Drawer (" + id + ") with id " + mProgram);
@@ -125,6 +136,27 @@ class GLES20Renderer implements Renderer {
     public void draw(Object3DData obj, float[] pMatrix, float[] vMatrix, int drawMode, int drawSize, int textureId,
                      float[] lightPosInWorldSpace, float[] colorMask, float[] cameraPos) {
 
+        // set up program, uniforms & attributes
+        bind(obj, pMatrix, vMatrix, textureId, lightPosInWorldSpace, colorMask, cameraPos);
+
+        // draw mesh
+        drawShape(obj, drawMode, drawSize);
+    }
+
+    /**
+     * @return true if the object is drawn element by element, so its elements can be drawn separately with
+     * {@link #drawElement(Object3DData, int, int)}
+     */
+    boolean isDrawingElements(Object3DData obj, int drawSize) {
+        return !obj.isDrawUsingArrays() && obj.getDrawModeList() == null && drawSize <= 0 && obj.getElements() != null;
+    }
+
+    /**
+     * Set up the program, the uniforms and the vertex attributes to draw the object
+     */
+    void bind(Object3DData obj, float[] pMatrix, float[] vMatrix, int textureId, float[] lightPosInWorldSpace,
+              float[] colorMask, float[] cameraPos) {
+
         // log event once
         if (id != flags.get(obj.getId())) {
             Log.d("GLES20Renderer", "Rendering with shader: " + id + "vert... obj: " + obj);
@@ -132,44 +164,47 @@ class GLES20Renderer implements Renderer {
         }
 
         // Add program to OpenGL environment
-        GLES20.glUseProgram(mProgram);
-        if (GLUtil.checkGlError("glUseProgram")) {
-            return;
-        }
+        gl.glUseProgram(mProgram);
 
         // mvp matrix for position + lighting + animation
         if(supportsMMatrix()) {
-            setUniformMatrix4(obj.getModelMatrix(), "u_MMatrix");
+            setUniformMatrix4(obj.getModelMatrix(), ShaderVariable.U_MMATRIX);
         }
-        setUniformMatrix4(vMatrix, "u_VMatrix");
-        setUniformMatrix4(pMatrix, "u_PMatrix");
+        setUniformMatrix4(vMatrix, ShaderVariable.U_VMATRIX);
+        setUniformMatrix4(pMatrix, ShaderVariable.U_PMATRIX);
+
+        // interleaved vertices, if enabled
+        final VertexLayout layout = buffers.getLayout(obj);
 
-        // pass in vertex buffer
-        int mPositionHandle = setVBO("a_Position", obj.getVertexBuffer(), COORDS_PER_VERTEX);
+        // pass in vertex buffer, and how to dequantize it
+        int mPositionHandle = setVBO(layout, ShaderVariable.A_POSITION, obj.getVertexBuffer(), COORDS_PER_VERTEX);
+        setUniform3(layout != null ? layout.getPositionScale() : NO_POSITION_SCALE, ShaderVariable.U_POSITION_SCALE);
+        setUniform3(layout != null ? layout.getPositionOffset() : NO_POSITION_OFFSET, ShaderVariable.U_POSITION_OFFSET);
 
         // pass in normals buffer for lighting
         int mNormalHandle = -1;
         if (supportsNormals()) {
-            mNormalHandle = setVBO("a_Normal", obj.getNormalsBuffer(), COORDS_PER_VERTEX);
+            mNormalHandle = setVBO(layout, ShaderVariable.A_NORMAL, obj.getNormalsBuffer(), COORDS_PER_VERTEX);
         }
 
         // pass in color or colors array
         int mColorHandle = -1;
         if (supportsColors()) {
-            mColorHandle = setVBO("a_Color", obj.getColorsBuffer(), COLOR_COORDS_PER_VERTEX);
+            mColorHandle = setVBO(layout, ShaderVariable.A_COLOR, obj.getColorsBuffer(), COLOR_COORDS_PER_VERTEX);
         } else {
-            setUniform4(obj.getColor() != null? obj.getColor() : DEFAULT_COLOR,"vColor");
+            setUniform4(obj.getColor() != null? obj.getColor() : DEFAULT_COLOR, ShaderVariable.V_COLOR);
         }
 
         // pass in color mask - i.e. stereoscopic
-        setUniform4(colorMask != null ? colorMask : NO_COLOR_MASK,"vColorMask");
+        setUniform4(colorMask != null ? colorMask : NO_COLOR_MASK, ShaderVariable.V_COLOR_MASK);
 
         // pass in texture UV buffer
         int mTextureHandle = -1;
         if (supportsTextures()) {
             if (textureId != -1) {
                 setTexture(textureId);
-                mTextureHandle = setVBO("a_TexCoordinate", obj.getTextureBuffer(), TEXTURE_COORDS_PER_VERTEX);
+                mTextureHandle = setVBO(layout, ShaderVariable.A_TEX_COORDINATE, obj.getTextureBuffer(),
+                        TEXTURE_COORDS_PER_VERTEX);
             }
         }
 
@@ -180,77 +215,144 @@ class GLES20Renderer implements Renderer {
 
         // pass in light position for lighting
         if (lightPosInWorldSpace != null && supportsLighting()) {
-            setUniform3(lightPosInWorldSpace,"u_LightPos");
-            setUniform3(cameraPos,"u_cameraPos");
+            setUniform3(lightPosInWorldSpace, ShaderVariable.U_LIGHT_POS);
+            setUniform3(cameraPos, ShaderVariable.U_CAMERA_POS);
         }
 
         // pass in joint transformation for animated model
         int in_weightsHandle = -1;
         int in_jointIndicesHandle = -1;
         if (supportsJoints() && obj instanceof AnimatedModel) {
-            in_weightsHandle = setVBO("in_weights", ((AnimatedModel) obj).getVertexWeights(), COORDS_PER_VERTEX);
-            in_jointIndicesHandle = setVBO("in_jointIndices", ((AnimatedModel) obj).getJointIds(), COORDS_PER_VERTEX);
-            setUniformMatrix4(((AnimatedModel) obj).getBindShapeMatrix(), "u_BindShapeMatrix");
+            in_weightsHandle = setVBO(layout, ShaderVariable.IN_WEIGHTS, ((AnimatedModel) obj).getVertexWeights(),
+                    COORDS_PER_VERTEX);
+            in_jointIndicesHandle = setVBO(layout, ShaderVariable.IN_JOINT_INDICES, ((AnimatedModel) obj).getJointIds(),
+                    COORDS_PER_VERTEX);
+            setUniformMatrix4(((AnimatedModel) obj).getBindShapeMatrix(), ShaderVariable.U_BIND_SHAPE_MATRIX);
             setJointTransforms((AnimatedModel) obj);
         }
 
-        // draw mesh
-        drawShape(obj, drawMode, drawSize);
+        // pass in the transforms of the instances
+        int mInstanceHandle = setInstances(obj);
 
-        // Disable vertex handlers
-        disableVBO(mPositionHandle);
-        disableVBO(mColorHandle);
-        disableVBO(mNormalHandle);
-        disableVBO(mTextureHandle);
-        disableVBO(in_weightsHandle);
-        disableVBO(in_jointIndicesHandle);
+        // disable the vertex handlers of the previous draws not used now
+        gl.disableVertexAttribArrays(mask(mPositionHandle) | mask(mColorHandle) | mask(mNormalHandle)
+                | mask(mTextureHandle) | mask(in_weightsHandle) | mask(in_jointIndicesHandle)
+                | (mInstanceHandle >= 0 && mInstanceHandle < 29 ? 0xF << mInstanceHandle : 0));
     }
 
-    private int setVBO(final String shaderVariableName, final FloatBuffer vertexBufferObject, int coordsPerVertex) {
-        int handler = GLES20.glGetAttribLocation(mProgram, shaderVariableName);
-        GLUtil.checkGlError("glGetAttribLocation");
-
-        GLES20.glEnableVertexAttribArray(handler);
-        GLUtil.checkGlError("glEnableVertexAttribArray");
+    /**
+     * Set up the instances of the object. With OpenGL ES 3.0 the transforms are passed as an instanced attribute,
+     * otherwise the shader gets the identity as instance matrix, and the model matrix is set for every instance
+     *
+     * @return the first location of the instance matrix, if the transforms are passed as an attribute, or -1
+     */
+    private int setInstances(Object3DData obj) {
+        instances = obj.getInstanceCount();
+        instanceTransforms = obj.getInstanceTransforms();
+        modelMatrix = obj.getModelMatrix();
+        instancing = false;
+
+        final int handler = locations[ShaderVariable.A_INSTANCE_MATRIX.ordinal()];
+        if (handler == -1) {
+            // not active in the program
+            return -1;
+        }
 
-        // Pass in the normal information
-        vertexBufferObject.position(0);
-        GLES20.glVertexAttribPointer(handler, coordsPerVertex, GLES20.GL_FLOAT, false, 0, vertexBufferObject);
-        GLUtil.checkGlError("glVertexAttribPointer");
+        if (instances == 0 || !gl.supportsInstancing()) {
+            for (int i = 0; i < 4; i++) {
+                gl.glVertexAttrib4fv(handler + i, IDENTITY_MATRIX, i * 4);
+            }
+            return -1;
+        }
 
+        // a column of the matrix per location
+        final FloatBuffer transforms = obj.getInstanceTransformsBuffer();
+        final boolean bound = buffers.bindArray(transforms) != 0;
+        for (int i = 0; i < 4; i++) {
+            gl.glEnableVertexAttribArray(handler + i);
+            if (bound) {
+                gl.glVertexAttribPointer(handler + i, 4, GLES20.GL_FLOAT, false, 64, i * 16);
+            } else {
+                transforms.position(i * 4);
+                gl.glVertexAttribPointer(handler + i, 4, GLES20.GL_FLOAT, false, 64, transforms);
+            }
+            gl.glVertexAttribDivisor(handler + i, 1);
+        }
+        instancing = true;
         return handler;
     }
 
-    private void setUniform3(float[] uniform3f, String variableName) {
-        int handle = GLES20.glGetUniformLocation(mProgram, variableName);
-        GLUtil.checkGlError("glGetUniformLocation");
+    /**
+     * Draw the element of the object bound with {@link #bind(Object3DData, float[], float[], int, float[], float[], float[])}
+     */
+    void drawElement(Object3DData obj, int drawMode, int index) {
+        final int drawBufferType = drawUsingUnsignedInt ? GLES20.GL_UNSIGNED_INT : GLES20.GL_UNSIGNED_SHORT;
+        drawObjectElement(obj, drawMode, drawBufferType, obj.getElements().size(), index, obj.getElements().get(index));
+    }
 
-        GLES20.glUniform3fv(handle, 1, uniform3f, 0);
-        GLUtil.checkGlError("glUniform3fv");
+    private static int mask(int handle) {
+        return handle >= 0 && handle < 32 ? 1 << handle : 0;
     }
 
-    private void setUniform4(float[] uniform4f, String variableName) {
-        int handle = GLES20.glGetUniformLocation(mProgram, variableName);
-        GLUtil.checkGlError("glGetUniformLocation");
+    private int setVBO(VertexLayout layout, ShaderVariable variable, FloatBuffer vertexBufferObject, int coordsPerVertex) {
+        if (layout == null) {
+            return setVBO(variable, vertexBufferObject, coordsPerVertex);
+        }
+        final int handler = locations[variable.ordinal()];
+        final VertexLayout.Attribute attribute = layout.get(variable);
+        if (handler == -1 || attribute == null) {
+            // not active in the program or not in the layout
+            return -1;
+        }
 
-        GLES20.glUniform4fv(handle, 1, uniform4f, 0);
-        GLUtil.checkGlError("glUniform4fv");
-    }
+        gl.glEnableVertexAttribArray(handler);
+        gl.glVertexAttribDivisor(handler, 0);
 
-    private void setUniformMatrix4(float[] matrix, String variableName) {
-        int handle = GLES20.glGetUniformLocation(mProgram, variableName);
-        GLUtil.checkGlError("glGetUniformLocation");
+        // Pass in the attribute of the interleaved buffer object, or of the client side array
+        final ByteBuffer data = layout.getData();
+        if (buffers.bindArray(data) != 0) {
+            gl.glVertexAttribPointer(handler, attribute.size, attribute.type, attribute.normalized,
+                    layout.getStride(), attribute.offset);
+        } else {
+            data.position(attribute.offset);
+            gl.glVertexAttribPointer(handler, attribute.size, attribute.type, attribute.normalized,
+                    layout.getStride(), data);
+        }
 
-        // Pass in the light position in eye space.
-        GLES20.glUniformMatrix4fv(handle, 1, false, matrix, 0);
-        GLUtil.checkGlError("glUniformMatrix4fv");
+        return handler;
     }
 
-    private void disableVBO(int handle) {
-        if (handle != -1) {
-            GLES20.glDisableVertexAttribArray(handle);
-            GLUtil.checkGlError("glDisableVertexAttribArray");
+    private int setVBO(final ShaderVariable variable, final FloatBuffer vertexBufferObject, int coordsPerVertex) {
+        int handler = locations[variable.ordinal()];
+        if (handler == -1) {
+            // not active in the program
+            return -1;
+        }
+
+        gl.glEnableVertexAttribArray(handler);
+        gl.glVertexAttribDivisor(handler, 0);
+
+        // Pass in the buffer object, or the client side array if there is no buffer object
+        if (buffers.bindArray(vertexBufferObject) != 0) {
+            gl.glVertexAttribPointer(handler, coordsPerVertex, GLES20.GL_FLOAT, false, 0, 0);
+        } else {
+            vertexBufferObject.position(0);
+            gl.glVertexAttribPointer(handler, coordsPerVertex, GLES20.GL_FLOAT, false, 0, vertexBufferObject);
         }
+
+        return handler;
+    }
+
+    private void setUniform3(float[] uniform3f, ShaderVariable variable) {
+        gl.glUniform3fv(locations[variable.ordinal()], 1, uniform3f, 0);
+    }
+
+    private void setUniform4(float[] uniform4f, ShaderVariable variable) {
+        gl.glUniform4fv(locations[variable.ordinal()], 1, uniform4f, 0);
+    }
+
+    private void setUniformMatrix4(float[] matrix, ShaderVariable variable) {
+        gl.glUniformMatrix4fv(locations[variable.ordinal()], 1, false, matrix, 0);
     }
 
     private boolean supportsMMatrix(){
@@ -278,28 +380,19 @@ class GLES20Renderer implements Renderer {
     }
 
     private void setTextured(boolean textured) {
-        int handle = GLES20.glGetUniformLocation(mProgram, "u_Textured");
-        GLUtil.checkGlError("glGetUniformLocation");
-
-        GLES20.glUniform1i(handle, textured? 1 : 0);
-        GLUtil.checkGlError("glUniform1i");
+        gl.glUniform1i(locations[ShaderVariable.U_TEXTURED.ordinal()], textured? 1 : 0);
     }
 
     private void setTexture(int textureId) {
-        int mTextureUniformHandle = GLES20.glGetUniformLocation(mProgram, "u_Texture");
-        GLUtil.checkGlError("glGetUniformLocation");
 
         // Set the active texture unit to texture unit 0.
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLUtil.checkGlError("glActiveTexture");
+        gl.glActiveTexture(GLES20.GL_TEXTURE0);
 
         // Bind to the texture in OpenGL
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
-        GLUtil.checkGlError("glBindTexture");
+        gl.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
 
         // Tell the texture uniform sampler to use this texture in the shader by binding to texture unit 0.
-        GLES20.glUniform1i(mTextureUniformHandle, 0);
-        GLUtil.checkGlError("glUniform1i");
+        gl.glUniform1i(locations[ShaderVariable.U_TEXTURE.ordinal()], 0);
 
         // toggle texture feature on
         setTextured(true);
@@ -307,20 +400,14 @@ class GLES20Renderer implements Renderer {
 
     private void setTextureCube(int textureId) {
 
-        int mTextureUniformHandle = GLES20.glGetUniformLocation(mProgram, "u_TextureCube");
-        GLUtil.checkGlError("glGetUniformLocation");
-
         // Set the active texture unit to texture unit 0.
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLUtil.checkGlError("glActiveTexture");
+        gl.glActiveTexture(GLES20.GL_TEXTURE0);
 
         // Bind to the texture in OpenGL
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_CUBE_MAP, textureId);
-        GLUtil.checkGlError("glBindTexture");
+        gl.glBindTexture(GLES20.GL_TEXTURE_CUBE_MAP, textureId);
 
         // Tell the texture uniform sampler to use this texture in the shader by binding to texture unit 0.
-        GLES20.glUniform1i(mTextureUniformHandle, 0);
-        GLUtil.checkGlError("glUniform1i");
+        gl.glUniform1i(locations[ShaderVariable.U_TEXTURE_CUBE.ordinal()], 0);
 
     }
 
@@ -331,16 +418,26 @@ class GLES20Renderer implements Renderer {
     private void setJointTransforms(AnimatedModel animatedModel) {
         float[][] jointTransformsArray = animatedModel.getJointTransforms();
 
-        // TODO: optimize this (memory allocation)
-        for (int i = 0; i < jointTransformsArray.length; i++) {
-            float[] jointTransform = jointTransformsArray[i];
-            String jointTransformHandleName = cache1.get(i);
-            if (jointTransformHandleName == null) {
-                jointTransformHandleName = "jointTransforms[" + i + "]";
-                cache1.put(i, jointTransformHandleName);
-            }
-            setUniformMatrix4(jointTransform, jointTransformHandleName);
+        // pack the matrices, so the array is uploaded in a single call
+        final int count = jointTransformsArray.length;
+        if (count == 0) return;
+        if (jointMatrices.length < count * 16) {
+            jointMatrices = new float[count * 16];
+        }
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(jointTransformsArray[i], 0, jointMatrices, i * 16, 16);
         }
+        gl.glUniformMatrix4fv(locations[ShaderVariable.JOINT_TRANSFORMS.ordinal()], count, false, jointMatrices, 0);
+    }
+
+    private boolean checkGlError(String glOperation) {
+        int glError;
+        boolean error = false;
+        while ((glError = gl.glGetError()) != GLES20.GL_NO_ERROR) {
+            Log.e("GLES20Renderer", glOperation + ": glError " + glError);
+            error = true;
+        }
+        return error;
     }
 
     private void drawShape(Object3DData obj, int drawMode, int drawSize) {
@@ -391,13 +488,11 @@ class GLES20Renderer implements Renderer {
                 }
                 drawCount = (int) ((Math.sin(rotation - this.shift + Math.PI / 2 * 3) + 1) / 2f * drawCount);
             }
-            GLES20.glDrawArrays(drawMode, 0, drawCount);
-            GLUtil.checkGlError("glDrawArrays");
+            drawArrays(drawMode, 0, drawCount);
         } else {
             //Log.d(obj.getId(),"Drawing single triangles using arrays...");
             for (int i = 0; i < drawCount; i += drawSize) {
-                GLES20.glDrawArrays(drawMode, i, drawSize);
-                GLUtil.checkGlError("glDrawArrays");
+                drawArrays(drawMode, i, drawSize);
             }
         }
     }
@@ -411,9 +506,9 @@ class GLES20Renderer implements Renderer {
             /*for (int i = 0; i<obj.getOldElements().size(); i++) {
                 drawOrderBuffer = obj.getOldElements().get(i);
                 drawOrderBuffer.position(0);
-                GLES20.glDrawElements(drawMode, drawOrderBuffer.capacity(), drawBufferType,
+                gl.glDrawElements(drawMode, drawOrderBuffer.capacity(), drawBufferType,
                         drawOrderBuffer);
-                boolean error = GLUtil.checkGlError("glDrawElements");
+                boolean error = checkGlError("glDrawElements");
                 if (drawUsingUnsignedInt && error) {
                     drawUsingUnsignedInt = false;
                 }
@@ -463,12 +558,7 @@ class GLES20Renderer implements Renderer {
         } else {
             //Log.d(obj.getId(),"Drawing single elements of size '"+drawSize+"'...");
             for (int i = 0; i < drawOrderBuffer.capacity(); i += drawSize) {
-                drawOrderBuffer.position(i);
-                GLES20.glDrawElements(drawMode, drawSize, drawBufferType, drawOrderBuffer);
-                boolean error = GLUtil.checkGlError("glDrawElements");
-                if (drawUsingUnsignedInt && error) {
-                    drawUsingUnsignedInt = false;
-                }
+                drawElements(drawMode, drawSize, drawBufferType, drawOrderBuffer, i);
             }
         }
     }
@@ -489,7 +579,7 @@ class GLES20Renderer implements Renderer {
         if (element.getMaterial() != null) {
             if (!supportsColors()) {
                 setUniform4(element.getMaterial().getColor() != null ? element.getMaterial().getColor() :
-                        obj.getColor() != null ? obj.getColor() : DEFAULT_COLOR, "vColor");
+                        obj.getColor() != null ? obj.getColor() : DEFAULT_COLOR, ShaderVariable.V_COLOR);
             }
             if (element.getMaterial().getTextureId() != -1 && supportsTextures()) {
                 setTexture(element.getMaterial().getTextureId());
@@ -509,13 +599,7 @@ class GLES20Renderer implements Renderer {
         }
 
         // draw element
-        drawOrderBuffer.position(0);
-        GLES20.glDrawElements(drawMode, drawOrderBuffer.capacity(), drawBufferType,
-                drawOrderBuffer);
-        boolean error = GLUtil.checkGlError("glDrawElements");
-        if (drawUsingUnsignedInt && error) {
-            drawUsingUnsignedInt = false;
-        }
+        drawElements(drawMode, drawOrderBuffer.capacity(), drawBufferType, drawOrderBuffer, 0);
 
         // log event
         if (id != flags.get(element)) {
@@ -531,15 +615,66 @@ class GLES20Renderer implements Renderer {
             int drawModePolygon = drawPart[0];
             int vertexPos = drawPart[1];
             int drawSizePolygon = drawPart[2];
-            drawOrderBuffer.position(vertexPos);
-            GLES20.glDrawElements(drawModePolygon, drawSizePolygon, drawBufferType, drawOrderBuffer);
-            boolean error = GLUtil.checkGlError("glDrawElements");
-            if (drawUsingUnsignedInt && error) {
+            drawElements(drawModePolygon, drawSizePolygon, drawBufferType, drawOrderBuffer, vertexPos);
+        }
+    }
+
+    /**
+     * Draw the indices from the index buffer object. Short indices are converted on the fly, so they are drawn from
+     * the client side array
+     */
+    private void drawElements(int drawMode, int count, int drawBufferType, Buffer drawOrderBuffer, int offset) {
+        final boolean bound = drawBufferType == GLES20.GL_UNSIGNED_INT && buffers.bindElements(drawOrderBuffer) != 0;
+        if (!bound) {
+            buffers.bindElements(null);
+            drawOrderBuffer.position(offset);
+        }
+        if (instancing) {
+            if (bound) {
+                gl.glDrawElementsInstanced(drawMode, count, drawBufferType, offset * 4, instances);
+            } else {
+                gl.glDrawElementsInstanced(drawMode, count, drawBufferType, drawOrderBuffer, instances);
+            }
+        } else {
+            for (int i = 0; i < Math.max(1, instances); i++) {
+                setInstance(i);
+                if (bound) {
+                    gl.glDrawElements(drawMode, count, drawBufferType, offset * 4);
+                } else {
+                    gl.glDrawElements(drawMode, count, drawBufferType, drawOrderBuffer);
+                }
+            }
+        }
+
+        // check once whether the device supports GL_UNSIGNED_INT indices (OES_element_index_uint)
+        if (drawBufferType == GLES20.GL_UNSIGNED_INT && !drawUsingUnsignedIntChecked) {
+            drawUsingUnsignedIntChecked = true;
+            if (checkGlError("glDrawElements")) {
                 drawUsingUnsignedInt = false;
             }
         }
     }
 
+    private void drawArrays(int drawMode, int first, int count) {
+        if (instancing) {
+            gl.glDrawArraysInstanced(drawMode, first, count, instances);
+            return;
+        }
+        for (int i = 0; i < Math.max(1, instances); i++) {
+            setInstance(i);
+            gl.glDrawArrays(drawMode, first, count);
+        }
+    }
+
+    /**
+     * Set the model matrix of the instance, if the object has instances but they are not drawn at once
+     */
+    private void setInstance(int instance) {
+        if (instances == 0 || !supportsMMatrix()) return;
+        Matrix.multiplyMM(instanceModelMatrix, 0, modelMatrix, 0, instanceTransforms, instance * 16);
+        setUniformMatrix4(instanceModelMatrix, ShaderVariable.U_MMATRIX);
+    }
+
     private void drawPolygonsUsingArrays(int drawMode, List<int[]> polygonsList) {
         // Log.v(obj.getId(), "Drawing single polygons using arrays...");
         for (int j = 0; j < polygonsList.size(); j++) {
@@ -552,12 +687,10 @@ class GLES20Renderer implements Renderer {
                 // Log.v("GLES20Renderer","Drawing wireframe for '" + obj.getId() + "' (" + drawSizePolygon + ")...");
                 for (int i = 0; i < polygon[2] - 2; i++) {
                     // Log.v("GLES20Renderer","Drawing wireframe triangle '" + i + "' for '" + obj.getId() + "'...");
-                    GLES20.glDrawArrays(drawMode, polygon[1] + i, 3);
-                    GLUtil.checkGlError("glDrawArrays");
+                    drawArrays(drawMode, polygon[1] + i, 3);
                 }
             } else {
-                GLES20.glDrawArrays(drawMode, polygon[1], polygon[2]);
-                GLUtil.checkGlError("glDrawArrays");
+                drawArrays(drawMode, polygon[1], polygon[2]);
             }
         }
     }
@@ -0,0 +1,451 @@
+package org.andresoviedo.android_3d_model_engine.drawer;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.nio.Buffer;
+
+/**
+ * Checks <code>glGetError</code> after the OpenGL calls of the drawers. <code>glGetError</code> synchronizes with the
+ * GPU on many mobile drivers, so the calls are checked on every frame ({@link Mode#FULL}), on one every N frames
+ * ({@link Mode#SAMPLED}) or never ({@link Mode#OFF}). With validation off the drawers call OpenGL directly, see
+ * {@link #wrap(GL20, Mode, int)}.<p>
+ * The first call raising an error is recorded, so the error can be traced back to the call even if the frame is not
+ * checked again.
+ *
+ * @author andresoviedo
+ */
+public final class GLValidator implements GL20 {
+
+    /**
+     * Default number of frames between checked frames in {@link Mode#SAMPLED} mode
+     */
+    public static final int DEFAULT_SAMPLE_RATE = 60;
+
+    public enum Mode {
+        /**
+         * No error checking
+         */
+        OFF,
+        /**
+         * Check the calls of one every N frames
+         */
+        SAMPLED,
+        /**
+         * Check every call
+         */
+        FULL
+    }
+
+    private final GL20 gl;
+    private final Mode mode;
+    private final int sampleRate;
+
+    // is the current frame checked?
+    private boolean checking;
+    private int frame;
+
+    // error raised by a checked call, not read yet by the caller
+    private int pendingError = GLES20.GL_NO_ERROR;
+
+    // stats
+    private String firstError;
+    private int errors;
+    private long checks;
+
+    private GLValidator(GL20 gl, Mode mode, int sampleRate) {
+        this.gl = gl;
+        this.mode = mode;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.checking = true;
+    }
+
+    /**
+     * @param gl         the OpenGL calls
+     * @param mode       the validation mode
+     * @param sampleRate number of frames between checked frames in {@link Mode#SAMPLED} mode
+     * @return the OpenGL calls as is if the validation is {@link Mode#OFF}, so there is no overhead, or validated
+     * otherwise
+     */
+    public static GL20 wrap(GL20 gl, Mode mode, int sampleRate) {
+        if (mode == null || mode == Mode.OFF) {
+            return gl;
+        }
+        return new GLValidator(gl, mode, sampleRate);
+    }
+
+    /**
+     * Ends the frame. The next frame is checked if the validation is {@link Mode#FULL} or it's the Nth frame
+     */
+    public void endFrame() {
+        frame++;
+        checking = mode == Mode.FULL || frame % sampleRate == 0;
+    }
+
+    private void check(String glOperation) {
+        if (!checking) return;
+        int glError;
+        while ((glError = gl.glGetError()) != GLES20.GL_NO_ERROR) {
+            checks++;
+            errors++;
+            if (pendingError == GLES20.GL_NO_ERROR) {
+                pendingError = glError;
+            }
+            final String error = glOperation + ": glError 0x" + Integer.toHexString(glError) + " (frame " + frame + ")";
+            if (firstError == null) {
+                firstError = error;
+            }
+            Log.e("GLValidator", error);
+        }
+        checks++;
+    }
+
+    @Override
+    public void glUseProgram(int program) {
+        gl.glUseProgram(program);
+        check("glUseProgram");
+    }
+
+    @Override
+    public int glGetAttribLocation(int program, String name) {
+        final int ret = gl.glGetAttribLocation(program, name);
+        check("glGetAttribLocation");
+        return ret;
+    }
+
+    @Override
+    public int glGetUniformLocation(int program, String name) {
+        final int ret = gl.glGetUniformLocation(program, name);
+        check("glGetUniformLocation");
+        return ret;
+    }
+
+    @Override
+    public void glEnableVertexAttribArray(int index) {
+        gl.glEnableVertexAttribArray(index);
+        check("glEnableVertexAttribArray");
+    }
+
+    @Override
+    public void glDisableVertexAttribArray(int index) {
+        gl.glDisableVertexAttribArray(index);
+        check("glDisableVertexAttribArray");
+    }
+
+    @Override
+    public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, Buffer ptr) {
+        gl.glVertexAttribPointer(index, size, type, normalized, stride, ptr);
+        check("glVertexAttribPointer");
+    }
+
+    @Override
+    public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, int offset) {
+        gl.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+        check("glVertexAttribPointer");
+    }
+
+    @Override
+    public void glVertexAttrib4fv(int index, float[] values, int offset) {
+        gl.glVertexAttrib4fv(index, values, offset);
+        check("glVertexAttrib4fv");
+    }
+
+    @Override
+    public void glUniform1i(int location, int x) {
+        gl.glUniform1i(location, x);
+        check("glUniform1i");
+    }
+
+    @Override
+    public void glUniform3fv(int location, int count, float[] v, int offset) {
+        gl.glUniform3fv(location, count, v, offset);
+        check("glUniform3fv");
+    }
+
+    @Override
+    public void glUniform4fv(int location, int count, float[] v, int offset) {
+        gl.glUniform4fv(location, count, v, offset);
+        check("glUniform4fv");
+    }
+
+    @Override
+    public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset) {
+        gl.glUniformMatrix4fv(location, count, transpose, value, offset);
+        check("glUniformMatrix4fv");
+    }
+
+    @Override
+    public void glActiveTexture(int texture) {
+        gl.glActiveTexture(texture);
+        check("glActiveTexture");
+    }
+
+    @Override
+    public void glBindTexture(int target, int texture) {
+        gl.glBindTexture(target, texture);
+        check("glBindTexture");
+    }
+
+    @Override
+    public void glGenBuffers(int n, int[] buffers, int offset) {
+        gl.glGenBuffers(n, buffers, offset);
+        check("glGenBuffers");
+    }
+
+    @Override
+    public void glBindBuffer(int target, int buffer) {
+        gl.glBindBuffer(target, buffer);
+        check("glBindBuffer");
+    }
+
+    @Override
+    public void glBufferData(int target, int size, Buffer data, int usage) {
+        gl.glBufferData(target, size, data, usage);
+        check("glBufferData");
+    }
+
+    @Override
+    public void glDeleteBuffers(int n, int[] buffers, int offset) {
+        gl.glDeleteBuffers(n, buffers, offset);
+        check("glDeleteBuffers");
+    }
+
+    @Override
+    public void glGenTextures(int n, int[] textures, int offset) {
+        gl.glGenTextures(n, textures, offset);
+        check("glGenTextures");
+    }
+
+    @Override
+    public void glTexImage2D(int target, int level, int internalformat, int width, int height, int border, int format,
+                             int type, Buffer pixels) {
+        gl.glTexImage2D(target, level, internalformat, width, height, border, format, type, pixels);
+        check("glTexImage2D");
+    }
+
+    @Override
+    public void glTexSubImage2D(int target, int level, int xoffset, int yoffset, int width, int height, int format,
+                                int type, Buffer pixels) {
+        gl.glTexSubImage2D(target, level, xoffset, yoffset, width, height, format, type, pixels);
+        check("glTexSubImage2D");
+    }
+
+    @Override
+    public void glTexParameteri(int target, int pname, int param) {
+        gl.glTexParameteri(target, pname, param);
+        check("glTexParameteri");
+    }
+
+    @Override
+    public void glDeleteTextures(int n, int[] textures, int offset) {
+        gl.glDeleteTextures(n, textures, offset);
+        check("glDeleteTextures");
+    }
+
+    @Override
+    public void glDrawArrays(int mode, int first, int count) {
+        gl.glDrawArrays(mode, first, count);
+        check("glDrawArrays");
+    }
+
+    @Override
+    public void glDrawElements(int mode, int count, int type, Buffer indices) {
+        gl.glDrawElements(mode, count, type, indices);
+        check("glDrawElements");
+    }
+
+    @Override
+    public void glDrawElements(int mode, int count, int type, int offset) {
+        gl.glDrawElements(mode, count, type, offset);
+        check("glDrawElements");
+    }
+
+    @Override
+    public boolean supportsInstancing() {
+        return gl.supportsInstancing();
+    }
+
+    @Override
+    public void glVertexAttribDivisor(int index, int divisor) {
+        gl.glVertexAttribDivisor(index, divisor);
+        check("glVertexAttribDivisor");
+    }
+
+    @Override
+    public void glDrawArraysInstanced(int mode, int first, int count, int instances) {
+        gl.glDrawArraysInstanced(mode, first, count, instances);
+        check("glDrawArraysInstanced");
+    }
+
+    @Override
+    public void glDrawElementsInstanced(int mode, int count, int type, Buffer indices, int instances) {
+        gl.glDrawElementsInstanced(mode, count, type, indices, instances);
+        check("glDrawElementsInstanced");
+    }
+
+    @Override
+    public void glDrawElementsInstanced(int mode, int count, int type, int offset, int instances) {
+        gl.glDrawElementsInstanced(mode, count, type, offset, instances);
+        check("glDrawElementsInstanced");
+    }
+
+    @Override
+    public int glCreateShader(int type) {
+        final int ret = gl.glCreateShader(type);
+        check("glCreateShader");
+        return ret;
+    }
+
+    @Override
+    public void glShaderSource(int shader, String string) {
+        gl.glShaderSource(shader, string);
+        check("glShaderSource");
+    }
+
+    @Override
+    public void glCompileShader(int shader) {
+        gl.glCompileShader(shader);
+        check("glCompileShader");
+    }
+
+    @Override
+    public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+        gl.glGetShaderiv(shader, pname, params, offset);
+        check("glGetShaderiv");
+    }
+
+    @Override
+    public String glGetShaderInfoLog(int shader) {
+        final String ret = gl.glGetShaderInfoLog(shader);
+        check("glGetShaderInfoLog");
+        return ret;
+    }
+
+    @Override
+    public void glDeleteShader(int shader) {
+        gl.glDeleteShader(shader);
+        check("glDeleteShader");
+    }
+
+    @Override
+    public int glCreateProgram() {
+        final int ret = gl.glCreateProgram();
+        check("glCreateProgram");
+        return ret;
+    }
+
+    @Override
+    public void glAttachShader(int program, int shader) {
+        gl.glAttachShader(program, shader);
+        check("glAttachShader");
+    }
+
+    @Override
+    public void glBindAttribLocation(int program, int index, String name) {
+        gl.glBindAttribLocation(program, index, name);
+        check("glBindAttribLocation");
+    }
+
+    @Override
+    public void glLinkProgram(int program) {
+        gl.glLinkProgram(program);
+        check("glLinkProgram");
+    }
+
+    @Override
+    public void glGetProgramiv(int program, int pname, int[] params, int offset) {
+        gl.glGetProgramiv(program, pname, params, offset);
+        check("glGetProgramiv");
+    }
+
+    @Override
+    public String glGetProgramInfoLog(int program) {
+        final String ret = gl.glGetProgramInfoLog(program);
+        check("glGetProgramInfoLog");
+        return ret;
+    }
+
+    @Override
+    public void glDeleteProgram(int program) {
+        gl.glDeleteProgram(program);
+        check("glDeleteProgram");
+    }
+
+    @Override
+    public String glGetString(int name) {
+        final String ret = gl.glGetString(name);
+        check("glGetString");
+        return ret;
+    }
+
+    @Override
+    public boolean supportsProgramBinary() {
+        return gl.supportsProgramBinary();
+    }
+
+    @Override
+    public void glProgramParameteri(int program, int pname, int value) {
+        gl.glProgramParameteri(program, pname, value);
+        check("glProgramParameteri");
+    }
+
+    @Override
+    public void glGetProgramBinary(int program, int bufSize, int[] length, int lengthOffset, int[] binaryFormat,
+                                   int binaryFormatOffset, Buffer binary) {
+        gl.glGetProgramBinary(program, bufSize, length, lengthOffset, binaryFormat, binaryFormatOffset, binary);
+        check("glGetProgramBinary");
+    }
+
+    @Override
+    public void glProgramBinary(int program, int binaryFormat, Buffer binary, int length) {
+        gl.glProgramBinary(program, binaryFormat, binary, length);
+        check("glProgramBinary");
+    }
+
+    /**
+     * @return the error raised by the last checked calls, like OpenGL does, so the caller still sees the errors
+     * already checked
+     */
+    @Override
+    public int glGetError() {
+        if (pendingError != GLES20.GL_NO_ERROR) {
+            final int ret = pendingError;
+            pendingError = GLES20.GL_NO_ERROR;
+            return ret;
+        }
+        return gl.glGetError();
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the first call raising an error, with the error and the frame, or null if there was no error
+     */
+    public String getFirstError() {
+        return firstError;
+    }
+
+    public int getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return number of <code>glGetError</code> calls done by the validation
+     */
+    public long getChecks() {
+        return checks;
+    }
+
+    @Override
+    public String toString() {
+        return "GLValidator{" +
+                "mode=" + mode +
+                (mode == Mode.SAMPLED ? ", sampleRate=" + sampleRate : "") +
+                ", checks=" + checks +
+                ", errors=" + errors +
+                ", firstError=" + firstError +
+                '}';
+    }
+}
@@ -0,0 +1,267 @@
+package org.andresoviedo.android_3d_model_engine.drawer;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Compiles and links the programs of the drawers. If the driver supports program binaries, the linked programs are
+ * saved to disk, so the next time the program is loaded from the binary instead of being compiled again.<p>
+ * Binaries are only valid for the same driver, so the file name is a hash of the shader sources, the attribute
+ * locations and the driver (vendor, renderer & version). A binary rejected by the driver is deleted and the program
+ * is compiled again.
+ *
+ * @author andresoviedo
+ */
+public final class ProgramCache {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Binaries larger than this are not saved
+     */
+    private static final int MAX_BINARY_SIZE = 4 * 1024 * 1024;
+
+    // directory of the binaries or null to always compile
+    private final File dir;
+
+    // stats
+    private int compiled;
+    private int loaded;
+    private int saved;
+    private int rejected;
+
+    /**
+     * @param dir directory where the binaries are saved, or null to disable the disk cache
+     */
+    public ProgramCache(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Get the program from the binary cache, or compile it
+     *
+     * @param gl                 the opengl calls
+     * @param vertexShaderCode   vertex shader source
+     * @param fragmentShaderCode fragment shader source
+     * @param attributes         attributes bound to the locations 0, 1, 2...
+     * @return the program
+     */
+    int build(GL20 gl, String vertexShaderCode, String fragmentShaderCode, String[] attributes) {
+        final boolean binaries = dir != null && gl.supportsProgramBinary();
+        final File file = binaries ? new File(dir, getKey(vertexShaderCode, fragmentShaderCode, attributes,
+                getDriver(gl)) + ".bin") : null;
+
+        // load binary
+        if (file != null && file.isFile()) {
+            final int program = load(gl, file);
+            if (program != 0) {
+                loaded++;
+                return program;
+            }
+            rejected++;
+            if (!file.delete()) {
+                Log.e("ProgramCache", "Couldn't delete program binary: " + file);
+            }
+        }
+
+        // compile
+        final int program = compile(gl, vertexShaderCode, fragmentShaderCode, attributes, file != null);
+        compiled++;
+
+        // save binary
+        if (file != null) {
+            save(gl, program, file);
+        }
+        return program;
+    }
+
+    private int load(GL20 gl, File file) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            final int format = in.readInt();
+            final int length = in.readInt();
+            if (length <= 0 || length > MAX_BINARY_SIZE) return 0;
+            final byte[] data = new byte[length];
+            in.readFully(data);
+
+            final ByteBuffer binary = ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+            binary.put(data).position(0);
+            final int program = gl.glCreateProgram();
+            gl.glProgramBinary(program, format, binary, length);
+            if (!isLinked(gl, program)) {
+                Log.i("ProgramCache", "Program binary rejected: " + file.getName());
+                gl.glDeleteProgram(program);
+                return 0;
+            }
+            Log.d("ProgramCache", "Loaded program binary: " + file.getName() + ", bytes: " + length);
+            return program;
+        } catch (IOException ex) {
+            Log.e("ProgramCache", "Error reading program binary: " + ex.getMessage(), ex);
+            return 0;
+        }
+    }
+
+    private void save(GL20 gl, int program, File file) {
+        final int[] params = new int[2];
+        gl.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, params, 0);
+        final int length = params[0];
+        if (length <= 0 || length > MAX_BINARY_SIZE) return;
+
+        final ByteBuffer binary = ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+        gl.glGetProgramBinary(program, length, params, 0, params, 1, binary);
+        final byte[] data = new byte[params[0]];
+        binary.position(0);
+        binary.get(data);
+
+        // write to a temporary file, so an interrupted write is never loaded
+        final File tmp = new File(file.getPath() + ".tmp");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e("ProgramCache", "Couldn't create program cache: " + dir);
+            return;
+        }
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeInt(params[1]);
+            out.writeInt(data.length);
+            out.write(data);
+        } catch (IOException ex) {
+            Log.e("ProgramCache", "Error writing program binary: " + ex.getMessage(), ex);
+            return;
+        }
+        if (tmp.renameTo(file)) {
+            saved++;
+            Log.d("ProgramCache", "Saved program binary: " + file.getName() + ", bytes: " + data.length);
+        } else {
+            Log.e("ProgramCache", "Couldn't save program binary: " + file);
+        }
+    }
+
+    private static int compile(GL20 gl, String vertexShaderCode, String fragmentShaderCode, String[] attributes,
+                               boolean retrievable) {
+        final int vertexShader = compileShader(gl, GLES20.GL_VERTEX_SHADER, vertexShaderCode);
+        final int fragmentShader = compileShader(gl, GLES20.GL_FRAGMENT_SHADER, fragmentShaderCode);
+
+        int program = gl.glCreateProgram();
+        if (program != 0) {
+            gl.glAttachShader(program, vertexShader);
+            gl.glAttachShader(program, fragmentShader);
+            for (int i = 0; i < attributes.length; i++) {
+                gl.glBindAttribLocation(program, i, attributes[i]);
+            }
+            if (retrievable) {
+                gl.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+            }
+            gl.glLinkProgram(program);
+            if (!isLinked(gl, program)) {
+                Log.e("ProgramCache", "Error compiling program: " + gl.glGetProgramInfoLog(program));
+                gl.glDeleteProgram(program);
+                program = 0;
+            }
+        }
+
+        // the program keeps the compiled code
+        gl.glDeleteShader(vertexShader);
+        gl.glDeleteShader(fragmentShader);
+
+        if (program == 0) {
+            throw new RuntimeException("Error creating program.");
+        }
+        return program;
+    }
+
+    private static int compileShader(GL20 gl, int type, String shaderCode) {
+        final int shader = gl.glCreateShader(type);
+        gl.glShaderSource(shader, shaderCode);
+        gl.glCompileShader(shader);
+
+        final int[] compiled = new int[1];
+        gl.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+        if (compiled[0] == 0) {
+            Log.e("ProgramCache", "Shader error: " + gl.glGetShaderInfoLog(shader) + "\n" + shaderCode);
+        }
+        return shader;
+    }
+
+    private static boolean isLinked(GL20 gl, int program) {
+        final int[] linkStatus = new int[1];
+        gl.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        return linkStatus[0] != 0;
+    }
+
+    /**
+     * @return the driver the binaries are built for
+     */
+    static String getDriver(GL20 gl) {
+        return gl.glGetString(GLES20.GL_VENDOR) + "|" + gl.glGetString(GLES20.GL_RENDERER) + "|"
+                + gl.glGetString(GLES20.GL_VERSION);
+    }
+
+    /**
+     * @return the hex SHA-1 of the sources, the attributes and the driver
+     */
+    static String getKey(String vertexShaderCode, String fragmentShaderCode, String[] attributes, String driver) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(vertexShaderCode.getBytes(UTF_8));
+            digest.update((byte) 0);
+            digest.update(fragmentShaderCode.getBytes(UTF_8));
+            for (String attribute : attributes) {
+                digest.update((byte) 0);
+                digest.update(attribute.getBytes(UTF_8));
+            }
+            digest.update((byte) 0);
+            digest.update(driver.getBytes(UTF_8));
+
+            final StringBuilder ret = new StringBuilder();
+            for (byte b : digest.digest()) {
+                ret.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return ret.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * @return programs compiled from source
+     */
+    public int getCompiled() {
+        return compiled;
+    }
+
+    /**
+     * @return programs loaded from a binary
+     */
+    public int getLoaded() {
+        return loaded;
+    }
+
+    public int getSaved() {
+        return saved;
+    }
+
+    public int getRejected() {
+        return rejected;
+    }
+
+    @Override
+    public String toString() {
+        return "ProgramCache{" +
+                "compiled=" + compiled +
+                ", loaded=" + loaded +
+                ", saved=" + saved +
+                ", rejected=" + rejected +
+                '}';
+    }
+}
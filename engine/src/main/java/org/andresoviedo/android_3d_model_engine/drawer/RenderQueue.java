@@ -0,0 +1,314 @@
+package org.andresoviedo.android_3d_model_engine.drawer;
+
+import android.opengl.GLES20;
+
+import org.andresoviedo.android_3d_model_engine.model.AnimatedModel;
+import org.andresoviedo.android_3d_model_engine.model.Element;
+import org.andresoviedo.android_3d_model_engine.model.Material;
+import org.andresoviedo.android_3d_model_engine.model.Object3DData;
+import org.andresoviedo.util.math.Frustum;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Draws collected during the frame, sorted by render state, so consecutive draws share the program, the texture and the
+ * vertex attributes as much as possible. Objects drawn element by element are queued one packet per element, so the
+ * elements are sorted too. Every packet gets a 63 bit key:
+ * <pre>
+ * opaque:      0 | program (8 bits) | texture (16 bits) | object (16 bits) | sequence (22 bits)
+ * translucent: 1 | sequence (22 bits)
+ * </pre>
+ * Opaque packets are drawn first, grouped by program, texture and object. Translucent packets are drawn afterwards, in
+ * the order they were queued. Consecutive elements of the same object are drawn without setting up the object again.<p>
+ * Packets are pooled, so queueing doesn't allocate once the queue has grown. Queueing more packets, programs, objects
+ * or textures than the fields can hold fails, instead of mixing up the order.<p>
+ * If there is a {@link #setFrustum(Frustum) frustum}, objects and elements out of view are not queued. Skinned models
+ * are never culled, because the skinning may move the vertices out of the bounds.
+ *
+ * @author andresoviedo
+ */
+public final class RenderQueue {
+
+    private static final int SEQUENCE_BITS = 22;
+    private static final int OBJECT_BITS = 16;
+    private static final int TEXTURE_BITS = 16;
+    private static final int PROGRAM_BITS = 8;
+
+    private static final int OBJECT_SHIFT = SEQUENCE_BITS;
+    private static final int TEXTURE_SHIFT = OBJECT_SHIFT + OBJECT_BITS;
+    private static final int PROGRAM_SHIFT = TEXTURE_SHIFT + TEXTURE_BITS;
+    private static final int TRANSLUCENT_SHIFT = PROGRAM_SHIFT + PROGRAM_BITS;
+
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    /**
+     * A draw
+     */
+    private static final class Packet {
+
+        private Renderer renderer;
+        private Object3DData obj;
+        // element index or -1 to draw the whole object
+        private int element;
+        private float[] pMatrix;
+        private float[] vMatrix;
+        private int drawMode;
+        private int drawSize;
+        private int textureId;
+        private float[] lightPos;
+        private float[] colorMask;
+        private float[] cameraPos;
+
+        private void clear() {
+            renderer = null;
+            obj = null;
+            pMatrix = vMatrix = lightPos = colorMask = cameraPos = null;
+        }
+    }
+
+    private final List<Packet> packets = new ArrayList<>();
+    private long[] keys = new long[64];
+    private int size;
+
+    // object counter for the current frame
+    private int objects;
+
+    // programs by drawer, in order of appearance
+    private final Map<Renderer, Integer> programs = new IdentityHashMap<>();
+
+    // objects & elements out of the frustum are culled
+    private Frustum frustum;
+
+    // stats for the current frame
+    private int drawn;
+    private int culledObjects;
+    private int culledElements;
+    private int culledTriangles;
+
+    // stats for the last frame
+    private int lastDrawn;
+    private int lastCulledObjects;
+    private int lastCulledElements;
+    private int lastCulledTriangles;
+
+    /**
+     * @param frustum the frustum of the current view, or null to disable the culling
+     */
+    public void setFrustum(Frustum frustum) {
+        this.frustum = frustum;
+    }
+
+    /**
+     * Queue the draw of the object
+     *
+     * @see Renderer#draw(Object3DData, float[], float[], int, float[], float[], float[])
+     */
+    public void add(Renderer renderer, Object3DData obj, float[] pMatrix, float[] vMatrix, int textureId,
+                    float[] lightPosInWorldSpace, float[] colorMask, float[] cameraPos) {
+        add(renderer, obj, pMatrix, vMatrix, obj.getDrawMode(), obj.getDrawSize(), textureId, lightPosInWorldSpace,
+                colorMask, cameraPos);
+    }
+
+    /**
+     * Queue the draw of the object
+     *
+     * @see Renderer#draw(Object3DData, float[], float[], int, int, int, float[], float[], float[])
+     */
+    public void add(Renderer renderer, Object3DData obj, float[] pMatrix, float[] vMatrix, int drawMode, int drawSize,
+                    int textureId, float[] lightPosInWorldSpace, float[] colorMask, float[] cameraPos) {
+        final boolean culling = frustum != null && isCullable(obj);
+        if (culling && !frustum.intersects(obj.getWorldBounds())) {
+            culledObjects++;
+            if (drawMode == GLES20.GL_TRIANGLES) {
+                culledTriangles += (obj.isDrawUsingArrays() || obj.getDrawOrder() == null ?
+                        obj.getVertexBuffer().capacity() / 3 : obj.getDrawOrder().capacity()) / 3;
+            }
+            return;
+        }
+
+        final int object = objects++;
+        final boolean translucent = isTranslucent(obj.getColor()) || isTranslucent(colorMask);
+        if (renderer instanceof GLES20Renderer && ((GLES20Renderer) renderer).isDrawingElements(obj, drawSize)) {
+            final List<Element> elements = obj.getElements();
+            for (int i = 0; i < elements.size(); i++) {
+                final Element element = elements.get(i);
+                if (culling && elements.size() > 1 && obj.getInstanceCount() == 0
+                        && !frustum.intersects(element.getWorldBounds(obj.getVertexBuffer(), obj.getModelMatrix()))) {
+                    culledElements++;
+                    if (drawMode == GLES20.GL_TRIANGLES) {
+                        culledTriangles += element.getIndexBuffer().capacity() / 3;
+                    }
+                    continue;
+                }
+                final Material material = element.getMaterial();
+                final int elementTextureId = material != null && material.getTextureId() != -1 ?
+                        material.getTextureId() : textureId;
+                final boolean elementTranslucent = translucent || material != null && material.getAlpha() < 1.0f;
+                add(renderer, obj, i, pMatrix, vMatrix, drawMode, drawSize, textureId, lightPosInWorldSpace,
+                        colorMask, cameraPos, key(renderer, elementTextureId, object, elementTranslucent));
+            }
+        } else {
+            add(renderer, obj, -1, pMatrix, vMatrix, drawMode, drawSize, textureId, lightPosInWorldSpace,
+                    colorMask, cameraPos, key(renderer, textureId, object, translucent));
+        }
+    }
+
+    private void add(Renderer renderer, Object3DData obj, int element, float[] pMatrix, float[] vMatrix, int drawMode,
+                     int drawSize, int textureId, float[] lightPos, float[] colorMask, float[] cameraPos, long key) {
+        if (size > SEQUENCE_MASK) {
+            throw new IllegalStateException("Render queue full: " + size);
+        }
+        if (size == packets.size()) {
+            packets.add(new Packet());
+        }
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+        }
+        final Packet packet = packets.get(size);
+        packet.renderer = renderer;
+        packet.obj = obj;
+        packet.element = element;
+        packet.pMatrix = pMatrix;
+        packet.vMatrix = vMatrix;
+        packet.drawMode = drawMode;
+        packet.drawSize = drawSize;
+        packet.textureId = textureId;
+        packet.lightPos = lightPos;
+        packet.colorMask = colorMask;
+        packet.cameraPos = cameraPos;
+        keys[size] = key | size;
+        size++;
+    }
+
+    private long key(Renderer renderer, int textureId, int object, boolean translucent) {
+        if (translucent) {
+            return 1L << TRANSLUCENT_SHIFT;
+        }
+        Integer program = programs.get(renderer);
+        if (program == null) {
+            program = programs.size();
+            if (program >= 1 << PROGRAM_BITS) {
+                throw new IllegalStateException("Render queue full. Too many programs: " + program);
+            }
+            programs.put(renderer, program);
+        }
+        if (object >= 1 << OBJECT_BITS) {
+            throw new IllegalStateException("Render queue full. Too many objects: " + object);
+        }
+        if (textureId + 1 >= 1 << TEXTURE_BITS || textureId < -1) {
+            throw new IllegalStateException("Render queue can't sort texture: " + textureId);
+        }
+        return ((long) program << PROGRAM_SHIFT)
+                | ((long) (textureId + 1) << TEXTURE_SHIFT)
+                | ((long) object << OBJECT_SHIFT);
+    }
+
+    private static boolean isCullable(Object3DData obj) {
+        if (obj.getVertexBuffer() == null) return false;
+        return !(obj instanceof AnimatedModel) || ((AnimatedModel) obj).getAnimation() == null;
+    }
+
+    private static boolean isTranslucent(float[] color) {
+        return color != null && color.length > 3 && color[3] < 1.0f;
+    }
+
+    /**
+     * Draw the queued packets sorted by key, and empty the queue
+     */
+    public void flush() {
+        Arrays.sort(keys, 0, size);
+        Packet bound = null;
+        for (int i = 0; i < size; i++) {
+            final Packet packet = packets.get((int) (keys[i] & SEQUENCE_MASK));
+            if (packet.element == -1) {
+                packet.renderer.draw(packet.obj, packet.pMatrix, packet.vMatrix, packet.drawMode, packet.drawSize,
+                        packet.textureId, packet.lightPos, packet.colorMask, packet.cameraPos);
+                bound = null;
+                continue;
+            }
+            final GLES20Renderer renderer = (GLES20Renderer) packet.renderer;
+            if (!isBound(bound, packet)) {
+                renderer.bind(packet.obj, packet.pMatrix, packet.vMatrix, packet.textureId, packet.lightPos,
+                        packet.colorMask, packet.cameraPos);
+                bound = packet;
+            }
+            renderer.drawElement(packet.obj, packet.drawMode, packet.element);
+        }
+        for (int i = 0; i < size; i++) {
+            packets.get(i).clear();
+        }
+        drawn += size;
+        size = 0;
+        objects = 0;
+    }
+
+    /**
+     * Ends the frame, so the stats of the frame are available
+     */
+    public void endFrame() {
+        lastDrawn = drawn;
+        lastCulledObjects = culledObjects;
+        lastCulledElements = culledElements;
+        lastCulledTriangles = culledTriangles;
+        drawn = culledObjects = culledElements = culledTriangles = 0;
+    }
+
+    /**
+     * @return true if the packet is drawn with the same set up as the bound one (another element of the same draw)
+     */
+    private static boolean isBound(Packet bound, Packet packet) {
+        return bound != null && bound.renderer == packet.renderer && bound.obj == packet.obj
+                && bound.pMatrix == packet.pMatrix && bound.vMatrix == packet.vMatrix
+                && bound.textureId == packet.textureId && bound.lightPos == packet.lightPos
+                && bound.colorMask == packet.colorMask && bound.cameraPos == packet.cameraPos;
+    }
+
+    /**
+     * Forget the drawers, i.e. they are built again for a new GL context
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            packets.get(i).clear();
+        }
+        size = 0;
+        objects = 0;
+        programs.clear();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of packets drawn in the last frame
+     */
+    public int getDrawn() {
+        return lastDrawn;
+    }
+
+    public int getCulledObjects() {
+        return lastCulledObjects;
+    }
+
+    public int getCulledElements() {
+        return lastCulledElements;
+    }
+
+    public int getCulledTriangles() {
+        return lastCulledTriangles;
+    }
+
+    @Override
+    public String toString() {
+        return "RenderQueue{" +
+                "drawn=" + lastDrawn +
+                ", culledObjects=" + lastCulledObjects +
+                ", culledElements=" + lastCulledElements +
+                ", culledTriangles=" + lastCulledTriangles +
+                '}';
+    }
+}
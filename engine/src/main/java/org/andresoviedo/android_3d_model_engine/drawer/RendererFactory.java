@@ -1,18 +1,23 @@
 package org.andresoviedo.android_3d_model_engine.drawer;
 
 import android.content.Context;
-import androidx.annotation.NonNull;
 import android.util.Log;
 
 import org.andresoviedo.android_3d_model_engine.R;
 import org.andresoviedo.android_3d_model_engine.model.AnimatedModel;
+import org.andresoviedo.android_3d_model_engine.model.Material;
 import org.andresoviedo.android_3d_model_engine.model.Object3DData;
 import org.andresoviedo.util.io.IOUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Copyright 2013-2020 andresoviedo.org
@@ -35,14 +40,72 @@ public class RendererFactory {
      * shader code loaded from raw resources
      * resources are cached on activity thread
      */
-    private Map<String, String> shadersCode = new HashMap<>();
+    private final Map<String, String> shadersCode;
     /**
-     * list of opengl drawers
+     * opengl drawers, by the feature mask of their shader variant
      */
-    private Map<Shader, GLES20Renderer> drawers = new HashMap<>();
+    private Map<Integer, GLES20Renderer> drawers = new HashMap<>();
+    /**
+     * vertex & index buffer objects shared by all the drawers
+     */
+    private final BufferManager buffers = new BufferManager();
+    /**
+     * skinning of the skeletons not fitting in the vertex shader
+     */
+    private final CpuSkinning skinning = new CpuSkinning(buffers);
+    /**
+     * programs compiled, or loaded from their binaries
+     */
+    private final ProgramCache programs;
+    /**
+     * opengl implementation
+     */
+    private final GL20 backend;
+    /**
+     * opengl calls, validated or not, skipping the redundant state changes
+     */
+    private StateTracker gl;
+    /**
+     * draws of the frame, sorted by render state
+     */
+    private final RenderQueue renderQueue = new RenderQueue();
+    /**
+     * programs predicted for the objects of the scene, not compiled yet
+     */
+    private final Set<Integer> pending = new LinkedHashSet<>();
+    /**
+     * objects of the scene already checked for the warm up
+     */
+    private int warmedUp;
 
     public RendererFactory(Context context) throws IllegalAccessException, IOException {
+        this(loadShaders(context), new ProgramCache(new File(context.getCacheDir(), "programs")), new AndroidGL20());
+    }
+
+    RendererFactory(Map<String, String> shadersCode, ProgramCache programs, GL20 backend) {
+        this.shadersCode = shadersCode;
+        this.programs = programs;
+        this.backend = backend;
+        this.gl = new StateTracker(backend);
+        this.buffers.setGL(backend);
+
+        // patch the vertex shaders once
+        for (Map.Entry<String, String> entry : shadersCode.entrySet()) {
+            if (!entry.getKey().endsWith("_vert")) continue;
+
+            // experimental: inject glPointSize
+            String code = entry.getValue().replace("void main(){", "void main(){\n\tgl_PointSize = 5.0;");
 
+            // use opengl constant to dynamically set up array size in shaders. Every joint matrix takes 4 vectors
+            final String maxJoints = "(gl_MaxVertexUniformVectors - " + CpuSkinning.RESERVED_UNIFORM_VECTORS + ") / 4";
+            code = code.replace("const int MAX_JOINTS = 60;", "const int MAX_JOINTS = " + maxJoints + " > "
+                    + CpuSkinning.MAX_JOINTS + " ? " + CpuSkinning.MAX_JOINTS + " : " + maxJoints + ";");
+            entry.setValue(code);
+        }
+    }
+
+    private static Map<String, String> loadShaders(Context context) throws IllegalAccessException, IOException {
+        final Map<String, String> ret = new HashMap<>();
         Log.i("RendererFactory", "Discovering shaders...");
         Field[] fields = R.raw.class.getFields();
         for (int count = 0; count < fields.length; count++) {
@@ -51,9 +114,10 @@ public class RendererFactory {
             int shaderResId = fields[count].getInt(fields[count]);
             byte[] shaderBytes = IOUtils.read(context.getResources().openRawResource(shaderResId));
             String shaderCode = new String(shaderBytes);
-            shadersCode.put(shaderId, shaderCode);
+            ret.put(shaderId, shaderCode);
         }
-        Log.i("RendererFactory", "Shaders loaded: " + shadersCode.size());
+        Log.i("RendererFactory", "Shaders loaded: " + ret.size());
+        return ret;
     }
 
     public Renderer getDrawer(Object3DData obj, boolean usingSkyBox, boolean usingTextures, boolean usingLights, boolean usingAnimation, boolean drawColors) {
@@ -62,29 +126,33 @@ public class RendererFactory {
         boolean isAnimated = usingAnimation && obj instanceof AnimatedModel
                 && ((AnimatedModel) obj).getAnimation() != null && (((AnimatedModel) obj).getAnimation()).isInitialized();
         boolean isUsingLights = usingLights && (obj.getNormalsBuffer() != null || obj.getNormalsBuffer() != null);
-        boolean isTextured = usingTextures && obj.getTextureData() != null && obj.getTextureBuffer() != null;
+        boolean isTextured = usingTextures && obj.getTextureBuffer() != null && hasTexture(obj);
         boolean isColoured = drawColors && obj != null && (obj.getColorsBuffer() != null || obj
                 .getColorsBuffer() != null);
 
-        final Shader shader = getShader(usingSkyBox, isAnimated, isUsingLights, isTextured, isColoured);
+        final int mask = usingSkyBox ? Shader.SKYBOX : Shader.getMask(isAnimated, isUsingLights, isTextured, isColoured);
+        return getDrawer(mask);
+    }
+
+    private GLES20Renderer getDrawer(int mask) {
 
         // get cached drawer
-        GLES20Renderer drawer = drawers.get(shader);
+        GLES20Renderer drawer = drawers.get(mask);
         if (drawer != null) return drawer;
 
         // build drawer
-        String vertexShaderCode = shadersCode.get(shader.vertexShaderCode);
-        String fragmentShaderCode = shadersCode.get(shader.fragmentShaderCode);
+        final String id = Shader.getId(mask);
+        final boolean skyBox = (mask & Shader.SKYBOX) != 0;
+        String vertexShaderCode = shadersCode.get(skyBox ? Shader.SKYBOX_VERTEX_SHADER : Shader.VERTEX_SHADER);
+        String fragmentShaderCode = shadersCode.get(skyBox ? Shader.SKYBOX_FRAGMENT_SHADER : Shader.FRAGMENT_SHADER);
         if (vertexShaderCode == null || fragmentShaderCode == null) {
-            Log.e("RendererFactory", "Shaders not found for " + shader.id);
+            Log.e("RendererFactory", "Shaders not found for " + id);
             return null;
         }
 
-        // experimental: inject glPointSize
-        vertexShaderCode = vertexShaderCode.replace("void main(){", "void main(){\n\tgl_PointSize = 5.0;");
-
-        // use opengl constant to dynamically set up array size in shaders. That should be >=120
-        vertexShaderCode = vertexShaderCode.replace("const int MAX_JOINTS = 60;","const int MAX_JOINTS = gl_MaxVertexUniformVectors > 60 ? 60 : gl_MaxVertexUniformVectors;");
+        // generate the variant
+        vertexShaderCode = Shader.generate(vertexShaderCode, mask);
+        fragmentShaderCode = Shader.generate(fragmentShaderCode, mask);
 
         // create drawer
         Log.v("RendererFactory", "\n---------- Vertex shader ----------\n");
@@ -92,88 +160,98 @@ public class RendererFactory {
         Log.v("RendererFactory", "---------- Fragment shader ----------\n");
         Log.v("RendererFactory", fragmentShaderCode);
         Log.v("RendererFactory", "-------------------------------------\n");
-        drawer = GLES20Renderer.getInstance(shader.id, vertexShaderCode, fragmentShaderCode);
+        drawer = GLES20Renderer.getInstance(id, vertexShaderCode, fragmentShaderCode, Shader.getFeatures(mask),
+                buffers, gl, programs);
 
         // cache drawer
-        drawers.put(shader, drawer);
+        drawers.put(mask, drawer);
 
         // return drawer
         return drawer;
     }
 
-    @NonNull
-    private Shader getShader(boolean isUsingSkyBox, boolean isAnimated, boolean isUsingLights, boolean isTextured, boolean
-            isColoured) {
+    /**
+     * Predict the programs needed to draw the objects of the scene, with the lights, textures, colors and animation
+     * toggled on and off, and compile some of them. This is called every frame, so the programs are compiled (or loaded
+     * from their binaries) while the scene is loading, instead of stalling the first frames drawing the objects or the
+     * first frame after toggling an option
+     *
+     * @param objects the objects of the scene. Only the objects added since the last call are checked
+     * @param budget  max programs to compile
+     * @return the programs compiled
+     */
+    public int warmUp(List<Object3DData> objects, int budget) {
 
-        if (isUsingSkyBox){
-            return Shader.SKYBOX;
+        // new scene
+        if (objects.size() < warmedUp) {
+            warmedUp = 0;
+        }
+        if (warmedUp == 0) {
+            pending.add(Shader.DEFAULT);
+        }
+        for (; warmedUp < objects.size(); warmedUp++) {
+            predict(objects.get(warmedUp), pending);
         }
 
-        Shader ret = null;
-        if (isAnimated){
-            if (isUsingLights){
-                if (isTextured){
-                    if (isColoured){
-                        ret = Shader.ANIM_LIGHT_TEXTURE_COLORS;
-                    } else {
-                        ret = Shader.ANIM_LIGHT_TEXTURE;
-                    }
-                } else{
-                    if (isColoured){
-                        ret = Shader.ANIM_LIGHT_COLORS;
-                    } else {
-                        ret = Shader.ANIM_LIGHT;
-                    }
-                }
-            } else{
-                if (isTextured){
-                    if (isColoured){
-                        ret = Shader.ANIM_TEXTURE_COLORS;
-                    } else {
-                        ret = Shader.ANIM_TEXTURE;
-                    }
-                } else{
-                    if (isColoured){
-                        ret = Shader.ANIM_COLORS;
-                    } else {
-                        ret = Shader.ANIM;
-                    }
-                }
-            }
-        } else {
-            if (isUsingLights){
-                if (isTextured){
-                    if (isColoured){
-                        ret = Shader.LIGHT_TEXTURE_COLORS;
-                    } else {
-                        ret = Shader.LIGHT_TEXTURE;
-                    }
-                } else{
-                    if (isColoured){
-                        ret = Shader.LIGHT_COLORS;
-                    } else {
-                        ret = Shader.LIGHT;
-                    }
-                }
-            } else{
-                if (isTextured){
-                    if (isColoured){
-                        ret = Shader.TEXTURE_COLORS;
-                    } else{
-                        ret = Shader.TEXTURE;
-                    }
-                } else{
-                    if (isColoured){
-                        ret = Shader.COLORS;
-                    } else{
-                        ret = Shader.SHADER;
-                    }
-                }
+        int ret = 0;
+        final Iterator<Integer> iterator = pending.iterator();
+        while (ret < budget && iterator.hasNext()) {
+            final int mask = iterator.next();
+            iterator.remove();
+            if (!drawers.containsKey(mask) && getDrawer(mask) != null) {
+                ret++;
             }
         }
         return ret;
     }
 
+    /**
+     * Add the shader variants the object may be drawn with
+     */
+    static void predict(Object3DData obj, Set<Integer> masks) {
+        final boolean animated = obj instanceof AnimatedModel && ((AnimatedModel) obj).getAnimation() != null;
+        final boolean lights = obj.getNormalsBuffer() != null;
+        final boolean textured = obj.getTextureBuffer() != null && isTextured(obj);
+        final boolean coloured = obj.getColorsBuffer() != null;
+
+        // every feature of the object, on & off
+        final int features = Shader.getMask(animated, lights, textured, coloured);
+        for (int mask = 0; mask <= features; mask++) {
+            if ((mask & ~features) == 0) masks.add(mask);
+        }
+    }
+
+    /**
+     * @return true if the object or any of its elements has a texture, even if it's not decoded yet
+     */
+    private static boolean isTextured(Object3DData obj) {
+        if (isTextured(obj.getMaterial())) return true;
+        if (obj.getElements() == null) return false;
+        for (int i = 0; i < obj.getElements().size(); i++) {
+            if (isTextured(obj.getElements().get(i).getMaterial())) return true;
+        }
+        return false;
+    }
+
+    private static boolean isTextured(Material material) {
+        return material != null && (material.getTextureId() != -1 || material.getTextureData() != null
+                || material.getTextureFile() != null);
+    }
+
+    /**
+     * @return true if the object has a texture (uploaded or pending) or any of its elements has an uploaded texture
+     */
+    private static boolean hasTexture(Object3DData obj) {
+        final Material material = obj.getMaterial();
+        if (material != null && (material.getTextureData() != null || material.getTextureId() != -1)) return true;
+        if (obj.getElements() == null) return false;
+        for (int i = 0; i < obj.getElements().size(); i++) {
+            final Material elementMaterial = obj.getElements().get(i).getMaterial();
+            if (elementMaterial != null && elementMaterial.getTextureId() != -1) return true;
+        }
+        return false;
+    }
+
     public Renderer getBoundingBoxDrawer() {
         return getDrawer(null, false, false, false, false, false);
     }
@@ -189,4 +267,76 @@ public class RendererFactory {
     public Renderer getSkyBoxDrawer() {
         return getDrawer(null, true, false, false, false, false);
     }
+
+    public BufferManager getBuffers() {
+        return buffers;
+    }
+
+    public CpuSkinning getSkinning() {
+        return skinning;
+    }
+
+    /**
+     * Set the OpenGL error checking of the drawers. Called when the GL context is created, so the drawers are built
+     * again (the programs of the previous context are gone anyway)
+     *
+     * @param mode       validation mode
+     * @param sampleRate number of frames between checked frames, for {@link GLValidator.Mode#SAMPLED}
+     */
+    public void setValidation(GLValidator.Mode mode, int sampleRate) {
+        Log.i("RendererFactory", "GL validation: " + mode);
+        gl = new StateTracker(GLValidator.wrap(backend, mode, sampleRate));
+        // the buffers are uploaded outside the state tracker, but validated like the draws
+        buffers.setGL(gl.getGL());
+        drawers.clear();
+        renderQueue.clear();
+
+        // warm up again for the new context
+        pending.clear();
+        warmedUp = 0;
+    }
+
+    /**
+     * @return the validation stats or null if the validation is off
+     */
+    public GLValidator getValidator() {
+        return gl.getGL() instanceof GLValidator ? (GLValidator) gl.getGL() : null;
+    }
+
+    /**
+     * @return the state changes of the last frame
+     */
+    public StateTracker getStateTracker() {
+        return gl;
+    }
+
+    public ProgramCache getPrograms() {
+        return programs;
+    }
+
+    public RenderQueue getRenderQueue() {
+        return renderQueue;
+    }
+
+    /**
+     * Begins the frame. Textures may have been bound by the texture loader, so the texture bindings are forgotten
+     */
+    public void beginFrame() {
+        gl.invalidateTextures();
+    }
+
+    /**
+     * Ends the frame: deletes the buffers of the objects no longer drawn, moves the validation to the next frame and
+     * keeps the state changes of the frame
+     */
+    public void endFrame() {
+        buffers.unbind();
+        buffers.endFrame();
+        skinning.endFrame();
+        gl.endFrame();
+        renderQueue.endFrame();
+        if (gl.getGL() instanceof GLValidator) {
+            ((GLValidator) gl.getGL()).endFrame();
+        }
+    }
 }
@@ -1,33 +1,114 @@
 package org.andresoviedo.android_3d_model_engine.drawer;
 
+import java.util.HashSet;
+import java.util.Set;
 
-public enum Shader {
-
-    SKYBOX("skybox_", "shader_skybox_vert", "shader_skybox_frag"),
-    ANIM_LIGHT_TEXTURE_COLORS("anim_light_texture_colors_", "shader_anim_light_texture_colors_vert", "shader_anim_light_texture_colors_frag"),
-    ANIM_LIGHT_TEXTURE("anim_light_texture_", "shader_anim_light_texture_vert", "shader_anim_light_texture_frag"),
-    ANIM_LIGHT_COLORS("anim_light_colors_", "shader_anim_light_colors_vert", "shader_anim_light_colors_frag"),
-    ANIM_LIGHT("anim_light_", "shader_anim_light_vert", "shader_anim_light_frag"),
-    ANIM_TEXTURE_COLORS("anim_texture_colors_", "shader_anim_texture_colors_vert", "shader_anim_texture_colors_frag"),
-    ANIM_TEXTURE("anim_texture_", "shader_anim_texture_vert", "shader_anim_texture_frag"),
-    ANIM_COLORS("anim_colors_", "shader_anim_colors_vert", "shader_anim_colors_frag"),
-    ANIM("anim_", "shader_anim_vert", "shader_anim_frag"),
-    LIGHT_TEXTURE_COLORS("light_texture_colors_", "shader_light_texture_colors_vert", "shader_light_texture_colors_frag"),
-    LIGHT_TEXTURE("light_texture_", "shader_light_texture_vert", "shader_light_texture_frag"),
-    LIGHT_COLORS("light_colors_", "shader_light_colors_vert", "shader_light_colors_frag"),
-    LIGHT("light_", "shader_light_vert", "shader_light_frag"),
-    TEXTURE_COLORS("texture_colors_", "shader_texture_colors_vert", "shader_texture_colors_frag"),
-    TEXTURE("texture_", "shader_texture_vert", "shader_texture_frag"),
-    COLORS("colors_", "shader_colors_vert", "shader_colors_frag"),
-    SHADER("default", "shader_vert", "shader_frag");
-    
-    String id;
-    String vertexShaderCode;
-    String fragmentShaderCode;
-    
-    Shader (String id, String vertexShaderCode, String fragmentShaderCode){
-        this.id = id;
-        this.vertexShaderCode = vertexShaderCode;
-        this.fragmentShaderCode = fragmentShaderCode;
+/**
+ * Shader variants. Instead of a source file per combination of features, the programs are generated from a single
+ * source ({@link #VERTEX_SHADER} and {@link #FRAGMENT_SHADER}) by defining the features of the variant on top of it.
+ * A variant is identified by the mask of its features, so adding a feature is adding a bit and its #ifdef blocks.
+ *
+ * @author andresoviedo
+ */
+public final class Shader {
+
+    // features
+    public static final int ANIMATION = 1;
+    public static final int LIGHTING = 1 << 1;
+    public static final int TEXTURE = 1 << 2;
+    public static final int COLORS = 1 << 3;
+    /**
+     * The sky box has its own sources
+     */
+    public static final int SKYBOX = 1 << 4;
+
+    /**
+     * No features: flat color
+     */
+    public static final int DEFAULT = 0;
+
+    // sources
+    static final String VERTEX_SHADER = "shader_vert";
+    static final String FRAGMENT_SHADER = "shader_frag";
+    static final String SKYBOX_VERTEX_SHADER = "shader_skybox_vert";
+    static final String SKYBOX_FRAGMENT_SHADER = "shader_skybox_frag";
+
+    // macro & id of every feature, indexed by bit
+    private static final String[] DEFINES = {"ANIMATION", "LIGHTING", "TEXTURE", "COLORS"};
+    private static final String[] IDS = {"anim_", "light_", "texture_", "colors_"};
+
+    private Shader() {
+    }
+
+    /**
+     * @return the mask of the variant with the specified features
+     */
+    public static int getMask(boolean animated, boolean lights, boolean textured, boolean coloured) {
+        return (animated ? ANIMATION : 0) | (lights ? LIGHTING : 0) | (textured ? TEXTURE : 0)
+                | (coloured ? COLORS : 0);
+    }
+
+    /**
+     * @return the name of the variant, i.e. "anim_light_texture_colors_"
+     */
+    static String getId(int mask) {
+        if ((mask & SKYBOX) != 0) return "skybox_";
+        if (mask == DEFAULT) return "default";
+        final StringBuilder ret = new StringBuilder();
+        for (int i = 0; i < IDS.length; i++) {
+            if ((mask & (1 << i)) != 0) ret.append(IDS[i]);
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Generate the source of a variant. The features are defined after the #version directive, if any, because it
+     * must be the first line
+     *
+     * @param source the shader source
+     * @param mask   features of the variant
+     * @return the source of the variant
+     */
+    static String generate(String source, int mask) {
+        final StringBuilder defines = new StringBuilder();
+        for (int i = 0; i < DEFINES.length; i++) {
+            if ((mask & (1 << i)) != 0) defines.append("#define ").append(DEFINES[i]).append('\n');
+        }
+        if (defines.length() == 0) return source;
+
+        int start = 0;
+        if (source.startsWith("#version")) {
+            start = source.indexOf('\n') + 1;
+            if (start == 0) return source + "\n" + defines;
+        }
+        return source.substring(0, start) + defines + source.substring(start);
+    }
+
+    /**
+     * @return the variables of the variant the renderer checks to set up the draw
+     */
+    static Set<String> getFeatures(int mask) {
+        final Set<String> ret = new HashSet<>();
+        ret.add("u_MMatrix");
+        ret.add("a_Position");
+        if ((mask & SKYBOX) != 0) {
+            ret.add("u_TextureCube");
+            return ret;
+        }
+        if ((mask & LIGHTING) != 0) {
+            ret.add("a_Normal");
+            ret.add("u_LightPos");
+        }
+        if ((mask & COLORS) != 0) {
+            ret.add("a_Color");
+        }
+        if ((mask & TEXTURE) != 0) {
+            ret.add("a_TexCoordinate");
+        }
+        if ((mask & ANIMATION) != 0) {
+            ret.add("in_jointIndices");
+            ret.add("in_weights");
+        }
+        return ret;
     }
 }
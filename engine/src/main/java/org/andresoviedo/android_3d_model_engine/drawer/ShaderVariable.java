@@ -0,0 +1,62 @@
+package org.andresoviedo.android_3d_model_engine.drawer;
+
+/**
+ * Attributes and uniforms of the shaders. The locations of every program are resolved once and stored in a table
+ * indexed by the ordinal.
+ *
+ * @author andresoviedo
+ */
+enum ShaderVariable {
+
+    // attributes
+    A_POSITION("a_Position", true),
+    A_NORMAL("a_Normal", true),
+    A_COLOR("a_Color", true),
+    A_TEX_COORDINATE("a_TexCoordinate", true),
+    IN_JOINT_INDICES("in_jointIndices", true),
+    IN_WEIGHTS("in_weights", true),
+    // mat4: 4 consecutive locations, one per column
+    A_INSTANCE_MATRIX("a_InstanceMatrix", true),
+
+    // uniforms
+    U_POSITION_SCALE("u_PositionScale", false),
+    U_POSITION_OFFSET("u_PositionOffset", false),
+    U_MMATRIX("u_MMatrix", false),
+    U_VMATRIX("u_VMatrix", false),
+    U_PMATRIX("u_PMatrix", false),
+    V_COLOR("vColor", false),
+    V_COLOR_MASK("vColorMask", false),
+    U_TEXTURE("u_Texture", false),
+    U_TEXTURED("u_Textured", false),
+    U_TEXTURE_CUBE("u_TextureCube", false),
+    U_LIGHT_POS("u_LightPos", false),
+    U_CAMERA_POS("u_cameraPos", false),
+    U_BIND_SHAPE_MATRIX("u_BindShapeMatrix", false),
+    // first element of the array, the whole array is uploaded at once
+    JOINT_TRANSFORMS("jointTransforms[0]", false);
+
+    final String name;
+    final boolean attribute;
+
+    ShaderVariable(String name, boolean attribute) {
+        this.name = name;
+        this.attribute = attribute;
+    }
+
+    /**
+     * Resolve the locations of all the variables
+     *
+     * @param gl      the OpenGL calls
+     * @param program the linked program
+     * @return the locations indexed by ordinal. -1 if the variable is not active in the program
+     */
+    static int[] resolve(GL20 gl, int program) {
+        final ShaderVariable[] variables = values();
+        final int[] ret = new int[variables.length];
+        for (int i = 0; i < variables.length; i++) {
+            ret[i] = variables[i].attribute ? gl.glGetAttribLocation(program, variables[i].name)
+                    : gl.glGetUniformLocation(program, variables[i].name);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,554 @@
+package org.andresoviedo.android_3d_model_engine.drawer;
+
+import android.opengl.GLES20;
+
+import java.nio.Buffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shadow copy of the OpenGL state set by the drawers, so redundant state changes are not sent to the driver: binding
+ * the program in use, binding the texture already bound, enabling the attribute arrays already enabled or writing the
+ * same value to a uniform or to a constant attribute. Uniform values are kept per program, like OpenGL does.<p>
+ * The state changed by other means (i.e. textures uploaded by the texture loader) must be
+ * {@link #invalidateTextures() invalidated}.<p>
+ * The state changes and the skipped calls are counted per frame.
+ *
+ * @author andresoviedo
+ */
+public final class StateTracker implements GL20 {
+
+    private static final int MAX_TEXTURE_UNITS = 32;
+
+    /**
+     * Uniform values of a program, indexed by location
+     */
+    private static final class Uniforms {
+
+        private float[][] floats = new float[16][];
+        private int[] ints = new int[16];
+        private boolean[] intsSet = new boolean[16];
+
+        private float[] floats(int location, int length) {
+            if (location >= floats.length) {
+                final float[][] grown = new float[Math.max(location + 1, floats.length * 2)][];
+                System.arraycopy(floats, 0, grown, 0, floats.length);
+                floats = grown;
+            }
+            float[] ret = floats[location];
+            if (ret == null || ret.length != length) {
+                ret = floats[location] = new float[length];
+                // never set: NaN is never equal to the value
+                Arrays.fill(ret, Float.NaN);
+            }
+            return ret;
+        }
+
+        private boolean setInt(int location, int value) {
+            if (location >= ints.length) {
+                final int size = Math.max(location + 1, ints.length * 2);
+                final int[] grownInts = new int[size];
+                final boolean[] grownSet = new boolean[size];
+                System.arraycopy(ints, 0, grownInts, 0, ints.length);
+                System.arraycopy(intsSet, 0, grownSet, 0, intsSet.length);
+                ints = grownInts;
+                intsSet = grownSet;
+            }
+            if (intsSet[location] && ints[location] == value) {
+                return false;
+            }
+            ints[location] = value;
+            intsSet[location] = true;
+            return true;
+        }
+    }
+
+    private final GL20 gl;
+
+    // current state
+    private int program = -1;
+    private Uniforms uniforms;
+    private final Map<Integer, Uniforms> uniformsByProgram = new HashMap<>();
+    private int activeTexture = -1;
+    private final int[] textures2D = new int[MAX_TEXTURE_UNITS];
+    private final int[] texturesCube = new int[MAX_TEXTURE_UNITS];
+    private int enabledArrays;
+    private int instancedArrays;
+    private final float[][] attributeValues = new float[32][];
+
+    // stats for the current frame
+    private int programChanges;
+    private int textureChanges;
+    private int uniformWrites;
+    private int arrayChanges;
+    private int skipped;
+
+    // stats for the last frame
+    private int lastProgramChanges;
+    private int lastTextureChanges;
+    private int lastUniformWrites;
+    private int lastArrayChanges;
+    private int lastSkipped;
+
+    public StateTracker(GL20 gl) {
+        this.gl = gl;
+        invalidateTextures();
+    }
+
+    /**
+     * Forget all the state, i.e. the GL context was created again
+     */
+    public void reset() {
+        program = -1;
+        uniforms = null;
+        uniformsByProgram.clear();
+        enabledArrays = 0;
+        instancedArrays = 0;
+        Arrays.fill(attributeValues, null);
+        invalidateTextures();
+    }
+
+    /**
+     * Forget the bound textures, i.e. textures were bound by the texture loader
+     */
+    public void invalidateTextures() {
+        activeTexture = -1;
+        Arrays.fill(textures2D, -1);
+        Arrays.fill(texturesCube, -1);
+    }
+
+    /**
+     * Disable the vertex attribute arrays enabled by the previous draws and not used by the current one
+     *
+     * @param used bit mask of the attribute arrays used by the current draw
+     */
+    public void disableVertexAttribArrays(int used) {
+        final int unused = enabledArrays & ~used;
+        if (unused == 0) return;
+        for (int i = 0; i < 32; i++) {
+            if ((unused & (1 << i)) != 0) {
+                gl.glDisableVertexAttribArray(i);
+                arrayChanges++;
+            }
+        }
+        enabledArrays &= used;
+    }
+
+    /**
+     * Ends the frame, so the stats of the frame are available
+     */
+    public void endFrame() {
+        lastProgramChanges = programChanges;
+        lastTextureChanges = textureChanges;
+        lastUniformWrites = uniformWrites;
+        lastArrayChanges = arrayChanges;
+        lastSkipped = skipped;
+        programChanges = 0;
+        textureChanges = 0;
+        uniformWrites = 0;
+        arrayChanges = 0;
+        skipped = 0;
+    }
+
+    @Override
+    public void glUseProgram(int program) {
+        if (this.program == program) {
+            skipped++;
+            return;
+        }
+        gl.glUseProgram(program);
+        this.program = program;
+        this.uniforms = uniformsByProgram.get(program);
+        if (this.uniforms == null) {
+            this.uniforms = new Uniforms();
+            uniformsByProgram.put(program, this.uniforms);
+        }
+        programChanges++;
+    }
+
+    @Override
+    public int glGetAttribLocation(int program, String name) {
+        return gl.glGetAttribLocation(program, name);
+    }
+
+    @Override
+    public int glGetUniformLocation(int program, String name) {
+        return gl.glGetUniformLocation(program, name);
+    }
+
+    @Override
+    public void glEnableVertexAttribArray(int index) {
+        if (index < 32 && (enabledArrays & (1 << index)) != 0) {
+            skipped++;
+            return;
+        }
+        gl.glEnableVertexAttribArray(index);
+        if (index < 32) enabledArrays |= 1 << index;
+        arrayChanges++;
+    }
+
+    @Override
+    public void glDisableVertexAttribArray(int index) {
+        if (index < 32 && (enabledArrays & (1 << index)) == 0) {
+            skipped++;
+            return;
+        }
+        gl.glDisableVertexAttribArray(index);
+        if (index < 32) enabledArrays &= ~(1 << index);
+        arrayChanges++;
+    }
+
+    @Override
+    public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, Buffer ptr) {
+        gl.glVertexAttribPointer(index, size, type, normalized, stride, ptr);
+    }
+
+    @Override
+    public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, int offset) {
+        gl.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+    }
+
+    @Override
+    public void glVertexAttrib4fv(int index, float[] values, int offset) {
+        if (index >= 0 && index < 32) {
+            float[] current = attributeValues[index];
+            if (current != null && current[0] == values[offset] && current[1] == values[offset + 1]
+                    && current[2] == values[offset + 2] && current[3] == values[offset + 3]) {
+                skipped++;
+                return;
+            }
+            if (current == null) {
+                current = attributeValues[index] = new float[4];
+            }
+            System.arraycopy(values, offset, current, 0, 4);
+        }
+        gl.glVertexAttrib4fv(index, values, offset);
+    }
+
+    @Override
+    public void glUniform1i(int location, int x) {
+        if (location < 0 || uniforms == null) {
+            gl.glUniform1i(location, x);
+            return;
+        }
+        if (!uniforms.setInt(location, x)) {
+            skipped++;
+            return;
+        }
+        gl.glUniform1i(location, x);
+        uniformWrites++;
+    }
+
+    @Override
+    public void glUniform3fv(int location, int count, float[] v, int offset) {
+        if (isUniformSet(location, v, offset, count * 3)) return;
+        gl.glUniform3fv(location, count, v, offset);
+    }
+
+    @Override
+    public void glUniform4fv(int location, int count, float[] v, int offset) {
+        if (isUniformSet(location, v, offset, count * 4)) return;
+        gl.glUniform4fv(location, count, v, offset);
+    }
+
+    @Override
+    public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset) {
+        if (isUniformSet(location, value, offset, count * 16)) return;
+        gl.glUniformMatrix4fv(location, count, transpose, value, offset);
+    }
+
+    /**
+     * @return true if the uniform already has the value, otherwise the value is recorded
+     */
+    private boolean isUniformSet(int location, float[] value, int offset, int length) {
+        if (location < 0 || uniforms == null) {
+            return false;
+        }
+        final float[] current = uniforms.floats(location, length);
+        boolean equals = true;
+        for (int i = 0; i < length; i++) {
+            if (current[i] != value[offset + i]) {
+                equals = false;
+                break;
+            }
+        }
+        if (equals) {
+            skipped++;
+            return true;
+        }
+        System.arraycopy(value, offset, current, 0, length);
+        uniformWrites++;
+        return false;
+    }
+
+    @Override
+    public void glActiveTexture(int texture) {
+        if (activeTexture == texture) {
+            skipped++;
+            return;
+        }
+        gl.glActiveTexture(texture);
+        activeTexture = texture;
+    }
+
+    @Override
+    public void glBindTexture(int target, int texture) {
+        final int unit = activeTexture - GLES20.GL_TEXTURE0;
+        final int[] bound = target == GLES20.GL_TEXTURE_CUBE_MAP ? texturesCube : textures2D;
+        if (unit >= 0 && unit < MAX_TEXTURE_UNITS) {
+            if (bound[unit] == texture) {
+                skipped++;
+                return;
+            }
+            bound[unit] = texture;
+        }
+        gl.glBindTexture(target, texture);
+        textureChanges++;
+    }
+
+    @Override
+    public void glGenBuffers(int n, int[] buffers, int offset) {
+        gl.glGenBuffers(n, buffers, offset);
+    }
+
+    @Override
+    public void glBindBuffer(int target, int buffer) {
+        gl.glBindBuffer(target, buffer);
+    }
+
+    @Override
+    public void glBufferData(int target, int size, Buffer data, int usage) {
+        gl.glBufferData(target, size, data, usage);
+    }
+
+    @Override
+    public void glDeleteBuffers(int n, int[] buffers, int offset) {
+        gl.glDeleteBuffers(n, buffers, offset);
+    }
+
+    @Override
+    public void glGenTextures(int n, int[] textures, int offset) {
+        gl.glGenTextures(n, textures, offset);
+    }
+
+    @Override
+    public void glTexImage2D(int target, int level, int internalformat, int width, int height, int border, int format,
+                             int type, Buffer pixels) {
+        gl.glTexImage2D(target, level, internalformat, width, height, border, format, type, pixels);
+    }
+
+    @Override
+    public void glTexSubImage2D(int target, int level, int xoffset, int yoffset, int width, int height, int format,
+                                int type, Buffer pixels) {
+        gl.glTexSubImage2D(target, level, xoffset, yoffset, width, height, format, type, pixels);
+    }
+
+    @Override
+    public void glTexParameteri(int target, int pname, int param) {
+        gl.glTexParameteri(target, pname, param);
+    }
+
+    @Override
+    public void glDeleteTextures(int n, int[] textures, int offset) {
+        gl.glDeleteTextures(n, textures, offset);
+        // the names are reused by new textures
+        invalidateTextures();
+    }
+
+    @Override
+    public void glDrawArrays(int mode, int first, int count) {
+        gl.glDrawArrays(mode, first, count);
+    }
+
+    @Override
+    public void glDrawElements(int mode, int count, int type, Buffer indices) {
+        gl.glDrawElements(mode, count, type, indices);
+    }
+
+    @Override
+    public void glDrawElements(int mode, int count, int type, int offset) {
+        gl.glDrawElements(mode, count, type, offset);
+    }
+
+    @Override
+    public boolean supportsInstancing() {
+        return gl.supportsInstancing();
+    }
+
+    /**
+     * The divisor is only sent to OpenGL when it changes, so the drawers can reset it to 0 for every attribute, even
+     * on OpenGL ES 2.0 contexts
+     */
+    @Override
+    public void glVertexAttribDivisor(int index, int divisor) {
+        if (index < 32 && ((instancedArrays & (1 << index)) != 0) == (divisor != 0)) {
+            return;
+        }
+        gl.glVertexAttribDivisor(index, divisor);
+        if (index < 32) {
+            instancedArrays = divisor != 0 ? instancedArrays | 1 << index : instancedArrays & ~(1 << index);
+        }
+        arrayChanges++;
+    }
+
+    @Override
+    public void glDrawArraysInstanced(int mode, int first, int count, int instances) {
+        gl.glDrawArraysInstanced(mode, first, count, instances);
+    }
+
+    @Override
+    public void glDrawElementsInstanced(int mode, int count, int type, Buffer indices, int instances) {
+        gl.glDrawElementsInstanced(mode, count, type, indices, instances);
+    }
+
+    @Override
+    public void glDrawElementsInstanced(int mode, int count, int type, int offset, int instances) {
+        gl.glDrawElementsInstanced(mode, count, type, offset, instances);
+    }
+
+    @Override
+    public int glCreateShader(int type) {
+        return gl.glCreateShader(type);
+    }
+
+    @Override
+    public void glShaderSource(int shader, String string) {
+        gl.glShaderSource(shader, string);
+    }
+
+    @Override
+    public void glCompileShader(int shader) {
+        gl.glCompileShader(shader);
+    }
+
+    @Override
+    public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+        gl.glGetShaderiv(shader, pname, params, offset);
+    }
+
+    @Override
+    public String glGetShaderInfoLog(int shader) {
+        return gl.glGetShaderInfoLog(shader);
+    }
+
+    @Override
+    public void glDeleteShader(int shader) {
+        gl.glDeleteShader(shader);
+    }
+
+    @Override
+    public int glCreateProgram() {
+        return gl.glCreateProgram();
+    }
+
+    @Override
+    public void glAttachShader(int program, int shader) {
+        gl.glAttachShader(program, shader);
+    }
+
+    @Override
+    public void glBindAttribLocation(int program, int index, String name) {
+        gl.glBindAttribLocation(program, index, name);
+    }
+
+    @Override
+    public void glLinkProgram(int program) {
+        gl.glLinkProgram(program);
+    }
+
+    @Override
+    public void glGetProgramiv(int program, int pname, int[] params, int offset) {
+        gl.glGetProgramiv(program, pname, params, offset);
+    }
+
+    @Override
+    public String glGetProgramInfoLog(int program) {
+        return gl.glGetProgramInfoLog(program);
+    }
+
+    /**
+     * The uniform values of the program are forgotten, since OpenGL may reuse the name for a new program
+     */
+    @Override
+    public void glDeleteProgram(int program) {
+        gl.glDeleteProgram(program);
+        uniformsByProgram.remove(program);
+        if (this.program == program) {
+            this.program = -1;
+            this.uniforms = null;
+        }
+    }
+
+    @Override
+    public String glGetString(int name) {
+        return gl.glGetString(name);
+    }
+
+    @Override
+    public boolean supportsProgramBinary() {
+        return gl.supportsProgramBinary();
+    }
+
+    @Override
+    public void glProgramParameteri(int program, int pname, int value) {
+        gl.glProgramParameteri(program, pname, value);
+    }
+
+    @Override
+    public void glGetProgramBinary(int program, int bufSize, int[] length, int lengthOffset, int[] binaryFormat,
+                                   int binaryFormatOffset, Buffer binary) {
+        gl.glGetProgramBinary(program, bufSize, length, lengthOffset, binaryFormat, binaryFormatOffset, binary);
+    }
+
+    @Override
+    public void glProgramBinary(int program, int binaryFormat, Buffer binary, int length) {
+        gl.glProgramBinary(program, binaryFormat, binary, length);
+    }
+
+    @Override
+    public int glGetError() {
+        return gl.glGetError();
+    }
+
+    /**
+     * @return the OpenGL calls decorated by the tracker
+     */
+    public GL20 getGL() {
+        return gl;
+    }
+
+    public int getProgramChanges() {
+        return lastProgramChanges;
+    }
+
+    public int getTextureChanges() {
+        return lastTextureChanges;
+    }
+
+    public int getUniformWrites() {
+        return lastUniformWrites;
+    }
+
+    public int getArrayChanges() {
+        return lastArrayChanges;
+    }
+
+    /**
+     * @return number of redundant calls skipped in the last frame
+     */
+    public int getSkipped() {
+        return lastSkipped;
+    }
+
+    @Override
+    public String toString() {
+        return "StateTracker{" +
+                "programChanges=" + lastProgramChanges +
+                ", textureChanges=" + lastTextureChanges +
+                ", uniformWrites=" + lastUniformWrites +
+                ", arrayChanges=" + lastArrayChanges +
+                ", skipped=" + lastSkipped +
+                '}';
+    }
+}
@@ -0,0 +1,446 @@
+package org.andresoviedo.android_3d_model_engine.drawer;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import org.andresoviedo.android_3d_model_engine.model.AnimatedModel;
+import org.andresoviedo.android_3d_model_engine.model.Object3DData;
+import org.andresoviedo.util.io.IOUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * The vertex attributes of an object interleaved in a single buffer, so every vertex is fetched from a single place
+ * in memory. The attributes can be quantized:
+ * <pre>
+ * position:      short x3, relative to the bounding box. Dequantized by the shader (u_PositionScale, u_PositionOffset)
+ * normal:        byte x3, normalized by the shader
+ * texture coord: unsigned short x2, normalized. Float if the coordinates are not in [0, 1] (i.e. tiled textures)
+ * color:         unsigned byte x4, normalized
+ * joint indices: unsigned byte x3. Float if there are more than 256 joints
+ * weights:       unsigned short x3, normalized
+ * </pre>
+ * Attributes are aligned to 4 bytes. Integer attributes are not normalized by OpenGL, but scaled by the shader, so they
+ * don't depend on the signed normalization rules, which are different in OpenGL ES 2.0 and 3.0.<p>
+ * This class doesn't depend on the GPU, so the quantization can be tested on the JVM.
+ *
+ * @author andresoviedo
+ */
+public final class VertexLayout {
+
+    public enum Format {
+        /**
+         * A float buffer per attribute
+         */
+        SEPARATE,
+        /**
+         * Float attributes interleaved in a single buffer
+         */
+        INTERLEAVED,
+        /**
+         * Quantized attributes interleaved in a single buffer
+         */
+        QUANTIZED
+    }
+
+    private static final float[] NO_SCALE = {1, 1, 1};
+    private static final float[] NO_OFFSET = {0, 0, 0};
+
+    /**
+     * An attribute of the vertex, as passed to <code>glVertexAttribPointer</code>
+     */
+    static final class Attribute {
+
+        final ShaderVariable variable;
+        final int size;
+        final int type;
+        final boolean normalized;
+        final int offset;
+
+        private Attribute(ShaderVariable variable, int size, int type, boolean normalized, int offset) {
+            this.variable = variable;
+            this.size = size;
+            this.type = type;
+            this.normalized = normalized;
+            this.offset = offset;
+        }
+
+        @Override
+        public String toString() {
+            return variable.name + ":" + size + "x" + typeName(type) + (normalized ? "(norm)" : "") + "@" + offset;
+        }
+    }
+
+    private final Format format;
+    private final Attribute[] attributes = new Attribute[ShaderVariable.values().length];
+    private final ByteBuffer data;
+    private final int stride;
+    private final int vertexCount;
+    private final float[] positionScale;
+    private final float[] positionOffset;
+
+    // source buffers, so replaced buffers are detected
+    private final FloatBuffer[] sources;
+    private final int sourceBytes;
+
+    // last frame the layout was drawn
+    int frame;
+
+    private VertexLayout(Format format, Attribute[] attributes, ByteBuffer data, int stride, int vertexCount,
+                         float[] positionScale, float[] positionOffset, FloatBuffer[] sources, int sourceBytes) {
+        this.format = format;
+        for (Attribute attribute : attributes) {
+            this.attributes[attribute.variable.ordinal()] = attribute;
+        }
+        this.data = data;
+        this.stride = stride;
+        this.vertexCount = vertexCount;
+        this.positionScale = positionScale;
+        this.positionOffset = positionOffset;
+        this.sources = sources;
+        this.sourceBytes = sourceBytes;
+    }
+
+    /**
+     * Build the layout of the object
+     *
+     * @param obj    the object
+     * @param format {@link Format#INTERLEAVED} or {@link Format#QUANTIZED}
+     * @return the layout, or null if the object can't be interleaved (i.e. the attributes have different vertex counts)
+     */
+    static VertexLayout build(Object3DData obj, Format format) {
+        final FloatBuffer[] sources = getSources(obj);
+        if (sources[0] == null || format == Format.SEPARATE) {
+            return null;
+        }
+
+        // all the attributes must have a value per vertex
+        final ShaderVariable[] variables = ShaderVariable.values();
+        final int vertexCount = sources[0].capacity() / 3;
+        int sourceBytes = 0;
+        for (int i = 0; i < sources.length; i++) {
+            if (sources[i] == null) continue;
+            if (sources[i].capacity() != vertexCount * sizeOf(variables[i])) {
+                return null;
+            }
+            sourceBytes += sources[i].capacity() * 4;
+        }
+
+        // choose the encoding of every attribute, so it's aligned to 4 bytes
+        final boolean quantized = format == Format.QUANTIZED;
+        final Attribute[] attributes = new Attribute[count(sources)];
+        int stride = 0;
+        for (int i = 0, j = 0; i < sources.length; i++) {
+            if (sources[i] == null) continue;
+            final ShaderVariable variable = variables[i];
+            final int type = quantized ? quantizedType(variable, sources[i]) : GLES20.GL_FLOAT;
+            final boolean normalized = type == GLES20.GL_UNSIGNED_BYTE && variable == ShaderVariable.A_COLOR
+                    || type == GLES20.GL_UNSIGNED_SHORT;
+            attributes[j++] = new Attribute(variable, sizeOf(variable), type, normalized, stride);
+            stride += align(sizeOf(variable) * bytesOf(type));
+        }
+
+        // the positions are relative to the bounding box
+        final float[] positionScale = quantized ? new float[3] : NO_SCALE;
+        final float[] positionOffset = quantized ? new float[3] : NO_OFFSET;
+        if (quantized) {
+            getQuantization(sources[0], positionScale, positionOffset);
+        }
+
+        // write the vertices
+        final ByteBuffer data = IOUtils.createNativeByteBuffer(stride * vertexCount);
+        for (Attribute attribute : attributes) {
+            final FloatBuffer source = sources[attribute.variable.ordinal()];
+            for (int v = 0; v < vertexCount; v++) {
+                final int position = v * stride + attribute.offset;
+                for (int c = 0; c < attribute.size; c++) {
+                    final float value = source.get(v * attribute.size + c);
+                    write(data, position, c, attribute, encode(attribute, source, v, c, value, positionScale,
+                            positionOffset));
+                }
+            }
+        }
+
+        final VertexLayout ret = new VertexLayout(format, attributes, data, stride, vertexCount, positionScale,
+                positionOffset, sources, sourceBytes);
+
+        // log event
+        Log.i("VertexLayout", "Vertex layout of '" + obj.getId() + "': " + ret);
+        return ret;
+    }
+
+    /**
+     * @return the float buffers of the object, indexed by the ordinal of the attribute
+     */
+    private static FloatBuffer[] getSources(Object3DData obj) {
+        final FloatBuffer[] ret = new FloatBuffer[ShaderVariable.IN_WEIGHTS.ordinal() + 1];
+        ret[ShaderVariable.A_POSITION.ordinal()] = obj.getVertexBuffer();
+        ret[ShaderVariable.A_NORMAL.ordinal()] = obj.getNormalsBuffer();
+        ret[ShaderVariable.A_COLOR.ordinal()] = obj.getColorsBuffer();
+        ret[ShaderVariable.A_TEX_COORDINATE.ordinal()] = obj.getTextureBuffer();
+        if (obj instanceof AnimatedModel) {
+            ret[ShaderVariable.IN_JOINT_INDICES.ordinal()] = ((AnimatedModel) obj).getJointIds();
+            ret[ShaderVariable.IN_WEIGHTS.ordinal()] = ((AnimatedModel) obj).getVertexWeights();
+        }
+        return ret;
+    }
+
+    private static int count(Object[] array) {
+        int ret = 0;
+        for (Object item : array) {
+            if (item != null) ret++;
+        }
+        return ret;
+    }
+
+    private static int quantizedType(ShaderVariable variable, FloatBuffer source) {
+        switch (variable) {
+            case A_POSITION:
+                return GLES20.GL_SHORT;
+            case A_NORMAL:
+                return GLES20.GL_BYTE;
+            case A_COLOR:
+                return GLES20.GL_UNSIGNED_BYTE;
+            case A_TEX_COORDINATE:
+                return isInRange(source, 0, 1, false) ? GLES20.GL_UNSIGNED_SHORT : GLES20.GL_FLOAT;
+            case IN_JOINT_INDICES:
+                return isInRange(source, 0, 255, true) ? GLES20.GL_UNSIGNED_BYTE : GLES20.GL_FLOAT;
+            case IN_WEIGHTS:
+                return GLES20.GL_UNSIGNED_SHORT;
+            default:
+                return GLES20.GL_FLOAT;
+        }
+    }
+
+    private static boolean isInRange(FloatBuffer source, float min, float max, boolean integer) {
+        for (int i = 0; i < source.capacity(); i++) {
+            final float value = source.get(i);
+            if (!(value >= min && value <= max) || integer && value != (int) value) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calculate the dequantization of the positions: <code>position = value * scale + offset</code>
+     */
+    private static void getQuantization(FloatBuffer positions, float[] scale, float[] offset) {
+        final float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+        final float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (int i = 0; i < positions.capacity(); i++) {
+            final float value = positions.get(i);
+            if (value < min[i % 3]) min[i % 3] = value;
+            if (value > max[i % 3]) max[i % 3] = value;
+        }
+        for (int i = 0; i < 3; i++) {
+            if (min[i] > max[i]) {
+                // no vertices
+                min[i] = max[i] = 0;
+            }
+            offset[i] = (min[i] + max[i]) / 2;
+            scale[i] = (max[i] - min[i]) / 2 / Short.MAX_VALUE;
+        }
+    }
+
+    private static float encode(Attribute attribute, FloatBuffer source, int vertex, int component, float value,
+                                float[] positionScale, float[] positionOffset) {
+        switch (attribute.type) {
+            case GLES20.GL_SHORT:
+                // position
+                final float scale = positionScale[component];
+                if (scale == 0) return 0;
+                return Math.max(-Short.MAX_VALUE, Math.min(Short.MAX_VALUE,
+                        Math.round((value - positionOffset[component]) / scale)));
+            case GLES20.GL_BYTE:
+                // normal: the direction is kept, the shader normalizes it
+                final int i = vertex * 3;
+                final float x = source.get(i), y = source.get(i + 1), z = source.get(i + 2);
+                final float length = (float) Math.sqrt(x * x + y * y + z * z);
+                return length == 0 ? 0 : Math.round(value / length * Byte.MAX_VALUE);
+            case GLES20.GL_UNSIGNED_BYTE:
+                return attribute.normalized ? Math.round(clamp(value) * 255) : value;
+            case GLES20.GL_UNSIGNED_SHORT:
+                return Math.round(clamp(value) * 65535);
+            default:
+                return value;
+        }
+    }
+
+    private static float clamp(float value) {
+        return value < 0 ? 0 : value > 1 ? 1 : value;
+    }
+
+    private static void write(ByteBuffer data, int position, int component, Attribute attribute, float value) {
+        switch (attribute.type) {
+            case GLES20.GL_BYTE:
+            case GLES20.GL_UNSIGNED_BYTE:
+                data.put(position + component, (byte) (int) value);
+                break;
+            case GLES20.GL_SHORT:
+            case GLES20.GL_UNSIGNED_SHORT:
+                data.putShort(position + component * 2, (short) (int) value);
+                break;
+            default:
+                data.putFloat(position + component * 4, value);
+        }
+    }
+
+    /**
+     * Read the attribute of the vertex as the shader sees it, i.e. with the positions dequantized
+     *
+     * @param variable the attribute
+     * @param vertex   the vertex index
+     * @param out      the values of the components
+     * @return false if the attribute is not in the layout
+     */
+    boolean read(ShaderVariable variable, int vertex, float[] out) {
+        final Attribute attribute = attributes[variable.ordinal()];
+        if (attribute == null) return false;
+        final int position = vertex * stride + attribute.offset;
+        for (int c = 0; c < attribute.size; c++) {
+            final float value;
+            switch (attribute.type) {
+                case GLES20.GL_BYTE:
+                    value = data.get(position + c);
+                    break;
+                case GLES20.GL_UNSIGNED_BYTE:
+                    value = attribute.normalized ? (data.get(position + c) & 0xFF) / 255f : data.get(position + c) & 0xFF;
+                    break;
+                case GLES20.GL_SHORT:
+                    value = data.getShort(position + c * 2);
+                    break;
+                case GLES20.GL_UNSIGNED_SHORT:
+                    value = (data.getShort(position + c * 2) & 0xFFFF) / 65535f;
+                    break;
+                default:
+                    value = data.getFloat(position + c * 4);
+            }
+            out[c] = variable == ShaderVariable.A_POSITION ? value * positionScale[c] + positionOffset[c] : value;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the layout was built with the current buffers of the object
+     */
+    boolean isBuiltFrom(Object3DData obj) {
+        if (sources[ShaderVariable.A_POSITION.ordinal()] != obj.getVertexBuffer()
+                || sources[ShaderVariable.A_NORMAL.ordinal()] != obj.getNormalsBuffer()
+                || sources[ShaderVariable.A_COLOR.ordinal()] != obj.getColorsBuffer()
+                || sources[ShaderVariable.A_TEX_COORDINATE.ordinal()] != obj.getTextureBuffer()) {
+            return false;
+        }
+        return !(obj instanceof AnimatedModel)
+                || sources[ShaderVariable.IN_JOINT_INDICES.ordinal()] == ((AnimatedModel) obj).getJointIds()
+                && sources[ShaderVariable.IN_WEIGHTS.ordinal()] == ((AnimatedModel) obj).getVertexWeights();
+    }
+
+    private static int sizeOf(ShaderVariable variable) {
+        switch (variable) {
+            case A_COLOR:
+                return 4;
+            case A_TEX_COORDINATE:
+                return 2;
+            default:
+                return 3;
+        }
+    }
+
+    private static int bytesOf(int type) {
+        switch (type) {
+            case GLES20.GL_BYTE:
+            case GLES20.GL_UNSIGNED_BYTE:
+                return 1;
+            case GLES20.GL_SHORT:
+            case GLES20.GL_UNSIGNED_SHORT:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+
+    private static int align(int bytes) {
+        return (bytes + 3) & ~3;
+    }
+
+    private static String typeName(int type) {
+        switch (type) {
+            case GLES20.GL_BYTE:
+                return "byte";
+            case GLES20.GL_UNSIGNED_BYTE:
+                return "ubyte";
+            case GLES20.GL_SHORT:
+                return "short";
+            case GLES20.GL_UNSIGNED_SHORT:
+                return "ushort";
+            default:
+                return "float";
+        }
+    }
+
+    /**
+     * @return the attribute or null if the object doesn't have it
+     */
+    Attribute get(ShaderVariable variable) {
+        return attributes[variable.ordinal()];
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    ByteBuffer getData() {
+        return data;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    float[] getPositionScale() {
+        return positionScale;
+    }
+
+    float[] getPositionOffset() {
+        return positionOffset;
+    }
+
+    /**
+     * @return size of the separate float buffers
+     */
+    public int getSourceBytes() {
+        return sourceBytes;
+    }
+
+    /**
+     * @return size of the interleaved buffer
+     */
+    public int getBytes() {
+        return stride * vertexCount;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder ret = new StringBuilder("VertexLayout{format=").append(format)
+                .append(", vertices=").append(vertexCount)
+                .append(", stride=").append(stride)
+                .append(", bytes=").append(getBytes())
+                .append(", sourceBytes=").append(sourceBytes)
+                .append(", saved=").append(sourceBytes - getBytes())
+                .append(", attributes=[");
+        boolean first = true;
+        for (Attribute attribute : attributes) {
+            if (attribute == null) continue;
+            if (!first) ret.append(", ");
+            ret.append(attribute);
+            first = false;
+        }
+        return ret.append("]}").toString();
+    }
+}
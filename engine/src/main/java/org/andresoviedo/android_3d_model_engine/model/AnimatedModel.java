@@ -4,7 +4,9 @@ import android.opengl.Matrix;
 import android.util.Log;
 
 import org.andresoviedo.android_3d_model_engine.animation.Animation;
+import org.andresoviedo.android_3d_model_engine.animation.AnimationClip;
 import org.andresoviedo.android_3d_model_engine.animation.Joint;
+import org.andresoviedo.android_3d_model_engine.animation.Pose;
 import org.andresoviedo.android_3d_model_engine.services.collada.entities.SkeletonData;
 import org.andresoviedo.util.math.Math3DUtils;
 
@@ -37,7 +39,8 @@ public class AnimatedModel extends Object3DData {
 
     // cache
     private Joint rootJoint;
-    private float[][] jointMatrices;
+    private Pose pose;
+    private AnimationClip animationClip;
 
     public AnimatedModel() {
         super();
@@ -108,6 +111,7 @@ public class AnimatedModel extends Object3DData {
 
     public AnimatedModel doAnimation(Animation animation) {
         this.animation = animation;
+        this.animationClip = null;
         return this;
     }
 
@@ -115,6 +119,17 @@ public class AnimatedModel extends Object3DData {
         return animation;
     }
 
+    /**
+     * @return the animation baked for the skeleton, or null if it's not compiled yet
+     */
+    public AnimationClip getAnimationClip() {
+        return animationClip;
+    }
+
+    public void setAnimationClip(AnimationClip animationClip) {
+        this.animationClip = animationClip;
+    }
+
     /**
      * @return The root joint of the joint hierarchy. This joint has no parent,
      * and every other joint in the skeleton is a descendant of this
@@ -137,14 +152,22 @@ public class AnimatedModel extends Object3DData {
      * animation pose.
      */
     public float[][] getJointTransforms() {
-        if (jointMatrices == null) {
-            this.jointMatrices = new float[getBoneCount()][16];
+        return getPose().getJointTransforms();
+    }
+
+    /**
+     * @return the double buffered joint transforms. The models sharing the skeleton share the pose
+     */
+    public Pose getPose() {
+        if (pose == null) {
+            this.pose = new Pose(getBoneCount());
         }
-        return jointMatrices;
+        return pose;
     }
 
-    public void updateAnimatedTransform(Joint joint) {
-        getJointTransforms()[joint.getIndex()] = joint.getAnimatedTransform();
+    public AnimatedModel setPose(Pose pose) {
+        this.pose = pose;
+        return this;
     }
 
     @Override
@@ -156,7 +179,8 @@ public class AnimatedModel extends Object3DData {
         ret.setJointIds(this.getJointIds());
         ret.setVertexWeights(this.getVertexWeights());
         ret.doAnimation(this.getAnimation());
-        ret.jointMatrices = this.jointMatrices;
+        ret.pose = this.jointsData != null ? this.getPose() : null;
+        ret.animationClip = this.animationClip;
         ret.bindShapeMatrix = this.bindShapeMatrix;
         return ret;
     }
@@ -1,9 +1,11 @@
 package org.andresoviedo.android_3d_model_engine.model;
 
-import org.andresoviedo.util.io.IOUtils;
+import org.andresoviedo.util.collection.IntArrayList;
+import org.andresoviedo.util.math.Frustum;
 
+import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
-import java.util.List;
+import java.util.Arrays;
 
 public class Element {
 
@@ -11,7 +13,7 @@ public class Element {
 
         // polygon
         private String id;
-        private List<Integer> indices;
+        private IntArrayList indices;
 
         // materials
         private String materialId;
@@ -29,7 +31,7 @@ public class Element {
         }
 
 
-        public Builder indices(List<Integer> indices) {
+        public Builder indices(IntArrayList indices) {
             this.indices = indices;
             return this;
         }
@@ -53,14 +55,20 @@ public class Element {
 
     // polygon
     private final String id;
-    private final List<Integer> indicesArray;
+    private final IntArrayList indicesArray;
     private IntBuffer indexBuffer;
 
     // material
     private String materialId;
     private Material material;
 
-    public Element(String id, List<Integer> indexBuffer, String material) {
+    // bounding box in model space, and in world space for the model matrix it was calculated with
+    private float[] bounds;
+    private final float[] worldBounds = new float[6];
+    private final float[] worldBoundsMatrix = new float[16];
+    private boolean worldBoundsValid;
+
+    public Element(String id, IntArrayList indexBuffer, String material) {
         this.id = id;
         this.indicesArray = indexBuffer;
         this.materialId = material;
@@ -77,18 +85,14 @@ public class Element {
         return this.id;
     }
 
-    public List<Integer> getIndices() {
+    public IntArrayList getIndices() {
         return this.indicesArray;
     }
 
 
     public IntBuffer getIndexBuffer() {
         if (indexBuffer == null) {
-            this.indexBuffer = IOUtils.createIntBuffer(indicesArray.size());
-            this.indexBuffer.position(0);
-            for (int i = 0; i < indicesArray.size(); i++) {
-                this.indexBuffer.put(i, indicesArray.get(i));
-            }
+            this.indexBuffer = indicesArray.toIntBuffer();
         }
         return indexBuffer;
     }
@@ -105,6 +109,50 @@ public class Element {
         return material;
     }
 
+    /**
+     * @param vertices the vertices of the object
+     * @return the bounding box of the indexed vertices in model space (min x, y, z and max x, y, z)
+     */
+    public float[] getBounds(FloatBuffer vertices) {
+        if (bounds == null) {
+            final float[] ret = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+                    -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+            final IntBuffer indices = getIndexBuffer();
+            for (int i = 0; i < indices.capacity(); i++) {
+                final int idx = indices.get(i) * 3;
+                for (int j = 0; j < 3; j++) {
+                    final float value = vertices.get(idx + j);
+                    if (value < ret[j]) ret[j] = value;
+                    if (value > ret[j + 3]) ret[j + 3] = value;
+                }
+            }
+            bounds = ret;
+        }
+        return bounds;
+    }
+
+    /**
+     * @param vertices    the vertices of the object
+     * @param modelMatrix the model matrix of the object
+     * @return the bounding box in world space. It's calculated again only when the model matrix changes
+     */
+    public float[] getWorldBounds(FloatBuffer vertices, float[] modelMatrix) {
+        if (!worldBoundsValid || !Arrays.equals(worldBoundsMatrix, modelMatrix)) {
+            Frustum.transform(getBounds(vertices), modelMatrix, worldBounds);
+            System.arraycopy(modelMatrix, 0, worldBoundsMatrix, 0, 16);
+            worldBoundsValid = true;
+        }
+        return worldBounds;
+    }
+
+    /**
+     * The vertices were updated, so the bounds are calculated again
+     */
+    public void invalidateBounds() {
+        bounds = null;
+        worldBoundsValid = false;
+    }
+
     @Override
     public String toString() {
         return "Element{" +
@@ -10,6 +10,7 @@ import org.andresoviedo.android_3d_model_engine.services.collada.entities.MeshDa
 import org.andresoviedo.util.android.AndroidUtils;
 import org.andresoviedo.util.event.EventListener;
 import org.andresoviedo.util.io.IOUtils;
+import org.andresoviedo.util.math.Frustum;
 import org.andresoviedo.util.math.Math3DUtils;
 import org.andresoviedo.util.math.Quaternion;
 
@@ -129,6 +130,12 @@ public class Object3DData {
      * This is the final model transformation
      */
     private float[] newModelMatrix = new float[16];
+    /**
+     * Transforms of the instances of the object, relative to the final model transformation (16 floats per instance),
+     * or null if the object is drawn once
+     */
+    private float[] instanceTransforms;
+    private FloatBuffer instanceTransformsBuffer;
 
     {
         //
@@ -151,6 +158,11 @@ public class Object3DData {
     private Dimensions dimensions = null;
     //protected Dimensions currentDimensions = null;
 
+    // world space bounding box, for the dimensions & model matrix it was calculated with
+    private final float[] worldBounds = new float[6];
+    private final float[] worldBoundsMatrix = new float[16];
+    private Dimensions worldBoundsDimensions = null;
+
     // collision detection
     private Octree octree = null;
 
@@ -469,7 +481,9 @@ public class Object3DData {
             // as for now, let's just update 1st element
             for (int i=0; i<1; i++) {
                 if (getElements().get(i).getMaterial() == null) continue;
-                if (getElements().get(i).getMaterial().getTextureData() == null) continue;
+                // the source of the uploaded texture may be already released
+                if (getElements().get(i).getMaterial().getTextureData() == null
+                        && getElements().get(i).getMaterial().getTextureId() == -1) continue;
                 this.getElements().get(i).getMaterial().setTextureData(textureData);
                 Log.i("Object3DData","New texture for element ("+i+"): "+getElements().get(i).getMaterial());
             }
@@ -779,6 +793,78 @@ public class Object3DData {
 
     protected void updateDimensions() {
         this.dimensions = null;
+        if (elements != null) {
+            for (int i = 0; i < elements.size(); i++) {
+                elements.get(i).invalidateBounds();
+            }
+        }
+    }
+
+    /**
+     * @return the axis aligned bounding box in world space (min x, y, z and max x, y, z). It's calculated again only
+     * when the model matrix or the dimensions change
+     */
+    public float[] getWorldBounds() {
+        final Dimensions dimensions = getDimensions();
+        final float[] modelMatrix = getModelMatrix();
+        if (worldBoundsDimensions != dimensions || !Arrays.equals(worldBoundsMatrix, modelMatrix)) {
+            final float[] bounds = {dimensions.getMin()[0], dimensions.getMin()[1], dimensions.getMin()[2],
+                    dimensions.getMax()[0], dimensions.getMax()[1], dimensions.getMax()[2]};
+            if (instanceTransforms == null) {
+                Frustum.transform(bounds, modelMatrix, worldBounds);
+            } else {
+                // all the instances
+                final float[] instanceMatrix = new float[16];
+                final float[] instanceBounds = new float[6];
+                for (int i = 0; i < getInstanceCount(); i++) {
+                    Matrix.multiplyMM(instanceMatrix, 0, modelMatrix, 0, instanceTransforms, i * 16);
+                    Frustum.transform(bounds, instanceMatrix, instanceBounds);
+                    for (int j = 0; j < 3; j++) {
+                        worldBounds[j] = i == 0 ? instanceBounds[j] : Math.min(worldBounds[j], instanceBounds[j]);
+                        worldBounds[j + 3] = i == 0 ? instanceBounds[j + 3]
+                                : Math.max(worldBounds[j + 3], instanceBounds[j + 3]);
+                    }
+                }
+            }
+            System.arraycopy(modelMatrix, 0, worldBoundsMatrix, 0, 16);
+            worldBoundsDimensions = dimensions;
+        }
+        return worldBounds;
+    }
+
+    /**
+     * Draw the object several times, i.e. the same geometry referenced by several nodes of the scene
+     *
+     * @param transforms the transform of every instance, relative to the model matrix (16 floats per instance), or
+     *                   null to draw the object once
+     */
+    public Object3DData setInstanceTransforms(float[] transforms) {
+        this.instanceTransforms = transforms;
+        this.instanceTransformsBuffer = null;
+        this.worldBoundsDimensions = null;
+        return this;
+    }
+
+    public float[] getInstanceTransforms() {
+        return instanceTransforms;
+    }
+
+    /**
+     * @return the transforms of the instances, to be uploaded to the GPU, or null if the object is drawn once
+     */
+    public FloatBuffer getInstanceTransformsBuffer() {
+        if (instanceTransformsBuffer == null && instanceTransforms != null) {
+            instanceTransformsBuffer = IOUtils.createFloatBuffer(instanceTransforms.length);
+            instanceTransformsBuffer.put(instanceTransforms).position(0);
+        }
+        return instanceTransformsBuffer;
+    }
+
+    /**
+     * @return number of instances, or 0 if the object is drawn once
+     */
+    public int getInstanceCount() {
+        return instanceTransforms != null ? instanceTransforms.length / 16 : 0;
     }
 
     public BoundingBox getBoundingBox() {
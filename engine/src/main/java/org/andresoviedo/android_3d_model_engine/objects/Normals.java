@@ -7,6 +7,7 @@ import android.util.Log;
 import org.andresoviedo.android_3d_model_engine.model.AnimatedModel;
 import org.andresoviedo.android_3d_model_engine.model.Element;
 import org.andresoviedo.android_3d_model_engine.model.Object3DData;
+import org.andresoviedo.util.collection.IntArrayList;
 import org.andresoviedo.util.io.IOUtils;
 import org.andresoviedo.util.math.Math3DUtils;
 
@@ -76,7 +77,7 @@ public final class Normals {
 
             // 1 line (2 vertex) per face (3 vertex)
 
-            final List<Integer> normalsIndices = new ArrayList<>();
+            final IntArrayList normalsIndices = new IntArrayList();
 
             final IntBuffer indices = element.getIndexBuffer();
             for (int i = 0; i < indices.capacity(); i += 3) {
@@ -167,7 +168,7 @@ public final class Normals {
             final IntBuffer indexBuffer = element.getIndexBuffer();
 
             // new lines indices
-            final List<Integer> normalsIndices = new ArrayList<>();
+            final IntArrayList normalsIndices = new IntArrayList();
 
             for (int i = 0; i < indexBuffer.capacity(); i += 3) {
 
@@ -228,6 +229,10 @@ public final class Normals {
         normalsObj.doAnimation(obj.getAnimation());
         normalsObj.setJointsData(obj.getJointsData());
         normalsObj.setRootJoint(obj.getRootJoint());
+        if (obj.getJointsData() != null) {
+            // same skeleton, same pose
+            normalsObj.setPose(obj.getPose());
+        }
         normalsObj.setBindShapeMatrix(obj.getBindShapeMatrix());
 
         // skinned normals only for skinned models
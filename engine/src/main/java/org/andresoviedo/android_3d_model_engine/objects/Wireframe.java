@@ -83,6 +83,10 @@ public class Wireframe {
                 object3DData.doAnimation(objDataAnim.getAnimation());
                 object3DData.setBindShapeMatrix(objDataAnim.getBindShapeMatrix());
                 object3DData.setRootJoint(objDataAnim.getRootJoint());
+                if (objDataAnim.getJointsData() != null) {
+                    // same skeleton, same pose
+                    object3DData.setPose(objDataAnim.getPose());
+                }
                 ret = object3DData;
             } else {
                 ret = new Object3DData(vertexBuffer, wireframeIndices);
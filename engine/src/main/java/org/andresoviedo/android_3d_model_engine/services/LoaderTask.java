@@ -2,10 +2,18 @@ package org.andresoviedo.android_3d_model_engine.services;
 
 import android.app.Activity;
 import android.app.ProgressDialog;
+import android.net.Uri;
 import android.os.AsyncTask;
+import android.util.Log;
 
 import org.andresoviedo.android_3d_model_engine.model.Object3DData;
+import org.andresoviedo.android_3d_model_engine.services.cache.MeshCache;
+import org.andresoviedo.util.android.ContentUtils;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.util.List;
 
@@ -28,6 +36,10 @@ public abstract class LoaderTask extends AsyncTask<Void, String, List<Object3DDa
 	 * The dialog that will show the progress of the loading
 	 */
 	private final ProgressDialog dialog;
+	/**
+	 * Cache of the already loaded models
+	 */
+	private final MeshCache cache;
 
 	/**
 	 * Build a new progress dialog for loading the data model asynchronously
@@ -37,7 +49,20 @@ public abstract class LoaderTask extends AsyncTask<Void, String, List<Object3DDa
 	public LoaderTask(Activity parent, URI uri, LoadListener callback) {
 		this.uri = uri;
 		this.dialog = new ProgressDialog(parent);
-		this.callback = callback; }
+		this.callback = callback;
+		this.cache = new MeshCache(new File(parent.getCacheDir(), "meshes"), new MeshCache.Resolver() {
+			@Override
+			public MeshCache.Stamp getStamp(String file) throws IOException {
+				final Uri uri = ContentUtils.findUri(file);
+				if (uri == null) return MeshCache.Stamp.MISSING;
+				try {
+					return LoaderTask.getStamp(uri);
+				} catch (FileNotFoundException ex) {
+					return MeshCache.Stamp.MISSING;
+				}
+			}
+		});
+	}
 
 
 	@Override
@@ -55,7 +80,21 @@ public abstract class LoaderTask extends AsyncTask<Void, String, List<Object3DDa
 	protected List<Object3DData> doInBackground(Void... params) {
 		try {
 		    callback.onStart();
-			List<Object3DData> data = build();
+
+			// check if model is already cached
+			final MeshCache.Key key = getCacheKey();
+			List<Object3DData> data = key != null ? cache.get(key) : null;
+			if (data != null) {
+				for (int i = 0; i < data.size(); i++) {
+					onLoad(data.get(i));
+				}
+			} else {
+				data = build();
+				if (key != null && data != null && !data.isEmpty()) {
+					super.publishProgress("Caching model...");
+					cache.put(key, data);
+				}
+			}
             callback.onLoadComplete();
 			return  data;
 		} catch (Exception ex) {
@@ -66,6 +105,32 @@ public abstract class LoaderTask extends AsyncTask<Void, String, List<Object3DDa
 
 	protected abstract List<Object3DData> build() throws Exception;
 
+	/**
+	 * @return the key of the model in the cache or <code>null</code> if the model can't be cached
+	 */
+	private MeshCache.Key getCacheKey() {
+		if (uri == null) return null;
+		try {
+			return new MeshCache.Key(uri.toString(), getStamp(Uri.parse(uri.toString())));
+		} catch (Exception ex) {
+			Log.e("LoaderTask", "Error reading model stamp: " + uri, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Get the length & last modification time of the file. The file is read (checksum) only if they are not known
+	 */
+	private static MeshCache.Stamp getStamp(Uri uri) throws IOException {
+		final long[] info = ContentUtils.getFileInfo(uri);
+		if (info != null) {
+			return MeshCache.Stamp.of(info[0], info[1]);
+		}
+		try (InputStream stream = ContentUtils.getInputStream(uri)) {
+			return MeshCache.Stamp.of(stream);
+		}
+	}
+
 	public void onLoad(Object3DData data){
 		callback.onLoad(data);
 	}
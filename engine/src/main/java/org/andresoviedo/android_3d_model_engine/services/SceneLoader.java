@@ -7,7 +7,7 @@ import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
-import org.andresoviedo.android_3d_model_engine.animation.Animator;
+import org.andresoviedo.android_3d_model_engine.animation.AnimationSystem;
 import org.andresoviedo.android_3d_model_engine.collision.CollisionEvent;
 import org.andresoviedo.android_3d_model_engine.controller.TouchEvent;
 import org.andresoviedo.android_3d_model_engine.event.SelectedObjectEvent;
@@ -15,12 +15,16 @@ import org.andresoviedo.android_3d_model_engine.model.AnimatedModel;
 import org.andresoviedo.android_3d_model_engine.model.Camera;
 import org.andresoviedo.android_3d_model_engine.model.Constants;
 import org.andresoviedo.android_3d_model_engine.model.Dimensions;
+import org.andresoviedo.android_3d_model_engine.model.Element;
+import org.andresoviedo.android_3d_model_engine.model.Material;
 import org.andresoviedo.android_3d_model_engine.model.Object3DData;
 import org.andresoviedo.android_3d_model_engine.model.Transform;
 import org.andresoviedo.android_3d_model_engine.objects.Point;
 import org.andresoviedo.android_3d_model_engine.services.collada.ColladaLoaderTask;
 import org.andresoviedo.android_3d_model_engine.services.stl.STLLoaderTask;
+import org.andresoviedo.android_3d_model_engine.services.texture.TextureLoader;
 import org.andresoviedo.android_3d_model_engine.services.wavefront.WavefrontLoaderTask;
+import org.andresoviedo.android_3d_model_engine.util.StaticBatcher;
 import org.andresoviedo.util.android.AndroidUtils;
 import org.andresoviedo.util.android.ContentUtils;
 import org.andresoviedo.util.event.EventListener;
@@ -29,6 +33,7 @@ import org.andresoviedo.util.math.Math3DUtils;
 import org.andresoviedo.util.math.Quaternion;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -170,9 +175,28 @@ public class SceneLoader implements LoadListener, EventListener {
      */
     private final Object3DData lightBulb = Point.build(new float[]{0, 0, 0}).setId("light");
     /**
-     * Animator
+     * Evaluates the poses of the animated models in background
      */
-    private Animator animator = new Animator();
+    private final AnimationSystem animations = new AnimationSystem();
+    /**
+     * Decodes the textures in background, so the renderer only has to upload them. The released images are read
+     * again from the texture files if the GL context is lost
+     */
+    private final TextureLoader textureLoader = new TextureLoader(new TextureLoader.Source() {
+        @Override
+        public byte[] read(Material material) throws IOException {
+            ContentUtils.setThreadActivity(parent);
+            try (InputStream stream = ContentUtils.getInputStream(material.getTextureFile())) {
+                return IOUtils.read(stream);
+            } finally {
+                ContentUtils.setThreadActivity(null);
+            }
+        }
+    });
+    /**
+     * Static objects merged once loaded, so they are drawn with less draw calls
+     */
+    private volatile StaticBatcher batcher;
     /**
      * Did the user touched the model for the first time?
      */
@@ -272,10 +296,7 @@ public class SceneLoader implements LoadListener, EventListener {
         if (objects.isEmpty()) return;
 
         if (doAnimation) {
-            for (int i = 0; i < objects.size(); i++) {
-                Object3DData obj = objects.get(i);
-                animator.update(obj, isShowBindPose());
-            }
+            animations.update(objects, SystemClock.uptimeMillis() / 1000f);
         }
     }
 
@@ -619,9 +640,12 @@ public class SceneLoader implements LoadListener, EventListener {
 
         // if we add object, we need to initialize Animation, otherwise ModelRenderer will crash
         if (doAnimation) {
-            animator.update(data, isShowBindPose());
+            animations.prepare(data);
         }
 
+        // start decoding the textures
+        requestTextures(data);
+
         // load new object and rescale all together so they fit in the viewport
         addObject(data);
 
@@ -635,6 +659,16 @@ public class SceneLoader implements LoadListener, EventListener {
         // get complete list of objects loaded
         final List<Object3DData> objs = getObjects();
 
+        // decode the textures assigned after the objects were added
+        for (Object3DData data : objs) {
+            requestTextures(data);
+        }
+
+        // the images are not needed once uploaded, they can be read again from the texture files
+        for (Object3DData data : objs) {
+            releaseTextureSources(data);
+        }
+
         // show object errors
         List<String> allErrors = new ArrayList<>();
         for (Object3DData data : objs) {
@@ -662,6 +696,11 @@ public class SceneLoader implements LoadListener, EventListener {
 
         // rescale objects so they all fit in the viewport
         rescale(this.getObjects(), Constants.UNIT, new float[3]);
+
+        // merge the static objects, once they are in place
+        if (this.getObjects().size() > 1) {
+            batcher = new StaticBatcher(this.getObjects());
+        }
     }
 
     private void rescale(List<Object3DData> objs, float size) {
@@ -714,9 +753,60 @@ public class SceneLoader implements LoadListener, EventListener {
         // load new texture
         obj.setTextureData(IOUtils.read(ContentUtils.getInputStream(uri)));
 
+        // unbind old texture
+        if (obj.getMaterial() != null) {
+            textureLoader.release(obj.getMaterial());
+        }
+        if (obj.getElements() != null && obj.getElements().size() == 1
+                && obj.getElements().get(0).getMaterial() != null) {
+            textureLoader.release(obj.getElements().get(0).getMaterial());
+        }
+        requestTextures(obj);
+
         this.drawTextures = true;
     }
 
+    private void requestTextures(Object3DData data) {
+        if (data.getMaterial() != null) {
+            textureLoader.request(data.getTextureData());
+        }
+        if (data.getElements() == null) return;
+        for (int i = 0; i < data.getElements().size(); i++) {
+            final Element element = data.getElements().get(i);
+            if (element.getMaterial() != null) {
+                textureLoader.request(element.getMaterial().getTextureData());
+            }
+        }
+    }
+
+    private void releaseTextureSources(Object3DData data) {
+        if (data.getMaterial() != null) {
+            textureLoader.releaseSource(data.getMaterial());
+        }
+        if (data.getElements() == null) return;
+        for (int i = 0; i < data.getElements().size(); i++) {
+            final Element element = data.getElements().get(i);
+            if (element.getMaterial() != null) {
+                textureLoader.releaseSource(element.getMaterial());
+            }
+        }
+    }
+
+    /**
+     * @return the batches of the static objects, or null if the scene is not loaded yet
+     */
+    public StaticBatcher getBatcher() {
+        return batcher;
+    }
+
+    public TextureLoader getTextureLoader() {
+        return textureLoader;
+    }
+
+    public AnimationSystem getAnimationSystem() {
+        return animations;
+    }
+
     public final boolean isRotatingLight() {
         return rotatingLight;
     }
@@ -0,0 +1,1058 @@
+package org.andresoviedo.android_3d_model_engine.services.cache;
+
+import android.util.Log;
+
+import org.andresoviedo.android_3d_model_engine.animation.Animation;
+import org.andresoviedo.android_3d_model_engine.animation.JointTransform;
+import org.andresoviedo.android_3d_model_engine.animation.KeyFrame;
+import org.andresoviedo.android_3d_model_engine.model.AnimatedModel;
+import org.andresoviedo.android_3d_model_engine.model.Element;
+import org.andresoviedo.android_3d_model_engine.model.Material;
+import org.andresoviedo.android_3d_model_engine.model.Object3DData;
+import org.andresoviedo.android_3d_model_engine.services.collada.entities.JointData;
+import org.andresoviedo.android_3d_model_engine.services.collada.entities.MeshData;
+import org.andresoviedo.android_3d_model_engine.services.collada.entities.SkeletonData;
+import org.andresoviedo.android_3d_model_engine.services.collada.entities.Vertex;
+import org.andresoviedo.util.collection.FloatArrayList;
+import org.andresoviedo.util.collection.IntArrayList;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Binary cache of the loaded models, so reopening a model doesn't parse (nor fix normals, weld, etc) again.
+ * <p>
+ * There is one file per model, named after the model URI. The file also stores the {@link Stamp} of the model file
+ * (length plus last modification time, or CRC32 if the time is not known) and the stamps of the files referenced by the
+ * model (material libraries and textures), so the entry is discarded as soon as any of them changes.
+ * <p>
+ * The {@link MeshData} of the objects is stored too (positions, normals, vertex attributes, faces and smoothing
+ * groups), so the normals of the cached models can still be smoothed. Colors and texture coordinates are only stored in
+ * the object buffers, since smoothing doesn't need them.
+ * <p>
+ * The file starts with a big endian description of the scene (objects, elements, materials, skeletons and animations)
+ * followed by the vertex data in the native byte order. The vertex data is memory mapped and sliced straight into the
+ * object buffers, so nothing is parsed nor copied. The mapping is private (copy on write), so the buffers can still be
+ * updated in place (i.e. rescaling) without changing the cached file.
+ *
+ * @author andresoviedo
+ */
+public final class MeshCache {
+
+    /**
+     * Bump this every time the file layout changes
+     */
+    static final int VERSION = 4;
+
+    // "A3DC"
+    private static final int MAGIC = 0x41334443;
+    private static final int ALIGNMENT = 16;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // object types
+    private static final int TYPE_OBJECT = 0;
+    private static final int TYPE_ANIMATED = 1;
+
+    // metrics
+    private static final AtomicInteger hits = new AtomicInteger();
+    private static final AtomicInteger misses = new AtomicInteger();
+
+    private final File dir;
+    private final Resolver resolver;
+
+    /**
+     * @param dir      the directory where to store the cached models. It's created if it doesn't exist.
+     * @param resolver finds the files referenced by the models
+     */
+    public MeshCache(File dir, Resolver resolver) {
+        this.dir = dir;
+        this.resolver = resolver;
+    }
+
+    /**
+     * @return number of models loaded from the cache
+     */
+    public static int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of models not found in the cache (or outdated or unreadable)
+     */
+    public static int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Finds the files referenced by the models, that is, the material libraries and the textures
+     */
+    public interface Resolver {
+
+        /**
+         * @param file the file, as referenced by the model
+         * @return the current stamp of the file or {@link Stamp#MISSING} if it doesn't exist
+         * @throws IOException if there is an error reading the file
+         */
+        Stamp getStamp(String file) throws IOException;
+    }
+
+    /**
+     * Identifies one version of a file: its length plus its last modification time or, if the time is not known (i.e.
+     * assets or remote files), the checksum of its content. The metadata is checked first, so the file is read only
+     * when there is no other way to tell whether it changed
+     */
+    public static final class Stamp {
+
+        /**
+         * Last modification time of the files whose time is not known
+         */
+        public static final long UNKNOWN = -1;
+
+        /**
+         * Stamp of the referenced files not found, so the entry is discarded if they show up later
+         */
+        public static final Stamp MISSING = new Stamp(-1, UNKNOWN, 0);
+
+        private final long length;
+        private final long lastModified;
+        private final long checksum;
+
+        private Stamp(long length, long lastModified, long checksum) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+        }
+
+        /**
+         * @param length       file length, in bytes
+         * @param lastModified last modification time, in milliseconds
+         * @return the stamp
+         */
+        public static Stamp of(long length, long lastModified) {
+            return new Stamp(length, lastModified, 0);
+        }
+
+        /**
+         * Read the whole file and calculate its checksum. Use this only when the file metadata is not available
+         *
+         * @param source file content. It's not closed
+         * @return the stamp
+         * @throws IOException if there is an error reading the file
+         */
+        public static Stamp of(InputStream source) throws IOException {
+            final CRC32 crc = new CRC32();
+            final byte[] buffer = new byte[CHUNK_SIZE];
+            long length = 0;
+            int read;
+            while ((read = source.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+                length += read;
+            }
+            return new Stamp(length, UNKNOWN, crc.getValue());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final Stamp stamp = (Stamp) o;
+            return length == stamp.length && lastModified == stamp.lastModified && checksum == stamp.checksum;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (length ^ (length >>> 32));
+            result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+            result = 31 * result + (int) (checksum ^ (checksum >>> 32));
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return lastModified != UNKNOWN ? "length=" + length + ", lastModified=" + lastModified
+                    : "length=" + length + ", checksum=" + Long.toHexString(checksum);
+        }
+    }
+
+    /**
+     * Identifies one version of a model: the model URI plus the stamp of its file
+     */
+    public static final class Key {
+
+        private final String uri;
+        private final Stamp stamp;
+
+        public Key(String uri, Stamp stamp) {
+            this.uri = uri;
+            this.stamp = stamp;
+        }
+
+        /**
+         * Read the whole model and calculate its key. Use this only when the model metadata is not available
+         *
+         * @param uri    model uri
+         * @param source model content. It's not closed
+         * @return the key
+         * @throws IOException if there is an error reading the model
+         */
+        public static Key of(URI uri, InputStream source) throws IOException {
+            return new Key(uri.toString(), Stamp.of(source));
+        }
+
+        String getFileName() {
+            try {
+                final byte[] digest = MessageDigest.getInstance("SHA-1").digest(uri.getBytes(UTF_8));
+                final StringBuilder ret = new StringBuilder(digest.length * 2 + 4);
+                for (byte b : digest) {
+                    ret.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+                }
+                return ret.append(".bin").toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Key{" +
+                    "uri='" + uri + '\'' +
+                    ", " + stamp +
+                    '}';
+        }
+    }
+
+    /**
+     * Load the model from the cache
+     *
+     * @param key model key
+     * @return the objects of the model or <code>null</code> if there is no valid entry
+     */
+    public List<Object3DData> get(Key key) {
+        final File file = new File(dir, key.getFileName());
+        if (!file.isFile()) {
+            misses.incrementAndGet();
+            Log.i("MeshCache", "Cache miss: " + key);
+            return null;
+        }
+        try {
+            final List<Object3DData> ret = new Reader(map(file)).read(key, resolver);
+            if (ret == null) {
+                misses.incrementAndGet();
+                Log.i("MeshCache", "Cache entry outdated: " + key);
+                return null;
+            }
+            hits.incrementAndGet();
+            Log.i("MeshCache", "Cache hit: " + key + ", objects: " + ret.size());
+            return ret;
+        } catch (Exception ex) {
+            misses.incrementAndGet();
+            Log.e("MeshCache", "Error reading cache entry: " + key, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Store the model in the cache. Any error is logged and ignored, since the cache is just an optimization.
+     *
+     * @param key     model key
+     * @param objects the loaded objects
+     */
+    public void put(Key key, List<Object3DData> objects) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e("MeshCache", "Couldn't create cache directory: " + dir);
+            return;
+        }
+        final File file = new File(dir, key.getFileName());
+        final File tmp = new File(dir, key.getFileName() + ".tmp");
+        try {
+            new Writer(resolver).write(key, objects, tmp);
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Couldn't rename " + tmp + " to " + file);
+            }
+            Log.i("MeshCache", "Cached model: " + key + ", size: " + file.length() + " (bytes)");
+        } catch (Exception ex) {
+            Log.e("MeshCache", "Error writing cache entry: " + key, ex);
+            tmp.delete();
+        }
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        // private mapping needs a read/write channel, but the file is never modified
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.PRIVATE, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int align(long offset) {
+        return (int) ((offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT);
+    }
+
+    /**
+     * Writes the scene description while collecting the buffers, then appends the buffers.
+     * Shared objects (buffers, materials, skeletons and animations) are written only once.
+     */
+    private static final class Writer {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        // vertex data
+        private final Map<Object, Long> offsets = new IdentityHashMap<>();
+        private final List<Object> sections = new ArrayList<>();
+        private long length = 0;
+
+        // shared objects
+        private final Map<Material, Integer> materials = new IdentityHashMap<>();
+        private final Map<SkeletonData, Integer> skeletons = new IdentityHashMap<>();
+        private final Map<Animation, Integer> animations = new IdentityHashMap<>();
+
+        // referenced files
+        private final Resolver resolver;
+        private final Set<String> files = new TreeSet<>();
+
+        Writer(Resolver resolver) {
+            this.resolver = resolver;
+        }
+
+        void write(Key key, List<Object3DData> objects, File file) throws IOException {
+
+            // collect shared objects
+            for (Object3DData obj : objects) {
+                if (obj.getElements() != null) {
+                    for (Element element : obj.getElements()) {
+                        if (element.getMaterial() != null && !materials.containsKey(element.getMaterial())) {
+                            materials.put(element.getMaterial(), materials.size());
+                            if (element.getMaterial().getTextureFile() != null) {
+                                files.add(element.getMaterial().getTextureFile());
+                            }
+                        }
+                    }
+                }
+                if (obj.getMeshData() != null && obj.getMeshData().getMaterialFile() != null) {
+                    files.add(obj.getMeshData().getMaterialFile());
+                }
+                if (obj instanceof AnimatedModel) {
+                    final AnimatedModel animated = (AnimatedModel) obj;
+                    if (animated.getJointsData() != null && !skeletons.containsKey(animated.getJointsData())) {
+                        skeletons.put(animated.getJointsData(), skeletons.size());
+                    }
+                    if (animated.getAnimation() != null && !animations.containsKey(animated.getAnimation())) {
+                        animations.put(animated.getAnimation(), animations.size());
+                    }
+                }
+            }
+
+            // header
+            out.writeBoolean(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN);
+            writeString(key.uri);
+            writeStamp(key.stamp);
+            out.writeInt(files.size());
+            for (String name : files) {
+                writeString(name);
+                writeStamp(resolver.getStamp(name));
+            }
+
+            // materials
+            out.writeInt(materials.size());
+            for (Material material : ordered(materials)) {
+                writeMaterial(material);
+            }
+
+            // skeletons
+            out.writeInt(skeletons.size());
+            for (SkeletonData skeleton : ordered(skeletons)) {
+                out.writeInt(skeleton.getJointCount());
+                out.writeInt(skeleton.getBoneCount());
+                writeJoint(skeleton.getHeadJoint());
+            }
+
+            // animations
+            out.writeInt(animations.size());
+            for (Animation animation : ordered(animations)) {
+                writeAnimation(animation);
+            }
+
+            // objects
+            out.writeInt(objects.size());
+            for (Object3DData obj : objects) {
+                writeObject(obj);
+            }
+            out.flush();
+
+            // write file
+            final byte[] description = bytes.toByteArray();
+            final int dataOffset = align(12 + description.length);
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(0);
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeInt(dataOffset);
+                raf.write(description);
+                raf.seek(dataOffset);
+                final FileChannel channel = raf.getChannel();
+                final ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE).order(ByteOrder.nativeOrder());
+                for (Object section : sections) {
+                    writeSection(channel, chunk, section);
+                    // padding
+                    raf.seek(align(raf.getFilePointer()));
+                }
+                raf.setLength(raf.getFilePointer());
+            } finally {
+                raf.close();
+            }
+        }
+
+        private static <T> List<T> ordered(Map<T, Integer> indices) {
+            final List<T> ret = new ArrayList<>(indices.size());
+            for (int i = 0; i < indices.size(); i++) ret.add(null);
+            for (Map.Entry<T, Integer> entry : indices.entrySet()) {
+                ret.set(entry.getValue(), entry.getKey());
+            }
+            return ret;
+        }
+
+        private void writeObject(Object3DData obj) throws IOException {
+            out.writeByte(obj instanceof AnimatedModel ? TYPE_ANIMATED : TYPE_OBJECT);
+            writeString(obj.getId());
+            writeString(obj.getName());
+            writeString(obj.getUri() != null ? obj.getUri().toString() : null);
+            writeString(obj.getAuthoringTool());
+            out.writeInt(obj.getDrawMode());
+            out.writeBoolean(obj.isDrawUsingArrays());
+            writeFloats(obj.getBindTransform());
+
+            // vertex data
+            writeSection(obj.getVertexBuffer());
+            writeSection(obj.getNormalsBuffer());
+            writeSection(obj.getTextureBuffer());
+            writeSection(obj.getColorsBuffer());
+
+            // elements
+            final List<Element> elements = obj.getElements();
+            out.writeInt(elements != null ? elements.size() : -1);
+            if (elements != null) {
+                for (Element element : elements) {
+                    writeString(element.getId());
+                    writeString(element.getMaterialId());
+                    out.writeInt(element.getMaterial() != null ? materials.get(element.getMaterial()) : -1);
+                    writeSection(element.getIndexBuffer());
+                }
+            }
+
+            // skinning & animation
+            if (obj instanceof AnimatedModel) {
+                final AnimatedModel animated = (AnimatedModel) obj;
+                writeSection(animated.getJointIds());
+                writeSection(animated.getVertexWeights());
+                out.writeInt(animated.getJointsData() != null ? skeletons.get(animated.getJointsData()) : -1);
+                out.writeInt(animated.getAnimation() != null ? animations.get(animated.getAnimation()) : -1);
+            }
+
+            // mesh data, so the normals can be smoothed
+            out.writeBoolean(obj.getMeshData() != null);
+            if (obj.getMeshData() != null) {
+                writeMeshData(obj.getMeshData());
+            }
+        }
+
+        private void writeMeshData(MeshData meshData) throws IOException {
+            writeString(meshData.getId());
+            writeString(meshData.getName());
+            writeString(meshData.getMaterialFile());
+            writeFloatList(meshData.getVertices());
+            writeFloatList(meshData.getNormals());
+
+            // vertex attributes: position, normal, texture & color indices
+            final List<Vertex> attributes = meshData.getVerticesAttributes();
+            final Map<Vertex, Integer> positions = new IdentityHashMap<>();
+            if (attributes != null) {
+                final int[] indices = new int[attributes.size() * 4];
+                for (int i = 0; i < attributes.size(); i++) {
+                    final Vertex vertex = attributes.get(i);
+                    positions.put(vertex, i);
+                    indices[i * 4] = vertex.getVertexIndex();
+                    indices[i * 4 + 1] = vertex.getNormalIndex();
+                    indices[i * 4 + 2] = vertex.getTextureIndex();
+                    indices[i * 4 + 3] = vertex.getColorIndex();
+                }
+                writeSection(IntBuffer.wrap(indices));
+            } else {
+                writeSection(null);
+            }
+
+            // faces. The index buffers are shared with the object elements
+            final List<Element> elements = meshData.getElements();
+            out.writeInt(elements != null ? elements.size() : -1);
+            if (elements != null) {
+                for (Element element : elements) {
+                    writeString(element.getId());
+                    writeString(element.getMaterialId());
+                    final Integer material = element.getMaterial() != null ? materials.get(element.getMaterial()) : null;
+                    out.writeInt(material != null ? material : -1);
+                    writeSection(element.getIndexBuffer());
+                }
+            }
+
+            // smoothing groups: positions of the vertex attributes. The vertices not used by the faces (not welded)
+            // are stored as -(vertex index + 2)
+            final Map<String, List<Vertex>> smoothingGroups = meshData.getSmoothingGroups();
+            out.writeInt(smoothingGroups != null ? smoothingGroups.size() : -1);
+            if (smoothingGroups != null) {
+                for (Map.Entry<String, List<Vertex>> group : smoothingGroups.entrySet()) {
+                    final int[] indices = new int[group.getValue().size()];
+                    for (int i = 0; i < indices.length; i++) {
+                        final Vertex vertex = group.getValue().get(i);
+                        final Integer position = positions.get(vertex);
+                        indices[i] = position != null ? position : -vertex.getVertexIndex() - 2;
+                    }
+                    writeString(group.getKey());
+                    writeSection(IntBuffer.wrap(indices));
+                }
+            }
+        }
+
+        private void writeFloatList(FloatArrayList list) throws IOException {
+            out.writeInt(list != null ? list.getStride() : 0);
+            writeSection(list != null ? FloatBuffer.wrap(list.array(), 0, list.size() * list.getStride()).slice() : null);
+        }
+
+        private void writeMaterial(Material material) throws IOException {
+            writeString(material.getName());
+            writeFloats(material.getAmbient());
+            writeFloats(material.getDiffuse());
+            writeFloats(material.getSpecular());
+            out.writeFloat(material.getShininess());
+            out.writeFloat(material.getAlpha());
+            writeString(material.getTextureFile());
+            writeSection(material.getTextureData());
+        }
+
+        private void writeJoint(JointData joint) throws IOException {
+            writeString(joint.getId());
+            writeString(joint.getName());
+            writeString(joint.getSid());
+            writeString(joint.getGeometryId());
+            writeMap(joint.getMaterials());
+            writeFloats(joint.getBindLocalMatrix());
+            writeFloats(joint.getBindLocalScale());
+            writeFloats(joint.getBindLocalRotation());
+            writeFloats(joint.getBindLocalLocation());
+            writeFloats(joint.getBindLocalTransform());
+            writeFloats(joint.getBindTransform());
+            out.writeInt(joint.getIndex());
+            writeFloats(joint.getInverseBindTransform());
+            out.writeInt(joint.getChildren().size());
+            for (JointData child : joint.getChildren()) {
+                writeJoint(child);
+            }
+        }
+
+        private void writeAnimation(Animation animation) throws IOException {
+            out.writeFloat(animation.getLength());
+            final KeyFrame[] keyFrames = animation.getKeyFrames();
+            out.writeInt(keyFrames.length);
+            for (KeyFrame keyFrame : keyFrames) {
+                out.writeFloat(keyFrame.getTimeStamp());
+                final Map<String, JointTransform> transforms = keyFrame.getTransforms();
+                out.writeInt(transforms.size());
+                for (Map.Entry<String, JointTransform> entry : transforms.entrySet()) {
+                    writeString(entry.getKey());
+                    writeTransform(entry.getValue());
+                }
+            }
+        }
+
+        private void writeTransform(JointTransform transform) throws IOException {
+            out.writeBoolean(transform.isVisible());
+            // quaternion based transforms are fully described by the matrix
+            final boolean isMatrix = transform.getQRotation() != null;
+            out.writeBoolean(isMatrix);
+            if (isMatrix) {
+                writeFloats(transform.getMatrix());
+            } else {
+                writeFloats(transform.getScale());
+                writeFloats(transform.getRotation());
+                writeFloats(transform.getLocation());
+            }
+        }
+
+        private void writeStamp(Stamp stamp) throws IOException {
+            out.writeLong(stamp.length);
+            out.writeLong(stamp.lastModified);
+            out.writeLong(stamp.checksum);
+        }
+
+        private void writeMap(Map<String, String> map) throws IOException {
+            out.writeInt(map != null ? map.size() : -1);
+            if (map == null) return;
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+                writeString(entry.getKey());
+                writeString(entry.getValue());
+            }
+        }
+
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                out.writeInt(-1);
+                return;
+            }
+            final byte[] data = value.getBytes(UTF_8);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+
+        private void writeFloats(float[] values) throws IOException {
+            out.writeInt(values != null ? values.length : -1);
+            if (values == null) return;
+            for (float value : values) {
+                out.writeFloat(value);
+            }
+        }
+
+        private void writeFloats(Float[] values) throws IOException {
+            out.writeInt(values != null ? values.length : -1);
+            if (values == null) return;
+            for (Float value : values) {
+                out.writeBoolean(value != null);
+                out.writeFloat(value != null ? value : 0);
+            }
+        }
+
+        /**
+         * Write the reference to the vertex data (offset & length) and enqueue the data, if not enqueued yet
+         *
+         * @param data either FloatBuffer, IntBuffer or byte[]
+         */
+        private void writeSection(Object data) throws IOException {
+            if (data == null) {
+                out.writeLong(-1);
+                out.writeInt(0);
+                return;
+            }
+            final int size = data instanceof byte[] ? ((byte[]) data).length : ((Buffer) data).capacity();
+            Long offset = offsets.get(data);
+            if (offset == null) {
+                offset = length;
+                offsets.put(data, offset);
+                sections.add(data);
+                length = align(length + (data instanceof byte[] ? size : size * 4L));
+            }
+            out.writeLong(offset);
+            out.writeInt(size);
+        }
+
+        private static void writeSection(FileChannel channel, ByteBuffer chunk, Object section) throws IOException {
+            if (section instanceof byte[]) {
+                final ByteBuffer data = ByteBuffer.wrap((byte[]) section);
+                while (data.hasRemaining()) channel.write(data);
+                return;
+            }
+            // the buffer may be in use (i.e. drawn), so don't touch its position
+            if (section instanceof FloatBuffer) {
+                final FloatBuffer data = ((FloatBuffer) section).duplicate();
+                data.clear();
+                while (data.hasRemaining()) {
+                    chunk.clear();
+                    final FloatBuffer floats = chunk.asFloatBuffer();
+                    final int count = Math.min(floats.capacity(), data.remaining());
+                    for (int i = 0; i < count; i++) floats.put(data.get());
+                    chunk.limit(count * 4);
+                    while (chunk.hasRemaining()) channel.write(chunk);
+                }
+            } else {
+                final IntBuffer data = ((IntBuffer) section).duplicate();
+                data.clear();
+                while (data.hasRemaining()) {
+                    chunk.clear();
+                    final IntBuffer ints = chunk.asIntBuffer();
+                    final int count = Math.min(ints.capacity(), data.remaining());
+                    for (int i = 0; i < count; i++) ints.put(data.get());
+                    chunk.limit(count * 4);
+                    while (chunk.hasRemaining()) channel.write(chunk);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the scene description and slices the vertex data from the mapped file
+     */
+    private static final class Reader {
+
+        private final ByteBuffer file;
+        private final ByteBuffer in;
+        private int dataOffset;
+
+        // shared objects
+        private final List<Material> materials = new ArrayList<>();
+        private final List<SkeletonData> skeletons = new ArrayList<>();
+        private final List<Animation> animations = new ArrayList<>();
+
+        Reader(ByteBuffer file) {
+            this.file = file;
+            this.in = file.duplicate().order(ByteOrder.BIG_ENDIAN);
+        }
+
+        /**
+         * @return the objects or <code>null</code> if the entry is not for the specified key or any referenced file
+         * changed
+         */
+        List<Object3DData> read(Key key, Resolver resolver) throws IOException {
+
+            // header
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) return null;
+            dataOffset = in.getInt();
+            final boolean littleEndian = in.get() != 0;
+            if (littleEndian != (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN)) return null;
+            if (!key.uri.equals(readString()) || !key.stamp.equals(readStamp())) {
+                return null;
+            }
+            for (int i = in.getInt(); i > 0; i--) {
+                final String file = readString();
+                if (!readStamp().equals(resolver.getStamp(file))) {
+                    Log.i("MeshCache", "Referenced file changed: " + file);
+                    return null;
+                }
+            }
+
+            // materials
+            for (int i = in.getInt(); i > 0; i--) {
+                materials.add(readMaterial());
+            }
+
+            // skeletons
+            for (int i = in.getInt(); i > 0; i--) {
+                final int jointCount = in.getInt();
+                final int boneCount = in.getInt();
+                final SkeletonData skeleton = new SkeletonData(jointCount, readJoint());
+                for (int b = 0; b < boneCount; b++) {
+                    skeleton.incrementBoneCount();
+                }
+                skeletons.add(skeleton);
+            }
+
+            // animations
+            for (int i = in.getInt(); i > 0; i--) {
+                animations.add(readAnimation());
+            }
+
+            // objects
+            final int count = in.getInt();
+            final List<Object3DData> ret = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                ret.add(readObject());
+            }
+            return ret;
+        }
+
+        private Object3DData readObject() {
+            final int type = in.get();
+            final String id = readString();
+            final String name = readString();
+            final String uri = readString();
+            final String authoringTool = readString();
+            final int drawMode = in.getInt();
+            final boolean drawUsingArrays = in.get() != 0;
+            final float[] bindTransform = readFloats();
+
+            // vertex data
+            final FloatBuffer vertexBuffer = readFloatSection();
+            final Object3DData ret = type == TYPE_ANIMATED ? new AnimatedModel(vertexBuffer) : new Object3DData(vertexBuffer);
+            ret.setId(id);
+            ret.setName(name);
+            ret.setUri(uri != null ? URI.create(uri) : null);
+            ret.setAuthoringTool(authoringTool);
+            ret.setNormalsBuffer(readFloatSection());
+            ret.setTextureBuffer(readFloatSection());
+            ret.setColorsBuffer(readFloatSection());
+
+            // elements
+            final int elementCount = in.getInt();
+            if (elementCount >= 0) {
+                final List<Element> elements = new ArrayList<>(elementCount);
+                for (int i = 0; i < elementCount; i++) {
+                    final String elementId = readString();
+                    final String materialId = readString();
+                    final int material = in.getInt();
+                    final Element element = new Element(elementId, readIntSection(), materialId);
+                    if (material >= 0) {
+                        element.setMaterial(materials.get(material));
+                    }
+                    elements.add(element);
+                }
+                ret.setElements(elements);
+            }
+
+            // skinning & animation
+            if (type == TYPE_ANIMATED) {
+                final AnimatedModel animated = (AnimatedModel) ret;
+                animated.setJointIds(readFloatSection());
+                animated.setVertexWeights(readFloatSection());
+                final int skeleton = in.getInt();
+                final int animation = in.getInt();
+                if (skeleton >= 0) animated.setJointsData(skeletons.get(skeleton));
+                if (animation >= 0) animated.doAnimation(animations.get(animation));
+            }
+
+            // mesh data
+            if (in.get() != 0) {
+                ret.setMeshData(readMeshData(ret.getNormalsBuffer()));
+            }
+
+            ret.setDrawMode(drawMode);
+            ret.setDrawUsingArrays(drawUsingArrays);
+            ret.setBindTransform(bindTransform);
+            return ret;
+        }
+
+        /**
+         * The lists are copied from the mapped file, since smoothing updates them
+         *
+         * @param normalsBuffer the normals of the object, updated when smoothing
+         */
+        private MeshData readMeshData(FloatBuffer normalsBuffer) {
+            final MeshData.Builder builder = new MeshData.Builder()
+                    .id(readString())
+                    .name(readString())
+                    .materialFile(readString())
+                    .vertices(readFloatList())
+                    .normals(readFloatList())
+                    .colors(new FloatArrayList(4))
+                    .textures(new FloatArrayList(2));
+
+            // vertex attributes
+            final IntBuffer indices = readIntSection();
+            final List<Vertex> attributes = indices != null ? new ArrayList<Vertex>(indices.capacity() / 4) : null;
+            if (indices != null) {
+                for (int i = 0; i < indices.capacity(); i += 4) {
+                    final Vertex vertex = new Vertex(indices.get(i));
+                    vertex.setNormalIndex(indices.get(i + 1));
+                    vertex.setTextureIndex(indices.get(i + 2));
+                    vertex.setColorIndex(indices.get(i + 3));
+                    attributes.add(vertex);
+                }
+                builder.vertexAttributes(attributes);
+            }
+
+            // faces
+            for (int i = in.getInt(); i > 0; i--) {
+                final String elementId = readString();
+                final String materialId = readString();
+                final int material = in.getInt();
+                final IntArrayList elementIndices = new IntArrayList();
+                final IntBuffer indexBuffer = readIntSection();
+                if (indexBuffer != null) {
+                    elementIndices.addAll(indexBuffer);
+                }
+                final Element element = new Element(elementId, elementIndices, materialId);
+                if (material >= 0) {
+                    element.setMaterial(materials.get(material));
+                }
+                builder.addElement(element);
+            }
+
+            // smoothing groups
+            final int groupCount = in.getInt();
+            if (groupCount >= 0) {
+                final Map<String, List<Vertex>> smoothingGroups = new HashMap<>();
+                for (int i = 0; i < groupCount; i++) {
+                    final String name = readString();
+                    final IntBuffer positions = readIntSection();
+                    final List<Vertex> group = new ArrayList<>(positions.capacity());
+                    for (int v = 0; v < positions.capacity(); v++) {
+                        final int position = positions.get(v);
+                        group.add(position >= 0 ? attributes.get(position) : new Vertex(-position - 2));
+                    }
+                    smoothingGroups.put(name, group);
+                }
+                builder.smoothingGroups(smoothingGroups);
+            }
+
+            final MeshData ret = builder.build();
+            ret.setNormalsBuffer(normalsBuffer);
+            return ret;
+        }
+
+        private FloatArrayList readFloatList() {
+            final int stride = in.getInt();
+            final FloatBuffer section = readFloatSection();
+            if (section == null) return null;
+            final FloatArrayList ret = new FloatArrayList(stride, section.capacity() / stride);
+            ret.addAll(section);
+            return ret;
+        }
+
+        private Material readMaterial() {
+            final Material ret = new Material(readString());
+            ret.setAmbient(readFloats());
+            ret.setDiffuse(readFloats());
+            ret.setSpecular(readFloats());
+            ret.setShininess(in.getFloat());
+            ret.setAlpha(in.getFloat());
+            ret.setTextureFile(readString());
+            final ByteBuffer textureData = readSection(1);
+            if (textureData != null) {
+                final byte[] data = new byte[textureData.remaining()];
+                textureData.get(data);
+                ret.setTextureData(data);
+            }
+            return ret;
+        }
+
+        private JointData readJoint() {
+            final String id = readString();
+            final String name = readString();
+            final String sid = readString();
+            final String geometryId = readString();
+            final Map<String, String> jointMaterials = readMap();
+            final float[] bindLocalMatrix = readFloats();
+            final Float[] bindLocalScale = readFloatObjects();
+            final Float[] bindLocalRotation = readFloatObjects();
+            final Float[] bindLocalLocation = readFloatObjects();
+            final float[] bindLocalTransform = readFloats();
+            final float[] bindTransform = readFloats();
+            final JointData ret = new JointData(id, name, sid, bindLocalMatrix, bindLocalScale, bindLocalRotation,
+                    bindLocalLocation, bindLocalTransform, bindTransform, geometryId, jointMaterials);
+            ret.setIndex(in.getInt());
+            ret.setInverseBindTransform(readFloats());
+            for (int i = in.getInt(); i > 0; i--) {
+                ret.addChild(readJoint());
+            }
+            return ret;
+        }
+
+        private Animation readAnimation() {
+            final float length = in.getFloat();
+            final KeyFrame[] keyFrames = new KeyFrame[in.getInt()];
+            for (int i = 0; i < keyFrames.length; i++) {
+                final float timeStamp = in.getFloat();
+                final int count = in.getInt();
+                final Map<String, JointTransform> transforms = new HashMap<>();
+                for (int t = 0; t < count; t++) {
+                    final String joint = readString();
+                    transforms.put(joint, readTransform());
+                }
+                keyFrames[i] = new KeyFrame(timeStamp, transforms);
+            }
+            return new Animation(length, keyFrames);
+        }
+
+        private JointTransform readTransform() {
+            final boolean visible = in.get() != 0;
+            final boolean isMatrix = in.get() != 0;
+            final JointTransform ret;
+            if (isMatrix) {
+                ret = new JointTransform(readFloats());
+            } else {
+                ret = JointTransform.ofScale(readFloatObjects());
+                final Float[] rotation = readFloatObjects();
+                final Float[] location = readFloatObjects();
+                if (rotation != null) ret.addRotation(rotation);
+                if (location != null) ret.addLocation(location);
+            }
+            ret.setVisible(visible);
+            return ret;
+        }
+
+        private Stamp readStamp() {
+            final long length = in.getLong();
+            final long lastModified = in.getLong();
+            return new Stamp(length, lastModified, in.getLong());
+        }
+
+        private Map<String, String> readMap() {
+            final int size = in.getInt();
+            if (size < 0) return null;
+            final Map<String, String> ret = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                final String key = readString();
+                ret.put(key, readString());
+            }
+            return ret;
+        }
+
+        private String readString() {
+            final int length = in.getInt();
+            if (length < 0) return null;
+            final byte[] data = new byte[length];
+            in.get(data);
+            return new String(data, UTF_8);
+        }
+
+        private float[] readFloats() {
+            final int length = in.getInt();
+            if (length < 0) return null;
+            final float[] ret = new float[length];
+            for (int i = 0; i < length; i++) {
+                ret[i] = in.getFloat();
+            }
+            return ret;
+        }
+
+        private Float[] readFloatObjects() {
+            final int length = in.getInt();
+            if (length < 0) return null;
+            final Float[] ret = new Float[length];
+            for (int i = 0; i < length; i++) {
+                final boolean present = in.get() != 0;
+                final float value = in.getFloat();
+                ret[i] = present ? value : null;
+            }
+            return ret;
+        }
+
+        private FloatBuffer readFloatSection() {
+            final ByteBuffer section = readSection(4);
+            return section != null ? section.asFloatBuffer() : null;
+        }
+
+        private IntBuffer readIntSection() {
+            final ByteBuffer section = readSection(4);
+            return section != null ? section.asIntBuffer() : null;
+        }
+
+        /**
+         * @param elementSize size in bytes of every element
+         * @return the mapped data or <code>null</code> if there was no data
+         */
+        private ByteBuffer readSection(int elementSize) {
+            final long offset = in.getLong();
+            final int size = in.getInt();
+            if (offset < 0) return null;
+            final ByteBuffer ret = file.duplicate();
+            final int start = (int) (dataOffset + offset);
+            ret.limit(start + size * elementSize);
+            ret.position(start);
+            return ret.slice().order(ByteOrder.nativeOrder());
+        }
+    }
+}
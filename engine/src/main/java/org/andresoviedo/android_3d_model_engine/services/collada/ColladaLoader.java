@@ -1,6 +1,7 @@
 package org.andresoviedo.android_3d_model_engine.services.collada;
 
 import android.opengl.GLES20;
+import android.opengl.Matrix;
 import androidx.annotation.NonNull;
 import android.util.Log;
 
@@ -48,6 +49,23 @@ public final class ColladaLoader {
         }
     }
 
+    /**
+     * @param instances the joints linked to the same geometry
+     * @return the transforms of the instances relative to the first one, or null if the first transform is not
+     * invertible
+     */
+    static float[] getInstanceTransforms(List<JointData> instances) {
+        final float[] inverse = new float[16];
+        if (!Matrix.invertM(inverse, 0, instances.get(0).getBindTransform(), 0)) {
+            return null;
+        }
+        final float[] ret = new float[instances.size() * 16];
+        for (int i = 0; i < instances.size(); i++) {
+            Matrix.multiplyMM(ret, i * 16, inverse, 0, instances.get(i).getBindTransform(), 0);
+        }
+        return ret;
+    }
+
     @NonNull
     public List<Object3DData> load(URI uri, LoadListener callback) {
         final List<Object3DData> ret = new ArrayList<>();
@@ -57,7 +75,7 @@ public final class ColladaLoader {
 
             Log.i("ColladaLoaderTask", "Parsing file... " + uri.toString());
             callback.onProgress("Loading file...");
-            final XmlNode xml = XmlParser.parse(is);
+            final XmlNode xml = XmlParser.parse(is, "library_geometries", GeometryLoader.FLOAT_NODES, GeometryLoader.INT_NODES);
 
             // get authoring tool
             String authoring_tool = null;
@@ -69,6 +87,9 @@ public final class ColladaLoader {
                 // ignore
             }
 
+            // animations
+            final AnimationLoader loader = new AnimationLoader(xml);
+
             // load visual scene
             // we need this first in order to progressively load geometries with it's binded transform
             Log.i("ColladaLoaderTask", "--------------------------------------------------");
@@ -232,6 +253,17 @@ public final class ColladaLoader {
 
                     // found several mesh instances - draw them all
                     Log.i("ColladaLoaderTask", "Found multiple instances for mesh: " + meshData.getId() + ". Total: " + allJointData.size());
+
+                    // static meshes are drawn once per instance, instead of being cloned
+                    final float[] instanceTransforms = loader.isAnimated() ? null : getInstanceTransforms(allJointData);
+                    if (instanceTransforms != null) {
+                        data3D.setBindTransform(allJointData.get(0).getBindTransform());
+                        data3D.setInstanceTransforms(instanceTransforms);
+                        Log.i("ColladaLoaderTask", "Instanced mesh: " + meshData.getId()
+                                + ", objects saved: " + (allJointData.size() - 1));
+                        continue;
+                    }
+
                     boolean isOriginalMeshConfigured = false;
                     for (JointData jd : allJointData) {
 
@@ -330,8 +362,6 @@ public final class ColladaLoader {
                 Log.e("ColladaLoaderTask", "Error loading skinning data", ex);
             }
 
-            final AnimationLoader loader = new AnimationLoader(xml);
-
             // finish skinning + joint update
 
             try {
@@ -116,6 +116,10 @@ public class JointData {
 		return index;
 	}
 
+	public float[] getBindLocalMatrix() {
+		return bindLocalMatrix;
+	}
+
 	public Float[] getBindLocalScale() {
 		return bindLocalScale;
 	}
@@ -186,6 +190,10 @@ public class JointData {
 		return ret;
 	}
 
+	public Map<String, String> getMaterials() {
+		return materials;
+	}
+
 	public boolean containsMaterial(String materialId){
 		return materials.containsKey(materialId);
 	}
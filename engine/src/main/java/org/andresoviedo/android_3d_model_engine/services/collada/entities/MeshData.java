@@ -3,6 +3,9 @@ package org.andresoviedo.android_3d_model_engine.services.collada.entities;
 import android.util.Log;
 
 import org.andresoviedo.android_3d_model_engine.model.Element;
+import org.andresoviedo.android_3d_model_engine.util.VertexWelder;
+import org.andresoviedo.util.collection.FloatArrayList;
+import org.andresoviedo.util.collection.IntArrayList;
 import org.andresoviedo.util.io.IOUtils;
 import org.andresoviedo.util.math.Math3DUtils;
 
@@ -10,6 +13,7 @@ import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -37,16 +41,17 @@ public class MeshData {
 
 
     private static final float[] WRONG_NORMAL = {0, -1, 0};
+    private static final float[] ERROR_COLOR = {1, 0, 0, 1};
 
     public static class Builder {
 
         private String id;
         private String name;
 
-        private List<float[]> vertices;
-        private List<float[]> normals;
-        private List<float[]> colors;
-        private List<float[]> textures;
+        private FloatArrayList vertices;
+        private FloatArrayList normals;
+        private FloatArrayList colors;
+        private FloatArrayList textures;
 
         private List<Vertex> vertexAttributes;
         private List<Element> elements;
@@ -65,22 +70,22 @@ public class MeshData {
             return this;
         }
 
-        public Builder vertices(List<float[]> vertices) {
+        public Builder vertices(FloatArrayList vertices) {
             this.vertices = vertices;
             return this;
         }
 
-        public Builder normals(List<float[]> normals) {
+        public Builder normals(FloatArrayList normals) {
             this.normals = normals;
             return this;
         }
 
-        public Builder colors(List<float[]> colors) {
+        public Builder colors(FloatArrayList colors) {
             this.colors = colors;
             return this;
         }
 
-        public Builder textures(List<float[]> textures) {
+        public Builder textures(FloatArrayList textures) {
             this.textures = textures;
             return this;
         }
@@ -118,10 +123,10 @@ public class MeshData {
 
     private List<Vertex> verticesAttributes;
 
-    private final List<float[]> vertices;
-    private final List<float[]> textures;
-    private List<float[]> normals; // we can build them
-    private final List<float[]> colors;
+    private final FloatArrayList vertices;
+    private final FloatArrayList textures;
+    private FloatArrayList normals; // we can build them
+    private final FloatArrayList colors;
     private final List<Element> elements;
 
     private FloatBuffer vertexBuffer;
@@ -141,10 +146,10 @@ public class MeshData {
 
     // smoothing
     private final Map<String, List<Vertex>> smoothingGroups;
-    private List<float[]> normalsOriginal;
+    private FloatArrayList normalsOriginal;
     private List<Vertex> verticesAttributesOriginal;
 
-    public MeshData(String id, String name, List<float[]> vertices, List<float[]> normals, List<float[]> colors, List<float[]> textures, List<Vertex> verticesAttributes,
+    public MeshData(String id, String name, FloatArrayList vertices, FloatArrayList normals, FloatArrayList colors, FloatArrayList textures, List<Vertex> verticesAttributes,
                     List<Element> elements, String materialFile, Map<String, List<Vertex>> smoothingGroups) {
         this.id = id;
         this.name = name;
@@ -171,7 +176,11 @@ public class MeshData {
         return name;
     }
 
-    public List<float[]> getNormals() {
+    public FloatArrayList getVertices() {
+        return this.vertices;
+    }
+
+    public FloatArrayList getNormals() {
         return this.normals;
     }
 
@@ -179,13 +188,50 @@ public class MeshData {
         return elements;
     }
 
+    /**
+     * Merge the vertex attributes with the same position, texture, normal and color indices, so indices are shared.
+     * The vertex attributes list is replaced with the welded one, which only contains vertices used by this mesh.
+     * This must be called before any buffer is built.
+     */
+    public void weld() {
+
+        // check there is something to weld
+        if (this.verticesAttributes == null || this.elements == null || this.elements.isEmpty()) return;
+        for (Element element : this.elements) {
+            if (element.getIndices() == null) return;
+        }
+
+        // weld
+        final List<Vertex> welded = new ArrayList<>();
+        final int[] remap = VertexWelder.weld(this.verticesAttributes, this.elements, welded,
+                this.textures, this.normals, this.colors);
+
+        // log event
+        Log.i("MeshData", "Welded vertices. id: " + getId() + ", before: " + this.verticesAttributes.size() + ", after: " + welded.size());
+
+        // smoothing groups must point to the welded vertices
+        if (this.smoothingGroups != null && !this.smoothingGroups.isEmpty()) {
+            final Map<Vertex, Integer> positions = new IdentityHashMap<>(this.verticesAttributes.size());
+            for (int i = 0; i < this.verticesAttributes.size(); i++) {
+                positions.put(this.verticesAttributes.get(i), i);
+            }
+            for (List<Vertex> smoothingGroup : this.smoothingGroups.values()) {
+                for (int i = 0; i < smoothingGroup.size(); i++) {
+                    final Integer position = positions.get(smoothingGroup.get(i));
+                    if (position != null && remap[position] != -1) {
+                        smoothingGroup.set(i, welded.get(remap[position]));
+                    }
+                }
+            }
+        }
+
+        this.verticesAttributes = welded;
+    }
+
     public void smooth() {
 
         // backup current data
-        this.normalsOriginal = new ArrayList<>(this.normals.size());
-        for (int i = 0; i < this.normals.size(); i++) {
-            this.normalsOriginal.add(this.normals.get(i).clone());
-        }
+        this.normalsOriginal = this.normals.copy();
         if (this.verticesAttributes != null) {
             try {
                 this.verticesAttributesOriginal = new ArrayList<>(this.verticesAttributes.size());
@@ -241,13 +287,16 @@ public class MeshData {
             // accumulated normal
             float[] smoothNormal = new float[3];
 
+            final float[] v1 = new float[3];
+            final float[] v2 = new float[3];
+            final float[] v3 = new float[3];
             for (int i = 0; i < smoothingGroup.getValue().size(); i += 3) {
                 Vertex va1 = smoothingGroup.getValue().get(i);
                 Vertex va2 = smoothingGroup.getValue().get(i + 1);
                 Vertex va3 = smoothingGroup.getValue().get(i + 2);
-                float[] v1 = this.vertices.get(va1.getVertexIndex());
-                float[] v2 = this.vertices.get(va2.getVertexIndex());
-                float[] v3 = this.vertices.get(va3.getVertexIndex());
+                this.vertices.get(va1.getVertexIndex(), v1);
+                this.vertices.get(va2.getVertexIndex(), v2);
+                this.vertices.get(va3.getVertexIndex(), v3);
                 float[] normal = calculateNormalFailsafe(v1, v2, v3);
                 smoothNormal = Math3DUtils.add(smoothNormal, normal);
             }
@@ -258,7 +307,7 @@ public class MeshData {
 
             // add new normal
             final int newSmoothNormalIdx = this.normals.size();
-            this.normals.add(newSmoothNormalIdx, smoothNormal);
+            this.normals.add(smoothNormal);
 
             // update normal index to smoothed normal
             for (int i = 0; i < smoothingGroup.getValue().size(); i++) {
@@ -333,54 +382,48 @@ public class MeshData {
         Log.i("MeshData", "Generating normals...");
 
         // replaced normals
-        final List<float[]> newNormals = new ArrayList<>();
+        final FloatArrayList newNormals = new FloatArrayList(3, this.verticesAttributes.size() / 3);
 
-        int counter = 0;
-        for (Element element : getElements()) {
+        // welded vertices already linked to the normal of another face
+        final boolean[] linked = new boolean[this.verticesAttributes.size()];
 
-            for (int i = 0; i < element.getIndices().size(); i += 3) {
+        // scratch vectors
+        final float[] v1 = new float[3];
+        final float[] v2 = new float[3];
+        final float[] v3 = new float[3];
 
-                final int idx1 = element.getIndices().get(i);
-                final int idx2 = element.getIndices().get(i + 1);
-                final int idx3 = element.getIndices().get(i + 2);
+        int counter = 0;
+        for (Element element : getElements()) {
 
-                final Vertex vertexAttribute1 = this.verticesAttributes.get(idx1);
-                final Vertex vertexAttribute2 = this.verticesAttributes.get(idx2);
-                final Vertex vertexAttribute3 = this.verticesAttributes.get(idx3);
+            final IntArrayList indices = element.getIndices();
+            for (int i = 0; i < indices.size(); i += 3) {
 
-                final int idxV1 = vertexAttribute1.getVertexIndex();
-                final int idxV2 = vertexAttribute2.getVertexIndex();
-                final int idxV3 = vertexAttribute3.getVertexIndex();
+                final int idxV1 = this.verticesAttributes.get(indices.get(i)).getVertexIndex();
+                final int idxV2 = this.verticesAttributes.get(indices.get(i + 1)).getVertexIndex();
+                final int idxV3 = this.verticesAttributes.get(indices.get(i + 2)).getVertexIndex();
 
-                final float[] v1 = this.vertices.get(idxV1);
-                final float[] v2 = this.vertices.get(idxV2);
-                final float[] v3 = this.vertices.get(idxV3);
+                // update normal attribute
+                final int normalIdx = newNormals.size();
+                linkFaceNormal(indices, i, normalIdx, linked);
+                linkFaceNormal(indices, i + 1, normalIdx, linked);
+                linkFaceNormal(indices, i + 2, normalIdx, linked);
 
                 // check valid triangle
-                if (Arrays.equals(v1, v2) || Arrays.equals(v2, v3) || Arrays.equals(v1, v3)) {
-
-                    // update normal attribute
-                    vertexAttribute1.setNormalIndex(newNormals.size());
-                    vertexAttribute2.setNormalIndex(newNormals.size());
-                    vertexAttribute3.setNormalIndex(newNormals.size());
+                if (this.vertices.sameVector(idxV1, idxV2) || this.vertices.sameVector(idxV2, idxV3) || this.vertices.sameVector(idxV1, idxV3)) {
 
                     // repeated vertex - no normal
-                    newNormals.add(newNormals.size(), WRONG_NORMAL);
+                    newNormals.add(WRONG_NORMAL);
 
                     counter++;
                     continue;
                 }
 
                 // calculate normal
-                final float[] calculatedNormal = calculateNormalFailsafe(v1, v2, v3);
-
-                // update normal attribute
-                vertexAttribute1.setNormalIndex(newNormals.size());
-                vertexAttribute2.setNormalIndex(newNormals.size());
-                vertexAttribute3.setNormalIndex(newNormals.size());
+                final float[] calculatedNormal = calculateNormalFailsafe(
+                        this.vertices.get(idxV1, v1), this.vertices.get(idxV2, v2), this.vertices.get(idxV3, v3));
 
                 // add normal
-                newNormals.add(newNormals.size(), calculatedNormal);
+                newNormals.add(calculatedNormal);
 
             }
         }
@@ -390,79 +433,79 @@ public class MeshData {
         Log.i("MeshData", "Generated normals. Total: " + this.normals.size() + ", Faces/Lines: " + counter);
     }
 
+    /**
+     * Link the face corner to the face normal. If the vertex is welded and it's already linked to the normal
+     * of another face, then the vertex is duplicated so every face keeps its own normal.
+     *
+     * @param indices   element indices
+     * @param corner    position of the corner in the indices
+     * @param normalIdx the face normal
+     * @param linked    vertices already linked to a face normal
+     */
+    private void linkFaceNormal(IntArrayList indices, int corner, int normalIdx, boolean[] linked) {
+        final int idx = indices.get(corner);
+        Vertex vertexAttribute = this.verticesAttributes.get(idx);
+        if (idx < linked.length && linked[idx]) {
+            try {
+                vertexAttribute = vertexAttribute.clone();
+            } catch (CloneNotSupportedException e) {
+                // this should never happen
+                throw new RuntimeException(e);
+            }
+            indices.set(corner, this.verticesAttributes.size());
+            this.verticesAttributes.add(vertexAttribute);
+        } else if (idx < linked.length) {
+            linked[idx] = true;
+        }
+        vertexAttribute.setNormalIndex(normalIdx);
+    }
+
     private void fixNormalsForArrays() {
 
         Log.i("MeshData", "Fixing normals...");
 
         // otherwise replaced with this normals
-        final List<float[]> newNormals = new ArrayList<>();
+        final FloatArrayList newNormals = new FloatArrayList(3, vertices.size());
+
+        // scratch vectors
+        final float[] v1 = new float[3];
+        final float[] v2 = new float[3];
+        final float[] v3 = new float[3];
 
         int counter = 0;
         for (int i = 0; i < vertices.size(); i += 3) {
 
-            final float[] v1 = this.vertices.get(i);
-            final float[] v2 = this.vertices.get(i + 1);
-            final float[] v3 = this.vertices.get(i + 2);
-
             // check valid triangle
-            if (Arrays.equals(v1, v2) || Arrays.equals(v2, v3) || Arrays.equals(v1, v3)) {
+            if (this.vertices.sameVector(i, i + 1) || this.vertices.sameVector(i + 1, i + 2) || this.vertices.sameVector(i, i + 2)) {
 
                 // repeated vertex - no normal
-                newNormals.add(newNormals.size(), WRONG_NORMAL);
-                newNormals.add(newNormals.size(), WRONG_NORMAL);
-                newNormals.add(newNormals.size(), WRONG_NORMAL);
+                newNormals.add(WRONG_NORMAL);
+                newNormals.add(WRONG_NORMAL);
+                newNormals.add(WRONG_NORMAL);
 
                 counter++;
                 continue;
             }
 
-            final float[] normalV1 = normals.get(i);
-            final float[] normalV2 = normals.get(i + 1);
-            final float[] normalV3 = normals.get(i + 2);
-
             // calculate normal
-            float[] calculatedNormal = calculateNormalFailsafe(v1, v2, v3);
-
-            // check normal attribute 1
-            if (Math3DUtils.length(normalV1) < 0.1f) {
-
-                // add normal
-                newNormals.add(calculatedNormal);
-
-                counter++;
-
-            } else {
-
-                // preserve current normal
-                newNormals.add(normalV1);
-            }
-
-            // check normal attribute 2
-            if (Math3DUtils.length(normalV2) < 0.1f) {
-
-                // add normal
-                newNormals.add(calculatedNormal);
+            float[] calculatedNormal = calculateNormalFailsafe(
+                    this.vertices.get(i, v1), this.vertices.get(i + 1, v2), this.vertices.get(i + 2, v3));
 
-                counter++;
+            for (int j = i; j < i + 3; j++) {
 
-            } else {
+                // check normal attribute
+                if (length(normals, j) < 0.1f) {
 
-                // preserve current normal
-                newNormals.add(normalV2);
-            }
-
-            // check normal attribute 3
-            if (Math3DUtils.length(normalV3) < 0.1f) {
-
-                // add normal
-                newNormals.add(calculatedNormal);
+                    // add normal
+                    newNormals.add(calculatedNormal);
 
-                counter++;
+                    counter++;
 
-            } else {
+                } else {
 
-                // preserve current normal
-                newNormals.add(normalV3);
+                    // preserve current normal
+                    newNormals.add(normals, j);
+                }
             }
         }
 
@@ -478,113 +521,77 @@ public class MeshData {
         Log.i("MeshData", "Fixing normals for all elements...");
 
         // otherwise replaced with this normals
-        final List<float[]> newNormals = new ArrayList<>();
-
-        int counter = 0;
-        for (Element element : getElements()) {
-
-            for (int i = 0; i < element.getIndices().size(); i += 3) {
-
-                final int idx1 = element.getIndices().get(i);
-                final int idx2 = element.getIndices().get(i + 1);
-                final int idx3 = element.getIndices().get(i + 2);
-
-                final Vertex vertexAttribute1 = this.verticesAttributes.get(idx1);
-                final Vertex vertexAttribute2 = this.verticesAttributes.get(idx2);
-                final Vertex vertexAttribute3 = this.verticesAttributes.get(idx3);
-
-                final int idxV1 = vertexAttribute1.getVertexIndex();
-                final int idxV2 = vertexAttribute2.getVertexIndex();
-                final int idxV3 = vertexAttribute3.getVertexIndex();
+        final FloatArrayList newNormals = new FloatArrayList(3, this.verticesAttributes.size());
 
-                final float[] v1 = this.vertices.get(idxV1);
-                final float[] v2 = this.vertices.get(idxV2);
-                final float[] v3 = this.vertices.get(idxV3);
-
-                // check valid triangle
-                if (Arrays.equals(v1, v2) || Arrays.equals(v2, v3) || Arrays.equals(v1, v3)) {
-
-                    // update normal attribute
-                    vertexAttribute1.setNormalIndex(newNormals.size());
-                    vertexAttribute2.setNormalIndex(newNormals.size());
-                    vertexAttribute3.setNormalIndex(newNormals.size());
+        // original normal index for every vertex, since vertices may be shared by several faces
+        final int vertexCount = this.verticesAttributes.size();
+        final int[] originalNormals = new int[vertexCount];
+        for (int i = 0; i < vertexCount; i++) {
+            originalNormals[i] = this.verticesAttributes.get(i).getNormalIndex();
+        }
 
-                    // repeated vertex - no normal
-                    newNormals.add(newNormals.size(), WRONG_NORMAL);
+        // old normal index --> new normal index
+        final int[] normalsRemap = new int[this.normals.size()];
+        Arrays.fill(normalsRemap, -1);
 
-                    counter++;
-                    continue;
-                }
+        // welded vertices already linked to the normal of another face
+        final boolean[] linked = new boolean[vertexCount];
 
-                final int normalIdxV1 = vertexAttribute1.getNormalIndex();
-                final int normalIdxV2 = vertexAttribute2.getNormalIndex();
-                final int normalIdxV3 = vertexAttribute3.getNormalIndex();
+        // scratch vectors
+        final float[] v1 = new float[3];
+        final float[] v2 = new float[3];
+        final float[] v3 = new float[3];
 
-                final float[] normalV1 = normals.get(normalIdxV1);
-                final float[] normalV2 = normals.get(normalIdxV2);
-                final float[] normalV3 = normals.get(normalIdxV3);
+        int counter = 0;
+        for (Element element : getElements()) {
 
-                // calculate normal
-                float[] calculatedNormal = calculateNormalFailsafe(v1, v2, v3);
+            final IntArrayList indices = element.getIndices();
+            for (int i = 0; i < indices.size(); i += 3) {
 
-                // check normal attribute 1
-                if (normalIdxV1 == -1 || Math3DUtils.length(normalV1) < 0.1f) {
+                final int idxV1 = this.verticesAttributes.get(indices.get(i)).getVertexIndex();
+                final int idxV2 = this.verticesAttributes.get(indices.get(i + 1)).getVertexIndex();
+                final int idxV3 = this.verticesAttributes.get(indices.get(i + 2)).getVertexIndex();
 
-                    // update normal attribute
-                    vertexAttribute1.setNormalIndex(newNormals.size());
+                // check valid triangle
+                final boolean degenerated = this.vertices.sameVector(idxV1, idxV2) || this.vertices.sameVector(idxV2, idxV3)
+                        || this.vertices.sameVector(idxV1, idxV3);
 
-                    // add normal
-                    newNormals.add(calculatedNormal);
+                // calculated normal (if needed)
+                int calculatedNormalIdx = -1;
 
-                    counter++;
+                for (int corner = i; corner < i + 3; corner++) {
 
-                } else {
+                    final int idx = indices.get(corner);
+                    final int normalIdx = idx < vertexCount ? originalNormals[idx] : -1;
 
-                    // update normal attribute
-                    vertexAttribute1.setNormalIndex(newNormals.size());
+                    // check normal attribute
+                    if (normalIdx != -1 && normalIdx < normalsRemap.length && length(normals, normalIdx) >= 0.1f) {
 
-                    // preserve current normal
-                    newNormals.add(normalV1);
-                }
-
-                // check normal attribute 2
-                if (normalIdxV2 == -1 || Math3DUtils.length(normalV2) < 0.1f) {
-
-                    // update normal attribute
-                    vertexAttribute2.setNormalIndex(newNormals.size());
+                        // preserve current normal
+                        if (normalsRemap[normalIdx] == -1) {
+                            normalsRemap[normalIdx] = newNormals.size();
+                            newNormals.add(normals, normalIdx);
+                        }
+                        this.verticesAttributes.get(idx).setNormalIndex(normalsRemap[normalIdx]);
+                        continue;
+                    }
 
                     // add normal
-                    newNormals.add(calculatedNormal);
-
-                    counter++;
-
-                } else {
-
-                    // update normal attribute
-                    vertexAttribute2.setNormalIndex(newNormals.size());
-
-                    // preserve current normal
-                    newNormals.add(normalV2);
-                }
-
-                // check normal attribute 3
-                if (normalIdxV3 == -1 || Math3DUtils.length(normalV3) < 0.1f) {
+                    if (calculatedNormalIdx == -1) {
+                        calculatedNormalIdx = newNormals.size();
+                        if (degenerated) {
+                            // repeated vertex - no normal
+                            newNormals.add(WRONG_NORMAL);
+                        } else {
+                            newNormals.add(calculateNormalFailsafe(
+                                    this.vertices.get(idxV1, v1), this.vertices.get(idxV2, v2), this.vertices.get(idxV3, v3)));
+                        }
+                    }
 
                     // update normal attribute
-                    vertexAttribute3.setNormalIndex(newNormals.size());
-
-                    // add normal
-                    newNormals.add(calculatedNormal);
+                    linkFaceNormal(indices, corner, calculatedNormalIdx, linked);
 
                     counter++;
-
-                } else {
-
-                    // update normal attribute
-                    vertexAttribute3.setNormalIndex(newNormals.size());
-
-                    // preserve current normal
-                    newNormals.add(normalV3);
                 }
             }
         }
@@ -594,17 +601,23 @@ public class MeshData {
         Log.i("MeshData", "Fixed normals. Total: " + counter);
     }
 
+    private static float length(FloatArrayList vectors, int index) {
+        return Math3DUtils.length(vectors.get(index, 0), vectors.get(index, 1), vectors.get(index, 2));
+    }
+
     private void smoothAutoForArrays() {
 
         // log event
         Log.i("MeshData", "Auto smoothing normals for arrays...");
 
-        // smoothed normal
+        // smoothed normal per vertex position
         final Map<String, float[]> smoothNormals = new HashMap<>();
 
+        final float[] vertex = new float[3];
+        final float[] normal = new float[3];
         for (int i = 0; i < vertices.size(); i++) {
 
-            final String idxKey = Arrays.toString(vertices.get(i));
+            final String idxKey = Arrays.toString(vertices.get(i, vertex));
             final float[] smoothNormal = smoothNormals.get(idxKey);
             if (smoothNormal == null) {
                 smoothNormals.put(idxKey, this.normals.get(i));
@@ -612,9 +625,8 @@ public class MeshData {
             }
 
             // if same normal, do nothing
-            final float[] normal = this.normals.get(i);
-            if (normal == smoothNormal || Arrays.equals(normal, smoothNormal)) {
-                normals.set(i, smoothNormal);
+            this.normals.get(i, normal);
+            if (Arrays.equals(normal, smoothNormal)) {
                 continue;
             }
 
@@ -626,9 +638,11 @@ public class MeshData {
             smoothNormal[0] = newSmoothNormal[0];
             smoothNormal[1] = newSmoothNormal[1];
             smoothNormal[2] = newSmoothNormal[2];
+        }
 
-            // replace with smoothed normal
-            this.normals.set(i, smoothNormal);
+        // replace with smoothed normal
+        for (int i = 0; i < vertices.size(); i++) {
+            this.normals.set(i, smoothNormals.get(Arrays.toString(vertices.get(i, vertex))));
         }
     }
 
@@ -637,111 +651,71 @@ public class MeshData {
         // log event
         Log.i("MeshData", "Auto smoothing normals for all elements...");
 
-        // list of normals associated to the vertex (vertexId --> set of normals)
-        final Map<Integer, List<float[]>> vertexNormals = new HashMap<>();
+        // mean of the normals associated to the vertex (vertexId --> normal)
+        final FloatArrayList vertexSmooths = new FloatArrayList(3, vertices.size());
+        final int[] vertexNormalsCount = new int[vertices.size()];
+        for (int i = 0; i < vertices.size(); i++) {
+            vertexSmooths.add(0, 0, 0);
+        }
 
         for (Element element : getElements()) {
 
-            for (int i = 0; i < element.getIndices().size(); i++) {
+            final IntArrayList indices = element.getIndices();
+            for (int i = 0; i < indices.size(); i++) {
 
                 // next index
-                final int idx = element.getIndices().get(i);
+                final int idx = indices.get(i);
 
                 // next vertex attributes
                 final int vertexIndex = this.verticesAttributes.get(idx).getVertexIndex();
                 final int normalIndex = this.verticesAttributes.get(idx).getNormalIndex();
 
-                // current normal
-                final float[] normal = this.normals.get(normalIndex);
-
-                // add normal to normals list per vertex
-                List<float[]> normals = vertexNormals.get(vertexIndex);
-                if (normals == null) {
-                    normals = new ArrayList<>();
-                    normals.add(normal);
-                    vertexNormals.put(vertexIndex, normals);
-                } else {
-                    normals.add(normal);
+                // add normal to normals mean per vertex
+                for (int c = 0; c < 3; c++) {
+                    if (vertexNormalsCount[vertexIndex] == 0) {
+                        vertexSmooths.set(vertexIndex, c, this.normals.get(normalIndex, c));
+                    } else {
+                        vertexSmooths.set(vertexIndex, c, (vertexSmooths.get(vertexIndex, c) + this.normals.get(normalIndex, c)) / 2);
+                    }
                 }
+                vertexNormalsCount[vertexIndex]++;
             }
         }
 
-        // list of saved smoothed normals
-        final Map<Integer, float[]> vertexSmooths = new HashMap<>();
-        for (Map.Entry<Integer,List<float[]>> entry : vertexNormals.entrySet()) {
-            // if same normal, do nothing
-            final List<float[]> normals = entry.getValue();
-
-            // if only 1 normal per vertex, no need to do anything
-            if (normals.size() == 1) {
-                vertexSmooths.put(entry.getKey(), normals.get(0));
-                continue;
-            };
-
-            // otherwise, calculate normal average and save
-            final float[] smoothNormal = Math3DUtils.mean(normals);
-            //final float[] smoothNormal = new float[]{1,0,0};
-            Math3DUtils.normalize(smoothNormal);
-
-            vertexSmooths.put(entry.getKey(), smoothNormal);
+        // if only 1 normal per vertex, no need to do anything. otherwise, normalize average
+        final float[] smoothNormal = new float[3];
+        for (int i = 0; i < vertices.size(); i++) {
+            if (vertexNormalsCount[i] > 1) {
+                Math3DUtils.normalize(vertexSmooths.get(i, smoothNormal));
+                vertexSmooths.set(i, smoothNormal);
+            }
         }
 
         this.normals.clear();
         for (Element element : getElements()) {
 
-            for (int i = 0; i < element.getIndices().size(); i++) {
+            final IntArrayList indices = element.getIndices();
+            for (int i = 0; i < indices.size(); i++) {
 
                 // next index
-                final int idx = element.getIndices().get(i);
+                final int idx = indices.get(i);
 
                 // next vertex attributes
                 final int vertexIndex = this.verticesAttributes.get(idx).getVertexIndex();
-                final int normalIndex = this.verticesAttributes.get(idx).getNormalIndex();
 
-                float[] smoothNormal = vertexSmooths.get(vertexIndex);
-                //if (smoothNormal == null) smoothNormal = new float[]{0,1,0};
                 this.verticesAttributes.get(idx).setNormalIndex(this.normals.size());
-                this.normals.add(smoothNormal);
-            }
-        }
-
-//        // last, we update smooth to all references normals
-//        int count = 0;
-//        for (Map.Entry<Integer,float[]> entry : vertexSmooths.entrySet()) {
-//            final float[] smoothNormal = entry.getValue();
-//            final List<float[]> normals = vertexNormals.get(entry.getKey());
-//            for (int j = 0; j < normals.size(); j++) {
-//                normals.get(j)[0] = smoothNormal[0];
-//                normals.get(j)[1] = smoothNormal[1];
-//                normals.get(j)[2] = smoothNormal[2];
-//                count++;
-//
-////                float[] check = search(this.normals, normals.get(j));
-////                if (check == null || !Arrays.equals(check, normals.get(j))){
-////                    Log.e("MeshData","search returned ko");
-////                }
-//            }
-//
-//        }
-
-        //Log.i("MeshData", "Smoothing fixed a total of " + count + " normals");
-    }
-
-    private static float[] search(List<float[]> list, float[] search){
-        for (int i=0; i<list.size();i++){
-            if (list.get(i) == search){
-                return list.get(i);
+                this.normals.add(vertexSmooths, vertexIndex);
             }
         }
-        return null;
     }
 
     public void validate() {
 
         if (normals == null) return;
 
+        final float[] normal = new float[3];
         for (int i = 0; i < normals.size(); i++) {
-            float[] normal = normals.get(i);
+            normals.get(i, normal);
             if (Float.isNaN(normal[0])) throw new IllegalArgumentException("NaN");
             if (Float.isNaN(normal[1])) throw new IllegalArgumentException("NaN");
             if (Float.isNaN(normal[2])) throw new IllegalArgumentException("NaN");
@@ -752,10 +726,11 @@ public class MeshData {
         }
 
         for (Element element : elements) {
-            for (int i = 0; i < element.getIndices().size(); i++) {
+            final IntArrayList indices = element.getIndices();
+            for (int i = 0; i < indices.size(); i++) {
 
                 // next vertex attribute
-                final int idx = element.getIndices().get(i);
+                final int idx = indices.get(i);
                 Vertex vertexAttribute = verticesAttributes.get(idx);
 
                 // check normals
@@ -771,12 +746,12 @@ public class MeshData {
         if (this.vertexBuffer == null) {
             if (this.verticesAttributes != null) {
                 this.vertexBuffer = IOUtils.createFloatBuffer(verticesAttributes.size() * 3);
+                final float[] data = vertices.array();
                 for (int i = 0; i < verticesAttributes.size(); i++)
-                    this.vertexBuffer.put(vertices.get(verticesAttributes.get(i).getVertexIndex()));
+                    this.vertexBuffer.put(data, verticesAttributes.get(i).getVertexIndex() * 3, 3);
+                this.vertexBuffer.position(0);
             } else {
-                this.vertexBuffer = IOUtils.createFloatBuffer(vertices.size() * 3);
-                for (int i = 0; i < vertices.size(); i++)
-                    this.vertexBuffer.put(vertices.get(i));
+                this.vertexBuffer = vertices.toFloatBuffer();
             }
         }
         return vertexBuffer;
@@ -786,25 +761,31 @@ public class MeshData {
         if (this.normalsBuffer == null && !this.normals.isEmpty()) {
             if (this.verticesAttributes != null) {
                 this.normalsBuffer = IOUtils.createFloatBuffer(this.verticesAttributes.size() * 3);
+                final float[] data = normals.array();
                 for (int i = 0; i < verticesAttributes.size(); i++) {
-                    float[] normal = WRONG_NORMAL; // no normal in case of error
                     final int index = verticesAttributes.get(i).getNormalIndex();
                     if (index >= 0 && index < normals.size()) {
-                        normal = normals.get(index);
+                        this.normalsBuffer.put(data, index * 3, 3);
                     } else {
                         Log.e("MeshData", "Wrong normal index: " + index);
+                        this.normalsBuffer.put(WRONG_NORMAL); // no normal in case of error
                     }
-                    this.normalsBuffer.put(normal);
                 }
+                this.normalsBuffer.position(0);
             } else {
-                this.normalsBuffer = IOUtils.createFloatBuffer(normals.size() * 3);
-                for (int i = 0; i < normals.size(); i++)
-                    this.normalsBuffer.put(normals.get(i));
+                this.normalsBuffer = normals.toFloatBuffer();
             }
         }
         return normalsBuffer;
     }
 
+    /**
+     * Use an already built normals buffer (i.e. loaded from the cache), so smoothing updates it
+     */
+    public void setNormalsBuffer(FloatBuffer normalsBuffer) {
+        this.normalsBuffer = normalsBuffer;
+    }
+
     public void refreshNormalsBuffer() {
         if (this.normalsBuffer == null || this.normals.isEmpty()) {
             Log.e("MeshData", "Can't refresh normals buffer. Either normals or normalsBuffer is empty");
@@ -816,39 +797,37 @@ public class MeshData {
         }
 
         Log.i("MeshData", "Refreshing normals buffer...");
+        this.normalsBuffer.position(0);
         if (this.verticesAttributes != null) {
+            final float[] data = normals.array();
             for (int i = 0; i < verticesAttributes.size(); i++) {
-                float[] normal = WRONG_NORMAL; // no normal in case of error
                 final int index = verticesAttributes.get(i).getNormalIndex();
                 if (index >= 0 && index < normals.size()) {
-                    normal = this.normals.get(index);
+                    this.normalsBuffer.put(data, index * 3, 3);
                 } else {
                     Log.e("MeshData", "Wrong normal index: " + index);
+                    this.normalsBuffer.put(WRONG_NORMAL); // no normal in case of error
                 }
-                this.normalsBuffer.put(i * 3, normal[0]);
-                this.normalsBuffer.put(i * 3 + 1, normal[1]);
-                this.normalsBuffer.put(i * 3 + 2, normal[2]);
             }
         } else {
-            for (int i = 0; i < this.normals.size(); i++) {
-                this.normalsBuffer.put(i * 3, this.normals.get(i)[0]);
-                this.normalsBuffer.put(i * 3 + 1, this.normals.get(i)[1]);
-                this.normalsBuffer.put(i * 3 + 2, this.normals.get(i)[2]);
-            }
+            this.normalsBuffer.put(normals.array(), 0, normals.size() * 3);
         }
+        this.normalsBuffer.position(0);
     }
 
     public FloatBuffer getColorsBuffer() {
         if (this.colorsBuffer == null && !this.colors.isEmpty()) {
             this.colorsBuffer = IOUtils.createFloatBuffer(this.verticesAttributes.size() * 4);
+            final float[] data = colors.array();
             for (int i = 0; i < verticesAttributes.size() && i < colors.size(); i++) {
-                float[] color = new float[]{1, 0, 0, 1}; // red to warn about error
                 final int index = verticesAttributes.get(i).getColorIndex();
                 if (index >= 0 && index < colors.size()) {
-                    color = colors.get(index);
+                    this.colorsBuffer.put(data, index * 4, 4);
+                } else {
+                    this.colorsBuffer.put(ERROR_COLOR); // red to warn about error
                 }
-                this.colorsBuffer.put(color);
             }
+            this.colorsBuffer.position(0);
         }
         return colorsBuffer;
     }
@@ -857,14 +836,17 @@ public class MeshData {
         if (this.textureBuffer == null && !this.textures.isEmpty()) {
             this.textureBuffer = IOUtils.createFloatBuffer(this.verticesAttributes.size() * 2);
             for (int i = 0; i < verticesAttributes.size(); i++) {
-                float[] texture = new float[2]; // no texture in case of error
                 int index = verticesAttributes.get(i).getTextureIndex();
                 if (index >= 0 && index < textures.size()) {
-                    texture = textures.get(index);
-                    texture = new float[]{texture[0], 1 - texture[1]};
+                    this.textureBuffer.put(textures.get(index, 0));
+                    this.textureBuffer.put(1 - textures.get(index, 1));
+                } else {
+                    // no texture in case of error
+                    this.textureBuffer.put(0);
+                    this.textureBuffer.put(0);
                 }
-                this.textureBuffer.put(texture);
             }
+            this.textureBuffer.position(0);
         }
         return textureBuffer;
     }
@@ -895,6 +877,10 @@ public class MeshData {
         return verticesAttributes;
     }
 
+    public Map<String, List<Vertex>> getSmoothingGroups() {
+        return smoothingGroups;
+    }
+
     public void setBindShapeMatrix(float[] bindShapeMatrix) {
         this.bindShapeMatrix = bindShapeMatrix;
     }
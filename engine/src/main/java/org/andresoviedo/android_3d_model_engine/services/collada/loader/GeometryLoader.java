@@ -6,13 +6,16 @@ import org.andresoviedo.android_3d_model_engine.model.Element;
 import org.andresoviedo.android_3d_model_engine.services.collada.entities.MeshData;
 import org.andresoviedo.android_3d_model_engine.services.collada.entities.Vertex;
 import org.andresoviedo.android_3d_model_engine.util.HoleCutter;
+import org.andresoviedo.util.collection.FloatArrayList;
+import org.andresoviedo.util.collection.IntArrayList;
 import org.andresoviedo.util.xml.XmlNode;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.regex.Pattern;
 
 /**
  * Loads the mesh data for a model from a collada XML file.
@@ -21,15 +24,23 @@ import java.util.regex.Pattern;
  */
 public class GeometryLoader {
 
-    private static final Pattern SPACE_PATTERN = Pattern.compile("\\s+");
+    /**
+     * Nodes of <code>library_geometries</code> to be parsed as floats while reading the xml
+     */
+    public static final Set<String> FLOAT_NODES = Collections.singleton("float_array");
+
+    /**
+     * Nodes of <code>library_geometries</code> to be parsed as integers while reading the xml
+     */
+    public static final Set<String> INT_NODES = new HashSet<>(Arrays.asList("p", "vcount", "h"));
 
     private final XmlNode geometryNode;
 
     private List<Vertex> verticesAttributes;
-    private List<float[]> vertex = new ArrayList<>();
-    private List<float[]> textures = new ArrayList<>();
-    private List<float[]> normals = new ArrayList<>();
-    private List<float[]> colors = new ArrayList<>();
+    private FloatArrayList vertex = new FloatArrayList(3);
+    private FloatArrayList textures = new FloatArrayList(2);
+    private FloatArrayList normals = new FloatArrayList(3);
+    private FloatArrayList colors = new FloatArrayList(4);
 
     // populate this list - only tu debug !!!
     private final Set<String> includeGeometries = new HashSet<>();
@@ -67,7 +78,7 @@ public class GeometryLoader {
 
         Log.i("GeometryLoader", "Loading geometry '" + geometryId + " (" + geometryName + ")'...");
 
-        final List<List<Integer>> oldElements = new ArrayList<>();
+        final List<IntArrayList> oldElements = new ArrayList<>();
 
         // list with all indices together with it's texture
         final List<Element> elements = new ArrayList<>();
@@ -80,10 +91,10 @@ public class GeometryLoader {
 
         // load  //mesh/vertices
         verticesAttributes = new ArrayList<>();
-        vertex = new ArrayList<>();
-        textures = new ArrayList<>();
-        normals = new ArrayList<>();
-        colors = new ArrayList<>();
+        vertex = new FloatArrayList(3);
+        textures = new FloatArrayList(2);
+        normals = new FloatArrayList(3);
+        colors = new FloatArrayList(4);
 
         // load vertices
         loadVertices(meshData, vertex, normals, textures);
@@ -124,22 +135,25 @@ public class GeometryLoader {
             return null;
         }
 
-        final List<int[]> indicesArray = convertIndicesListToArray(oldElements);
-
         //if (Log.isLoggable("GeometryLoader", Log.DEBUG)) {
         Log.i("GeometryLoader", "Loaded geometry "+geometryId+". vertices: " + verticesAttributes.size() +
                 ", normals: " + (normals != null ? normals.size() : 0) +
                 ", textures: " + (textures != null ? textures.size() : 0) +
                 ", colors: " + (colors != null ? colors.size() : 0));
-        Log.i("GeometryLoader", "Loaded geometry "+geometryId+". elements: " + indicesArray.size());
+        Log.i("GeometryLoader", "Loaded geometry "+geometryId+". elements: " + oldElements.size());
+
+        final MeshData ret = new MeshData(geometryId, geometryName, vertex, normals, colors, textures, verticesAttributes, elements, null, null);
 
-        return new MeshData(geometryId, geometryName, vertex, normals, colors, textures, verticesAttributes, elements, null, null);
+        // share vertices between faces
+        ret.weld();
+
+        return ret;
     }
 
-    private void loadPolygon(String geometryId, String geometryName, List<XmlNode> polygons, List<List<Integer>> elementsOld, List<Element> elements) {
+    private void loadPolygon(String geometryId, String geometryName, List<XmlNode> polygons, List<IntArrayList> elementsOld, List<Element> elements) {
         for (XmlNode polygon : polygons) {
 
-            List<Integer> indices = new ArrayList<>();
+            IntArrayList indices = new IntArrayList();
 
             String material = polygon.getAttribute("material");
 
@@ -182,7 +196,7 @@ public class GeometryLoader {
     }
 
     // <vertices> - may contain "VERTEX" and "NORMAL" semantics
-    private void loadVertices(XmlNode meshData, List<float[]> vertex, List<float[]> normals, List<float[]> textures) {
+    private void loadVertices(XmlNode meshData, FloatArrayList vertex, FloatArrayList normals, FloatArrayList textures) {
 
         // get position & normal source ids
         XmlNode verticesNode = meshData.getChild("vertices");
@@ -202,7 +216,7 @@ public class GeometryLoader {
 
 
 
-    private static void loadData(List<float[]> list, XmlNode node, XmlNode input, int size, String semantic) {
+    private static void loadData(FloatArrayList list, XmlNode node, XmlNode input, int size, String semantic) {
 
         // no input, no data
         if (input == null) return;
@@ -227,13 +241,13 @@ public class GeometryLoader {
         }
 
         // parse floats
-        String[] floatData = SPACE_PATTERN.split(data.getData().trim().replace(',', '.'));
+        final float[] floatData = data.getFloatData();
+        final float[] f = new float[size];
         for (int i = 0; i < count; i += stride) {
-            float[] f = new float[size];
             for (int j = 0; j < size; j++) {
                 float val = 1;
                 if (j < stride) {
-                    val = Float.parseFloat(floatData[i + j]);
+                    val = floatData[i + j];
                 }
                 f[j] = val;
             }
@@ -241,7 +255,7 @@ public class GeometryLoader {
         }
     }
 
-    private void setupVertices(XmlNode primitive, List<Integer> indices) {
+    private void setupVertices(XmlNode primitive, IntArrayList indices) {
 
         // vertices id
         String verticesId = null;
@@ -283,9 +297,9 @@ public class GeometryLoader {
                 +normalOffset + ", texture=" + texOffset + ", color=" + colorOffset);
 
         // update vertex info
-        String[] vcountList = null;
+        int[] vcountList = null;
         if (primitive.getChild("vcount") != null) {
-            vcountList = SPACE_PATTERN.split(primitive.getChild("vcount").getData().trim());
+            vcountList = primitive.getChild("vcount").getIntData();
         }
 
         /*// there may be multiple polygons like: <p>1 2 3 4 5</p>
@@ -296,7 +310,7 @@ public class GeometryLoader {
                 Log.d("GeometryLoader", "Found polygons with holes: "+polygonsWithHoles.size());
                 for (XmlNode polygon : polygonsWithHoles) {
                     polygon = polygonsWithHoles.get(0).getChildren("p").get(0);
-                    String[] indexData = SPACE_PATTERN.split(polygon.getData().trim());
+                    int[] indexData = polygon.getIntData();
                     triangulateFannedPolygon(indices, vertexOffset, normalOffset, colorOffset, texOffset, stride, indexData);
 
                 }
@@ -321,25 +335,25 @@ public class GeometryLoader {
                     final List<Vertex> polygonWithHolesIndices = new ArrayList<>();
 
                     // parse vertices
-                    final String[] indexData = SPACE_PATTERN.split(polygon.getData().trim());
+                    final int[] indexData = polygon.getIntData();
                     for (int i=0; i<indexData.length; i+=stride){
-                        final int positionIndex = Integer.parseInt(indexData[i + vertexOffset]);
+                        final int positionIndex = indexData[i + vertexOffset];
 
                         final Vertex vertexAttribute = new Vertex(positionIndex);
 
                         // parse normal if available
                         if (normalOffset >= 0) {
-                            vertexAttribute.setNormalIndex(Integer.parseInt(indexData[i + normalOffset]));
+                            vertexAttribute.setNormalIndex(indexData[i + normalOffset]);
                         }
 
                         // parse color if available
                         if (colorOffset >= 0) {
-                            vertexAttribute.setColorIndex(Integer.parseInt(indexData[i + colorOffset]));
+                            vertexAttribute.setColorIndex(indexData[i + colorOffset]);
                         }
 
                         // parse texture if available
                         if (texOffset >= 0) {
-                            vertexAttribute.setTextureIndex(Integer.parseInt(indexData[i + texOffset]));
+                            vertexAttribute.setTextureIndex(indexData[i + texOffset]);
                         }
 
                         // add vertex attribute
@@ -359,25 +373,25 @@ public class GeometryLoader {
                         final List<Vertex> holeVertices = new ArrayList<>();
 
                         // parse vertices
-                        String[] holeData = SPACE_PATTERN.split(hole.getData().trim());
+                        final int[] holeData = hole.getIntData();
                         for (int i=0; i<holeData.length; i+=stride){
-                            final int positionIndex = Integer.parseInt(holeData[i + vertexOffset]);
+                            final int positionIndex = holeData[i + vertexOffset];
 
                             final Vertex vertexAttribute = new Vertex(positionIndex);
 
                             // parse normal if available
                             if (normalOffset >= 0) {
-                                vertexAttribute.setNormalIndex(Integer.parseInt(holeData[i + normalOffset]));
+                                vertexAttribute.setNormalIndex(holeData[i + normalOffset]);
                             }
 
                             // parse color if available
                             if (colorOffset >= 0) {
-                                vertexAttribute.setColorIndex(Integer.parseInt(holeData[i + colorOffset]));
+                                vertexAttribute.setColorIndex(holeData[i + colorOffset]);
                             }
 
                             // parse texture if available
                             if (texOffset >= 0) {
-                                vertexAttribute.setTextureIndex(Integer.parseInt(holeData[i + texOffset]));
+                                vertexAttribute.setTextureIndex(holeData[i + texOffset]);
                             }
 
                             // add vertex attribute
@@ -419,7 +433,7 @@ public class GeometryLoader {
         }
         Log.d("GeometryLoader", "Loading " + primitive.getName() + "... " + polygons.size());
         for (XmlNode polygon : polygons) {
-            String[] indexData = SPACE_PATTERN.split(polygon.getData().trim());
+            final int[] indexData = polygon.getIntData();
             if (vcountList != null) {
                 if (false) {
                     triangulateStrippedPolygon(indices, vertexOffset, normalOffset, colorOffset, texOffset, stride, vcountList, indexData);
@@ -431,22 +445,22 @@ public class GeometryLoader {
                 for (int i = 0; i < indexData.length; i += stride) {
 
                     // get vertex
-                    final int positionIndex = Integer.parseInt(indexData[i + vertexOffset]);
+                    final int positionIndex = indexData[i + vertexOffset];
                     Vertex vertexAttribute = new Vertex(positionIndex);
 
                     // parse normal if available
                     if (normalOffset >= 0) {
-                        vertexAttribute.setNormalIndex(Integer.parseInt(indexData[i + normalOffset]));
+                        vertexAttribute.setNormalIndex(indexData[i + normalOffset]);
                     }
 
                     // parse color if available
                     if (colorOffset >= 0) {
-                        vertexAttribute.setColorIndex(Integer.parseInt(indexData[i + colorOffset]));
+                        vertexAttribute.setColorIndex(indexData[i + colorOffset]);
                     }
 
                     // parse texture if available
                     if (texOffset >= 0) {
-                        vertexAttribute.setTextureIndex(Integer.parseInt(indexData[i + texOffset]));
+                        vertexAttribute.setTextureIndex(indexData[i + texOffset]);
                     }
 
                     // update vertex info
@@ -459,14 +473,13 @@ public class GeometryLoader {
         }
     }
 
-    private void triangulateStrippedPolygon(List<Integer> indices, int vertexOffset, int normalOffset, int colorOffset, int texOffset, int stride, String[] vcountList, String[] indexData) {
+    private void triangulateStrippedPolygon(IntArrayList indices, int vertexOffset, int normalOffset, int colorOffset, int texOffset, int stride, int[] vcountList, int[] indexData) {
         Log.d("GeometryLoader", "Loading using triangle strip technique. vcount: " + vcountList.length);
 
         // triangle strip technique
         int offset = 0;
         int totalFaces = 0;
-        for (String s : vcountList) {
-            int vcount = Integer.parseInt(s);
+        for (int vcount : vcountList) {
 
             int vcounter = 0;
             for (int faceIndex = 0; vcounter < vcount; faceIndex++, vcounter++, offset += stride) {
@@ -479,22 +492,22 @@ public class GeometryLoader {
                 }
 
                 // get vertex
-                final int positionIndex = Integer.parseInt(indexData[offset + vertexOffset]);
+                final int positionIndex = indexData[offset + vertexOffset];
                 Vertex vertexAttribute = new Vertex(positionIndex);
 
                 // parse normal if available
                 if (normalOffset >= 0) {
-                    vertexAttribute.setNormalIndex(Integer.parseInt(indexData[offset + normalOffset]));
+                    vertexAttribute.setNormalIndex(indexData[offset + normalOffset]);
                 }
 
                 // parse color if available
                 if (colorOffset >= 0) {
-                    vertexAttribute.setColorIndex(Integer.parseInt(indexData[offset + colorOffset]));
+                    vertexAttribute.setColorIndex(indexData[offset + colorOffset]);
                 }
 
                 // parse texture if available
                 if (texOffset >= 0) {
-                    int textureIndex = Integer.parseInt(indexData[offset + texOffset]);
+                    int textureIndex = indexData[offset + texOffset];
                     if (textureIndex < 0) {
                         throw new IllegalArgumentException("texture index < 0");
                     }
@@ -512,15 +525,14 @@ public class GeometryLoader {
         Log.i("GeometryLoader", "Total STRIP faces: " + totalFaces);
     }
 
-    private void triangulateFannedPolygon(List<Integer> indices, int vertexOffset, int normalOffset, int colorOffset, int texOffset, int stride, String[] vcountList, String[] indexData) {
+    private void triangulateFannedPolygon(IntArrayList indices, int vertexOffset, int normalOffset, int colorOffset, int texOffset, int stride, int[] vcountList, int[] indexData) {
 
         Log.d("GeometryLoader", "Loading using fan technique. vcount: " + vcountList.length);
 
         // triangle fan technique
         int offset = 0;
         int totalFaces = 0;
-        for (String s : vcountList) {
-            int vcount = Integer.parseInt(s);
+        for (int vcount : vcountList) {
 
             int vcounter = 0;
             int firstVectorOffset = offset;
@@ -543,22 +555,22 @@ public class GeometryLoader {
                 }
 
                 // get vertex
-                final int positionIndex = Integer.parseInt(indexData[offset + vertexOffset]);
+                final int positionIndex = indexData[offset + vertexOffset];
                 Vertex vertexAttribute = new Vertex(positionIndex);
 
                 // parse normal if available
                 if (normalOffset >= 0) {
-                    vertexAttribute.setNormalIndex(Integer.parseInt(indexData[offset + normalOffset]));
+                    vertexAttribute.setNormalIndex(indexData[offset + normalOffset]);
                 }
 
                 // parse color if available
                 if (colorOffset >= 0) {
-                    vertexAttribute.setColorIndex(Integer.parseInt(indexData[offset + colorOffset]));
+                    vertexAttribute.setColorIndex(indexData[offset + colorOffset]);
                 }
 
                 // parse texture if available
                 if (texOffset >= 0) {
-                    int textureIndex = Integer.parseInt(indexData[offset + texOffset]);
+                    int textureIndex = indexData[offset + texOffset];
                     if (textureIndex < 0) {
                         throw new IllegalArgumentException("texture index < 0");
                     }
@@ -577,7 +589,7 @@ public class GeometryLoader {
         Log.i("GeometryLoader", "Total FAN faces: " + totalFaces + ", Total indices: " + indices.size());
     }
 
-    private void triangulateFannedPolygon(List<Integer> indices, int vertexOffset, int normalOffset, int colorOffset, int texOffset, int stride, String[] indexData) {
+    private void triangulateFannedPolygon(IntArrayList indices, int vertexOffset, int normalOffset, int colorOffset, int texOffset, int stride, int[] indexData) {
 
         Log.d("GeometryLoader", "Loading using fan technique. Indices: "+indexData.length+", MeshObject: " + (indexData.length/stride -2));
 
@@ -624,22 +636,22 @@ public class GeometryLoader {
             }
 
             // get vertex
-            final int positionIndex = Integer.parseInt(indexData[offset + vertexOffset]);
+            final int positionIndex = indexData[offset + vertexOffset];
             Vertex vertexAttribute = new Vertex(positionIndex);
 
             // parse normal if available
             if (normalOffset >= 0) {
-                vertexAttribute.setNormalIndex(Integer.parseInt(indexData[offset + normalOffset]));
+                vertexAttribute.setNormalIndex(indexData[offset + normalOffset]);
             }
 
             // parse color if available
             if (colorOffset >= 0) {
-                vertexAttribute.setColorIndex(Integer.parseInt(indexData[offset + colorOffset]));
+                vertexAttribute.setColorIndex(indexData[offset + colorOffset]);
             }
 
             // parse texture if available
             if (texOffset >= 0) {
-                int textureIndex = Integer.parseInt(indexData[offset + texOffset]);
+                int textureIndex = indexData[offset + texOffset];
                 if (textureIndex < 0) {
                     throw new IllegalArgumentException("texture index < 0");
                 }
@@ -656,16 +668,4 @@ public class GeometryLoader {
         Log.i("GeometryLoader", "Total FAN faces: " + totalFaces + ", Total indices: " + indices.size());
     }
 
-    private List<int[]> convertIndicesListToArray(List<List<Integer>> allIndices) {
-        List<int[]> ret = new ArrayList<>();
-        for (int e = 0; e < allIndices.size(); e++) {
-            int[] indicesArray = new int[allIndices.get(e).size()];
-            for (int i = 0; i < indicesArray.length; i++) {
-                indicesArray[i] = allIndices.get(e).get(i);
-            }
-            ret.add(indicesArray);
-        }
-        return ret;
-    }
-
 }
\ No newline at end of file
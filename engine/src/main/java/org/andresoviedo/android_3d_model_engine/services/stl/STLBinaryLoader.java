@@ -0,0 +1,265 @@
+package org.andresoviedo.android_3d_model_engine.services.stl;
+
+import android.util.Log;
+
+import org.andresoviedo.util.io.IOUtils;
+import org.andresoviedo.util.math.Math3DUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fast path for binary STL files. The file is memory mapped and the little-endian facets are decoded straight into
+ * the final vertex and normals buffers, without intermediate lists. Missing or wrong normals are fixed in the same
+ * pass, the same way {@link org.andresoviedo.android_3d_model_engine.services.collada.entities.MeshData#fixNormals()}
+ * does for the facets read by the {@link STLFileReader}.
+ *
+ * @author andresoviedo
+ */
+final class STLBinaryLoader {
+
+    /** size of binary header */
+    static final int HEADER_SIZE = 84;
+    /** size of one facet record in binary format */
+    static final int RECORD_SIZE = 50;
+    /** offset of the number of facets */
+    private static final int COUNT_OFFSET = 80;
+
+    // minimum number of facets decoded by each task
+    private static final int MIN_FACETS_PER_TASK = 64 * 1024;
+    // facets decoded into the scratch arrays before copying them to the buffers
+    private static final int BLOCK_FACETS = 1024;
+
+    private static final float[] WRONG_NORMAL = {0, -1, 0};
+
+    private final int threads;
+
+    /**
+     * @param threads number of threads to decode the facets. 1 for sequential decoding
+     */
+    STLBinaryLoader(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Decoded facets. 3 vertices and 3 normals per facet
+     */
+    static final class Result {
+
+        final int facets;
+        final FloatBuffer vertexBuffer;
+        final FloatBuffer normalsBuffer;
+
+        private Result(int facets, FloatBuffer vertexBuffer, FloatBuffer normalsBuffer) {
+            this.facets = facets;
+            this.vertexBuffer = vertexBuffer;
+            this.normalsBuffer = normalsBuffer;
+        }
+    }
+
+    /**
+     * Memory map the file and decode it
+     *
+     * @param channel the STL file
+     * @return the decoded facets or <code>null</code> if the file is not a binary STL
+     * @throws IOException if the file can't be mapped
+     */
+    Result load(FileChannel channel) throws IOException {
+        final long size = channel.size();
+        if (size < HEADER_SIZE) return null;
+
+        // read the number of facets before mapping the whole file
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) return null;
+        }
+        final long length = getLength(header, size);
+        if (length < 0) return null;
+
+        return load(channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+    }
+
+    /**
+     * Decode the binary STL
+     *
+     * @param data the STL file
+     * @return the decoded facets or <code>null</code> if the data is not a binary STL
+     */
+    Result load(ByteBuffer data) {
+        if (getLength(data, data.limit()) < 0) return null;
+
+        final int facets = data.order(ByteOrder.LITTLE_ENDIAN).getInt(COUNT_OFFSET);
+
+        // log event
+        Log.i("STLBinaryLoader", "Loading facets... " + facets + ", threads: " + threads);
+
+        final FloatBuffer vertexBuffer = IOUtils.createFloatBuffer(facets * 9);
+        final FloatBuffer normalsBuffer = IOUtils.createFloatBuffer(facets * 9);
+
+        final int tasks = Math.min(threads * 4, Math.max(1, facets / MIN_FACETS_PER_TASK));
+        if (threads == 1 || tasks == 1) {
+            decode(data, vertexBuffer, normalsBuffer, 0, facets);
+        } else {
+            decodeParallel(data, vertexBuffer, normalsBuffer, facets, tasks);
+        }
+
+        return new Result(facets, vertexBuffer, normalsBuffer);
+    }
+
+    /**
+     * Check the header of the binary STL
+     *
+     * @param header the first {@link #HEADER_SIZE} bytes of the file, in little endian
+     * @param size   the size of the file
+     * @return the bytes to decode, or -1 if this is not a binary STL or it's too big to be loaded
+     */
+    private static long getLength(ByteBuffer header, long size) {
+        if (size < HEADER_SIZE) return -1;
+
+        // ascii files (i.e. "solid name\n facet") give a huge number of facets, that never matches the file size
+        final long facets = header.order(ByteOrder.LITTLE_ENDIAN).getInt(COUNT_OFFSET) & 0xFFFFFFFFL;
+        final long length = HEADER_SIZE + facets * RECORD_SIZE;
+        if (facets == 0 || length > size) return -1;
+
+        // the vertex buffer must fit in a direct buffer
+        if (facets * 9 * 4 > Integer.MAX_VALUE) {
+            Log.e("STLBinaryLoader", "Too many facets: " + facets);
+            return -1;
+        }
+        return length;
+    }
+
+    private void decodeParallel(final ByteBuffer data, final FloatBuffer vertexBuffer, final FloatBuffer normalsBuffer,
+                                int facets, int tasks) {
+        final List<Callable<Void>> callables = new ArrayList<>();
+        final int facetsPerTask = (facets + tasks - 1) / tasks;
+        for (int start = 0; start < facets; start += facetsPerTask) {
+            final int from = start;
+            final int to = Math.min(facets, start + facetsPerTask);
+            callables.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    decode(data, vertexBuffer, normalsBuffer, from, to);
+                    return null;
+                }
+            });
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (Future<Void> future : executor.invokeAll(callables)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Log.e("STLBinaryLoader", "Error loading facets: " + e.getCause().getMessage(), e.getCause());
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Decode the facets in the range [from, to). Buffers are duplicated, so ranges can be decoded concurrently
+     */
+    private static void decode(ByteBuffer data, FloatBuffer vertexBuffer, FloatBuffer normalsBuffer, int from, int to) {
+        final ByteBuffer in = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final FloatBuffer vertexOut = vertexBuffer.duplicate();
+        final FloatBuffer normalsOut = normalsBuffer.duplicate();
+        vertexOut.position(from * 9);
+        normalsOut.position(from * 9);
+
+        // scratch data
+        final float[] vertices = new float[BLOCK_FACETS * 9];
+        final float[] normals = new float[BLOCK_FACETS * 9];
+        final float[] v1 = new float[3];
+        final float[] v2 = new float[3];
+        final float[] v3 = new float[3];
+
+        for (int block = from; block < to; block += BLOCK_FACETS) {
+            final int count = Math.min(BLOCK_FACETS, to - block);
+            for (int f = 0; f < count; f++) {
+                final int offset = HEADER_SIZE + (block + f) * RECORD_SIZE;
+                final int o = f * 9;
+
+                // vertices
+                for (int i = 0; i < 9; i++) {
+                    vertices[o + i] = in.getFloat(offset + 12 + i * 4);
+                }
+
+                // check valid triangle
+                if (equals(vertices, o, o + 3) || equals(vertices, o + 3, o + 6) || equals(vertices, o, o + 6)) {
+
+                    // repeated vertex - no normal
+                    for (int i = 0; i < 9; i += 3) {
+                        System.arraycopy(WRONG_NORMAL, 0, normals, o + i, 3);
+                    }
+                    continue;
+                }
+
+                // STL spec says use 0 0 0 for autocalc
+                float nx = in.getFloat(offset);
+                float ny = in.getFloat(offset + 4);
+                float nz = in.getFloat(offset + 8);
+                if (isInvalid(nx) || isInvalid(ny) || isInvalid(nz)) {
+                    nx = ny = nz = 0;
+                }
+
+                if (Math3DUtils.length(nx, ny, nz) < 0.1f) {
+
+                    // calculate normal
+                    System.arraycopy(vertices, o, v1, 0, 3);
+                    System.arraycopy(vertices, o + 3, v2, 0, 3);
+                    System.arraycopy(vertices, o + 6, v3, 0, 3);
+                    final float[] normal = calculateNormalFailsafe(v1, v2, v3);
+                    nx = normal[0];
+                    ny = normal[1];
+                    nz = normal[2];
+                }
+
+                for (int i = 0; i < 9; i += 3) {
+                    normals[o + i] = nx;
+                    normals[o + i + 1] = ny;
+                    normals[o + i + 2] = nz;
+                }
+            }
+            vertexOut.put(vertices, 0, count * 9);
+            normalsOut.put(normals, 0, count * 9);
+        }
+    }
+
+    private static boolean equals(float[] data, int offset1, int offset2) {
+        return data[offset1] == data[offset2] && data[offset1 + 1] == data[offset2 + 1]
+                && data[offset1 + 2] == data[offset2 + 2];
+    }
+
+    private static boolean isInvalid(float value) {
+        return Float.isNaN(value) || Float.isInfinite(value);
+    }
+
+    private static float[] calculateNormalFailsafe(float[] v1, float[] v2, float[] v3) {
+        float[] normal = Math3DUtils.calculateNormal(v1, v2, v3);
+        try {
+            Math3DUtils.normalize(normal);
+        } catch (Exception e) {
+            Log.e("STLBinaryLoader", "Error calculating normal. " + e.getMessage()
+                    + "," + Math3DUtils.toString(v1)
+                    + "," + Math3DUtils.toString(v2)
+                    + "," + Math3DUtils.toString(v3), e);
+            normal = WRONG_NORMAL;
+        }
+        return normal;
+    }
+}
@@ -0,0 +1,156 @@
+package org.andresoviedo.android_3d_model_engine.services.stl;
+
+import org.andresoviedo.util.collection.FloatArrayList;
+import org.andresoviedo.util.io.AsciiTokenizer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Single pass parser for STL files in ASCII format. Numbers are scanned straight from the bytes with the
+ * {@link AsciiTokenizer} and the facets are appended to growing primitive lists, so unlike the {@link STLASCIIParser}
+ * the file is read only once and there is no need to count the facets first.<p>
+ * Like the {@link STLASCIIParser} in non strict mode, invalid normals are read as 0 0 0 (autocalc) and decimal commas
+ * are accepted in the vertices.
+ *
+ * @author andresoviedo
+ */
+final class STLFastASCIIParser {
+
+    private final FloatArrayList vertices = new FloatArrayList(3, 1024);
+    private final FloatArrayList normals = new FloatArrayList(3, 1024);
+
+    // scratch data
+    private final float[] normal = new float[3];
+    private final float[] vertex = new float[9];
+
+    /**
+     * Parse all the facets of all the solids
+     *
+     * @param stream the STL file
+     * @return false if this is not an ASCII STL file
+     * @throws IOException              if there is an error reading the stream
+     * @throws IllegalArgumentException if the file is structurally incorrect
+     */
+    boolean parse(InputStream stream) throws IOException {
+        final AsciiTokenizer tokenizer = new AsciiTokenizer(stream);
+
+        // check if ASCII format
+        if (!tokenizer.nextLine() || !tokenizer.startsWith("solid")) {
+            return false;
+        }
+
+        while (tokenizer.nextLine()) {
+            if (tokenizer.keyword("facet")) {
+                if (!parseFacet(tokenizer)) {
+                    // truncated file
+                    break;
+                }
+            } else if (tokenizer.keyword("endsolid") || tokenizer.keyword("solid")
+                    || (tokenizer.keyword("end") && tokenizer.hasNext() && tokenizer.keyword("solid"))) {
+                // we've encountered a lot of broken files where they use two words "end solid"
+                continue;
+            } else {
+                throw unknownKeyword(tokenizer);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the vertices. 3 per facet
+     */
+    FloatArrayList getVertices() {
+        return vertices;
+    }
+
+    /**
+     * @return the normals. 3 per facet, the same for every vertex
+     */
+    FloatArrayList getNormals() {
+        return normals;
+    }
+
+    /**
+     * Parse the facet. The <code>facet</code> keyword is already consumed
+     *
+     * @return false if the file ends before the end of the facet
+     */
+    private boolean parseFacet(AsciiTokenizer tokenizer) throws IOException {
+
+        // facet normal number number number
+        if (!tokenizer.hasNext() || !tokenizer.keyword("normal")) throw unknownKeyword(tokenizer);
+        parseNormal(tokenizer);
+
+        // outer loop
+        if (!tokenizer.nextLine()) return false;
+        if (!tokenizer.keyword("outer") || !tokenizer.hasNext() || !tokenizer.keyword("loop")) {
+            throw unknownKeyword(tokenizer);
+        }
+
+        // vertex number number number
+        for (int i = 0; i < 9; i += 3) {
+            if (!tokenizer.nextLine()) return false;
+            if (!tokenizer.keyword("vertex")) throw unknownKeyword(tokenizer);
+            for (int j = 0; j < 3; j++) {
+                vertex[i + j] = parseCoordinate(tokenizer);
+            }
+        }
+
+        // endloop && endfacet
+        if (!tokenizer.nextLine()) return false;
+        if (!tokenizer.keyword("endloop")) throw unknownKeyword(tokenizer);
+        if (!tokenizer.nextLine()) return false;
+        if (!tokenizer.keyword("endfacet")) throw unknownKeyword(tokenizer);
+
+        vertices.add(vertex[0], vertex[1], vertex[2]);
+        vertices.add(vertex[3], vertex[4], vertex[5]);
+        vertices.add(vertex[6], vertex[7], vertex[8]);
+        normals.add(normal[0], normal[1], normal[2]);
+        normals.add(normal[0], normal[1], normal[2]);
+        normals.add(normal[0], normal[1], normal[2]);
+        return true;
+    }
+
+    private void parseNormal(AsciiTokenizer tokenizer) {
+        boolean errorFound = false;
+        for (int i = 0; i < 3; i++) {
+            if (!tokenizer.hasNext()) throw invalidData(tokenizer, "Invalid normal data");
+            try {
+                normal[i] = tokenizer.nextFloat();
+            } catch (NumberFormatException e) {
+                tokenizer.skipToken();
+                errorFound = true;
+            }
+        }
+        if (errorFound) {
+            // STL spec says use 0 0 0 for autocalc
+            normal[0] = 0;
+            normal[1] = 0;
+            normal[2] = 0;
+        }
+    }
+
+    private static float parseCoordinate(AsciiTokenizer tokenizer) {
+        if (!tokenizer.hasNext()) throw invalidData(tokenizer, "Cannot parse vertex");
+        try {
+            return tokenizer.nextFloat();
+        } catch (NumberFormatException e) {
+            // Common error is to use commas instead of . in Europe
+            final String token = tokenizer.next();
+            try {
+                return (float) Double.parseDouble(token.replace(",", "."));
+            } catch (NumberFormatException e2) {
+                throw invalidData(tokenizer, "Cannot parse vertex: " + token);
+            }
+        }
+    }
+
+    private static IllegalArgumentException unknownKeyword(AsciiTokenizer tokenizer) {
+        return invalidData(tokenizer, "Unknown keyword");
+    }
+
+    private static IllegalArgumentException invalidData(AsciiTokenizer tokenizer, String msg) {
+        return new IllegalArgumentException(msg + " at line " + tokenizer.getLineNumber() + ": " + tokenizer.line());
+    }
+}
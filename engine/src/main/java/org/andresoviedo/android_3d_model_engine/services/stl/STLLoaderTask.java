@@ -8,13 +8,16 @@ import org.andresoviedo.android_3d_model_engine.model.Object3DData;
 import org.andresoviedo.android_3d_model_engine.services.LoadListener;
 import org.andresoviedo.android_3d_model_engine.services.LoaderTask;
 import org.andresoviedo.android_3d_model_engine.services.collada.entities.MeshData;
+import org.andresoviedo.util.android.ContentUtils;
+import org.andresoviedo.util.collection.FloatArrayList;
 
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -27,13 +30,47 @@ public final class STLLoaderTask extends LoaderTask {
 
     private STLFileReader stlFileReader;
 
+    // parse ascii files with the single pass parser
+    private final boolean fastParser;
+
     public STLLoaderTask(Activity parent, URI uri, LoadListener callback) {
+        this(parent, uri, callback, true);
+    }
+
+    /**
+     * @param fastParser true to parse ascii files with the single pass {@link STLFastASCIIParser},
+     *                   false to use the {@link STLFileReader}
+     */
+    public STLLoaderTask(Activity parent, URI uri, LoadListener callback, boolean fastParser) {
         super(parent, uri, callback);
+        this.fastParser = fastParser;
     }
 
     @Override
     protected List<Object3DData> build() throws IOException {
 
+        // binary files are memory mapped and decoded in parallel
+        try {
+            final Object3DData data = loadBinary();
+            if (data != null) {
+                return Collections.singletonList(data);
+            }
+        } catch (IOException e) {
+            Log.e("STLLoaderTask", "Error mapping file. Falling back to the STL parser: " + e.getMessage(), e);
+        }
+
+        // ascii files are parsed in a single pass
+        if (fastParser) {
+            try {
+                final STLFastASCIIParser parser = parseASCII();
+                if (parser != null) {
+                    return Collections.singletonList(buildModel(parser.getVertices(), parser.getNormals()));
+                }
+            } catch (IllegalArgumentException e) {
+                Log.e("STLLoaderTask", "Error parsing file. Falling back to the STL parser: " + e.getMessage(), e);
+            }
+        }
+
         // current facet counter
         int counter = 0;
 
@@ -55,8 +92,8 @@ public final class STLLoaderTask extends LoaderTask {
             Log.i("STLLoaderTask", "Parsing messages: " + stlFileReader.getParsingMessages());
 
             // primitive data
-            final List<float[]> vertices = new ArrayList<>();
-            final List<float[]> normals = new ArrayList<>();
+            final FloatArrayList vertices = new FloatArrayList(3, totalFaces * 3);
+            final FloatArrayList normals = new FloatArrayList(3, totalFaces * 3);
 
             // Parse all facets...
             double[] normal = new double[3];
@@ -68,45 +105,111 @@ public final class STLLoaderTask extends LoaderTask {
             // load data
             while (stlFileReader.getNextFacet(normal, triangle) && counter++ < totalFaces) {
 
-                normals.add(new float[]{(float)normal[0], (float)normal[1], (float)normal[2]});
-                normals.add(new float[]{(float)normal[0], (float)normal[1], (float)normal[2]});
-                normals.add(new float[]{(float)normal[0], (float)normal[1], (float)normal[2]});
+                normals.add((float)normal[0], (float)normal[1], (float)normal[2]);
+                normals.add((float)normal[0], (float)normal[1], (float)normal[2]);
+                normals.add((float)normal[0], (float)normal[1], (float)normal[2]);
+
+                vertices.add((float)triangle[0][0],(float)triangle[0][1],(float)triangle[0][2]);
+                vertices.add((float)triangle[1][0],(float)triangle[1][1],(float)triangle[1][2]);
+                vertices.add((float)triangle[2][0],(float)triangle[2][1],(float)triangle[2][2]);
+            }
 
-                vertices.add(new float[]{(float)triangle[0][0],(float)triangle[0][1],(float)triangle[0][2]});
-                vertices.add(new float[]{(float)triangle[1][0],(float)triangle[1][1],(float)triangle[1][2]});
-                vertices.add(new float[]{(float)triangle[2][0],(float)triangle[2][1],(float)triangle[2][2]});
+            // super.publishProgress("Loading facets... "+counter+"/"+totalFaces);
+            return Collections.singletonList(buildModel(vertices, normals));
+        } catch (Exception e) {
+            Log.e("STLLoaderTask", "Face '" + counter + "'" + e.getMessage(), e);
+            throw e;
+        } finally {
+            if (stlFileReader != null) {
+                stlFileReader.close();
             }
+        }
+    }
+
+    /**
+     * Parse the ascii STL file with the single pass parser
+     *
+     * @return the parsed facets or <code>null</code> if the file is not an ascii STL
+     * @throws IOException if there is an error reading the file
+     */
+    private STLFastASCIIParser parseASCII() throws IOException {
+
+        // log event
+        Log.i("STLLoaderTask", "Parsing model...");
+        super.publishProgress("Parsing model...");
+
+        try (InputStream stream = ContentUtils.getInputStream(uri)) {
+            final STLFastASCIIParser parser = new STLFastASCIIParser();
+            return parser.parse(stream) ? parser : null;
+        }
+    }
+
+    private Object3DData buildModel(FloatArrayList vertices, FloatArrayList normals) {
+
+        // log event
+        Log.i("STLLoaderTask", "Loaded model. Facets: " + vertices.size() / 3 + ", vertices:" + vertices.size() + ", normals: " + normals.size());
+
+        // build data
+        final MeshData mesh = new MeshData.Builder().vertices(vertices).normals(normals).build();
+
+        // fix missing or wrong normals
+        super.publishProgress("Validating data...");
+        mesh.fixNormals();
+
+        // notify succeded!
+        Object3DData data = new Object3DData(mesh.getVertexBuffer()).setNormalsBuffer(mesh.getNormalsBuffer());
+        data.setMeshData(mesh);
+        data.setDrawUsingArrays(true);
+        data.setDrawMode(GLES20.GL_TRIANGLES);
+        data.setId(uri.toString());
+
+        super.onLoad(data);
+
+        return data;
+    }
+
+    /**
+     * Load the binary STL file with the fast path
+     *
+     * @return the model or <code>null</code> if the file is not a local binary STL
+     * @throws IOException if the file can't be mapped
+     */
+    private Object3DData loadBinary() throws IOException {
+        try (FileInputStream stream = ContentUtils.getFileInputStream(uri)) {
+            if (stream == null) return null;
 
             // log event
-            Log.i("STLLoaderTask", "Loaded model. Facets: " + counter + ", vertices:" +vertices.size()+", normals: "+normals.size());
+            Log.i("STLLoaderTask", "Mapping model...");
+            super.publishProgress("Loading facets...");
 
-            // build data
-            final MeshData mesh = new MeshData.Builder().vertices(vertices).normals(normals).build();
+            final STLBinaryLoader.Result result = new STLBinaryLoader(Runtime.getRuntime().availableProcessors())
+                    .load(stream.getChannel());
+            if (result == null) {
+                Log.i("STLLoaderTask", "Not a binary STL");
+                return null;
+            }
 
-            // fix missing or wrong normals
-            super.publishProgress("Validating data...");
-            mesh.fixNormals();
+            // log event
+            Log.i("STLLoaderTask", "Loaded model. Facets: " + result.facets);
+
+            // build data, so the normals can be smoothed. The normals are already fixed by the loader
+            final FloatArrayList vertices = new FloatArrayList(3, result.facets * 3);
+            final FloatArrayList normals = new FloatArrayList(3, result.facets * 3);
+            vertices.addAll(result.vertexBuffer.duplicate());
+            normals.addAll(result.normalsBuffer.duplicate());
+            final MeshData mesh = new MeshData.Builder().vertices(vertices).normals(normals).build();
+            mesh.setNormalsBuffer(result.normalsBuffer);
 
             // notify succeded!
-            Object3DData data = new Object3DData(mesh.getVertexBuffer()).setNormalsBuffer(mesh.getNormalsBuffer());
+            Object3DData data = new Object3DData(result.vertexBuffer).setNormalsBuffer(result.normalsBuffer);
             data.setMeshData(mesh);
             data.setDrawUsingArrays(true);
             data.setDrawMode(GLES20.GL_TRIANGLES);
             data.setId(uri.toString());
 
-            // super.publishProgress("Loading facets... "+counter+"/"+totalFaces);
             super.onLoad(data);
 
-            return Collections.singletonList(data);
-        } catch (Exception e) {
-            Log.e("STLLoaderTask", "Face '" + counter + "'" + e.getMessage(), e);
-            throw e;
-        } finally {
-            try {
-                stlFileReader.close();
-            } catch (IOException e) {
-                throw e;
-            }
+            return data;
         }
     }
 
@@ -0,0 +1,552 @@
+package org.andresoviedo.android_3d_model_engine.services.texture;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import org.andresoviedo.android_3d_model_engine.model.Material;
+import org.andresoviedo.android_3d_model_engine.drawer.AndroidGL20;
+import org.andresoviedo.android_3d_model_engine.drawer.GL20;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Texture pipeline. Images are decoded by a pool of workers as soon as they are requested (i.e. when the model is
+ * loaded) and the decoded pixels wait in a bounded queue until the GL thread uploads them. The GL thread only uploads
+ * a limited number of bytes per frame, so big textures are uploaded in slices of rows along several frames instead of
+ * stalling the first frame they are drawn.<p>
+ * Uploaded textures are registered in the {@link TextureManager}, so images already resident (i.e. the same image used
+ * by several models) are neither decoded nor uploaded again, and textures no longer bound to any material are deleted
+ * when the GPU budget is exceeded. Once the model is loaded, the source images of the bound materials are released, as
+ * long as they can be read again with the {@link Source}: if the GL context is lost, the textures are {@link #reset()
+ * forgotten} and the released images are read, decoded and uploaded again.<p>
+ * Decoding and uploading are done through a {@link Decoder} and an {@link UploadSink}, so the pipeline can be tested
+ * without a GPU.
+ *
+ * @author andresoviedo
+ */
+public final class TextureLoader {
+
+    /**
+     * Default number of bytes uploaded per frame
+     */
+    public static final int DEFAULT_UPLOAD_BUDGET = 1024 * 1024;
+
+    // texture states, other than the texture id
+    private static final int REQUESTED = -2;
+    private static final int FAILED = -3;
+
+    /**
+     * Decodes the image. Called from the worker threads
+     */
+    public interface Decoder {
+        Texture decode(byte[] data) throws IOException;
+    }
+
+    /**
+     * Reads the source image of the material again (i.e. from its texture file). Called from the worker threads
+     */
+    public interface Source {
+        byte[] read(Material material) throws IOException;
+    }
+
+    /**
+     * Creates and fills the textures. Called from the GL thread
+     */
+    public interface UploadSink {
+
+        /**
+         * @return the id of the new texture, or 0 if it couldn't be created
+         */
+        int create(int width, int height);
+
+        /**
+         * Upload the rows of the texture
+         *
+         * @param textureId the texture
+         * @param row       first row to upload
+         * @param width     width of the texture
+         * @param rows      number of rows
+         * @param pixels    RGBA pixels, positioned at the first row to upload
+         */
+        void upload(int textureId, int row, int width, int rows, ByteBuffer pixels);
+
+        /**
+         * Delete the texture
+         */
+        void delete(int textureId);
+    }
+
+    /**
+     * Decoded texture. 4 bytes (RGBA) per pixel
+     */
+    public static final class Texture {
+
+        private final int width;
+        private final int height;
+        private final ByteBuffer pixels;
+
+        public Texture(int width, int height, ByteBuffer pixels) {
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public ByteBuffer getPixels() {
+            return pixels;
+        }
+    }
+
+    // texture waiting to be uploaded
+    private static final class Upload {
+
+        private final byte[] key;
+        private final String hash;
+        private final Texture texture;
+        private int textureId = -1;
+        private int row;
+
+        private Upload(byte[] key, String hash, Texture texture) {
+            this.key = key;
+            this.hash = hash;
+            this.texture = texture;
+        }
+    }
+
+    private final Decoder decoder;
+    private final UploadSink sink;
+    private final TextureManager manager;
+    private final Source source;
+    private final ThreadPoolExecutor executor;
+    private final BlockingQueue<Upload> queue;
+
+    // texture ids (or state) by image
+    private final ConcurrentMap<byte[], Integer> textures = new ConcurrentHashMap<>();
+
+    // materials whose source image is to be released once bound. guarded by this
+    private final Set<Material> releasable = Collections.newSetFromMap(new IdentityHashMap<Material, Boolean>());
+
+    // materials bound to a texture, to be unbound if the context is lost. guarded by this
+    private final Set<Material> bound = Collections.newSetFromMap(new IdentityHashMap<Material, Boolean>());
+
+    // texture being uploaded. GL thread only
+    private Upload current;
+
+    public TextureLoader() {
+        this(null);
+    }
+
+    /**
+     * @param source reads the released images again. If null, the images are never released
+     */
+    public TextureLoader(Source source) {
+        this(new BitmapDecoder(), new GLUploadSink(new AndroidGL20()), new TextureManager(), source, 2, 4);
+    }
+
+    public TextureLoader(Decoder decoder, UploadSink sink, int threads, int queueCapacity) {
+        this(decoder, sink, new TextureManager(), threads, queueCapacity);
+    }
+
+    public TextureLoader(Decoder decoder, UploadSink sink, TextureManager manager, int threads, int queueCapacity) {
+        this(decoder, sink, manager, null, threads, queueCapacity);
+    }
+
+    /**
+     * @param decoder       the image decoder
+     * @param sink          the texture uploader
+     * @param manager       the textures resident in the GPU
+     * @param source        reads the released images again. If null, the images are never released
+     * @param threads       number of decoding threads
+     * @param queueCapacity max number of decoded textures waiting to be uploaded
+     */
+    public TextureLoader(Decoder decoder, UploadSink sink, TextureManager manager, Source source, int threads,
+                         int queueCapacity) {
+        this.decoder = decoder;
+        this.sink = sink;
+        this.manager = manager;
+        this.source = source;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Start decoding the image, unless it's already requested
+     *
+     * @param data the image
+     */
+    public void request(final byte[] data) {
+        if (data == null || textures.putIfAbsent(data, REQUESTED) != null) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                decode(data);
+            }
+        });
+    }
+
+    private void decode(byte[] data) {
+
+        // check if the same image is already uploaded
+        final String hash = TextureManager.key(data);
+        final int textureId = manager.get(hash);
+        if (textureId != -1) {
+            Log.v("TextureLoader", "Texture already uploaded. id: " + textureId);
+            textures.put(data, textureId);
+            return;
+        }
+
+        final Texture texture;
+        try {
+            Log.v("TextureLoader", "Decoding texture... bytes: " + data.length);
+            texture = decoder.decode(data);
+            if (texture.width <= 0 || texture.height <= 0) {
+                throw new IOException("empty image");
+            }
+        } catch (Exception e) {
+            Log.e("TextureLoader", "Error decoding texture: " + e.getMessage(), e);
+            textures.put(data, FAILED);
+            return;
+        }
+        try {
+            // wait until there is room, so decoded textures don't exhaust the memory
+            queue.put(new Upload(data, hash, texture));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            textures.remove(data);
+        }
+    }
+
+    /**
+     * Get the texture id. If the image was never requested, it starts decoding it
+     *
+     * @param data the image
+     * @return the texture id or -1 if the texture is not uploaded yet or it failed
+     */
+    public int getTextureId(byte[] data) {
+        if (data == null) return -1;
+        final Integer textureId = textures.get(data);
+        if (textureId == null) {
+            request(data);
+            return -1;
+        }
+        return textureId >= 0 ? textureId : -1;
+    }
+
+    /**
+     * Upload the decoded textures, until the budget is spent. At least 1 row is uploaded per call, so textures wider
+     * than the budget are uploaded anyway. Textures exceeding the GPU budget are deleted first. Must be called from
+     * the GL thread.
+     *
+     * @param budget max bytes to upload
+     * @return the uploaded bytes
+     */
+    public int upload(int budget) {
+
+        // delete the textures not bound since the last frame
+        evict();
+
+        int uploaded = 0;
+        while (uploaded < budget) {
+
+            // next texture
+            if (current == null) {
+                current = queue.poll();
+                if (current == null) break;
+                current.textureId = sink.create(current.texture.width, current.texture.height);
+                if (current.textureId == 0) {
+                    Log.e("TextureLoader", "Error creating texture");
+                    textures.put(current.key, FAILED);
+                    current = null;
+                    continue;
+                }
+            }
+
+            // upload as many rows as possible
+            final Texture texture = current.texture;
+            final int rowSize = texture.width * 4;
+            int rows = Math.min(texture.height - current.row, (budget - uploaded) / rowSize);
+            if (rows == 0) {
+                // not enough budget for a single row
+                if (uploaded > 0) break;
+                rows = 1;
+            }
+            final ByteBuffer pixels = texture.pixels.duplicate();
+            pixels.position(current.row * rowSize);
+            sink.upload(current.textureId, current.row, texture.width, rows, pixels);
+            current.row += rows;
+            uploaded += rows * rowSize;
+
+            // texture complete
+            if (current.row == texture.height) {
+                Log.i("TextureLoader", "Uploaded texture. id: " + current.textureId + ", size: "
+                        + texture.width + "x" + texture.height);
+                final int textureId = manager.put(current.hash, current.textureId,
+                        (long) texture.width * texture.height * 4, current.key.length);
+                if (textureId != current.textureId) {
+                    // the same image was decoded twice
+                    sink.delete(current.textureId);
+                }
+                textures.put(current.key, textureId);
+                current = null;
+            }
+        }
+        return uploaded;
+    }
+
+    /**
+     * Bind the material to its texture, if it's already uploaded. Once bound, the texture won't be deleted until the
+     * material is released. Must be called from the GL thread.
+     *
+     * @param material the material
+     * @return the texture id or -1 if the texture is not uploaded yet
+     */
+    public int bind(Material material) {
+        if (material.getTextureId() != -1) {
+            return material.getTextureId();
+        }
+        final int textureId = getTextureId(material.getTextureData());
+        if (textureId == -1) {
+            return -1;
+        }
+        if (!manager.acquire(textureId)) {
+            // evicted, upload it again
+            textures.remove(material.getTextureData());
+            return -1;
+        }
+        material.setTextureId(textureId);
+        synchronized (this) {
+            bound.add(material);
+            if (releasable.remove(material)) {
+                releaseData(material);
+            }
+        }
+        return textureId;
+    }
+
+    /**
+     * Unbind the material from its texture, so the texture can be deleted
+     *
+     * @param material the material
+     */
+    public void release(Material material) {
+        if (material.getTextureId() == -1) return;
+        manager.release(material.getTextureId());
+        material.setTextureId(-1);
+        synchronized (this) {
+            bound.remove(material);
+        }
+    }
+
+    /**
+     * Release the source image of the material as soon as it's bound. The image must not be needed anymore (i.e.
+     * the model was already cached). The image is kept if it can't be read again from the texture file
+     *
+     * @param material the material
+     */
+    public synchronized void releaseSource(Material material) {
+        if (material.getTextureData() == null || source == null || material.getTextureFile() == null) return;
+        if (material.getTextureId() != -1) {
+            releaseData(material);
+        } else {
+            releasable.add(material);
+        }
+    }
+
+    private void releaseData(Material material) {
+        textures.remove(material.getTextureData());
+        manager.releaseSource(material.getTextureId());
+        material.setTextureData(null);
+    }
+
+    /**
+     * @param gl the OpenGL calls of the default sink, i.e. validated or not, like the calls of the drawers
+     */
+    public void setGL(GL20 gl) {
+        if (sink instanceof GLUploadSink) {
+            ((GLUploadSink) sink).gl = gl;
+        }
+    }
+
+    /**
+     * Forget all the textures, since the GL context is lost and so the texture ids are not valid anymore. The bound
+     * materials are unbound, and the released images are read again, so they are uploaded to the new context. Must be
+     * called from the GL thread, once the new context is created.
+     */
+    public void reset() {
+        Log.i("TextureLoader", "Resetting textures... " + manager);
+        manager.clear();
+
+        // forget the uploaded images. The ones being decoded or waiting in the queue are uploaded to the new context
+        final Iterator<Integer> it = textures.values().iterator();
+        while (it.hasNext()) {
+            if (it.next() != REQUESTED) it.remove();
+        }
+        if (current != null) {
+            textures.remove(current.key);
+            current = null;
+        }
+
+        // unbind the materials
+        final List<Material> released = new ArrayList<>();
+        synchronized (this) {
+            for (Material material : bound) {
+                material.setTextureId(-1);
+                if (material.getTextureData() == null) {
+                    released.add(material);
+                }
+            }
+            bound.clear();
+        }
+        for (Material material : released) {
+            reload(material);
+        }
+    }
+
+    private void reload(final Material material) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] data;
+                try {
+                    Log.v("TextureLoader", "Reading texture again... " + material.getTextureFile());
+                    data = source.read(material);
+                } catch (Exception e) {
+                    Log.e("TextureLoader", "Error reading texture: " + material.getTextureFile(), e);
+                    return;
+                }
+                synchronized (TextureLoader.this) {
+                    material.setTextureData(data);
+                    // released again once bound
+                    releasable.add(material);
+                }
+                request(data);
+            }
+        });
+    }
+
+    private void evict() {
+        for (Integer textureId : manager.evict()) {
+            // forget the images, so they are uploaded again if requested
+            final Iterator<Map.Entry<byte[], Integer>> it = textures.entrySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().getValue().equals(textureId)) it.remove();
+            }
+            sink.delete(textureId);
+        }
+    }
+
+    public TextureManager getManager() {
+        return manager;
+    }
+
+    /**
+     * @return number of decoded textures waiting to be uploaded
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Decodes the image with the {@link BitmapFactory}
+     */
+    static final class BitmapDecoder implements Decoder {
+
+        @Override
+        public Texture decode(byte[] data) throws IOException {
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            // We don’t want Android to scale our bitmap at all
+            options.inScaled = false;
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+            final Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            if (bitmap == null) {
+                throw new IOException("couldn't load bitmap");
+            }
+            Bitmap argb = bitmap;
+            try {
+                if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+                    argb = bitmap.copy(Bitmap.Config.ARGB_8888, false);
+                }
+                // ARGB_8888 is stored as RGBA bytes
+                final ByteBuffer pixels = ByteBuffer.allocateDirect(argb.getWidth() * argb.getHeight() * 4)
+                        .order(ByteOrder.nativeOrder());
+                argb.copyPixelsToBuffer(pixels);
+                pixels.position(0);
+                return new Texture(argb.getWidth(), argb.getHeight(), pixels);
+            } finally {
+                if (argb != bitmap) argb.recycle();
+                bitmap.recycle();
+            }
+        }
+    }
+
+    /**
+     * Uploads the textures to the GPU
+     */
+    static final class GLUploadSink implements UploadSink {
+
+        private GL20 gl;
+
+        GLUploadSink(GL20 gl) {
+            this.gl = gl;
+        }
+
+        @Override
+        public int create(int width, int height) {
+            final int[] textureHandle = new int[1];
+            gl.glGenTextures(1, textureHandle, 0);
+            if (textureHandle[0] == 0) {
+                return 0;
+            }
+
+            // allocate the texture, pixels are uploaded later
+            gl.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandle[0]);
+            gl.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+            gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+            gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+            return textureHandle[0];
+        }
+
+        @Override
+        public void upload(int textureId, int row, int width, int rows, ByteBuffer pixels) {
+            gl.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+            gl.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, row, width, rows,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+        }
+
+        @Override
+        public void delete(int textureId) {
+            gl.glDeleteTextures(1, new int[]{textureId}, 0);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package org.andresoviedo.android_3d_model_engine.services.texture;
+
+import android.util.Log;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Book keeping of the textures resident in the GPU. Textures are identified by the hash of the image, so the same
+ * image loaded twice is uploaded once. Every material bound to a texture holds a reference to it, and textures no
+ * longer referenced are evicted, least recently used first, when the GPU bytes exceed the budget.<p>
+ * This class doesn't call OpenGL: evicted texture ids are returned to the caller, so the policy can be tested
+ * headlessly.
+ *
+ * @author andresoviedo
+ */
+public final class TextureManager {
+
+    /**
+     * Default GPU budget for the textures
+     */
+    public static final long DEFAULT_BUDGET = 64 * 1024 * 1024;
+
+    private static final class Entry {
+
+        private final String key;
+        private final int textureId;
+        private final long gpuBytes;
+        private long heapBytes;
+        private int references;
+
+        private Entry(String key, int textureId, long gpuBytes, long heapBytes) {
+            this.key = key;
+            this.textureId = textureId;
+            this.gpuBytes = gpuBytes;
+            this.heapBytes = heapBytes;
+        }
+    }
+
+    private final long budget;
+
+    // entries by hash, in access order
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Integer, Entry> entriesById = new HashMap<>();
+
+    // stats
+    private long gpuBytes;
+    private long heapBytes;
+    private int hits;
+    private int misses;
+    private int evictions;
+
+    public TextureManager() {
+        this(DEFAULT_BUDGET);
+    }
+
+    /**
+     * @param budget max bytes of the textures in the GPU. Referenced textures are never evicted, so the budget may
+     *               be exceeded
+     */
+    public TextureManager(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * @param data the image
+     * @return the hash identifying the image
+     */
+    public static String key(byte[] data) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            final StringBuilder ret = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                ret.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return ret.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Look up the texture and mark it as recently used
+     *
+     * @param key the image hash
+     * @return the texture id or -1 if it's not resident
+     */
+    public synchronized int get(String key) {
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return -1;
+        }
+        hits++;
+        return entry.textureId;
+    }
+
+    /**
+     * Register the uploaded texture. If the image was already uploaded (i.e. decoded twice concurrently), the
+     * texture already registered is kept and the new one should be deleted.
+     *
+     * @param key       the image hash
+     * @param textureId the texture
+     * @param gpuBytes  bytes of the texture in the GPU
+     * @param heapBytes bytes of the source image in the heap
+     * @return the texture id to use
+     */
+    public synchronized int put(String key, int textureId, long gpuBytes, long heapBytes) {
+        final Entry existing = entries.get(key);
+        if (existing != null) {
+            return existing.textureId;
+        }
+        final Entry entry = new Entry(key, textureId, gpuBytes, heapBytes);
+        entries.put(key, entry);
+        entriesById.put(textureId, entry);
+        this.gpuBytes += gpuBytes;
+        this.heapBytes += heapBytes;
+        return textureId;
+    }
+
+    /**
+     * A material is now bound to the texture
+     *
+     * @return false if the texture is not resident (i.e. it was just evicted)
+     */
+    public synchronized boolean acquire(int textureId) {
+        final Entry entry = entriesById.get(textureId);
+        if (entry == null) {
+            return false;
+        }
+        entry.references++;
+        return true;
+    }
+
+    /**
+     * A material is no longer bound to the texture. The texture may be evicted once it's not referenced
+     */
+    public synchronized void release(int textureId) {
+        final Entry entry = entriesById.get(textureId);
+        if (entry != null && entry.references > 0) {
+            entry.references--;
+        }
+    }
+
+    /**
+     * The source image of the texture is no longer held in the heap
+     */
+    public synchronized void releaseSource(int textureId) {
+        final Entry entry = entriesById.get(textureId);
+        if (entry != null) {
+            heapBytes -= entry.heapBytes;
+            entry.heapBytes = 0;
+        }
+    }
+
+    /**
+     * Evict the least recently used textures not referenced, until the GPU bytes are under budget
+     *
+     * @return the evicted textures, to be deleted by the caller
+     */
+    public synchronized List<Integer> evict() {
+        final List<Integer> ret = new ArrayList<>();
+        final Iterator<Entry> it = entries.values().iterator();
+        while (gpuBytes > budget && it.hasNext()) {
+            final Entry entry = it.next();
+            if (entry.references > 0) continue;
+            it.remove();
+            entriesById.remove(entry.textureId);
+            gpuBytes -= entry.gpuBytes;
+            heapBytes -= entry.heapBytes;
+            evictions++;
+            ret.add(entry.textureId);
+            Log.i("TextureManager", "Evicted texture. id: " + entry.textureId + ", hash: " + entry.key);
+        }
+        return ret;
+    }
+
+    /**
+     * Forget all the textures, without deleting them, since the GL context they belong to is lost
+     */
+    public synchronized void clear() {
+        entries.clear();
+        entriesById.clear();
+        gpuBytes = 0;
+        heapBytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getGpuBytes() {
+        return gpuBytes;
+    }
+
+    public synchronized long getHeapBytes() {
+        return heapBytes;
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    public synchronized int getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TextureManager{" +
+                "textures=" + entries.size() +
+                ", gpuBytes=" + gpuBytes +
+                ", heapBytes=" + heapBytes +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                '}';
+    }
+}
@@ -42,26 +42,54 @@ import org.andresoviedo.android_3d_model_engine.services.LoadListener;
 import org.andresoviedo.android_3d_model_engine.services.collada.entities.MeshData;
 import org.andresoviedo.android_3d_model_engine.services.collada.entities.Vertex;
 import org.andresoviedo.util.android.ContentUtils;
+import org.andresoviedo.util.collection.FloatArrayList;
+import org.andresoviedo.util.collection.IntArrayList;
+import org.andresoviedo.util.io.AsciiTokenizer;
 import org.andresoviedo.util.io.IOUtils;
 
 import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class WavefrontLoader {
 
+    // minimum chunk size for parallel parsing
+    private static final int MIN_CHUNK_SIZE = 256 * 1024;
+    // chunks per thread, so threads are kept busy even if some chunks are slower
+    private static final int CHUNKS_PER_THREAD = 4;
+
     private final int triangulationMode;
     private final LoadListener callback;
+    private final int threads;
 
     public WavefrontLoader(int triangulationMode, LoadListener callback) {
+        this(triangulationMode, callback, 1);
+    }
+
+    /**
+     * @param triangulationMode {@link GLES20#GL_TRIANGLE_FAN} or {@link GLES20#GL_TRIANGLES}
+     * @param callback          the load listener
+     * @param threads           number of threads to parse the file. 1 for sequential parsing
+     */
+    public WavefrontLoader(int triangulationMode, LoadListener callback, int threads) {
         this.triangulationMode = triangulationMode;
         this.callback = callback;
+        this.threads = Math.max(1, threads);
     }
 
     @Nullable
@@ -102,10 +130,13 @@ public class WavefrontLoader {
             Log.i("WavefrontLoader", "Parsing geometries... ");
             Log.i("WavefrontLoader", "--------------------------------------------------");
 
-            // open stream, parse model, then close stream
-            final InputStream is = modelURI.toURL().openStream();
-            final List<MeshData> meshes = loadModel(modelURI.toString(), is);
-            is.close();
+            // open stream, parse model, then close stream. local files & contents can be memory mapped
+            final List<MeshData> meshes;
+            final FileInputStream file = ContentUtils.getFileInputStream(modelURI);
+            try (InputStream is = file != null ? file : modelURI.toURL().openStream()) {
+                final long[] info = ContentUtils.getFileInfo(modelURI);
+                meshes = loadModel(modelURI.toString(), is, info != null ? info[0] : -1);
+            }
 
             // 3D meshes
             final List<Object3DData> ret = new ArrayList<>();
@@ -119,6 +150,9 @@ public class WavefrontLoader {
             // proces all meshes
             for (MeshData meshData : meshes) {
 
+                // share vertices between faces
+                meshData.weld();
+
                 // notify listener
                 callback.onProgress("Processing normals...");
 
@@ -232,184 +266,325 @@ public class WavefrontLoader {
         }
     }
 
-    private List<MeshData> loadModel(String id, InputStream is) {
+    List<MeshData> loadModel(String id, InputStream is) throws IOException {
+        return loadModel(id, is, -1);
+    }
+
+    /**
+     * Parse the model. If the loader is configured with more than 1 thread and the file is big enough,
+     * the file is parsed in parallel. The whole file is needed for that, so it's memory mapped or, if the stream
+     * can't be mapped, read into a single array as long as the file. Otherwise the stream is parsed as it's read.
+     *
+     * @param length the length of the stream, or -1 if it's not known
+     */
+    List<MeshData> loadModel(String id, InputStream is, long length) throws IOException {
+        if (threads > 1) {
+            ByteBuffer data = map(is);
+            if (data == null && length >= 2 * MIN_CHUNK_SIZE && length <= Integer.MAX_VALUE) {
+                data = ByteBuffer.wrap(IOUtils.read(is, (int) length));
+            }
+            if (data != null && data.remaining() >= 2 * MIN_CHUNK_SIZE) {
+                return loadModelParallel(id, data,
+                        Math.max(MIN_CHUNK_SIZE, data.remaining() / (threads * CHUNKS_PER_THREAD)));
+            }
+            if (data != null) {
+                return loadModel(id, new AsciiTokenizer(data));
+            }
+        }
+        return loadModel(id, new AsciiTokenizer(is));
+    }
+
+    /**
+     * @return the rest of the file memory mapped, or null if the stream is not a file or it can't be mapped (i.e. it's
+     * a pipe)
+     */
+    @Nullable
+    private static ByteBuffer map(InputStream is) {
+        if (!(is instanceof FileInputStream)) return null;
+        try {
+            final FileChannel channel = ((FileInputStream) is).getChannel();
+            final long position = channel.position();
+            final long size = channel.size() - position;
+            if (size <= 0 || size > Integer.MAX_VALUE) return null;
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        } catch (IOException e) {
+            Log.i("WavefrontLoader", "Stream can't be mapped: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private List<MeshData> loadModel(String id, AsciiTokenizer tokenizer) {
 
         // log event
         Log.i("WavefrontLoader", "Loading model... " + id);
 
-        // String fnm = MODEL_DIR + modelNm + ".obj";
-        BufferedReader br = null;
         try {
-            br = new BufferedReader(new InputStreamReader(is));
-
-            // debug model purposes
-            int lineNum = 0;
-            String line = null;
 
             // primitive data
-            final List<float[]> vertexList = new ArrayList<>();
-            final List<float[]> normalsList = new ArrayList<>();
-            final List<float[]> textureList = new ArrayList<>();
+            final FloatArrayList vertexList = new FloatArrayList(3, 1024);
+            final FloatArrayList normalsList = new FloatArrayList(3, 1024);
+            final FloatArrayList textureList = new FloatArrayList(2, 1024);
 
             // mesh data
-            final List<MeshData> meshes = new ArrayList<>();
-            final List<Vertex> verticesAttributes = new ArrayList<>();
+            final ModelBuilder model = new ModelBuilder(id, vertexList, normalsList, textureList);
 
-            // material file
-            String mtllib = null;
-
-            // smoothing groups
-            final Map<String,List<Vertex>> smoothingGroups = new HashMap<>();
-            List<Vertex> currentSmoothingList = null;
-
-            // mesh current
-            MeshData.Builder meshCurrent = new MeshData.Builder().id(id);
-            Element.Builder elementCurrent = new Element.Builder().id("default");
-            List<Integer> indicesCurrent = new ArrayList<>();
-            boolean buildNewMesh = false;
-            boolean buildNewElement = false;
+            // face parsing
+            final FaceParser faceParser = new FaceParser(triangulationMode);
 
             try {
-                while (((line = br.readLine()) != null)) {
-                    lineNum++;
-                    line = line.trim();
-                    if (line.length() == 0) continue;
-                    if (line.startsWith("v ")) { // vertex
-                        parseVector(vertexList, line.substring(2).trim());
-                    } else if (line.startsWith("vn")) { // normal
-                        parseVector(normalsList, line.substring(3).trim());
-                    } else if (line.startsWith("vt")) { // tex coord
-                        parseVariableVector(textureList, line.substring(3).trim());
-                    } else if (line.charAt(0) == 'o') { // object group
-                        if (buildNewMesh) {
-                            // build mesh
-                            meshCurrent.vertices(vertexList).normals(normalsList).textures(textureList)
-                                    .vertexAttributes(verticesAttributes)
-				    .materialFile(mtllib)
-                                    .addElement(elementCurrent.indices(indicesCurrent).build());
-
-                            // add current mesh
-                            final MeshData build = meshCurrent.build();
-                            meshes.add(build);
-
-                            // log event
-                            Log.d("WavefrontLoader", "Loaded mesh. id:" + build.getId() + ", indices: " + indicesCurrent.size()
-                                    + ", vertices:" + vertexList.size()
-                                    + ", normals: " + normalsList.size()
-                                    + ", textures:" + textureList.size()
-                                    + ", elements: " + build.getElements());
-
-                            // next mesh
-                            meshCurrent = new MeshData.Builder().id(line.substring(1).trim());
-
-                            // next element
-                            elementCurrent = new Element.Builder();
-                            indicesCurrent = new ArrayList<>();
-                        } else {
-                            meshCurrent.id(line.substring(1).trim());
-                            buildNewMesh = true;
+                while (tokenizer.nextLine()) {
+                    if (tokenizer.keyword("v")) { // vertex
+                        parseVector(vertexList, tokenizer);
+                    } else if (tokenizer.keyword("vn")) { // normal
+                        parseVector(normalsList, tokenizer);
+                    } else if (tokenizer.keyword("vt")) { // tex coord
+                        parseVariableVector(textureList, tokenizer);
+                    } else if (tokenizer.keyword("f")) { // face
+                        if (faceParser.parse(tokenizer, vertexList.size(), textureList.size(), normalsList.size())) {
+                            final int[] corners = faceParser.getCorners();
+                            for (int i = 0; i < faceParser.getCornersSize(); i += 3) {
+                                model.corner(corners[i], corners[i + 1], corners[i + 2]);
+                            }
                         }
-                    } else if (line.charAt(0) == 'g') { // group name
-                        if (buildNewElement && indicesCurrent.size() > 0) {
+                    } else {
+                        final int statement = parseStatement(tokenizer);
+                        if (statement != ModelBuilder.NONE) {
+                            model.statement(statement, tokenizer.rest());
+                        }
+                    }
+                }
 
-                            // add current element
-                            elementCurrent.indices(indicesCurrent);
-                            meshCurrent.addElement(elementCurrent.build());
+                // return all meshes
+                return model.build();
 
-                            // log event
-                            Log.d("WavefrontLoader", "New element. indices: " + indicesCurrent.size());
+            } catch (Exception e) {
+                Log.e("WavefrontLoader", "Error reading line: " + tokenizer.getLineNumber() + ":" + tokenizer.line(), e);
+                Log.e("WavefrontLoader", e.getMessage(), e);
+                throw new RuntimeException(e);
+            }
+        } finally {
+            try {
+                tokenizer.close();
+            } catch (IOException e) {
+                Log.e("WavefrontLoader", e.getMessage(), e);
+            }
+        }
+    }
 
-                            // prepare next element
-                            indicesCurrent = new ArrayList<>();
-                            elementCurrent = new Element.Builder().id(line.substring(1).trim());
-                        } else {
-                            elementCurrent.id(line.substring(1).trim());
-                            buildNewElement = true;
-                        }
-                    } else if (line.startsWith("f ")) { // face
-                        parseFace(verticesAttributes, indicesCurrent, vertexList, normalsList, textureList, line.substring(2), currentSmoothingList);
-                    } else if (line.startsWith("mtllib ")) {// build material
-                        mtllib = line.substring(7);
-                    } else if (line.startsWith("usemtl ")) {// use material
-                        if (elementCurrent.getMaterialId() != null) {
+    /**
+     * Parse the model in parallel. The file is split in chunks at line boundaries and then:
+     * <ol>
+     * <li>vertices, normals and texture coordinates are parsed concurrently for every chunk</li>
+     * <li>faces are parsed concurrently for every chunk. Since we now know how many vectors are defined
+     * before every chunk, relative indices are resolved here</li>
+     * <li>chunks are merged in file order, replaying faces and the o/g/usemtl/s statements,
+     * so the result is the same as the sequential parsing</li>
+     * </ol>
+     *
+     * @param id        model id
+     * @param data      file contents, from the position to the limit. The position is not changed
+     * @param chunkSize approximate size of every chunk
+     * @return the meshes
+     */
+    List<MeshData> loadModelParallel(String id, ByteBuffer data, int chunkSize) {
 
-                            // change element since we are dealing with different material
-                            elementCurrent.indices(indicesCurrent);
-                            meshCurrent.addElement(elementCurrent.build());
+        // log event
+        Log.i("WavefrontLoader", "Loading model in parallel... " + id + ", size: " + data.remaining()
+                + ", threads: " + threads);
+
+        // split chunks at line boundaries
+        final List<Chunk> chunks = new ArrayList<>();
+        for (int start = data.position(); start < data.limit(); ) {
+            int end = Math.min(start + chunkSize, data.limit());
+            while (end < data.limit() && data.get(end - 1) != '\n') end++;
+            final ByteBuffer chunk = data.duplicate();
+            chunk.limit(end);
+            chunk.position(start);
+            chunks.add(new Chunk(chunk.slice()));
+            start = end;
+        }
 
-                            // log event
-                            Log.v("WavefrontLoader", "New material: " + line);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
 
-                            // prepare next element
-                            indicesCurrent = new ArrayList<>();
-                            elementCurrent = new Element.Builder().id(elementCurrent.getId());
-                        }
+            // 1st pass: vectors
+            final List<Callable<Void>> vectorTasks = new ArrayList<>();
+            for (final Chunk chunk : chunks) {
+                vectorTasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        parseVectors(chunk);
+                        return null;
+                    }
+                });
+            }
+            invokeAll(executor, vectorTasks);
+
+            // index of the first vector of every chunk
+            int vertexBase = 0, normalBase = 0, textureBase = 0;
+            for (Chunk chunk : chunks) {
+                chunk.vertexBase = vertexBase;
+                chunk.normalBase = normalBase;
+                chunk.textureBase = textureBase;
+                vertexBase += chunk.vertices.size();
+                normalBase += chunk.normals.size();
+                textureBase += chunk.textures.size();
+            }
 
-                        elementCurrent.materialId(line.substring(7));
-                    } else if (line.charAt(0) == 's') { // smoothing group
-                        final String smoothingGroupId = line.substring(1).trim();
-                        if ("0".equals(smoothingGroupId) || "off".equals(smoothingGroupId)){
-                            currentSmoothingList = null;
-                        } else {
-                            currentSmoothingList = new ArrayList<>();
-                            smoothingGroups.put(smoothingGroupId, currentSmoothingList);
-                        }
-                    } else if (line.charAt(0) == '#') { // comment line
-                        Log.v("WavefrontLoader", line);
-                    } else
-                        Log.w("WavefrontLoader", "Ignoring line " + lineNum + " : " + line);
+            // 2nd pass: faces & statements
+            final List<Callable<Void>> faceTasks = new ArrayList<>();
+            for (final Chunk chunk : chunks) {
+                faceTasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        parseFaces(chunk);
+                        return null;
+                    }
+                });
+            }
+            invokeAll(executor, faceTasks);
+
+            // merge vectors
+            final FloatArrayList vertexList = new FloatArrayList(3, vertexBase);
+            final FloatArrayList normalsList = new FloatArrayList(3, normalBase);
+            final FloatArrayList textureList = new FloatArrayList(2, textureBase);
+            for (Chunk chunk : chunks) {
+                vertexList.addAll(chunk.vertices);
+                normalsList.addAll(chunk.normals);
+                textureList.addAll(chunk.textures);
+            }
 
+            // merge faces & statements in file order
+            final ModelBuilder model = new ModelBuilder(id, vertexList, normalsList, textureList);
+            for (Chunk chunk : chunks) {
+                final int[] corners = chunk.corners.array();
+                final int cornersSize = chunk.corners.size();
+                int s = 0;
+                for (int i = 0; i < cornersSize; i += 3) {
+                    for (; s < chunk.statements.size() && chunk.statements.get(s).corner <= i; s++) {
+                        model.statement(chunk.statements.get(s).type, chunk.statements.get(s).value);
+                    }
+                    model.corner(corners[i], corners[i + 1], corners[i + 2]);
                 }
+                for (; s < chunk.statements.size(); s++) {
+                    model.statement(chunk.statements.get(s).type, chunk.statements.get(s).value);
+                }
+            }
 
-                // build mesh
-                final Element element = elementCurrent.indices(indicesCurrent).build();
-                final MeshData meshData = meshCurrent.vertices(vertexList).normals(normalsList).textures(textureList)
-                        .vertexAttributes(verticesAttributes).materialFile(mtllib)
-                        .addElement(element).smoothingGroups(smoothingGroups).build();
-
-                Log.i("WavefrontLoader", "Loaded mesh. id:" + meshData.getId() + ", indices: " + indicesCurrent.size()
-                        + ", vertices:" + vertexList.size()
-                        + ", normals: " + normalsList.size()
-                        + ", textures:" + textureList.size()
-                        + ", elements: " + meshData.getElements());
+            // return all meshes
+            return model.build();
 
-                // add mesh
-                meshes.add(meshData);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-                // return all meshes
-                return meshes;
+    private static void invokeAll(ExecutorService executor, List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Log.e("WavefrontLoader", "Error parsing model: " + e.getCause().getMessage(), e.getCause());
+            throw new RuntimeException(e.getCause());
+        }
+    }
 
-            } catch (Exception e) {
-                Log.e("WavefrontLoader", "Error reading line: " + lineNum + ":" + line, e);
-                Log.e("WavefrontLoader", e.getMessage(), e);
-                throw new RuntimeException(e);
+    /**
+     * Parse the v, vn and vt lines of the chunk
+     */
+    private void parseVectors(Chunk chunk) {
+        final AsciiTokenizer tokenizer = new AsciiTokenizer(chunk.data);
+        try {
+            while (tokenizer.nextLine()) {
+                if (tokenizer.keyword("v")) { // vertex
+                    parseVector(chunk.vertices, tokenizer);
+                } else if (tokenizer.keyword("vn")) { // normal
+                    parseVector(chunk.normals, tokenizer);
+                } else if (tokenizer.keyword("vt")) { // tex coord
+                    parseVariableVector(chunk.textures, tokenizer);
+                }
             }
-        } finally {
-            if (br != null) {
-                try {
-                    br.close();
-                } catch (IOException e) {
-                    Log.e("WavefrontLoader", e.getMessage(), e);
+        } catch (IOException e) {
+            // this should never happen since there is no stream
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Parse the faces and the statements of the chunk
+     */
+    private void parseFaces(Chunk chunk) {
+        final AsciiTokenizer tokenizer = new AsciiTokenizer(chunk.data);
+        final FaceParser faceParser = new FaceParser(triangulationMode);
+        int vertexCount = chunk.vertexBase, normalCount = chunk.normalBase, textureCount = chunk.textureBase;
+        try {
+            while (tokenizer.nextLine()) {
+                if (tokenizer.keyword("v")) { // vertex
+                    vertexCount++;
+                } else if (tokenizer.keyword("vn")) { // normal
+                    normalCount++;
+                } else if (tokenizer.keyword("vt")) { // tex coord
+                    textureCount++;
+                } else if (tokenizer.keyword("f")) { // face
+                    if (faceParser.parse(tokenizer, vertexCount, textureCount, normalCount)) {
+                        final int[] corners = faceParser.getCorners();
+                        for (int i = 0; i < faceParser.getCornersSize(); i++) {
+                            chunk.corners.add(corners[i]);
+                        }
+                    }
+                } else {
+                    final int statement = parseStatement(tokenizer);
+                    if (statement != ModelBuilder.NONE) {
+                        chunk.statements.add(new Statement(chunk.corners.size(), statement, tokenizer.rest()));
+                    }
                 }
             }
+        } catch (IOException e) {
+            // this should never happen since there is no stream
+            throw new RuntimeException(e);
         }
     }
 
     /**
-     * List of texture coordinates, in (u, [,v ,w]) coordinates, these will vary between 0 and 1. v, w are optional and default to 0.
-     * There may only be 1 tex coords  on the line, which is determined by looking at the first tex coord line.
+     * Parse o/g/mtllib/usemtl/s statements
+     *
+     * @return the statement type or {@link ModelBuilder#NONE}
      */
-    private void parseVector(List<float[]> vectorList, String line) {
+    private static int parseStatement(AsciiTokenizer tokenizer) {
+        if (tokenizer.keyword("o")) { // object group
+            return ModelBuilder.OBJECT;
+        } else if (tokenizer.keyword("g")) { // group name
+            return ModelBuilder.GROUP;
+        } else if (tokenizer.keyword("mtllib") && tokenizer.hasNext()) {// build material
+            return ModelBuilder.MATERIAL_LIB;
+        } else if (tokenizer.keyword("usemtl") && tokenizer.hasNext()) {// use material
+            return ModelBuilder.USE_MATERIAL;
+        } else if (tokenizer.keyword("s")) { // smoothing group
+            return ModelBuilder.SMOOTHING_GROUP;
+        } else if (tokenizer.peek() == '#') { // comment line
+            // ignore
+        } else {
+            Log.w("WavefrontLoader", "Ignoring line " + tokenizer.getLineNumber() + " : " + tokenizer.line());
+        }
+        return ModelBuilder.NONE;
+    }
+
+    /**
+     * List of vertices or normals, in (x, y, z) coordinates.
+     */
+    private static void parseVector(FloatArrayList vectorList, AsciiTokenizer tokenizer) {
         try {
-            final String[] tokens = line.split(" +");
-            final float[] vector = new float[3];
-            vector[0] = Float.parseFloat(tokens[0]);
-            vector[1] = Float.parseFloat(tokens[1]);
-            vector[2] = Float.parseFloat(tokens[2]);
-            vectorList.add(vector);
+            final float x = tokenizer.nextFloat();
+            final float y = tokenizer.nextFloat();
+            final float z = tokenizer.nextFloat();
+            vectorList.add(x, y, z);
         } catch (Exception ex) {
-            Log.e("WavefrontLoader", "Error parsing vector '"+line+"': "+ex.getMessage());
-            vectorList.add(new float[3]);
+            Log.e("WavefrontLoader", "Error parsing vector '" + tokenizer.line() + "': " + ex.getMessage());
+            vectorList.add(0, 0, 0);
         }
 
     }
@@ -418,124 +593,347 @@ public class WavefrontLoader {
      * List of texture coordinates, in (u, [,v ,w]) coordinates, these will vary between 0 and 1. v, w are optional and default to 0.
      * There may only be 1 tex coords  on the line, which is determined by looking at the first tex coord line.
      */
-    private void parseVariableVector(List<float[]> textureList, String line) {
+    private static void parseVariableVector(FloatArrayList textureList, AsciiTokenizer tokenizer) {
         try {
-            final String[] tokens = line.split(" +");
-            final float[] vector = new float[2];
-            vector[0] = Float.parseFloat(tokens[0]);
-            if (tokens.length > 1) {
-                vector[1] = Float.parseFloat(tokens[1]);
+            final float u = tokenizer.nextFloat();
+            float v = 0;
+            if (tokenizer.hasNext()) {
+                v = tokenizer.nextFloat();
                 // ignore 3d coordinate
-				/*if (tokens.length > 2) {
-					vector[2] = Float.parseFloat(tokens[2]);
-				}*/
             }
-            textureList.add(vector);
+            textureList.add(u, v);
         } catch (Exception ex) {
             Log.e("WavefrontLoader", ex.getMessage());
-            textureList.add(new float[2]);
+            textureList.add(0, 0);
         }
 
     }
 
+    private static boolean isIndexStart(char c) {
+        return c == '-' || (c >= '0' && c <= '9');
+    }
+
     /**
-     * get this face's indicies from line "f v/vt/vn ..." with vt or vn index values perhaps being absent.
+     * Parses the "f v/vt/vn ..." lines and triangulates the polygon.
+     * Corners are returned as v/vt/vn triplets of absolute indices (starting at 0, -1 if not available).
      */
-    private void parseFace(List<Vertex> vertexAttributes, List<Integer> indices,
-                           List<float[]> vertexList, List<float[]> normalsList, List<float[]> texturesList,
-                           String line, List<Vertex> currentSmoothingList) {
-        try {
+    private static final class FaceParser {
 
-            // cpu optimization
-            final String[] tokens;
-            if (line.contains("  ")) {
-                tokens = line.split(" +");
-            } else {
-                tokens = line.split(" ");
-            }
+        private final int triangulationMode;
 
-            // number of v/vt/vn tokens
-            final int numTokens = tokens.length;
+        // v/vt/vn for every polygon corner
+        private int[] polygon = new int[3 * 8];
 
-            for (int i = 0, faceIndex = 0; i < numTokens; i++, faceIndex++) {
+        // v/vt/vn for every triangle corner
+        private int[] corners = new int[3 * 3 * 6];
+        private int cornersSize;
 
-                // convert to triangles all polygons
-                if (faceIndex > 2) {
-                    // Converting polygon to triangle
-                    faceIndex = 0;
+        private FaceParser(int triangulationMode) {
+            this.triangulationMode = triangulationMode;
+        }
 
-                    i -= 2;
-                }
+        private int[] getCorners() {
+            return corners;
+        }
 
-                // triangulate polygon
-                final String faceToken;
-                if (this.triangulationMode == GLES20.GL_TRIANGLE_FAN) {
-                    // In FAN mode all meshObject shares the initial vertex
-                    if (faceIndex == 0) {
-                        faceToken = tokens[0];// get a v/vt/vn
-                    } else {
-                        faceToken = tokens[i]; // get a v/vt/vn
+        private int getCornersSize() {
+            return cornersSize;
+        }
+
+        /**
+         * get this face's indicies from line "f v/vt/vn ..." with vt or vn index values perhaps being absent.
+         *
+         * @param vertexCount  number of vertices defined so far (to resolve relative indices)
+         * @param textureCount number of texture coordinates defined so far
+         * @param normalCount  number of normals defined so far
+         * @return false if the face couldn't be parsed
+         */
+        private boolean parse(AsciiTokenizer tokenizer, int vertexCount, int textureCount, int normalCount) {
+            cornersSize = 0;
+            try {
+
+                // parse all v/vt/vn tokens
+                int numTokens = 0;
+                while (tokenizer.hasNext()) {
+
+                    if ((numTokens + 1) * 3 > polygon.length) {
+                        polygon = Arrays.copyOf(polygon, polygon.length * 2);
                     }
-                } else {
-                    // GL.GL_TRIANGLES | GL.GL_TRIANGLE_STRIP
-                    faceToken = tokens[i]; // get a v/vt/vn
-                }
 
-                // parse index tokens
-                // how many '/'s are there in the token
-                final String[] faceTokens = faceToken.split("/");
-                final int numSeps = faceTokens.length;
-
-                int vertIdx = Integer.parseInt(faceTokens[0]);
-                // A valid vertex index matches the corresponding vertex elements of a previously defined vertex list.
-                // If an index is positive then it refers to the offset in that vertex list, starting at 1.
-                // If an index is negative then it relatively refers to the end of the vertex list,
-                // -1 referring to the last element.
-                if (vertIdx < 0) {
-                    vertIdx = vertexList.size() + vertIdx;
-                } else {
-                    vertIdx--;
+                    // A valid vertex index matches the corresponding vertex elements of a previously defined vertex list.
+                    // If an index is positive then it refers to the offset in that vertex list, starting at 1.
+                    // If an index is negative then it relatively refers to the end of the vertex list,
+                    // -1 referring to the last element.
+                    int vertIdx = tokenizer.nextInt();
+                    vertIdx = vertIdx < 0 ? vertexCount + vertIdx : vertIdx - 1;
+
+                    int textureIdx = -1;
+                    int normalIdx = -1;
+                    if (tokenizer.skip('/')) {
+                        if (isIndexStart(tokenizer.peek())) {
+                            textureIdx = tokenizer.nextInt();
+                            textureIdx = textureIdx < 0 ? textureCount + textureIdx : textureIdx - 1;
+                        }
+                        if (tokenizer.skip('/') && isIndexStart(tokenizer.peek())) {
+                            normalIdx = tokenizer.nextInt();
+                            normalIdx = normalIdx < 0 ? normalCount + normalIdx : normalIdx - 1;
+                        }
+                    }
+
+                    polygon[numTokens * 3] = vertIdx;
+                    polygon[numTokens * 3 + 1] = textureIdx;
+                    polygon[numTokens * 3 + 2] = normalIdx;
+                    numTokens++;
                 }
 
-                int textureIdx = -1;
-                if (numSeps > 1 && faceTokens[1].length() > 0) {
-                    textureIdx = Integer.parseInt(faceTokens[1]);
-                    if (textureIdx < 0) {
-                        textureIdx = texturesList.size() + textureIdx;
+                for (int i = 0, faceIndex = 0; i < numTokens; i++, faceIndex++) {
+
+                    // convert to triangles all polygons
+                    if (faceIndex > 2) {
+                        // Converting polygon to triangle
+                        faceIndex = 0;
+
+                        i -= 2;
+                    }
+
+                    // triangulate polygon
+                    final int corner;
+                    if (this.triangulationMode == GLES20.GL_TRIANGLE_FAN) {
+                        // In FAN mode all meshObject shares the initial vertex
+                        if (faceIndex == 0) {
+                            corner = 0;// get a v/vt/vn
+                        } else {
+                            corner = i; // get a v/vt/vn
+                        }
                     } else {
-                        textureIdx--;
+                        // GL.GL_TRIANGLES | GL.GL_TRIANGLE_STRIP
+                        corner = i; // get a v/vt/vn
                     }
+
+                    // store the v/vt/vn for this corner
+                    if (cornersSize + 3 > corners.length) {
+                        corners = Arrays.copyOf(corners, corners.length * 2);
+                    }
+                    corners[cornersSize++] = polygon[corner * 3];
+                    corners[cornersSize++] = polygon[corner * 3 + 1];
+                    corners[cornersSize++] = polygon[corner * 3 + 2];
                 }
-                int normalIdx = -1;
-                if (numSeps > 2 && faceTokens[2].length() > 0) {
-                    normalIdx = Integer.parseInt(faceTokens[2]);
-                    if (normalIdx < 0) {
-                        normalIdx = normalsList.size() + normalIdx;
+                return true;
+            } catch (NumberFormatException e) {
+                Log.e("WavefrontLoader", e.getMessage(), e);
+                cornersSize = 0;
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Builds the meshes from the face corners and statements, which must be received in file order.
+     */
+    private static final class ModelBuilder {
+
+        private static final int NONE = 0;
+        private static final int OBJECT = 1;
+        private static final int GROUP = 2;
+        private static final int MATERIAL_LIB = 3;
+        private static final int USE_MATERIAL = 4;
+        private static final int SMOOTHING_GROUP = 5;
+
+        // primitive data
+        private final FloatArrayList vertexList;
+        private final FloatArrayList normalsList;
+        private final FloatArrayList textureList;
+
+        // mesh data
+        private final List<MeshData> meshes = new ArrayList<>();
+        private final List<Vertex> verticesAttributes = new ArrayList<>();
+
+        // material file
+        private String mtllib = null;
+
+        // smoothing groups
+        private final Map<String, List<Vertex>> smoothingGroups = new HashMap<>();
+        private List<Vertex> currentSmoothingList = null;
+
+        // mesh current
+        private MeshData.Builder meshCurrent;
+        private Element.Builder elementCurrent = new Element.Builder().id("default");
+        private IntArrayList indicesCurrent = new IntArrayList();
+        private boolean buildNewMesh = false;
+        private boolean buildNewElement = false;
+
+        private ModelBuilder(String id, FloatArrayList vertexList, FloatArrayList normalsList, FloatArrayList textureList) {
+            this.vertexList = vertexList;
+            this.normalsList = normalsList;
+            this.textureList = textureList;
+            this.meshCurrent = new MeshData.Builder().id(id);
+        }
+
+        private void corner(int vertexIdx, int textureIdx, int normalIdx) {
+
+            // create VertexAttribute
+            final Vertex vertexAttribute = new Vertex(vertexIdx);
+            vertexAttribute.setTextureIndex(textureIdx);
+            vertexAttribute.setNormalIndex(normalIdx);
+
+            // store the indices for this face
+            indicesCurrent.add(verticesAttributes.size());
+
+            // add VertexAtribute
+            verticesAttributes.add(vertexAttribute);
+
+            // smoothing
+            if (currentSmoothingList != null) {
+                currentSmoothingList.add(vertexAttribute);
+            }
+        }
+
+        private void statement(int type, String value) {
+            switch (type) {
+                case OBJECT:
+                    if (buildNewMesh) {
+                        // build mesh
+                        meshCurrent.vertices(vertexList).normals(normalsList).textures(textureList)
+                                .vertexAttributes(verticesAttributes)
+                                .materialFile(mtllib)
+                                .addElement(elementCurrent.indices(indicesCurrent).build());
+
+                        // add current mesh
+                        final MeshData build = meshCurrent.build();
+                        meshes.add(build);
+
+                        // log event
+                        Log.d("WavefrontLoader", "Loaded mesh. id:" + build.getId() + ", indices: " + indicesCurrent.size()
+                                + ", vertices:" + vertexList.size()
+                                + ", normals: " + normalsList.size()
+                                + ", textures:" + textureList.size()
+                                + ", elements: " + build.getElements());
+
+                        // next mesh
+                        meshCurrent = new MeshData.Builder().id(value);
+
+                        // next element
+                        elementCurrent = new Element.Builder();
+                        indicesCurrent = new IntArrayList();
                     } else {
-                        normalIdx--;
+                        meshCurrent.id(value);
+                        buildNewMesh = true;
                     }
-                }
+                    break;
+                case GROUP:
+                    if (buildNewElement && indicesCurrent.size() > 0) {
 
-                // create VertexAttribute
-                final Vertex vertexAttribute = new Vertex(vertIdx);
-                vertexAttribute.setNormalIndex(normalIdx);
-                vertexAttribute.setTextureIndex(textureIdx);
+                        // add current element
+                        elementCurrent.indices(indicesCurrent);
+                        meshCurrent.addElement(elementCurrent.build());
 
-                // add VertexAtribute
-                final int idx = vertexAttributes.size();
-                vertexAttributes.add(idx, vertexAttribute);
+                        // log event
+                        Log.d("WavefrontLoader", "New element. indices: " + indicesCurrent.size());
 
-                // store the indices for this face
-                indices.add(idx);
+                        // prepare next element
+                        indicesCurrent = new IntArrayList();
+                        elementCurrent = new Element.Builder().id(value);
+                    } else {
+                        elementCurrent.id(value);
+                        buildNewElement = true;
+                    }
+                    break;
+                case MATERIAL_LIB:
+                    mtllib = value;
+                    break;
+                case USE_MATERIAL:
+                    if (elementCurrent.getMaterialId() != null) {
+
+                        // change element since we are dealing with different material
+                        elementCurrent.indices(indicesCurrent);
+                        meshCurrent.addElement(elementCurrent.build());
+
+                        // log event
+                        Log.v("WavefrontLoader", "New material: " + value);
+
+                        // prepare next element
+                        indicesCurrent = new IntArrayList();
+                        elementCurrent = new Element.Builder().id(elementCurrent.getId());
+                    }
 
-                // smoothing
-                if (currentSmoothingList != null){
-                    currentSmoothingList.add(vertexAttribute);
-                }
+                    elementCurrent.materialId(value);
+                    break;
+                case SMOOTHING_GROUP:
+                    if ("0".equals(value) || "off".equals(value)) {
+                        currentSmoothingList = null;
+                    } else {
+                        currentSmoothingList = new ArrayList<>();
+                        smoothingGroups.put(value, currentSmoothingList);
+                    }
+                    break;
             }
-        } catch (NumberFormatException e) {
-            Log.e("WavefrontLoader", e.getMessage(), e);
+        }
+
+        private List<MeshData> build() {
+
+            // build mesh
+            final Element element = elementCurrent.indices(indicesCurrent).build();
+            final MeshData meshData = meshCurrent.vertices(vertexList).normals(normalsList).textures(textureList)
+                    .vertexAttributes(verticesAttributes).materialFile(mtllib)
+                    .addElement(element).smoothingGroups(smoothingGroups).build();
+
+            Log.i("WavefrontLoader", "Loaded mesh. id:" + meshData.getId() + ", indices: " + indicesCurrent.size()
+                    + ", vertices:" + vertexList.size()
+                    + ", normals: " + normalsList.size()
+                    + ", textures:" + textureList.size()
+                    + ", elements: " + meshData.getElements());
+
+            // add mesh
+            meshes.add(meshData);
+
+            // return all meshes
+            return meshes;
+        }
+    }
+
+    /**
+     * A range of lines of the file and the data parsed from it
+     */
+    private static final class Chunk {
+
+        // lines of the chunk. not changed by the tokenizers
+        private final ByteBuffer data;
+
+        // vectors defined in this chunk
+        private final FloatArrayList vertices = new FloatArrayList(3, 1024);
+        private final FloatArrayList normals = new FloatArrayList(3, 1024);
+        private final FloatArrayList textures = new FloatArrayList(2, 1024);
+
+        // number of vectors defined in the previous chunks
+        private int vertexBase;
+        private int normalBase;
+        private int textureBase;
+
+        // v/vt/vn of every triangle corner
+        private final IntArrayList corners = new IntArrayList(1024);
+
+        // statements, in file order
+        private final List<Statement> statements = new ArrayList<>();
+
+        private Chunk(ByteBuffer data) {
+            this.data = data;
         }
     }
 
+    /**
+     * An o/g/usemtl/s/mtllib line and the position where it was found
+     */
+    private static final class Statement {
+
+        // number of corner indices parsed before this statement
+        private final int corner;
+        private final int type;
+        private final String value;
+
+        private Statement(int corner, int type, String value) {
+            this.corner = corner;
+            this.type = type;
+            this.value = value;
+        }
+    }
 }
@@ -25,7 +25,8 @@ public class WavefrontLoaderTask extends LoaderTask {
     @Override
     protected List<Object3DData> build() {
 
-        final WavefrontLoader wfl = new WavefrontLoader(GLES20.GL_TRIANGLE_FAN, this);
+        final WavefrontLoader wfl = new WavefrontLoader(GLES20.GL_TRIANGLE_FAN, this,
+                Runtime.getRuntime().availableProcessors());
 
         super.publishProgress("Loading model...");
 
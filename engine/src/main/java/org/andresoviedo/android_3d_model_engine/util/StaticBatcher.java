@@ -0,0 +1,432 @@
+package org.andresoviedo.android_3d_model_engine.util;
+
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.util.Log;
+
+import org.andresoviedo.android_3d_model_engine.model.AnimatedModel;
+import org.andresoviedo.android_3d_model_engine.model.Element;
+import org.andresoviedo.android_3d_model_engine.model.Material;
+import org.andresoviedo.android_3d_model_engine.model.Object3DData;
+import org.andresoviedo.util.collection.IntArrayList;
+import org.andresoviedo.util.io.IOUtils;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges the static objects of the scene that are drawn with the same shader into batches, so scenes made of many
+ * small objects are drawn with a few draw calls. Every batch is a single object, with the vertices in world space and
+ * an element per material, so the elements of all the objects sharing the material are drawn at once.
+ * <p>
+ * The objects are kept in the scene, so picking still works with them. The batches remember which indices come from
+ * which object (see {@link #getSource(Object3DData, int, int)}), so an object that is hidden, selected or moved after
+ * the batching is removed from its batch and drawn on its own again.
+ * <p>
+ * Animated models, instanced models and objects not made of triangles are not batched.
+ *
+ * @author andresoviedo
+ */
+public final class StaticBatcher {
+
+    /**
+     * Max vertices per batch, so the indices fit in a short if unsigned int indices are not supported
+     */
+    public static final int MAX_VERTICES = 65536;
+
+    /**
+     * An object merged into a batch
+     */
+    private static final class Source {
+
+        private final Object3DData obj;
+        // the state the object was merged with
+        private final float[] modelMatrix;
+        private final FloatBuffer vertexBuffer;
+        private final FloatBuffer normalsBuffer;
+        // whether the object is drawn by the batch
+        private boolean included = true;
+
+        private Source(Object3DData obj) {
+            this.obj = obj;
+            this.modelMatrix = obj.getModelMatrix().clone();
+            this.vertexBuffer = obj.getVertexBuffer();
+            this.normalsBuffer = obj.getNormalsBuffer();
+        }
+
+        private boolean isUnchanged() {
+            return obj.getVertexBuffer() == vertexBuffer && obj.getNormalsBuffer() == normalsBuffer
+                    && Arrays.equals(modelMatrix, obj.getModelMatrix());
+        }
+    }
+
+    /**
+     * The indices of an object in an element of the batch
+     */
+    private static final class Slice {
+
+        private final Source source;
+        private final int first;
+        private final int count;
+
+        private Slice(Source source, int first, int count) {
+            this.source = source;
+            this.first = first;
+            this.count = count;
+        }
+    }
+
+    /**
+     * The indices of all the objects sharing a material
+     */
+    private static final class Part {
+
+        private final String id;
+        private final Material material;
+        private final IntArrayList indices = new IntArrayList();
+        private final List<Slice> slices = new ArrayList<>();
+
+        private Part(String id, Material material) {
+            this.id = id;
+            this.material = material;
+        }
+    }
+
+    private static final class Batch {
+
+        private final Object3DData obj;
+        private final List<Source> sources;
+        private final List<Part> parts;
+        // parts drawn, in the same order as the elements of the batch
+        private final List<Part> drawn = new ArrayList<>();
+
+        private Batch(Object3DData obj, List<Source> sources, List<Part> parts) {
+            this.obj = obj;
+            this.sources = sources;
+            this.parts = parts;
+        }
+    }
+
+    private final List<Object3DData> batches = new ArrayList<>();
+    private final Map<Object3DData, Batch> batchesByObject = new IdentityHashMap<>();
+    private final Map<Object3DData, Source> sources = new IdentityHashMap<>();
+
+    // draw calls of the batched objects, if they were drawn on their own
+    private int sourceDrawCalls;
+
+    /**
+     * Merge the static objects drawn with the same shader
+     *
+     * @param objects the objects of the scene
+     */
+    public StaticBatcher(List<Object3DData> objects) {
+
+        // group the objects by vertex attributes
+        final Map<String, List<Object3DData>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < objects.size(); i++) {
+            final Object3DData obj = objects.get(i);
+            if (!isBatchable(obj)) continue;
+            final String key = getKey(obj);
+            List<Object3DData> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(key, group);
+            }
+            group.add(obj);
+        }
+
+        // split the groups so the batches don't exceed the max vertices
+        for (List<Object3DData> group : groups.values()) {
+            int first = 0;
+            int vertices = 0;
+            for (int i = 0; i <= group.size(); i++) {
+                final int count = i < group.size() ? group.get(i).getVertexBuffer().capacity() / 3 : 0;
+                if (i == group.size() || vertices + count > MAX_VERTICES) {
+                    if (i - first > 1) {
+                        build(group.subList(first, i), vertices);
+                    }
+                    first = i;
+                    vertices = 0;
+                }
+                vertices += count;
+            }
+        }
+
+        // log event
+        Log.i("StaticBatcher", "Batched objects: " + sources.size() + ", batches: " + batches.size()
+                + ", draw calls: " + sourceDrawCalls + " -> " + getDrawCalls());
+    }
+
+    private static boolean isBatchable(Object3DData obj) {
+        if (obj.getDrawMode() != GLES20.GL_TRIANGLES || obj.getDrawModeList() != null || obj.getDrawSize() > 0) {
+            return false;
+        }
+        if (obj instanceof AnimatedModel && ((AnimatedModel) obj).getAnimation() != null) return false;
+        if (obj.getInstanceCount() != 0) return false;
+
+        // every attribute for every vertex
+        final FloatBuffer vertexBuffer = obj.getVertexBuffer();
+        if (vertexBuffer == null) return false;
+        final int vertices = vertexBuffer.capacity() / 3;
+        if (vertices == 0 || vertices > MAX_VERTICES) return false;
+        if (obj.getNormalsBuffer() != null && obj.getNormalsBuffer().capacity() != vertices * 3) return false;
+        if (obj.getColorsBuffer() != null && obj.getColorsBuffer().capacity() != vertices * 4) return false;
+        if (obj.getTextureBuffer() != null && obj.getTextureBuffer().capacity() != vertices * 2) return false;
+        return obj.isDrawUsingArrays() || obj.getElements() != null;
+    }
+
+    /**
+     * @return the key of the objects drawn with the same shader and uniforms
+     */
+    private static String getKey(Object3DData obj) {
+        return (obj.getNormalsBuffer() != null ? "n" : "")
+                + (obj.getTextureBuffer() != null ? "t" : "")
+                + (obj.getColorsBuffer() != null ? "c" + Arrays.toString(obj.getColor()) : "");
+    }
+
+    /**
+     * @return the material itself if it's textured, otherwise its color, so untextured materials are merged
+     */
+    private static Object getMaterialKey(Material material) {
+        if (material.getTextureId() != -1 || material.getTextureData() != null || material.getTextureFile() != null) {
+            return material;
+        }
+        return Arrays.toString(material.getColor());
+    }
+
+    private void build(List<Object3DData> group, int vertices) {
+        final Object3DData first = group.get(0);
+        final FloatBuffer vertexBuffer = IOUtils.createFloatBuffer(vertices * 3);
+        final FloatBuffer normalsBuffer = first.getNormalsBuffer() != null ? IOUtils.createFloatBuffer(vertices * 3) : null;
+        final FloatBuffer colorsBuffer = first.getColorsBuffer() != null ? IOUtils.createFloatBuffer(vertices * 4) : null;
+        final FloatBuffer textureBuffer = first.getTextureBuffer() != null ? IOUtils.createFloatBuffer(vertices * 2) : null;
+
+        final List<Source> batchSources = new ArrayList<>();
+        final Map<Object, Part> parts = new LinkedHashMap<>();
+        final float[] normalMatrix = new float[16];
+        int base = 0;
+        for (int i = 0; i < group.size(); i++) {
+            final Object3DData obj = group.get(i);
+            final Source source = new Source(obj);
+            batchSources.add(source);
+            sources.put(obj, source);
+            sourceDrawCalls += obj.isDrawUsingArrays() ? 1 : obj.getElements().size();
+
+            // vertices in world space
+            final float[] m = source.modelMatrix;
+            final FloatBuffer vertex = obj.getVertexBuffer();
+            final int count = vertex.capacity() / 3;
+            for (int v = 0; v < count; v++) {
+                final float x = vertex.get(v * 3), y = vertex.get(v * 3 + 1), z = vertex.get(v * 3 + 2);
+                vertexBuffer.put((base + v) * 3, m[0] * x + m[4] * y + m[8] * z + m[12]);
+                vertexBuffer.put((base + v) * 3 + 1, m[1] * x + m[5] * y + m[9] * z + m[13]);
+                vertexBuffer.put((base + v) * 3 + 2, m[2] * x + m[6] * y + m[10] * z + m[14]);
+            }
+
+            // normals with the inverse transpose, so they keep perpendicular if the scale is not uniform
+            if (normalsBuffer != null) {
+                if (!Matrix.invertM(normalMatrix, 0, m, 0)) {
+                    Matrix.transposeM(normalMatrix, 0, m, 0);
+                }
+                final FloatBuffer normal = obj.getNormalsBuffer();
+                for (int v = 0; v < count; v++) {
+                    final float x = normal.get(v * 3), y = normal.get(v * 3 + 1), z = normal.get(v * 3 + 2);
+                    final float nx = normalMatrix[0] * x + normalMatrix[1] * y + normalMatrix[2] * z;
+                    final float ny = normalMatrix[4] * x + normalMatrix[5] * y + normalMatrix[6] * z;
+                    final float nz = normalMatrix[8] * x + normalMatrix[9] * y + normalMatrix[10] * z;
+                    final float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+                    final float scale = length > 0 ? 1 / length : 0;
+                    normalsBuffer.put((base + v) * 3, nx * scale);
+                    normalsBuffer.put((base + v) * 3 + 1, ny * scale);
+                    normalsBuffer.put((base + v) * 3 + 2, nz * scale);
+                }
+            }
+            if (colorsBuffer != null) {
+                for (int j = 0; j < count * 4; j++) {
+                    colorsBuffer.put(base * 4 + j, obj.getColorsBuffer().get(j));
+                }
+            }
+            if (textureBuffer != null) {
+                for (int j = 0; j < count * 2; j++) {
+                    textureBuffer.put(base * 2 + j, obj.getTextureBuffer().get(j));
+                }
+            }
+
+            // indices, by material
+            if (obj.isDrawUsingArrays()) {
+                final Part part = getPart(parts, obj.getMaterial(), obj);
+                final int start = part.indices.size();
+                for (int v = 0; v < count; v++) {
+                    part.indices.add(base + v);
+                }
+                part.slices.add(new Slice(source, start, count));
+            } else {
+                for (int e = 0; e < obj.getElements().size(); e++) {
+                    final Element element = obj.getElements().get(e);
+                    final Part part = getPart(parts, element.getMaterial(), obj);
+                    final IntBuffer indices = element.getIndexBuffer();
+                    final int start = part.indices.size();
+                    for (int j = 0; j < indices.capacity(); j++) {
+                        part.indices.add(base + indices.get(j));
+                    }
+                    part.slices.add(new Slice(source, start, indices.capacity()));
+                }
+            }
+            base += count;
+        }
+
+        final Object3DData obj = new Object3DData(vertexBuffer);
+        obj.setNormalsBuffer(normalsBuffer);
+        obj.setColorsBuffer(colorsBuffer);
+        obj.setTextureBuffer(textureBuffer);
+        obj.setDrawMode(GLES20.GL_TRIANGLES);
+        obj.setDrawUsingArrays(false);
+        obj.setId("batch_" + batches.size());
+        if (colorsBuffer != null) {
+            obj.setColor(first.getColor());
+        }
+
+        final Batch batch = new Batch(obj, batchSources, new ArrayList<>(parts.values()));
+        rebuild(batch);
+        batches.add(obj);
+        batchesByObject.put(obj, batch);
+    }
+
+    private static Part getPart(Map<Object, Part> parts, Material material, Object3DData obj) {
+
+        // elements without material are drawn with the material of the object. The first material with the key is used
+        final Material partMaterial = material != null ? material : obj.getMaterial();
+        final Object key = getMaterialKey(partMaterial);
+        Part part = parts.get(key);
+        if (part == null) {
+            part = new Part("batch_element_" + parts.size(), partMaterial);
+            parts.put(key, part);
+        }
+        return part;
+    }
+
+    /**
+     * Build the elements of the batch with the indices of the objects drawn by the batch
+     */
+    private static void rebuild(Batch batch) {
+        final List<Element> elements = new ArrayList<>();
+        batch.drawn.clear();
+        for (int i = 0; i < batch.parts.size(); i++) {
+            final Part part = batch.parts.get(i);
+            int count = 0;
+            for (int s = 0; s < part.slices.size(); s++) {
+                if (part.slices.get(s).source.included) count += part.slices.get(s).count;
+            }
+            if (count == 0) continue;
+
+            final IntBuffer indices = IOUtils.createIntBuffer(count);
+            for (int s = 0; s < part.slices.size(); s++) {
+                final Slice slice = part.slices.get(s);
+                if (slice.source.included) {
+                    indices.put(part.indices.array(), slice.first, slice.count);
+                }
+            }
+            indices.position(0);
+
+            final Element element = new Element(part.id, indices, null);
+            element.setMaterial(part.material);
+            elements.add(element);
+            batch.drawn.add(part);
+        }
+        batch.obj.setElements(elements);
+        batch.obj.setVisible(!elements.isEmpty());
+    }
+
+    /**
+     * Remove from the batches the objects hidden, moved or modified since they were merged, so they are drawn on their
+     * own, and add them again when they are back to the batched state. This is called every frame before drawing.
+     *
+     * @param excluded an object not to be drawn by the batches (i.e. the selected object) or null
+     */
+    public void update(Object3DData excluded) {
+        for (int i = 0; i < batches.size(); i++) {
+            final Batch batch = batchesByObject.get(batches.get(i));
+            boolean changed = false;
+            for (int s = 0; s < batch.sources.size(); s++) {
+                final Source source = batch.sources.get(s);
+                final boolean included = source.obj.isVisible() && source.obj != excluded && source.isUnchanged();
+                if (included != source.included) {
+                    source.included = included;
+                    changed = true;
+                }
+            }
+            if (changed) {
+                Log.d("StaticBatcher", "Rebuilding batch: " + batch.obj.getId());
+                rebuild(batch);
+            }
+        }
+    }
+
+    /**
+     * @return the batches to draw
+     */
+    public List<Object3DData> getBatches() {
+        return batches;
+    }
+
+    /**
+     * @return true if the object is drawn by a batch, so it must not be drawn on its own
+     */
+    public boolean isBatched(Object3DData obj) {
+        final Source source = sources.get(obj);
+        return source != null && source.included;
+    }
+
+    /**
+     * @param batch   the batch
+     * @param element the element of the batch
+     * @param index   the position in the index buffer of the element (i.e. the first index of the triangle)
+     * @return the object drawn at the index, or null if the batch is unknown or the index is out of bounds
+     */
+    public Object3DData getSource(Object3DData batch, int element, int index) {
+        final Batch ret = batchesByObject.get(batch);
+        if (ret == null || element < 0 || element >= ret.drawn.size() || index < 0) return null;
+        final List<Slice> slices = ret.drawn.get(element).slices;
+        for (int s = 0; s < slices.size(); s++) {
+            final Slice slice = slices.get(s);
+            if (!slice.source.included) continue;
+            if (index < slice.count) return slice.source.obj;
+            index -= slice.count;
+        }
+        return null;
+    }
+
+    /**
+     * @return the draw calls of the batched objects, if they were drawn one by one
+     */
+    public int getSourceDrawCalls() {
+        return sourceDrawCalls;
+    }
+
+    /**
+     * @return the draw calls of the visible batches
+     */
+    public int getDrawCalls() {
+        int ret = 0;
+        for (int i = 0; i < batches.size(); i++) {
+            ret += batches.get(i).isVisible() ? batches.get(i).getElements().size() : 0;
+        }
+        return ret;
+    }
+
+    @Override
+    public String toString() {
+        return "StaticBatcher{" +
+                "objects=" + sources.size() +
+                ", batches=" + batches.size() +
+                ", sourceDrawCalls=" + sourceDrawCalls +
+                ", drawCalls=" + getDrawCalls() +
+                '}';
+    }
+}
@@ -0,0 +1,204 @@
+package org.andresoviedo.android_3d_model_engine.util;
+
+import org.andresoviedo.android_3d_model_engine.model.Element;
+import org.andresoviedo.android_3d_model_engine.services.collada.entities.Vertex;
+import org.andresoviedo.util.collection.FloatArrayList;
+import org.andresoviedo.util.collection.IntArrayList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Merges the face corners that reference the same (position, texture, normal, color) indices into a single vertex,
+ * so the element indices do really share the vertex data.
+ * <p>
+ * Loaders create a new {@link Vertex} for every face corner, so before welding there are as many vertices as indices.
+ * The lookup uses an open addressing hash table over primitive arrays, so there is no boxing and no per entry object.
+ * <p>
+ * Some exporters (i.e. blender collada) write one texture coordinate, normal or color per face corner, so the
+ * indices are never repeated. For those, the attributes with the exact same value are first mapped to the same index.
+ * Positions are always welded by index, since skinning data is linked to the position index.
+ *
+ * @author andresoviedo
+ */
+public final class VertexWelder {
+
+    private static final int EMPTY = -1;
+
+    private VertexWelder() {
+    }
+
+    /**
+     * Weld the vertices referenced by the elements. Element indices are rewritten in place to point to the welded list.
+     * Vertices not referenced by any element are not copied to the welded list.
+     *
+     * @param vertices the vertex attributes, one per face corner
+     * @param elements the elements indexing the vertex attributes
+     * @param welded   the list where the unique vertices are added, in order of first appearance
+     * @param textures texture coordinates, so equal values are welded too (optional)
+     * @param normals  normals, so equal values are welded too (optional)
+     * @param colors   colors, so equal values are welded too (optional)
+     * @return the old to new index mapping (<code>-1</code> for not referenced vertices)
+     */
+    public static int[] weld(List<Vertex> vertices, List<Element> elements, List<Vertex> welded,
+                             FloatArrayList textures, FloatArrayList normals, FloatArrayList colors) {
+
+        // map every attribute to the first one with the same value
+        final int[] texturesRemap = canonical(textures);
+        final int[] normalsRemap = canonical(normals);
+        final int[] colorsRemap = canonical(colors);
+
+        final int[] remap = new int[vertices.size()];
+        Arrays.fill(remap, EMPTY);
+
+        // hash table (power of 2, load factor <= 0.5)
+        int capacity = 16;
+        while (capacity < vertices.size() * 2) capacity <<= 1;
+        final int mask = capacity - 1;
+        final int[] table = new int[capacity];
+        Arrays.fill(table, EMPTY);
+
+        // keys of the welded vertices (vertex, texture, normal, color)
+        final IntArrayList keys = new IntArrayList(vertices.size());
+
+        for (Element element : elements) {
+
+            final IntArrayList indices = element.getIndices();
+            final int[] data = indices.array();
+            for (int i = 0; i < indices.size(); i++) {
+
+                // already welded?
+                final int idx = data[i];
+                if (remap[idx] != EMPTY) {
+                    data[i] = remap[idx];
+                    continue;
+                }
+
+                final Vertex vertex = vertices.get(idx);
+                final int v = vertex.getVertexIndex();
+                final int t = remap(texturesRemap, vertex.getTextureIndex());
+                final int n = remap(normalsRemap, vertex.getNormalIndex());
+                final int c = remap(colorsRemap, vertex.getColorIndex());
+
+                // linear probing
+                final int[] keysData = keys.array();
+                int slot = hash(v, t, n, c) & mask;
+                int found = EMPTY;
+                while (table[slot] != EMPTY) {
+                    final int candidate = table[slot];
+                    final int k = candidate * 4;
+                    if (keysData[k] == v && keysData[k + 1] == t && keysData[k + 2] == n && keysData[k + 3] == c) {
+                        found = candidate;
+                        break;
+                    }
+                    slot = (slot + 1) & mask;
+                }
+
+                // new vertex
+                if (found == EMPTY) {
+                    found = welded.size();
+                    table[slot] = found;
+                    keys.add(v);
+                    keys.add(t);
+                    keys.add(n);
+                    keys.add(c);
+                    welded.add(vertex);
+                }
+
+                remap[idx] = found;
+                data[i] = found;
+            }
+        }
+
+        return remap;
+    }
+
+    /**
+     * Convenience method for {@link #weld(List, List, List, FloatArrayList, FloatArrayList, FloatArrayList)}
+     * that only welds by index
+     *
+     * @return the welded vertices
+     */
+    public static List<Vertex> weld(List<Vertex> vertices, List<Element> elements) {
+        final List<Vertex> welded = new ArrayList<>();
+        weld(vertices, elements, welded, null, null, null);
+        return welded;
+    }
+
+    /**
+     * Map every vector to the index of the first vector with the same value (bit by bit)
+     *
+     * @param list the vectors
+     * @return the index mapping or <code>null</code> if there is no list
+     */
+    static int[] canonical(FloatArrayList list) {
+        if (list == null || list.isEmpty()) return null;
+
+        final int size = list.size();
+        final int stride = list.getStride();
+        final float[] data = list.array();
+        final int[] ret = new int[size];
+
+        int capacity = 16;
+        while (capacity < size * 2) capacity <<= 1;
+        final int mask = capacity - 1;
+        final int[] table = new int[capacity];
+        Arrays.fill(table, EMPTY);
+
+        for (int i = 0; i < size; i++) {
+            final int offset = i * stride;
+            int h = 0;
+            for (int c = 0; c < stride; c++) {
+                h = h * 0x9E3779B1 + Float.floatToIntBits(data[offset + c]);
+            }
+
+            // linear probing
+            int slot = mix(h) & mask;
+            int found = EMPTY;
+            while (table[slot] != EMPTY) {
+                final int candidate = table[slot];
+                if (equals(data, candidate * stride, offset, stride)) {
+                    found = candidate;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (found == EMPTY) {
+                table[slot] = i;
+                found = i;
+            }
+            ret[i] = found;
+        }
+        return ret;
+    }
+
+    private static boolean equals(float[] data, int offset1, int offset2, int stride) {
+        for (int c = 0; c < stride; c++) {
+            if (Float.floatToIntBits(data[offset1 + c]) != Float.floatToIntBits(data[offset2 + c])) return false;
+        }
+        return true;
+    }
+
+    private static int remap(int[] remap, int index) {
+        return remap != null && index >= 0 && index < remap.length ? remap[index] : index;
+    }
+
+    private static int hash(int v, int t, int n, int c) {
+        int h = v;
+        h = h * 0x9E3779B1 + t;
+        h = h * 0x9E3779B1 + n;
+        h = h * 0x9E3779B1 + c;
+        return mix(h);
+    }
+
+    // murmur3 finalizer
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -5,13 +5,27 @@ import java.util.EventObject;
 public class FPSEvent extends EventObject {
 
     private final int fps;
+    private final long maxFrameTime;
 
     public FPSEvent(Object source, int fps) {
+        this(source, fps, 0);
+    }
+
+    /**
+     * @param fps          frames per second
+     * @param maxFrameTime worst frame time in the last second (ms)
+     */
+    public FPSEvent(Object source, int fps, long maxFrameTime) {
         super(source);
         this.fps = fps;
+        this.maxFrameTime = maxFrameTime;
     }
 
     public int getFps() {
         return fps;
     }
+
+    public long getMaxFrameTime() {
+        return maxFrameTime;
+    }
 }
@@ -7,13 +7,15 @@ import android.opengl.Matrix;
 import android.os.SystemClock;
 import android.util.Log;
 
-import org.andresoviedo.android_3d_model_engine.animation.Animator;
+import org.andresoviedo.android_3d_model_engine.drawer.CpuSkinning;
+import org.andresoviedo.android_3d_model_engine.drawer.GLValidator;
 import org.andresoviedo.android_3d_model_engine.drawer.Renderer;
 import org.andresoviedo.android_3d_model_engine.drawer.RendererFactory;
+import org.andresoviedo.android_3d_model_engine.drawer.VertexLayout;
 import org.andresoviedo.android_3d_model_engine.model.AnimatedModel;
 import org.andresoviedo.android_3d_model_engine.model.Camera;
 import org.andresoviedo.android_3d_model_engine.model.Constants;
-import org.andresoviedo.android_3d_model_engine.model.Element;
+import org.andresoviedo.android_3d_model_engine.model.Material;
 import org.andresoviedo.android_3d_model_engine.model.Object3DData;
 import org.andresoviedo.android_3d_model_engine.model.Projection;
 import org.andresoviedo.android_3d_model_engine.objects.Axis;
@@ -25,15 +27,17 @@ import org.andresoviedo.android_3d_model_engine.objects.Skeleton;
 import org.andresoviedo.android_3d_model_engine.objects.SkyBox;
 import org.andresoviedo.android_3d_model_engine.objects.Wireframe;
 import org.andresoviedo.android_3d_model_engine.services.SceneLoader;
+import org.andresoviedo.android_3d_model_engine.services.texture.TextureLoader;
 import org.andresoviedo.android_3d_model_engine.util.Rescaler;
+import org.andresoviedo.android_3d_model_engine.util.StaticBatcher;
 import org.andresoviedo.util.android.AndroidUtils;
 import org.andresoviedo.util.android.ContentUtils;
 import org.andresoviedo.util.android.GLUtil;
 import org.andresoviedo.util.event.EventListener;
+import org.andresoviedo.util.math.Frustum;
 import org.andresoviedo.util.math.Math3DUtils;
 import org.andresoviedo.util.math.Quaternion;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -51,6 +55,8 @@ public class ModelRenderer implements GLSurfaceView.Renderer {
     private static final float[] BLENDING_MASK_DEFAULT = {1.0f, 1.0f, 1.0f, 1.0f};
     // Add 0.5f to the alpha component to the global shader so we can see through the skin
     private static final float[] BLENDING_MASK_FORCED = {1.0f, 1.0f, 1.0f, 0.5f};
+    // programs compiled ahead per frame, for the objects loaded
+    private static final int WARM_UP_BUDGET = 1;
 
     private final float[] backgroundColor;
     private final SceneLoader scene;
@@ -71,17 +77,22 @@ public class ModelRenderer implements GLSurfaceView.Renderer {
      * Drawer factory to get right renderer/shader based on object attributes
      */
     private final RendererFactory drawer;
+    // scene objects are queued and drawn sorted by render state
+    private boolean queueing = false;
+    // scene objects out of view are not drawn
+    private final Frustum frustum = new Frustum();
+    private final float[] frustumMatrix = new float[16];
 
     // frames per second
     private long framesPerSecondTime = -1;
     private int framesPerSecond = 0;
     private int framesPerSecondCounter = 0;
+    // worst frame time (ms) in the last second
+    private long maxFrameTime = 0;
 
 
     // The wireframe associated shape (it should be made of lines only)
     private Map<Object3DData, Object3DData> wireframes = new HashMap<>();
-    // The loaded textures
-    private Map<Object, Integer> textures = new HashMap<>();
     // The corresponding opengl bounding boxes and drawer
     private Map<Object3DData, Object3DData> boundingBoxes = new HashMap<>();
     // The corresponding opengl bounding boxes
@@ -143,6 +154,11 @@ public class ModelRenderer implements GLSurfaceView.Renderer {
     private boolean colorsEnabled = true;
     private boolean animationEnabled = true;
 
+    // opengl error checking
+    private volatile GLValidator.Mode glValidation = GLValidator.Mode.OFF;
+    private volatile int glValidationSampleRate = GLValidator.DEFAULT_SAMPLE_RATE;
+    private volatile VertexLayout.Format vertexFormat = VertexLayout.Format.SEPARATE;
+
     // skybox
     private boolean isDrawSkyBox = true;
     private int isUseskyBoxId = 0;
@@ -165,10 +181,6 @@ public class ModelRenderer implements GLSurfaceView.Renderer {
      */
     private Projection projection = Projection.PERSPECTIVE;
 
-    /**
-     * Skeleton Animator
-     */
-    private Animator animator = new Animator();
     /**
      * Did the application explode?
      */
@@ -286,6 +298,21 @@ public class ModelRenderer implements GLSurfaceView.Renderer {
         this.wireframeEnabled = !wireframeEnabled;
     }
 
+    /**
+     * Set the OpenGL error checking. It takes effect when the surface is created
+     *
+     * @param mode       off (default), sampled or full
+     * @param sampleRate number of frames between checked frames, for {@link GLValidator.Mode#SAMPLED}
+     */
+    public void setGLValidation(GLValidator.Mode mode, int sampleRate) {
+        this.glValidation = mode;
+        this.glValidationSampleRate = sampleRate;
+    }
+
+    public void setVertexFormat(VertexLayout.Format format) {
+        this.vertexFormat = format;
+    }
+
     public void toggleTextures() {
         this.texturesEnabled = !texturesEnabled;
     }
@@ -322,6 +349,23 @@ public class ModelRenderer implements GLSurfaceView.Renderer {
         ContentUtils.setThreadActivity(main.getContext());
         skyBoxes = new SkyBox[]{SkyBox.getSkyBox1(), SkyBox.getSkyBox2()};
         skyBoxes3D = new Object3DData[skyBoxes.length];
+
+        // buffer objects and textures of the previous context (if any) are gone
+        drawer.getBuffers().clear();
+        if (scene != null) {
+            scene.getTextureLoader().reset();
+        }
+
+        // drawers are built for the new context, with the error checking
+        drawer.setValidation(glValidation, glValidationSampleRate);
+        if (scene != null) {
+            scene.getTextureLoader().setGL(drawer.getStateTracker().getGL());
+        }
+
+        // skeletons with more joints than the vertex shader can hold are skinned on the cpu
+        final int[] maxVertexUniformVectors = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_VERTEX_UNIFORM_VECTORS, maxVertexUniformVectors, 0);
+        drawer.getSkinning().setMaxJoints(CpuSkinning.getMaxJoints(maxVertexUniformVectors[0]));
     }
 
     @Override
@@ -347,6 +391,7 @@ public class ModelRenderer implements GLSurfaceView.Renderer {
         if (fatalException) {
             return;
         }
+        final long frameStartTime = SystemClock.elapsedRealtime();
         try {
 
             GLES20.glViewport(0, 0, width, height);
@@ -362,6 +407,14 @@ public class ModelRenderer implements GLSurfaceView.Renderer {
                 return;
             }
 
+            // upload the decoded textures, without exceeding the frame budget
+            scene.getTextureLoader().upload(TextureLoader.DEFAULT_UPLOAD_BUDGET);
+            drawer.beginFrame();
+            drawer.getBuffers().setVertexFormat(vertexFormat);
+
+            // compile the programs of the objects loaded, before they are needed
+            drawer.warmUp(scene.getObjects(), WARM_UP_BUDGET);
+
             float[] colorMask = BLENDING_MASK_DEFAULT;
             if (scene.isBlendingEnabled()) {
                 // Enable blending for combining colors when there is transparency
@@ -398,6 +451,9 @@ public class ModelRenderer implements GLSurfaceView.Renderer {
                         camera.getzView(), camera.getxUp(), camera.getyUp(), camera.getzUp());
                 Matrix.multiplyMM(viewProjectionMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
 
+                // level of detail of the animations
+                scene.getAnimationSystem().setViewProjection(viewProjectionMatrix);
+
                 if (scene.isStereoscopic()) {
                     Camera[] stereoCamera = camera.toStereo(Constants.EYE_DISTANCE);
                     Camera leftCamera = stereoCamera[0];
@@ -482,6 +538,10 @@ public class ModelRenderer implements GLSurfaceView.Renderer {
             Log.e("ModelRenderer", "Fatal error: " + err.getMessage(), err);
             fatalException = true;
         } finally {
+            // delete the buffers of the objects no longer drawn
+            drawer.endFrame();
+
+            maxFrameTime = Math.max(maxFrameTime, SystemClock.elapsedRealtime() - frameStartTime);
             if (framesPerSecondTime == -1) {
                 framesPerSecondTime = SystemClock.elapsedRealtime();
                 framesPerSecondCounter++;
@@ -489,7 +549,23 @@ public class ModelRenderer implements GLSurfaceView.Renderer {
                 framesPerSecond = framesPerSecondCounter;
                 framesPerSecondCounter = 1;
                 framesPerSecondTime = SystemClock.elapsedRealtime();
-                AndroidUtils.fireEvent(listeners, new FPSEvent(this, framesPerSecond));
+                Log.v("ModelRenderer", "fps: " + framesPerSecond + ", max frame time: " + maxFrameTime + " ms"
+                        + ", gl validation: " + glValidation);
+                if (drawer.getValidator() != null) {
+                    Log.v("ModelRenderer", "validation: " + drawer.getValidator());
+                }
+                if (scene != null) {
+                    Log.v("ModelRenderer", "textures: " + scene.getTextureLoader().getManager());
+                    if (scene.getBatcher() != null) {
+                        Log.v("ModelRenderer", "batches: " + scene.getBatcher());
+                    }
+                }
+                Log.v("ModelRenderer", "buffers: " + drawer.getBuffers());
+                Log.v("ModelRenderer", "programs: " + drawer.getPrograms());
+                Log.v("ModelRenderer", "state changes: " + drawer.getStateTracker());
+                Log.v("ModelRenderer", "draws: " + drawer.getRenderQueue());
+                AndroidUtils.fireEvent(listeners, new FPSEvent(this, framesPerSecond, maxFrameTime));
+                maxFrameTime = 0;
             } else {
                 framesPerSecondCounter++;
             }
@@ -543,10 +619,34 @@ public class ModelRenderer implements GLSurfaceView.Renderer {
             }
         }
 
-        // draw all available objects
+        // draw all available objects in view, sorted by render state
+        Matrix.multiplyMM(frustumMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
+        frustum.update(frustumMatrix);
+        drawer.getRenderQueue().setFrustum(frustum);
         List<Object3DData> objects = scene.getObjects();
-        for (int i = 0; i < objects.size(); i++) {
-            drawObject(viewMatrix, projectionMatrix, lightPosInWorldSpace, colorMask, cameraPosInWorldSpace, doAnimation, drawLighting, drawWireframe, drawTextures, drawColors, objects, i);
+
+        // batches are only drawn as solids. Objects removed from the batches are drawn on their own
+        final StaticBatcher batcher = scene.getBatcher();
+        final boolean batching = batcher != null && !drawWireframe && !scene.isDrawPoints()
+                && !scene.isDrawBoundingBox() && !scene.isDrawNormals() && !scene.isDrawSkeleton();
+        if (batching) {
+            batcher.update(scene.getSelectedObject());
+        }
+        queueing = true;
+        try {
+            if (batching) {
+                final List<Object3DData> batches = batcher.getBatches();
+                for (int i = 0; i < batches.size(); i++) {
+                    drawObject(viewMatrix, projectionMatrix, lightPosInWorldSpace, colorMask, cameraPosInWorldSpace, doAnimation, drawLighting, drawWireframe, drawTextures, drawColors, batches, i);
+                }
+            }
+            for (int i = 0; i < objects.size(); i++) {
+                if (batching && batcher.isBatched(objects.get(i))) continue;
+                drawObject(viewMatrix, projectionMatrix, lightPosInWorldSpace, colorMask, cameraPosInWorldSpace, doAnimation, drawLighting, drawWireframe, drawTextures, drawColors, objects, i);
+            }
+        } finally {
+            queueing = false;
+            drawer.getRenderQueue().flush();
         }
 
         // draw all GUI objects
@@ -589,6 +689,7 @@ public class ModelRenderer implements GLSurfaceView.Renderer {
                 if (skyBoxes3D[skyBoxId] == null) {
                     Log.i("ModelRenderer", "Loading sky box textures to GPU... skybox: " + skyBoxId);
                     int textureId = GLUtil.loadCubeMap(skyBoxes[skyBoxId].getCubeMap());
+                    drawer.getStateTracker().invalidateTextures();
                     Log.d("ModelRenderer", "Loaded textures to GPU... id: " + textureId);
                     if (textureId != -1) {
                         skyBoxes3D[skyBoxId] = SkyBox.build(skyBoxes[skyBoxId]);
@@ -635,7 +736,13 @@ public class ModelRenderer implements GLSurfaceView.Renderer {
             }
 
 
-            Renderer drawerObject = drawer.getDrawer(objData, false, drawTextures, drawLighting, doAnimation, drawColors);
+            // skeletons not fitting in the vertex shader are skinned on the cpu
+            Object3DData drawData = objData;
+            if (doAnimation && drawer.getSkinning().isRequired(objData)) {
+                drawData = drawer.getSkinning().skin((AnimatedModel) objData);
+            }
+
+            Renderer drawerObject = drawer.getDrawer(drawData, false, drawTextures, drawLighting, doAnimation, drawColors);
             if (drawerObject == null) {
                 if (!infoLogged.containsKey(objData.getId() + "drawer")) {
                     Log.e("ModelRenderer", "No drawer for " + objData.getId());
@@ -647,55 +754,40 @@ public class ModelRenderer implements GLSurfaceView.Renderer {
             boolean changed = objData.isChanged();
             objData.setChanged(false);
 
-            // load textures
-            Integer textureId = null;
+            // textures are decoded in background and uploaded at the beginning of the frame
+            int textureId = -1;
             if (drawTextures) {
 
                 // TODO: move texture loading to Renderer
+                final TextureLoader textureLoader = scene.getTextureLoader();
                 if (objData.getElements() != null) {
 
                     for (int e = 0; e < objData.getElements().size(); e++) {
-                        Element element = objData.getElements().get(e);
+                        Material material = objData.getElements().get(e).getMaterial();
 
                         // check required info
-                        if (element.getMaterial() == null || element.getMaterial().getTextureData() == null)
-                            continue;
-
-                        // check if texture is already binded
-                        textureId = textures.get(element.getMaterial().getTextureData());
-                        if (textureId != null) continue;
-
-                        // bind texture
-                        Log.i("ModelRenderer", "Loading material texture for element... '" + element);
-                        textureId = GLUtil.loadTexture(element.getMaterial().getTextureData());
-                        element.getMaterial().setTextureId(textureId);
+                        if (material == null) continue;
 
-                        // cache texture
-                        textures.put(element.getMaterial().getTextureData(), textureId);
+                        // bind texture, if it's already uploaded
+                        if (material.getTextureId() == -1 && material.getTextureData() != null
+                                && textureLoader.bind(material) != -1) {
 
-                        // log event
-                        Log.i("ModelRenderer", "Loaded material texture for element. id: " + textureId);
-
-                        // FIXME: we have to set this, otherwise the RendererFactory won't return textured shader
-                        objData.setTextureData(element.getMaterial().getTextureData());
+                            // log event
+                            Log.i("ModelRenderer", "Loaded material texture for element. id: " + material.getTextureId());
+                        }
+                        if (material.getTextureId() != -1) {
+                            textureId = material.getTextureId();
+                        }
                     }
-                } else {
-                    textureId = textures.get(objData.getTextureData());
-                    if (textureId == null && objData.getTextureData() != null) {
-                        Log.i("ModelRenderer", "Loading texture for obj: '" + objData.getId() + "'... bytes: " + objData.getTextureData().length);
-                        ByteArrayInputStream textureIs = new ByteArrayInputStream(objData.getTextureData());
-                        textureId = GLUtil.loadTexture(textureIs);
-                        textureIs.close();
-                        textures.put(objData.getTextureData(), textureId);
-                        objData.getMaterial().setTextureId(textureId);
-
-                        Log.i("ModelRenderer", "Loaded texture OK. id: " + textureId);
+                } else if (objData.getMaterial() != null) {
+                    Material material = objData.getMaterial();
+                    if (material.getTextureId() == -1 && material.getTextureData() != null
+                            && textureLoader.bind(material) != -1) {
+                        Log.i("ModelRenderer", "Loaded texture OK. id: " + material.getTextureId());
                     }
+                    textureId = material.getTextureId();
                 }
             }
-            if (textureId == null) {
-                textureId = -1;
-            }
 
             // draw points
             if (objData.getDrawMode() == GLES20.GL_POINTS) {
@@ -718,8 +810,7 @@ public class ModelRenderer implements GLSurfaceView.Renderer {
                             wireframes.put(objData, wireframe);
                             Log.i("ModelRenderer", "Wireframe build: " + wireframe);
                         }
-                        animator.update(wireframe, scene.isShowBindPose());
-                        drawerObject.draw(wireframe, projectionMatrix, viewMatrix, wireframe.getDrawMode(), wireframe.getDrawSize(), textureId, lightPosInWorldSpace, colorMask, cameraPosInWorldSpace);
+                        draw(drawerObject, wireframe, projectionMatrix, viewMatrix, wireframe.getDrawMode(), wireframe.getDrawSize(), textureId, lightPosInWorldSpace, colorMask, cameraPosInWorldSpace);
                         //objData.render(drawer, lightPosInWorldSpace, colorMask);
                     } catch (Error e) {
                         Log.e("ModelRenderer", e.getMessage(), e);
@@ -728,7 +819,7 @@ public class ModelRenderer implements GLSurfaceView.Renderer {
 
                 // draw points
                 else if (scene.isDrawPoints()) {
-                    drawerObject.draw(objData, projectionMatrix, viewMatrix
+                    draw(drawerObject, drawData, projectionMatrix, viewMatrix
                             , GLES20.GL_POINTS, objData.getDrawSize(),
                             textureId, lightPosInWorldSpace, colorMask, cameraPosInWorldSpace);
                     objData.render(drawer, scene.getCamera(), lightPosInWorldSpace, colorMask);
@@ -739,9 +830,10 @@ public class ModelRenderer implements GLSurfaceView.Renderer {
                         .getAnimation() != null) {
 
                     // draw the original object a bit transparent
-                    drawerObject.draw(objData, projectionMatrix, viewMatrix,  textureId, lightPosInWorldSpace, Constants.COLOR_HALF_TRANSPARENT, cameraPosInWorldSpace);
+                    draw(drawerObject, drawData, projectionMatrix, viewMatrix, objData.getDrawMode(), objData.getDrawSize(), textureId, lightPosInWorldSpace, Constants.COLOR_HALF_TRANSPARENT, cameraPosInWorldSpace);
 
                     // draw skeleton on top of it
+                    drawer.getRenderQueue().flush();
                     GLES20.glDisable(GLES20.GL_DEPTH_TEST);
                     Object3DData skeleton = this.skeleton.get(objData);
                     if (skeleton == null || changed) {
@@ -761,7 +853,7 @@ public class ModelRenderer implements GLSurfaceView.Renderer {
                         Log.d("ModelRenderer", drawerObject.toString());
                         infoLogged.put(objData.getId() + "render", true);
                     }
-                    drawerObject.draw(objData, projectionMatrix, viewMatrix,
+                    draw(drawerObject, drawData, projectionMatrix, viewMatrix, objData.getDrawMode(), objData.getDrawSize(),
                             textureId, lightPosInWorldSpace, colorMask, cameraPosInWorldSpace);
                     objData.render(drawer, scene.getCamera(), lightPosInWorldSpace, colorMask);
                 }
@@ -786,8 +878,7 @@ public class ModelRenderer implements GLSurfaceView.Renderer {
                 if (normalData != null) {
                     Renderer normalsDrawer = drawer.getDrawer(normalData, false, false, false, doAnimation,
                             false);
-                    animator.update(normalData, scene.isShowBindPose());
-                    normalsDrawer.draw(normalData, projectionMatrix, viewMatrix, -1, lightPosInWorldSpace, colorMask
+                    draw(normalsDrawer, normalData, projectionMatrix, viewMatrix, normalData.getDrawMode(), normalData.getDrawSize(), -1, lightPosInWorldSpace, colorMask
                             , cameraPosInWorldSpace);
                 }
             }
@@ -817,8 +908,23 @@ public class ModelRenderer implements GLSurfaceView.Renderer {
             boundingBoxData.setColor(Constants.COLOR_WHITE);
         }
         Renderer boundingBoxDrawer = drawer.getBoundingBoxDrawer();
-        boundingBoxDrawer.draw(boundingBoxData, projectionMatrix, viewMatrix, -1,
-                lightPosInWorldSpace, colorMask, cameraPosInWorldSpace);
+        draw(boundingBoxDrawer, boundingBoxData, projectionMatrix, viewMatrix, boundingBoxData.getDrawMode(),
+                boundingBoxData.getDrawSize(), -1, lightPosInWorldSpace, colorMask, cameraPosInWorldSpace);
+    }
+
+    /**
+     * Queue the draw of the scene object, or draw it now if it's not a scene object
+     */
+    private void draw(Renderer renderer, Object3DData obj, float[] projectionMatrix, float[] viewMatrix, int drawMode,
+                      int drawSize, int textureId, float[] lightPosInWorldSpace, float[] colorMask,
+                      float[] cameraPosInWorldSpace) {
+        if (queueing) {
+            drawer.getRenderQueue().add(renderer, obj, projectionMatrix, viewMatrix, drawMode, drawSize, textureId,
+                    lightPosInWorldSpace, colorMask, cameraPosInWorldSpace);
+        } else {
+            renderer.draw(obj, projectionMatrix, viewMatrix, drawMode, drawSize, textureId, lightPosInWorldSpace,
+                    colorMask, cameraPosInWorldSpace);
+        }
     }
 
     public int getWidth() {
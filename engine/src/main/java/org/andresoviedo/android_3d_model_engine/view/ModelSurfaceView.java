@@ -7,6 +7,8 @@ import android.view.MotionEvent;
 import android.widget.Toast;
 
 import org.andresoviedo.android_3d_model_engine.controller.TouchEvent;
+import org.andresoviedo.android_3d_model_engine.drawer.GLValidator;
+import org.andresoviedo.android_3d_model_engine.drawer.VertexLayout;
 import org.andresoviedo.android_3d_model_engine.model.Projection;
 import org.andresoviedo.android_3d_model_engine.services.SceneLoader;
 import org.andresoviedo.util.android.AndroidUtils;
@@ -37,6 +39,9 @@ public class ModelSurfaceView extends GLSurfaceView implements EventListener {
 			// Create an OpenGL ES 2.0 context.
 			setEGLContextClientVersion(2);
 
+			// keep the textures, so they are not read and uploaded again after a pause
+			setPreserveEGLContextOnPause(true);
+
 			// This is the actual renderer of the 3D space
 			mRenderer = new ModelRenderer(parent, this, backgroundColor, scene);
 			mRenderer.addListener(this);
@@ -113,6 +118,16 @@ public class ModelSurfaceView extends GLSurfaceView implements EventListener {
 		mRenderer.toggleSkyBox();
 	}
 
+	public void setGLValidation(GLValidator.Mode mode, int sampleRate) {
+		Log.i("ModelSurfaceView","GL validation: " + mode);
+		mRenderer.setGLValidation(mode, sampleRate);
+	}
+
+	public void setVertexFormat(VertexLayout.Format format) {
+		Log.i("ModelSurfaceView","Vertex format: " + format);
+		mRenderer.setVertexFormat(format);
+	}
+
     public void toggleWireframe() {
 		Log.i("ModelSurfaceView","Toggling wireframe...");
         mRenderer.toggleWireframe();
@@ -6,10 +6,13 @@ import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
 import android.util.Log;
 import android.widget.ImageView;
 import android.widget.ListAdapter;
@@ -22,6 +25,7 @@ import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -39,6 +43,12 @@ import java.util.zip.ZipInputStream;
 public class ContentUtils {
 
     public static final String MODELS_FOLDER = "models";
+
+    /**
+     * Value of {@code DocumentsContract.Document.COLUMN_LAST_MODIFIED}, which is not available before API 19
+     */
+    private static final String COLUMN_LAST_MODIFIED = "last_modified";
+
     /**
      * Documents opened by the user. This list helps finding the relative filenames found in the model
      */
@@ -114,6 +124,22 @@ public class ContentUtils {
      * @throws IOException if there is an error opening stream
      */
     public static InputStream getInputStream(String path) throws IOException {
+        final Uri uri = findUri(path);
+        if (uri != null) {
+            return getInputStream(uri);
+        }
+        Log.e("ContentUtils", "Media not found: " + path);
+        Log.d("ContentUtils", "Available media: " + documentsProvided);
+        throw new FileNotFoundException("File not found: " + path);
+    }
+
+    /**
+     * Find the uri of the relative file, either provided by the user or in the current directory
+     *
+     * @param path relative file
+     * @return the uri or <code>null</code> if the file is unknown
+     */
+    public static Uri findUri(String path) {
         Uri uri = getUri(path);
         if (uri == null) {
             uri = getUri("models/"+path);
@@ -124,12 +150,7 @@ public class ContentUtils {
         if (uri == null && currentDir != null) {
             uri = Uri.parse("file://" + new File(currentDir, path).getAbsolutePath());
         }
-        if (uri != null) {
-            return getInputStream(uri);
-        }
-        Log.e("ContentUtils", "Media not found: " + path);
-        Log.d("ContentUtils", "Available media: " + documentsProvided);
-        throw new FileNotFoundException("File not found: " + path);
+        return uri;
     }
 
     public static InputStream getInputStream(URI uri) throws IOException {
@@ -177,6 +198,64 @@ public class ContentUtils {
         return getCurrentActivity().getResources().openRawResource(resourceId);
     }
 
+    /**
+     * Open the local file or content as a {@link FileInputStream}, so it can be memory mapped with its channel
+     *
+     * @param uri the file
+     * @return the stream or <code>null</code> if the uri is not a local file nor a content
+     * @throws IOException if there is an error opening the file
+     */
+    public static FileInputStream getFileInputStream(URI uri) throws IOException {
+        if ("file".equals(uri.getScheme())) {
+            return new FileInputStream(new File(uri));
+        }
+        if ("content".equals(uri.getScheme())) {
+            if (getCurrentActivity() == null) throw new IllegalStateException("No current activity");
+            final ParcelFileDescriptor fd = getCurrentActivity().getContentResolver()
+                    .openFileDescriptor(Uri.parse(uri.toString()), "r");
+            return fd != null ? new ParcelFileDescriptor.AutoCloseInputStream(fd) : null;
+        }
+        return null;
+    }
+
+    /**
+     * Find the length & the last modification time of the local file or content, without reading it
+     *
+     * @param uri the file
+     * @return the length (bytes) & the last modification time (milliseconds) or <code>null</code> if they are not known
+     * (i.e. assets, remote files or providers not telling the time)
+     */
+    public static long[] getFileInfo(URI uri) {
+        return getFileInfo(Uri.parse(uri.toString()));
+    }
+
+    /**
+     * @see #getFileInfo(URI)
+     */
+    public static long[] getFileInfo(Uri uri) {
+        if ("file".equals(uri.getScheme())) {
+            final File file = new File(uri.getPath());
+            return file.isFile() ? new long[]{file.length(), file.lastModified()} : null;
+        }
+        if (!"content".equals(uri.getScheme()) || getCurrentActivity() == null) {
+            return null;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = getCurrentActivity().getContentResolver().query(uri, null, null, null, null);
+            if (cursor == null || !cursor.moveToFirst()) return null;
+            final int size = cursor.getColumnIndex(OpenableColumns.SIZE);
+            // the column is only provided by the document providers (kitkat), otherwise the caller falls back to a checksum
+            final int lastModified = cursor.getColumnIndex(COLUMN_LAST_MODIFIED);
+            if (size == -1 || lastModified == -1 || cursor.isNull(size) || cursor.isNull(lastModified)) return null;
+            return new long[]{cursor.getLong(size), cursor.getLong(lastModified)};
+        } catch (Exception ex) {
+            Log.e("ContentUtils", "Error querying content info: " + uri, ex);
+            return null;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
 
     public static Intent createGetContentIntent(String mimeType) {
         // check here to KITKAT or new version
@@ -0,0 +1,229 @@
+package org.andresoviedo.util.collection;
+
+import org.andresoviedo.util.io.IOUtils;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable list of fixed size float vectors (i.e. x,y,z positions or u,v coordinates) backed by a single flat float[].
+ * <p>
+ * This replaces <code>List&lt;float[]&gt;</code> for the mesh data, that is, there is no object header and no pointer per vector.
+ * All indices are vector indices, so <code>get(i, 1)</code> returns the second component of the i-th vector.
+ *
+ * @author andresoviedo
+ */
+public final class FloatArrayList {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private final int stride;
+    private float[] data;
+    private int size;
+
+    /**
+     * @param stride number of components per vector
+     */
+    public FloatArrayList(int stride) {
+        this(stride, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param stride   number of components per vector
+     * @param capacity initial capacity, in vectors
+     */
+    public FloatArrayList(int stride, int capacity) {
+        if (stride <= 0) throw new IllegalArgumentException("Wrong stride: " + stride);
+        this.stride = stride;
+        this.data = new float[Math.max(capacity, 1) * stride];
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * @return number of vectors
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the backing array. Only the first <code>size() * getStride()</code> floats are valid
+     */
+    public float[] array() {
+        return data;
+    }
+
+    private void ensureCapacity(int vectors) {
+        final int required = vectors * stride;
+        if (required > data.length) {
+            data = Arrays.copyOf(data, Math.max(required, data.length + (data.length >> 1)));
+        }
+    }
+
+    public void add(float x) {
+        ensureCapacity(size + 1);
+        final int offset = size++ * stride;
+        data[offset] = x;
+    }
+
+    public void add(float x, float y) {
+        ensureCapacity(size + 1);
+        final int offset = size++ * stride;
+        data[offset] = x;
+        if (stride > 1) data[offset + 1] = y;
+    }
+
+    public void add(float x, float y, float z) {
+        ensureCapacity(size + 1);
+        final int offset = size++ * stride;
+        data[offset] = x;
+        if (stride > 1) data[offset + 1] = y;
+        if (stride > 2) data[offset + 2] = z;
+    }
+
+    public void add(float x, float y, float z, float w) {
+        ensureCapacity(size + 1);
+        final int offset = size++ * stride;
+        data[offset] = x;
+        if (stride > 1) data[offset + 1] = y;
+        if (stride > 2) data[offset + 2] = z;
+        if (stride > 3) data[offset + 3] = w;
+    }
+
+    /**
+     * Add the vector. Missing components are set to 0
+     *
+     * @param vector the vector to copy
+     */
+    public void add(float[] vector) {
+        ensureCapacity(size + 1);
+        final int offset = size++ * stride;
+        final int length = Math.min(stride, vector.length);
+        System.arraycopy(vector, 0, data, offset, length);
+        for (int i = length; i < stride; i++) {
+            data[offset + i] = 0;
+        }
+    }
+
+    /**
+     * Add the vector stored at <code>other[index]</code>
+     */
+    public void add(FloatArrayList other, int index) {
+        if (other.stride != stride) throw new IllegalArgumentException("Stride mismatch");
+        ensureCapacity(size + 1);
+        System.arraycopy(other.data, index * stride, data, size++ * stride, stride);
+    }
+
+    /**
+     * Append all the vectors of the other list
+     *
+     * @param other list with the same stride
+     */
+    public void addAll(FloatArrayList other) {
+        if (other.stride != stride) throw new IllegalArgumentException("Stride mismatch");
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.data, 0, data, size * stride, other.size * stride);
+        size += other.size;
+    }
+
+    /**
+     * Bulk copy all the remaining floats of the buffer, that must be a whole number of vectors
+     *
+     * @param buffer the vectors. Its position is moved to the limit
+     */
+    public void addAll(FloatBuffer buffer) {
+        final int count = buffer.remaining() / stride;
+        ensureCapacity(size + count);
+        buffer.get(data, size * stride, count * stride);
+        size += count;
+    }
+
+    public float get(int index, int component) {
+        checkIndex(index);
+        return data[index * stride + component];
+    }
+
+    /**
+     * Copy the vector into the specified array
+     *
+     * @param index vector index
+     * @param dest  destination array. It must be at least <code>getStride()</code> long
+     * @return dest
+     */
+    public float[] get(int index, float[] dest) {
+        checkIndex(index);
+        System.arraycopy(data, index * stride, dest, 0, stride);
+        return dest;
+    }
+
+    /**
+     * @param index vector index
+     * @return a new copy of the vector
+     */
+    public float[] get(int index) {
+        return get(index, new float[stride]);
+    }
+
+    public void set(int index, int component, float value) {
+        checkIndex(index);
+        data[index * stride + component] = value;
+    }
+
+    public void set(int index, float[] vector) {
+        checkIndex(index);
+        System.arraycopy(vector, 0, data, index * stride, Math.min(stride, vector.length));
+    }
+
+    /**
+     * @return true if both vectors have exactly the same components
+     */
+    public boolean sameVector(int index1, int index2) {
+        checkIndex(index1);
+        checkIndex(index2);
+        final int offset1 = index1 * stride;
+        final int offset2 = index2 * stride;
+        for (int i = 0; i < stride; i++) {
+            if (data[offset1 + i] != data[offset2 + i]) return false;
+        }
+        return true;
+    }
+
+    private void checkIndex(int index) {
+        if (index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public FloatArrayList copy() {
+        final FloatArrayList ret = new FloatArrayList(stride, size);
+        System.arraycopy(data, 0, ret.data, 0, size * stride);
+        ret.size = size;
+        return ret;
+    }
+
+    /**
+     * Bulk copy all the vectors into a new direct buffer
+     *
+     * @return the native buffer
+     */
+    public FloatBuffer toFloatBuffer() {
+        final FloatBuffer buffer = IOUtils.createFloatBuffer(size * stride);
+        buffer.put(data, 0, size * stride);
+        buffer.position(0);
+        return buffer;
+    }
+
+    @Override
+    public String toString() {
+        return "FloatArrayList{stride=" + stride + ", size=" + size + '}';
+    }
+}
@@ -0,0 +1,98 @@
+package org.andresoviedo.util.collection;
+
+import org.andresoviedo.util.io.IOUtils;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive ints. This replaces <code>List&lt;Integer&gt;</code> for indices, so there is no boxing.
+ *
+ * @author andresoviedo
+ */
+public final class IntArrayList {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int[] data;
+    private int size;
+
+    public IntArrayList() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public IntArrayList(int capacity) {
+        this.data = new int[Math.max(capacity, 1)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the backing array. Only the first <code>size()</code> ints are valid
+     */
+    public int[] array() {
+        return data;
+    }
+
+    public void add(int value) {
+        if (size == data.length) {
+            data = Arrays.copyOf(data, data.length + (data.length >> 1) + 1);
+        }
+        data[size++] = value;
+    }
+
+    /**
+     * Bulk copy all the remaining ints of the buffer
+     *
+     * @param buffer the ints. Its position is moved to the limit
+     */
+    public void addAll(IntBuffer buffer) {
+        final int count = buffer.remaining();
+        if (size + count > data.length) {
+            data = Arrays.copyOf(data, Math.max(size + count, data.length + (data.length >> 1) + 1));
+        }
+        buffer.get(data, size, count);
+        size += count;
+    }
+
+    public int get(int index) {
+        if (index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        return data[index];
+    }
+
+    public void set(int index, int value) {
+        if (index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        data[index] = value;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+
+    /**
+     * Bulk copy all the ints into a new direct buffer
+     *
+     * @return the native buffer
+     */
+    public IntBuffer toIntBuffer() {
+        final IntBuffer buffer = IOUtils.createIntBuffer(size);
+        buffer.put(data, 0, size);
+        buffer.position(0);
+        return buffer;
+    }
+
+    @Override
+    public String toString() {
+        return "IntArrayList{size=" + size + '}';
+    }
+}
@@ -0,0 +1,443 @@
+package org.andresoviedo.util.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Line oriented tokenizer for big ASCII files (obj, stl, etc).
+ * <p>
+ * The stream (or the memory mapped file) is read in blocks into a reusable byte buffer and numbers are parsed in place,
+ * so no {@link String} or any other object is created per token.
+ * Only {@link #rest()} and {@link #line()} allocate, and those are meant for the rare lines (names, comments, etc).
+ * <p>
+ * Usage:
+ * <pre>
+ *     while (tokenizer.nextLine()) {
+ *         if (tokenizer.keyword("v")) {
+ *             float x = tokenizer.nextFloat();
+ *             ...
+ *         }
+ *     }
+ * </pre>
+ *
+ * @author andresoviedo
+ */
+public final class AsciiTokenizer implements Closeable {
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final double[] POW10 = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+            1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    // max significant digits that fit in a long
+    private static final int MAX_DIGITS = 18;
+
+    private final InputStream stream;
+    // data not copied to the buffer yet, if the tokenizer reads a byte buffer instead of a stream
+    private final ByteBuffer source;
+
+    private byte[] buffer;
+    // valid bytes in buffer
+    private int limit;
+    // current line
+    private int lineStart;
+    private int lineEnd;
+    // current position in line
+    private int pos;
+
+    private boolean eof;
+    private int lineNumber;
+
+    public AsciiTokenizer(InputStream stream) {
+        this(stream, DEFAULT_BUFFER_SIZE);
+    }
+
+    public AsciiTokenizer(InputStream stream, int bufferSize) {
+        this.stream = stream;
+        this.source = null;
+        this.buffer = new byte[Math.max(bufferSize, 16)];
+    }
+
+    public AsciiTokenizer(ByteBuffer data) {
+        this(data, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Reads the remaining bytes of the buffer, i.e. a memory mapped file, without changing its position. Buffers
+     * backed by an array are tokenized in place, the others are copied in blocks like a stream.
+     *
+     * @param data       the data
+     * @param bufferSize size of the blocks, if the buffer has no array
+     */
+    public AsciiTokenizer(ByteBuffer data, int bufferSize) {
+        this.stream = null;
+        if (data.hasArray()) {
+            this.source = null;
+            this.buffer = data.array();
+            this.lineStart = this.lineEnd = this.pos = data.arrayOffset() + data.position();
+            this.limit = data.arrayOffset() + data.limit();
+            this.eof = true;
+        } else {
+            this.source = data.duplicate();
+            this.buffer = new byte[Math.max(bufferSize, 16)];
+        }
+    }
+
+    /**
+     * Wraps an already loaded chunk of data. No stream is read.
+     *
+     * @param data   the data
+     * @param offset start offset
+     * @param length number of bytes
+     */
+    public AsciiTokenizer(byte[] data, int offset, int length) {
+        this.stream = null;
+        this.source = null;
+        this.buffer = data;
+        this.lineStart = offset;
+        this.lineEnd = offset;
+        this.pos = offset;
+        this.limit = offset + length;
+        this.eof = true;
+    }
+
+    /**
+     * Move to the next non blank line. Leading whitespaces are skipped.
+     *
+     * @return false if there are no more lines
+     * @throws IOException if there is an error reading the stream
+     */
+    public boolean nextLine() throws IOException {
+        int i = lineEnd;
+        while (true) {
+
+            // skip line terminators and leading whitespaces
+            while (i < limit && isWhitespaceOrEol(buffer[i])) {
+                if (buffer[i] == '\n') lineNumber++;
+                i++;
+            }
+
+            if (i == limit) {
+                if (eof) {
+                    lineStart = lineEnd = pos = limit;
+                    return false;
+                }
+                i = fill(i);
+                continue;
+            }
+
+            // find end of line
+            int end = i;
+            while (end < limit && buffer[end] != '\n' && buffer[end] != '\r') end++;
+            if (end == limit && !eof) {
+                i = fill(i);
+                continue;
+            }
+
+            lineStart = pos = i;
+            lineEnd = end;
+            return true;
+        }
+    }
+
+    /**
+     * Compacts the buffer so the pending data starts at 0, then appends more data from the stream or the byte buffer.
+     * The buffer is doubled if the current line doesn't fit.
+     *
+     * @param from first byte still needed
+     * @return the new position of the first byte still needed
+     */
+    private int fill(int from) throws IOException {
+        final int pending = limit - from;
+        if (from > 0) {
+            System.arraycopy(buffer, from, buffer, 0, pending);
+        } else if (pending == buffer.length) {
+            final byte[] newBuffer = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, newBuffer, 0, pending);
+            buffer = newBuffer;
+        }
+        limit = pending;
+        final int read;
+        if (source != null) {
+            read = source.hasRemaining() ? Math.min(source.remaining(), buffer.length - limit) : -1;
+            if (read != -1) source.get(buffer, limit, read);
+        } else {
+            read = stream.read(buffer, limit, buffer.length - limit);
+        }
+        if (read == -1) {
+            eof = true;
+        } else {
+            limit += read;
+        }
+        return 0;
+    }
+
+    public int getLineNumber() {
+        return lineNumber + 1;
+    }
+
+    /**
+     * @return the current character or 0 if we reached the end of line
+     */
+    public char peek() {
+        return pos < lineEnd ? (char) buffer[pos] : 0;
+    }
+
+    /**
+     * Check if the next token is the specified keyword and skip it if so.
+     * The keyword must be followed by a whitespace or the end of line.
+     *
+     * @param keyword the keyword
+     * @return true if the keyword was consumed
+     */
+    public boolean keyword(String keyword) {
+        final int length = keyword.length();
+        if (pos + length > lineEnd) return false;
+        for (int i = 0; i < length; i++) {
+            if (buffer[pos + i] != keyword.charAt(i)) return false;
+        }
+        if (pos + length < lineEnd && !isWhitespace(buffer[pos + length])) return false;
+        pos += length;
+        return true;
+    }
+
+    /**
+     * Check if the current position starts with the specified prefix (no token boundary required)
+     */
+    public boolean startsWith(String prefix) {
+        final int length = prefix.length();
+        if (pos + length > lineEnd) return false;
+        for (int i = 0; i < length; i++) {
+            if (buffer[pos + i] != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Skip the character if it's the next one
+     *
+     * @param c the character
+     * @return true if the char was skipped
+     */
+    public boolean skip(char c) {
+        if (pos < lineEnd && buffer[pos] == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Skip whitespaces and check whether there is any other token in the current line
+     *
+     * @return true if there are more tokens
+     */
+    public boolean hasNext() {
+        skipWhitespaces();
+        return pos < lineEnd;
+    }
+
+    /**
+     * Skip the current token (everything until next whitespace)
+     */
+    public void skipToken() {
+        skipWhitespaces();
+        while (pos < lineEnd && !isWhitespace(buffer[pos])) pos++;
+    }
+
+    /**
+     * @return the next token (everything until next whitespace) or null if there are no more tokens
+     */
+    public String next() {
+        skipWhitespaces();
+        if (pos == lineEnd) return null;
+        final int start = pos;
+        while (pos < lineEnd && !isWhitespace(buffer[pos])) pos++;
+        return new String(buffer, start, pos - start, UTF_8);
+    }
+
+    /**
+     * @return the remaining part of the line, trimmed
+     */
+    public String rest() {
+        skipWhitespaces();
+        int end = lineEnd;
+        while (end > pos && isWhitespace(buffer[end - 1])) end--;
+        final String ret = new String(buffer, pos, end - pos, UTF_8);
+        pos = lineEnd;
+        return ret;
+    }
+
+    /**
+     * @return the whole current line (for logging purposes)
+     */
+    public String line() {
+        return new String(buffer, lineStart, lineEnd - lineStart, UTF_8);
+    }
+
+    /**
+     * Parse next integer token. Parsing stops at first non digit char, so "1/2/3" can be parsed with
+     * successive calls to {@link #nextInt()} and {@link #skip(char)}
+     *
+     * @return the integer
+     * @throws NumberFormatException if there is no number or it's out of the int range
+     */
+    public int nextInt() {
+        skipWhitespaces();
+        int i = pos;
+        boolean negative = false;
+        if (i < lineEnd && (buffer[i] == '-' || buffer[i] == '+')) {
+            negative = buffer[i] == '-';
+            i++;
+        }
+        final int digitsStart = i;
+        final long max = negative ? Integer.MAX_VALUE + 1L : Integer.MAX_VALUE;
+        long value = 0;
+        while (i < lineEnd && isDigit(buffer[i])) {
+            value = value * 10 + (buffer[i] - '0');
+            i++;
+            if (value > max) throw numberFormatException(pos, i);
+        }
+        if (i == digitsStart) throw numberFormatException(pos, i);
+        pos = i;
+        return (int) (negative ? -value : value);
+    }
+
+    /**
+     * Parse next float token. Expected format is <code>[+-]digits[.digits][(e|E)[+-]digits]</code>.
+     * Any other format (i.e. "NaN" or "Infinity") is delegated to {@link Float#parseFloat(String)}.
+     *
+     * @return the float
+     * @throws NumberFormatException if the token is not a number
+     */
+    public float nextFloat() {
+        skipWhitespaces();
+        final int start = pos;
+        int i = pos;
+
+        boolean negative = false;
+        if (i < lineEnd && (buffer[i] == '-' || buffer[i] == '+')) {
+            negative = buffer[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+
+        // integer part
+        while (i < lineEnd && isDigit(buffer[i])) {
+            anyDigit = true;
+            if (digits < MAX_DIGITS) {
+                if (mantissa != 0 || buffer[i] != '0') {
+                    mantissa = mantissa * 10 + (buffer[i] - '0');
+                    digits++;
+                }
+            } else {
+                exponent++;
+            }
+            i++;
+        }
+
+        // fraction part
+        if (i < lineEnd && buffer[i] == '.') {
+            i++;
+            while (i < lineEnd && isDigit(buffer[i])) {
+                anyDigit = true;
+                if (digits < MAX_DIGITS) {
+                    if (mantissa != 0 || buffer[i] != '0') {
+                        mantissa = mantissa * 10 + (buffer[i] - '0');
+                        digits++;
+                    }
+                    exponent--;
+                }
+                i++;
+            }
+        }
+
+        if (!anyDigit) {
+            return parseFallback(start);
+        }
+
+        // exponent part
+        if (i < lineEnd && (buffer[i] == 'e' || buffer[i] == 'E')) {
+            i++;
+            boolean negativeExp = false;
+            if (i < lineEnd && (buffer[i] == '-' || buffer[i] == '+')) {
+                negativeExp = buffer[i] == '-';
+                i++;
+            }
+            final int expStart = i;
+            int exp = 0;
+            while (i < lineEnd && isDigit(buffer[i])) {
+                if (exp < 10000) exp = exp * 10 + (buffer[i] - '0');
+                i++;
+            }
+            if (i == expStart) throw numberFormatException(start, i);
+            exponent += negativeExp ? -exp : exp;
+        }
+
+        // token must end here
+        if (i < lineEnd && !isWhitespace(buffer[i])) {
+            return parseFallback(start);
+        }
+        pos = i;
+
+        double value = mantissa;
+        if (mantissa != 0 && exponent != 0) {
+            if (exponent > 0) {
+                value *= exponent < POW10.length ? POW10[exponent] : Math.pow(10, exponent);
+            } else if (-exponent < POW10.length) {
+                value /= POW10[-exponent];
+            } else {
+                value /= Math.pow(10, -exponent);
+            }
+        }
+        return (float) (negative ? -value : value);
+    }
+
+    private float parseFallback(int start) {
+        int end = start;
+        while (end < lineEnd && !isWhitespace(buffer[end])) end++;
+        final String token = new String(buffer, start, end - start, UTF_8);
+        final float ret = Float.parseFloat(token);
+        pos = end;
+        return ret;
+    }
+
+    private NumberFormatException numberFormatException(int start, int end) {
+        while (end < lineEnd && !isWhitespace(buffer[end])) end++;
+        return new NumberFormatException("For input string: \""
+                + new String(buffer, start, end - start, UTF_8)
+                + "\" at line " + getLineNumber());
+    }
+
+    private void skipWhitespaces() {
+        while (pos < lineEnd && isWhitespace(buffer[pos])) pos++;
+    }
+
+    private static boolean isDigit(byte c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isWhitespace(byte c) {
+        return c == ' ' || c == '\t' || c == '\f' || c == 0x0B;
+    }
+
+    private static boolean isWhitespaceOrEol(byte c) {
+        return isWhitespace(c) || c == '\n' || c == '\r';
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (stream != null) {
+            stream.close();
+        }
+    }
+}
@@ -10,6 +10,7 @@ import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
+import java.util.Arrays;
 import java.util.List;
 
 public final class IOUtils {
@@ -39,6 +40,33 @@ public final class IOUtils {
         return buffer.toByteArray();
     }
 
+    /**
+     * Read fully the input stream into a single array, sized for the expected length. So there is no intermediate
+     * copy, unless the stream is not as long as expected.
+     *
+     * @param is     input stream
+     * @param length expected length of the stream
+     * @return the bytes
+     * @throws IOException if there is an error reading from the stream
+     */
+    public static byte[] read(InputStream is, int length) throws IOException {
+        byte[] data = new byte[Math.max(length, 16)];
+        int size = 0;
+        while (true) {
+            if (size == data.length) {
+                // longer than expected?
+                final int next = is.read();
+                if (next == -1) break;
+                data = Arrays.copyOf(data, data.length * 2);
+                data[size++] = (byte) next;
+            }
+            final int read = is.read(data, size, data.length - size);
+            if (read == -1) break;
+            size += read;
+        }
+        return size == data.length ? data : Arrays.copyOf(data, size);
+    }
+
     public static FloatBuffer createFloatBuffer(int floats) {
         return createNativeByteBuffer(floats * 4).asFloatBuffer();
     }
@@ -0,0 +1,92 @@
+package org.andresoviedo.util.math;
+
+/**
+ * View frustum, as the 6 planes extracted from the view projection matrix (Gribb &amp; Hartmann), to test whether axis
+ * aligned bounding boxes are visible. Bounding boxes are <code>float[6]</code>: min x, y, z and max x, y, z.<p>
+ * This class doesn't depend on Android, so the culling can be tested on the JVM.
+ *
+ * @author andresoviedo
+ */
+public final class Frustum {
+
+    // left, right, bottom, top, near, far: a, b, c, d. Normals point inwards
+    private final float[] planes = new float[24];
+
+    /**
+     * Extract the planes of the view projection matrix
+     *
+     * @param m the view projection matrix, column major
+     */
+    public void update(float[] m) {
+        // rows of the matrix
+        for (int i = 0; i < 3; i++) {
+            final int left = i * 8;
+            final int right = left + 4;
+            for (int j = 0; j < 4; j++) {
+                final float w = m[j * 4 + 3];
+                final float v = m[j * 4 + i];
+                planes[left + j] = w + v;
+                planes[right + j] = w - v;
+            }
+        }
+        for (int i = 0; i < 6; i++) {
+            final int p = i * 4;
+            final float length = (float) Math.sqrt(planes[p] * planes[p] + planes[p + 1] * planes[p + 1]
+                    + planes[p + 2] * planes[p + 2]);
+            if (length > 0) {
+                planes[p] /= length;
+                planes[p + 1] /= length;
+                planes[p + 2] /= length;
+                planes[p + 3] /= length;
+            }
+        }
+    }
+
+    /**
+     * @param bounds the bounding box, in world space
+     * @return false if the box is outside of any plane, so it's not visible. The test is conservative, so boxes
+     * close to the corners of the frustum may be reported as visible
+     */
+    public boolean intersects(float[] bounds) {
+        for (int i = 0; i < 6; i++) {
+            final int p = i * 4;
+            final float a = planes[p], b = planes[p + 1], c = planes[p + 2];
+
+            // corner of the box farthest along the normal
+            final float x = a >= 0 ? bounds[3] : bounds[0];
+            final float y = b >= 0 ? bounds[4] : bounds[1];
+            final float z = c >= 0 ? bounds[5] : bounds[2];
+            if (a * x + b * y + c * z + planes[p + 3] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Transform the bounding box (Arvo), so the new box encloses the transformed one
+     *
+     * @param bounds the bounding box
+     * @param m      the matrix, column major
+     * @param out    the transformed bounding box
+     */
+    public static void transform(float[] bounds, float[] m, float[] out) {
+        for (int i = 0; i < 3; i++) {
+            float min = m[12 + i];
+            float max = min;
+            for (int j = 0; j < 3; j++) {
+                final float e = m[j * 4 + i] * bounds[j];
+                final float f = m[j * 4 + i] * bounds[j + 3];
+                if (e < f) {
+                    min += e;
+                    max += f;
+                } else {
+                    min += f;
+                    max += e;
+                }
+            }
+            out[i] = min;
+            out[i + 3] = max;
+        }
+    }
+}
@@ -20,6 +20,8 @@ public final class XmlNode {
 	private String name;
 	private Map<String, String> attributes;
 	private String data;
+	private float[] floatData;
+	private int[] intData;
 	private Map<String, List<XmlNode>> childNodes;
 
     XmlNode(String name) {
@@ -41,6 +43,30 @@ public final class XmlNode {
 		return data;
 	}
 
+	/**
+	 * @return The text data parsed as a list of floats. If the node was not
+	 *         parsed while reading (see {@link XmlParser#parse(java.io.InputStream, String, java.util.Set, java.util.Set)}),
+	 *         the text is parsed now.
+	 */
+	public float[] getFloatData() {
+		if (floatData == null) {
+			floatData = XmlParser.parseFloats(data, 0);
+		}
+		return floatData;
+	}
+
+	/**
+	 * @return The text data parsed as a list of integers. If the node was not
+	 *         parsed while reading (see {@link XmlParser#parse(java.io.InputStream, String, java.util.Set, java.util.Set)}),
+	 *         the text is parsed now.
+	 */
+	public int[] getIntData() {
+		if (intData == null) {
+			intData = XmlParser.parseInts(data);
+		}
+		return intData;
+	}
+
 	/**
 	 * Gets the value of a certain attribute of the node. Returns {@code null}
 	 * if the attribute doesn't exist.
@@ -176,4 +202,12 @@ public final class XmlNode {
 		this.data = data;
 	}
 
+	protected void setFloatData(float[] floatData) {
+		this.floatData = floatData;
+	}
+
+	protected void setIntData(int[] intData) {
+		this.intData = intData;
+	}
+
 }
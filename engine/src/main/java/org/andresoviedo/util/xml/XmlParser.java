@@ -2,19 +2,41 @@ package org.andresoviedo.util.xml;
 
 import android.util.Xml;
 
+import org.andresoviedo.util.collection.FloatArrayList;
+import org.andresoviedo.util.collection.IntArrayList;
+import org.andresoviedo.util.io.AsciiTokenizer;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
 
 /**
  * Created by andres on 9/12/17.
  */
 public class XmlParser {
 
+	private static final float[] EMPTY_FLOATS = new float[0];
+	private static final int[] EMPTY_INTS = new int[0];
 
 	public static XmlNode parse(InputStream in)  {
+		return parse(in, null, Collections.<String>emptySet(), Collections.<String>emptySet());
+	}
+
+	/**
+	 * Parse the xml. The text of the numeric nodes found inside the <code>scope</code> node is parsed as soon as it's
+	 * read and then discarded, so huge arrays (i.e. <code>&lt;float_array&gt;</code>) are never kept in memory as text.
+	 *
+	 * @param in         the xml
+	 * @param scope      the name of the node containing the numeric nodes (i.e. <code>library_geometries</code>)
+	 * @param floatNodes name of the nodes to parse as floats (see {@link XmlNode#getFloatData()})
+	 * @param intNodes   name of the nodes to parse as integers (see {@link XmlNode#getIntData()})
+	 * @return the root node
+	 */
+	public static XmlNode parse(InputStream in, String scope, Set<String> floatNodes, Set<String> intNodes)  {
 		try {
 			XmlPullParser xpp = Xml.newPullParser();
 			xpp.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
@@ -22,7 +44,7 @@ public class XmlParser {
 			int eventType = xpp.getEventType();
 			if (eventType == XmlPullParser.START_DOCUMENT) {
 				XmlNode parent = new XmlNode("xml");
-				loadNode(xpp, parent);
+				loadNode(xpp, parent, scope, floatNodes, intNodes, false);
 				return parent.getChild("COLLADA");
 			}
 		} catch (XmlPullParserException e) {
@@ -39,7 +61,8 @@ public class XmlParser {
 		return null;
 	}
 
-	private static void loadNode(XmlPullParser xpp, XmlNode parentNode) throws XmlPullParserException, IOException {
+	private static void loadNode(XmlPullParser xpp, XmlNode parentNode, String scope, Set<String> floatNodes,
+								 Set<String> intNodes, boolean inScope) throws XmlPullParserException, IOException {
 		int eventType = xpp.next();
 		while(eventType != XmlPullParser.END_DOCUMENT) {
 			if (eventType == XmlPullParser.START_TAG) {
@@ -48,13 +71,102 @@ public class XmlParser {
 					childNode.addAttribute(xpp.getAttributeName(i), xpp.getAttributeValue(i));
 				}
 				parentNode.addChild(childNode);
-				loadNode(xpp, childNode);
+				loadNode(xpp, childNode, scope, floatNodes, intNodes, inScope || childNode.getName().equals(scope));
 			} else if (eventType == XmlPullParser.END_TAG) {
 				return;
 			} else if (eventType == XmlPullParser.TEXT) {
-				parentNode.setData(xpp.getText());
+				if (inScope && floatNodes.contains(parentNode.getName())) {
+					final String count = parentNode.getAttribute("count");
+					parentNode.setFloatData(parseFloats(xpp.getText(), count != null ? Integer.parseInt(count) : 0));
+				} else if (inScope && intNodes.contains(parentNode.getName())) {
+					parentNode.setIntData(parseInts(xpp.getText()));
+				} else {
+					parentNode.setData(xpp.getText());
+				}
 			}
 			eventType = xpp.next();
 		}
 	}
+
+	/**
+	 * Parse the space separated list of floats. Decimal commas are accepted.
+	 *
+	 * @param text  the list
+	 * @param count the expected number of floats, if known. Otherwise <code>0</code>
+	 * @return the floats
+	 */
+	static float[] parseFloats(String text, int count) {
+		if (text == null) return EMPTY_FLOATS;
+		final FloatArrayList ret = new FloatArrayList(1, count);
+		final AsciiTokenizer tokenizer = new AsciiTokenizer(new TextInputStream(text));
+		try {
+			while (tokenizer.nextLine()) {
+				while (tokenizer.hasNext()) {
+					ret.add(tokenizer.nextFloat());
+				}
+			}
+		} catch (IOException e) {
+			// never happens: the data is already in memory
+			throw new RuntimeException(e);
+		}
+		return ret.array().length == ret.size() ? ret.array() : Arrays.copyOf(ret.array(), ret.size());
+	}
+
+	/**
+	 * Parse the space separated list of integers
+	 *
+	 * @param text the list
+	 * @return the integers
+	 */
+	static int[] parseInts(String text) {
+		if (text == null) return EMPTY_INTS;
+		final IntArrayList ret = new IntArrayList();
+		final AsciiTokenizer tokenizer = new AsciiTokenizer(new TextInputStream(text));
+		try {
+			while (tokenizer.nextLine()) {
+				while (tokenizer.hasNext()) {
+					ret.add(tokenizer.nextInt());
+				}
+			}
+		} catch (IOException e) {
+			// never happens: the data is already in memory
+			throw new RuntimeException(e);
+		}
+		return ret.array().length == ret.size() ? ret.array() : ret.toArray();
+	}
+
+	/**
+	 * Streams the text as ascii bytes, so it can be tokenized without splitting it into strings.
+	 * Decimal commas are streamed as dots.
+	 */
+	private static final class TextInputStream extends InputStream {
+
+		private final String text;
+		private int pos;
+
+		TextInputStream(String text) {
+			this.text = text;
+		}
+
+		@Override
+		public int read() {
+			if (pos >= text.length()) return -1;
+			return toAscii(text.charAt(pos++));
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (pos >= text.length()) return -1;
+			final int count = Math.min(len, text.length() - pos);
+			for (int i = 0; i < count; i++) {
+				b[off + i] = (byte) toAscii(text.charAt(pos++));
+			}
+			return count;
+		}
+
+		private static int toAscii(char c) {
+			if (c == ',') return '.';
+			return c < 128 ? c : '?';
+		}
+	}
 }
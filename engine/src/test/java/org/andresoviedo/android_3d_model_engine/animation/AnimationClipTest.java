@@ -0,0 +1,254 @@
+package org.andresoviedo.android_3d_model_engine.animation;
+
+import android.opengl.Matrix;
+
+import org.andresoviedo.android_3d_model_engine.model.AnimatedModel;
+import org.andresoviedo.android_3d_model_engine.services.collada.entities.JointData;
+import org.andresoviedo.android_3d_model_engine.services.collada.entities.SkeletonData;
+import org.andresoviedo.android_3d_model_engine.services.collada.loader.AnimationLoader;
+import org.andresoviedo.android_3d_model_engine.services.collada.loader.GeometryLoader;
+import org.andresoviedo.android_3d_model_engine.services.collada.loader.SkeletonLoader;
+import org.andresoviedo.android_3d_model_engine.services.collada.loader.SkinLoader;
+import org.andresoviedo.util.math.Math3DUtils;
+import org.andresoviedo.util.xml.XmlNode;
+import org.andresoviedo.util.xml.XmlParser;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the pose of the baked animation with the pose interpolated from the key frames
+ */
+public class AnimationClipTest {
+
+    private static final int FRAMES = 20;
+
+    @Test
+    public void testSameAsKeyFrames() {
+        final AnimatedModel model = createModel();
+        final AnimationClip clip = AnimationClip.compile(model.getAnimation(), model.getRootJoint());
+        assertEquals(4, clip.getJointCount());
+
+        final Map<String, float[]> expected = new HashMap<>();
+        for (float time = 0; time < FRAMES * 0.1f; time += 0.033f) {
+            ReferencePose.apply(model.getAnimation(), model.getRootJoint(), time, expected);
+            clip.apply(time, model);
+            assertPose(model.getRootJoint(), expected, time);
+        }
+    }
+
+    @Test
+    public void testConstantKeysDropped() {
+        final AnimatedModel model = createModel();
+        final AnimationClip clip = AnimationClip.compile(model.getAnimation(), model.getRootJoint());
+        // 2 animated joints, 1 constant joint (first & last keys) and 1 joint without keys
+        assertEquals(FRAMES * 2 + 2, clip.getKeyCount());
+
+        // same pose in the constant run
+        final Map<String, float[]> expected = new HashMap<>();
+        ReferencePose.apply(model.getAnimation(), model.getRootJoint(), 0.55f, expected);
+        clip.apply(0.55f, model);
+        assertPose(model.getRootJoint(), expected, 0.55f);
+    }
+
+    @Test
+    public void testHoldsFirstAndLastKeys() {
+        final AnimatedModel model = createModel();
+        final AnimationClip clip = AnimationClip.compile(model.getAnimation(), model.getRootJoint());
+        final Map<String, float[]> expected = new HashMap<>();
+
+        ReferencePose.apply(model.getAnimation(), model.getRootJoint(), 0, expected);
+        clip.apply(-1, model);
+        assertPose(model.getRootJoint(), expected, -1);
+
+        ReferencePose.apply(model.getAnimation(), model.getRootJoint(), (FRAMES - 1) * 0.1f, expected);
+        clip.apply(FRAMES, model);
+        assertPose(model.getRootJoint(), expected, FRAMES);
+    }
+
+    @Test
+    public void testFindKey() {
+        final float[] keys = {0, 0.5f, 1, 1, 2, 3};
+        // from every cursor, same key as scanning the keys
+        for (int cursor = 0; cursor < keys.length; cursor++) {
+            for (float time = -1; time < 4; time += 0.25f) {
+                int expected = 0;
+                while (expected < keys.length - 1 && keys[expected + 1] <= time) expected++;
+                assertEquals("time " + time + ", cursor " + cursor, expected,
+                        AnimationClip.findKey(keys, time, cursor));
+            }
+        }
+        assertEquals(0, AnimationClip.findKey(new float[]{1}, 2, 0));
+    }
+
+    /**
+     * Manual benchmark: pose of Raptor-Attack.dae
+     */
+    @Test
+    @Ignore
+    public void benchmark() throws IOException {
+        File file = new File("models/Raptor-Attack.dae");
+        if (!file.isFile()) {
+            file = new File("../models/Raptor-Attack.dae");
+        }
+        final XmlNode xml;
+        try (InputStream stream = new FileInputStream(file)) {
+            xml = XmlParser.parse(stream, "library_geometries", GeometryLoader.FLOAT_NODES, GeometryLoader.INT_NODES);
+        }
+        final Map<String, SkeletonData> skeletons = new SkeletonLoader(xml).loadJoints();
+        new SkeletonLoader(xml).updateJointData(new SkinLoader(xml.getChild("library_controllers"), 3)
+                .loadSkinData(), skeletons);
+        final AnimatedModel model = new AnimatedModel();
+        model.setJointsData(skeletons.containsKey("default") ? skeletons.get("default")
+                : skeletons.values().iterator().next());
+        model.doAnimation(new AnimationLoader(xml).load());
+        new Animator().initAnimation(model);
+
+        final Animation animation = model.getAnimation();
+        final AnimationClip clip = AnimationClip.compile(animation, model.getRootJoint());
+        final Map<String, float[]> pose = new HashMap<>();
+        final int iterations = 20000;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                ReferencePose.apply(animation, model.getRootJoint(), time(animation, i), pose);
+            }
+            final long maps = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                clip.apply(time(animation, i), model);
+            }
+            final long baked = System.nanoTime() - start;
+            System.out.println("joints: " + clip.getJointCount() + ", key frames: " + animation.getKeyFrames().length
+                    + ", key frame maps: " + maps / iterations + " ns/pose, baked: " + baked / iterations + " ns/pose");
+        }
+    }
+
+    private static float time(Animation animation, int i) {
+        return (i * 0.016f) % animation.getLength();
+    }
+
+    private static void assertPose(Joint joint, Map<String, float[]> expected, float time) {
+        assertArrayEquals(joint.getName() + " at " + time, expected.get(joint.getName()),
+                joint.getAnimatedTransform(), 1e-3f);
+        for (Joint child : joint.getChildren()) {
+            assertPose(child, expected, time);
+        }
+    }
+
+    /**
+     * Skeleton: root - arm - hand - finger. The root & arm are animated with matrices & euler angles, the hand is
+     * constant and the finger has no keys
+     */
+    private static AnimatedModel createModel() {
+        final JointData root = joint("root", 0, 0, 0, 0);
+        final JointData arm = joint("arm", 1, 0, 1, 0);
+        final JointData hand = joint("hand", 2, 0, 2, 0);
+        final JointData finger = joint("finger", 3, 0, 3, 0);
+        root.addChild(arm);
+        arm.addChild(hand);
+        hand.addChild(finger);
+
+        final KeyFrame[] frames = new KeyFrame[FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            final Map<String, JointTransform> transforms = new HashMap<>();
+
+            final float[] matrix = new float[16];
+            Matrix.setIdentityM(matrix, 0);
+            Matrix.translateM(matrix, 0, i * 0.1f, 0, 0);
+            Matrix.rotateM(matrix, 0, i * 10, 0, 1, 0);
+            transforms.put("root", new JointTransform(matrix));
+
+            final JointTransform euler = JointTransform.ofNull();
+            euler.addLocation(new Float[]{0f, 1f, 0f});
+            euler.addRotation(new Float[]{null, null, i * 5f});
+            transforms.put("arm", euler);
+
+            final JointTransform constant = JointTransform.ofNull();
+            constant.addLocation(new Float[]{0f, 1f, 0f});
+            transforms.put("hand", constant);
+
+            frames[i] = new KeyFrame(i * 0.1f, transforms);
+        }
+
+        final AnimatedModel ret = new AnimatedModel();
+        final SkeletonData skeleton = new SkeletonData(4, root);
+        for (int i = 0; i < 4; i++) {
+            skeleton.incrementBoneCount();
+        }
+        ret.setJointsData(skeleton);
+        ret.doAnimation(new Animation(FRAMES * 0.1f, frames));
+        return ret;
+    }
+
+    private static JointData joint(String id, int index, float x, float y, float z) {
+        // bind pose: joints along the y axis
+        final float[] local = new float[16];
+        Matrix.setIdentityM(local, 0);
+        Matrix.translateM(local, 0, x, index == 0 ? 0 : 1, z);
+        final float[] bind = new float[16];
+        Matrix.setIdentityM(bind, 0);
+        Matrix.translateM(bind, 0, x, y, z);
+        final float[] inverseBind = new float[16];
+        Matrix.invertM(inverseBind, 0, bind, 0);
+
+        final JointData ret = new JointData(id, id, id, local, null, null, null, local, bind, null, null);
+        ret.setIndex(index);
+        ret.setInverseBindTransform(inverseBind);
+        return ret;
+    }
+
+    /**
+     * Pose interpolated from the key frames, indexed by joint name
+     */
+    static final class ReferencePose {
+
+        static void apply(Animation animation, Joint root, float time, Map<String, float[]> ret) {
+            final KeyFrame[] frames = animation.getKeyFrames();
+            KeyFrame previous = frames[0];
+            KeyFrame next = frames[0];
+            for (int i = 1; i < frames.length; i++) {
+                next = frames[i];
+                if (next.getTimeStamp() > time) break;
+                previous = frames[i];
+            }
+            float progression = 0;
+            if (next != previous && time > previous.getTimeStamp()) {
+                progression = (time - previous.getTimeStamp()) / (next.getTimeStamp() - previous.getTimeStamp());
+            } else {
+                next = previous;
+            }
+
+            final Map<String, float[]> local = new HashMap<>();
+            for (Map.Entry<String, JointTransform> entry : previous.getTransforms().entrySet()) {
+                final float[] matrix = new float[16];
+                JointTransform.interpolate(entry.getValue(), next.getTransforms().get(entry.getKey()), progression,
+                        matrix);
+                local.put(entry.getKey(), matrix);
+            }
+            apply(root, local, Math3DUtils.IDENTITY_MATRIX, ret);
+        }
+
+        private static void apply(Joint joint, Map<String, float[]> local, float[] parent, Map<String, float[]> ret) {
+            final float[] current = new float[16];
+            final float[] transform = local.get(joint.getName());
+            Matrix.multiplyMM(current, 0, parent, 0, transform != null ? transform : joint.getBindLocalTransform(), 0);
+            final float[] animated = new float[16];
+            Matrix.multiplyMM(animated, 0, current, 0, joint.getInverseBindTransform(), 0);
+            ret.put(joint.getName(), animated);
+            for (Joint child : joint.getChildren()) {
+                apply(child, local, current, ret);
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.andresoviedo.android_3d_model_engine.animation;
+
+import android.opengl.Matrix;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the update rates chosen for the sizes of the models on the screen
+ */
+public class AnimationLodTest {
+
+    private static final float[] CUBE = {-1, -1, -1, 1, 1, 1};
+
+    @Test
+    public void testRate() {
+        final AnimationLod lod = new AnimationLod();
+        assertEquals(AnimationLod.Rate.FULL, lod.getRate(0.5f, true));
+        assertEquals(AnimationLod.Rate.HALF, lod.getRate(0.1f, true));
+        assertEquals(AnimationLod.Rate.QUARTER, lod.getRate(0.05f, true));
+        assertEquals(AnimationLod.Rate.FROZEN, lod.getRate(0.01f, true));
+        assertEquals(AnimationLod.Rate.FROZEN, lod.getRate(1, false));
+
+        // the leaves of the small models are not animated
+        assertFalse(lod.isLeafCulled(0.5f));
+        assertTrue(lod.isLeafCulled(0.05f));
+
+        // the models sharing a skeleton get the most detailed rate
+        assertEquals(AnimationLod.Rate.HALF, AnimationLod.Rate.QUARTER.max(AnimationLod.Rate.HALF));
+        assertEquals(AnimationLod.Rate.FULL, AnimationLod.Rate.FULL.max(AnimationLod.Rate.FROZEN));
+    }
+
+    @Test
+    public void testScreenSize() {
+        // 90 degrees: the front face of the cube is 1/9 of the viewport at 10 units
+        assertEquals(1 / 9f, AnimationLod.getScreenSize(CUBE, getViewProjection(0, 10)), 1e-5f);
+        assertEquals(1 / 99f, AnimationLod.getScreenSize(CUBE, getViewProjection(0, 100)), 1e-5f);
+
+        // camera inside the cube & cube out of the view
+        assertEquals(1, AnimationLod.getScreenSize(CUBE, getViewProjection(0, 0.5f)), 0);
+        assertEquals(0, AnimationLod.getScreenSize(CUBE, getViewProjection(30, 10)), 0);
+    }
+
+    /**
+     * Camera at (x, 0, z) looking down -z, 90 degrees field of view
+     */
+    static float[] getViewProjection(float x, float z) {
+        final float[] projection = new float[16];
+        final float[] view = new float[16];
+        final float[] ret = new float[16];
+        Matrix.frustumM(projection, 0, -0.1f, 0.1f, -0.1f, 0.1f, 0.1f, 1000);
+        Matrix.setLookAtM(view, 0, x, 0, z, x, 0, z - 1, 0, 1, 0);
+        Matrix.multiplyMM(ret, 0, projection, 0, view, 0);
+        return ret;
+    }
+}
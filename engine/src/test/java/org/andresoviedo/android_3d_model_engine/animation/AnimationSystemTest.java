@@ -0,0 +1,211 @@
+package org.andresoviedo.android_3d_model_engine.animation;
+
+import org.andresoviedo.android_3d_model_engine.model.AnimatedModel;
+import org.andresoviedo.android_3d_model_engine.model.Object3DData;
+import org.andresoviedo.util.io.IOUtils;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the poses evaluated by the animation system, in the calling thread and by the workers, and the update rates
+ * of the level of detail
+ */
+public class AnimationSystemTest {
+
+    private static final float[] IDENTITY = {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1};
+
+    @Test
+    public void testDeterministic() {
+        final List<Object3DData> objects = createModels(3);
+        final AnimationSystem system = new AnimationSystem(0);
+
+        // bind pose until the first update
+        assertArrayEquals(IDENTITY, ((AnimatedModel) objects.get(0)).getJointTransforms()[1], 0);
+
+        for (float time = 0; time < 4; time += 0.7f) {
+            system.update(objects, time);
+            for (Object3DData obj : objects) {
+                assertPose(time, (AnimatedModel) obj);
+            }
+        }
+        assertEquals(3 * 6, system.getEvaluatedCount());
+    }
+
+    @Test
+    public void testSharedPose() {
+        final AnimatedModel model = AnimatorTest.createModel(4, 10);
+        final AnimatedModel clone = model.clone();
+        final List<Object3DData> objects = new ArrayList<>();
+        objects.add(model);
+        objects.add(clone);
+
+        // same skeleton, evaluated once
+        final AnimationSystem system = new AnimationSystem(0);
+        system.update(objects, 0.1f);
+        assertEquals(1, system.getEvaluatedCount());
+        assertSame(model.getJointTransforms(), clone.getJointTransforms());
+        assertPose(0.1f, model);
+    }
+
+    @Test
+    public void testWorkers() throws InterruptedException {
+        final List<Object3DData> objects = createModels(10);
+        final AnimationSystem system = new AnimationSystem(2);
+
+        // the poses are swapped in the frames after being evaluated
+        final float time = 1.5f;
+        boolean swapped = false;
+        for (int frame = 0; frame < 1000 && !swapped; frame++) {
+            system.update(objects, time);
+            swapped = frame > 0;
+            for (Object3DData obj : objects) {
+                swapped &= ((AnimatedModel) obj).getPose().getJointTransforms()[1][13] != 0;
+            }
+            Thread.sleep(1);
+        }
+        assertTrue(swapped);
+        for (Object3DData obj : objects) {
+            assertPose(time, (AnimatedModel) obj);
+        }
+    }
+
+    @Test
+    public void testLod() {
+        final AnimatedModel model = AnimatorTest.createModel(40, 300);
+        setCube(model);
+        final List<Object3DData> objects = new ArrayList<>();
+        objects.add(model);
+        final AnimationSystem system = new AnimationSystem(0);
+
+        // 1/39 of the viewport: every 4th frame
+        system.setLod(new AnimationLod(AnimationLod.FULL_SIZE, AnimationLod.HALF_SIZE, AnimationLod.QUARTER_SIZE, 0));
+        system.setViewProjection(AnimationLodTest.getViewProjection(0, 40));
+        float[] previous = null;
+        for (int frame = 1; frame <= 8; frame++) {
+            final float time = 1 + (frame - 1) / 30f;
+            system.update(objects, time);
+
+            // the pose evaluated ahead is reached in 4 frames, interpolating from the previous one. The first one
+            // isn't evaluated ahead, because the frame time is unknown yet
+            if (frame % 4 == 0) {
+                assertPose(frame == 4 ? 1 : time, model, model.getJointCount(), 1e-4f);
+                previous = model.getJointTransforms()[5].clone();
+            } else if (frame == 6) {
+                final float[] expected = getPose(1 + 7 / 30f, model)[5];
+                for (int i = 0; i < 16; i++) {
+                    assertEquals(previous[i] + (expected[i] - previous[i]) / 2, model.getJointTransforms()[5][i],
+                            1e-4f);
+                }
+            }
+        }
+        assertEquals(2, system.getEvaluatedCount());
+        assertEquals(6, system.getSavedCount());
+
+        // out of the view: frozen
+        system.setViewProjection(AnimationLodTest.getViewProjection(100, 40));
+        for (int frame = 9; frame <= 12; frame++) {
+            system.update(objects, 1 + (frame - 1) / 30f);
+        }
+        system.update(objects, 3);
+        assertEquals(2, system.getEvaluatedCount());
+        assertEquals(11, system.getSavedCount());
+        assertEquals(11 / 2f, system.getSavedPerSecond(), 1e-3f);
+    }
+
+    @Test
+    public void testLeafJoints() {
+        final AnimatedModel model = AnimatorTest.createModel(10, 300);
+        setCube(model);
+        final List<Object3DData> objects = new ArrayList<>();
+        objects.add(model);
+
+        // small model: the leaf joint keeps its bind pose, following its parent
+        final AnimationSystem system = new AnimationSystem(0);
+        system.setViewProjection(AnimationLodTest.getViewProjection(0, 12));
+        system.update(objects, 1.5f);
+        system.update(objects, 1.5f);
+        assertPose(1.5f, model, 9, 1e-5f);
+        assertNotEquals(getPose(1.5f, model)[9][12], model.getJointTransforms()[9][12], 1e-3f);
+    }
+
+    /**
+     * Manual benchmark: time spent by the GL thread animating 1, 10 & 100 models. Every frame waits a few ms, like the
+     * GL thread waits for the GPU
+     */
+    @Test
+    @Ignore
+    public void benchmark() throws InterruptedException {
+        final int threads = Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+        final int frames = 300;
+        for (int instances : new int[]{1, 10, 100}) {
+            final List<Object3DData> objects = createModels(instances);
+            for (int round = 0; round < 2; round++) {
+                for (int workers : new int[]{0, threads}) {
+                    final AnimationSystem system = new AnimationSystem(workers);
+                    for (Object3DData obj : objects) {
+                        system.prepare(obj);
+                    }
+                    long glThread = 0;
+                    for (int frame = 0; frame < frames; frame++) {
+                        final long start = System.nanoTime();
+                        system.update(objects, frame / 60f);
+                        glThread += System.nanoTime() - start;
+                        Thread.sleep(5);
+                    }
+                    System.out.println("instances: " + instances + ", workers: " + workers + ", gl thread: "
+                            + glThread / frames / 1000 + " us/frame, poses: " + system.getEvaluatedCount()
+                            + ", delayed: " + system.getDelayedCount());
+                }
+            }
+        }
+    }
+
+    /**
+     * Vertices of a 2x2x2 cube, so the model has bounds
+     */
+    private static void setCube(AnimatedModel model) {
+        final FloatBuffer vertices = IOUtils.createFloatBuffer(6);
+        vertices.put(new float[]{-1, -1, -1, 1, 1, 1}).position(0);
+        model.setVertexBuffer(vertices);
+    }
+
+    private static List<Object3DData> createModels(int count) {
+        final List<Object3DData> ret = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ret.add(AnimatorTest.createModel(40, 300));
+        }
+        return ret;
+    }
+
+    /**
+     * Compare with the pose evaluated on a copy of the model
+     */
+    private static void assertPose(float time, AnimatedModel model) {
+        assertPose(time, model, model.getJointCount(), 1e-5f);
+    }
+
+    private static void assertPose(float time, AnimatedModel model, int joints, float delta) {
+        final float[][] expected = getPose(time, model);
+        for (int i = 0; i < joints; i++) {
+            assertArrayEquals("joint " + i + " at " + time, expected[i], model.getJointTransforms()[i], delta);
+        }
+    }
+
+    private static float[][] getPose(float time, AnimatedModel model) {
+        final AnimatedModel expected = AnimatorTest.createModel(model.getJointCount(),
+                model.getAnimation().getKeyFrames().length);
+        new Animator().prepare(expected).apply(time % expected.getAnimation().getLength(), expected);
+        expected.getPose().swap();
+        return expected.getJointTransforms();
+    }
+}
@@ -0,0 +1,152 @@
+package org.andresoviedo.android_3d_model_engine.animation;
+
+import org.andresoviedo.android_3d_model_engine.model.AnimatedModel;
+import org.andresoviedo.android_3d_model_engine.services.collada.entities.JointData;
+import org.andresoviedo.android_3d_model_engine.services.collada.entities.SkeletonData;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the key frames completed by the animator
+ */
+public class AnimatorTest {
+
+    @Test
+    public void testCompletesMissingChannels() {
+        final KeyFrame[] frames = new KeyFrame[5];
+        frames[0] = frame(0, "bone", transform(0, 0, 0, 0));
+        frames[1] = frame(1, "bone", JointTransform.ofLocation(new Float[]{1f, null, null}));
+        frames[2] = frame(2, "other", transform(0, 0, 0, 0));
+        frames[3] = frame(3, "bone", transform(3, 3, 3, 90));
+        frames[4] = frame(4, "other", transform(0, 0, 0, 0));
+        final AnimatedModel model = new AnimatedModel();
+        model.doAnimation(new Animation(4, frames));
+
+        new Animator().initAnimation(model);
+        assertTrue(model.getAnimation().isInitialized());
+
+        // the channels of the key are kept, the missing ones are interpolated with the next key of the channel
+        assertTransform(frames[1], 1, 1, 1, 30);
+        assertTransform(frames[2], 2, 2, 2, 60);
+        assertTransform(frames[3], 3, 3, 3, 90);
+
+        // the joints missing in the first key frame have no transform, in the last one they hold the previous key
+        assertEquals(null, frames[0].getTransforms().get("other").getLocation()[0]);
+        assertSame(frames[3].getTransforms().get("bone"), frames[4].getTransforms().get("bone"));
+    }
+
+    /**
+     * Manual benchmark: completion & lookup of long clips, i.e. motion capture
+     */
+    @Test
+    @Ignore
+    public void benchmark() {
+        final int joints = 8;
+        for (int keys : new int[]{1000, 10000}) {
+            final AnimatedModel model = createModel(joints, keys);
+
+            long start = System.nanoTime();
+            new Animator().initAnimation(model);
+            final long init = System.nanoTime() - start;
+
+            final AnimationClip clip = AnimationClip.compile(model.getAnimation(), model.getRootJoint());
+            final float length = model.getAnimation().getLength();
+            final int iterations = 100000;
+            for (int round = 0; round < 3; round++) {
+                // playback
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    clip.apply((i * 0.016f) % length, model);
+                }
+                final long playback = System.nanoTime() - start;
+
+                // seek
+                final Random random = new Random(round);
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    clip.apply(random.nextFloat() * length, model);
+                }
+                final long seek = System.nanoTime() - start;
+
+                System.out.println("joints: " + joints + ", key frames: " + keys + ", init: " + init / 1000000
+                        + " ms, playback: " + playback / iterations + " ns/pose, seek: " + seek / iterations
+                        + " ns/pose");
+            }
+        }
+    }
+
+    /**
+     * Chain of joints with a key frame every 1/30 s: the location is keyed every frame, the rotation every 4 frames,
+     * the scale only on the first frame and odd joints skip some key frames
+     */
+    static AnimatedModel createModel(int joints, int keys) {
+        JointData root = null;
+        JointData parent = null;
+        for (int j = 0; j < joints; j++) {
+            final float[] matrix = {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 1, 0, 1};
+            final JointData joint = new JointData("joint" + j, "joint" + j, "joint" + j, matrix, null, null, null,
+                    matrix, matrix, null, null);
+            joint.setIndex(j);
+            joint.setInverseBindTransform(matrix);
+            if (parent == null) root = joint;
+            else parent.addChild(joint);
+            parent = joint;
+        }
+
+        final KeyFrame[] frames = new KeyFrame[keys];
+        for (int i = 0; i < keys; i++) {
+            final Map<String, JointTransform> transforms = new HashMap<>();
+            for (int j = 0; j < joints; j++) {
+                if (i == 0) {
+                    transforms.put("joint" + j, transform(0, 1, 0, 0));
+                } else if (i == keys - 1 || j % 2 == 0 || i % 7 != 0) {
+                    final JointTransform transform = JointTransform.ofLocation(new Float[]{(float) Math.sin(i * 0.1),
+                            1f, null});
+                    if (i % 4 == 0) transform.addRotation(new Float[]{null, null, (float) (i % 360)});
+                    transforms.put("joint" + j, transform);
+                }
+            }
+            frames[i] = new KeyFrame(i / 30f, transforms);
+        }
+
+        final AnimatedModel ret = new AnimatedModel();
+        final SkeletonData skeleton = new SkeletonData(joints, root);
+        for (int j = 0; j < joints; j++) {
+            skeleton.incrementBoneCount();
+        }
+        ret.setJointsData(skeleton);
+        ret.doAnimation(new Animation((keys - 1) / 30f, frames));
+        return ret;
+    }
+
+    private static KeyFrame frame(float time, String joint, JointTransform transform) {
+        final Map<String, JointTransform> transforms = new HashMap<>();
+        transforms.put(joint, transform);
+        return new KeyFrame(time, transforms);
+    }
+
+    private static JointTransform transform(float x, float y, float z, float angle) {
+        final JointTransform ret = JointTransform.ofNull();
+        ret.addLocation(new Float[]{x, y, z});
+        ret.addRotation(new Float[]{0f, 0f, angle});
+        return ret;
+    }
+
+    private static void assertTransform(KeyFrame frame, float x, float y, float z, float angle) {
+        final JointTransform transform = frame.getTransforms().get("bone");
+        assertTrue(transform.isComplete());
+        assertEquals(x, transform.getLocation()[0], 1e-5f);
+        assertEquals(y, transform.getLocation()[1], 1e-5f);
+        assertEquals(z, transform.getLocation()[2], 1e-5f);
+        assertEquals(angle, transform.getRotation()[2], 1e-3f);
+        assertEquals(1, transform.getScale()[0], 1e-5f);
+    }
+}
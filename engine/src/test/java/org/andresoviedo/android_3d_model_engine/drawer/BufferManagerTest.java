@@ -0,0 +1,149 @@
+package org.andresoviedo.android_3d_model_engine.drawer;
+
+import android.opengl.GLES20;
+
+import org.andresoviedo.android_3d_model_engine.model.Object3DData;
+import org.andresoviedo.util.io.IOUtils;
+import org.junit.Test;
+
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the buffer objects are uploaded once, with a recording sink
+ */
+public class BufferManagerTest {
+
+    /**
+     * Records the OpenGL calls
+     */
+    private static final class RecordingSink implements BufferManager.Sink {
+
+        private final List<String> calls = new ArrayList<>();
+        private int buffers;
+        private boolean fail;
+
+        @Override
+        public int create() {
+            if (fail) return 0;
+            return ++buffers;
+        }
+
+        @Override
+        public void upload(int target, int id, Buffer data, int size, int usage) {
+            calls.add("upload " + id + " " + size + (usage == GLES20.GL_DYNAMIC_DRAW ? " dynamic" : " static"));
+        }
+
+        @Override
+        public void bind(int target, int id) {
+            calls.add((target == GLES20.GL_ARRAY_BUFFER ? "array " : "elements ") + id);
+        }
+
+        @Override
+        public void delete(int id) {
+            calls.add("delete " + id);
+        }
+    }
+
+    private final RecordingSink sink = new RecordingSink();
+    private final BufferManager buffers = new BufferManager(sink);
+
+    @Test
+    public void testUploadedOnce() {
+        final FloatBuffer vertices = IOUtils.createFloatBuffer(30);
+        final IntBuffer indices = IOUtils.createIntBuffer(6);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(1, buffers.bindArray(vertices));
+            assertEquals(2, buffers.bindElements(indices));
+            buffers.unbind();
+            buffers.endFrame();
+        }
+        assertEquals(2, buffers.getUploads());
+        assertEquals(30 * 4 + 6 * 4, buffers.getUploadedBytes());
+        assertEquals(30 * 4 + 6 * 4, buffers.getResidentBytes());
+        assertEquals("upload 1 120 static", sink.calls.get(0));
+        assertEquals("upload 2 24 static", sink.calls.get(1));
+        assertEquals(2 + 10 * 2 + 9 * 2, sink.calls.size());
+    }
+
+    @Test
+    public void testRedundantBindsSkipped() {
+        final FloatBuffer vertices = IOUtils.createFloatBuffer(3);
+        final FloatBuffer normals = IOUtils.createFloatBuffer(3);
+        buffers.bindArray(vertices);
+        buffers.bindArray(normals);
+        sink.calls.clear();
+
+        buffers.bindArray(normals);
+        buffers.bindArray(vertices);
+        buffers.bindArray(vertices);
+        buffers.bindElements(null);
+        assertEquals("[array 1]", sink.calls.toString());
+    }
+
+    @Test
+    public void testInvalidated() {
+        final FloatBuffer vertices = IOUtils.createFloatBuffer(9);
+        final Object3DData obj = new Object3DData(vertices);
+        buffers.bindArray(vertices);
+        buffers.bindArray(vertices);
+
+        // updated in place
+        buffers.invalidate(obj);
+        buffers.bindArray(vertices);
+        buffers.bindArray(vertices);
+        assertEquals("[upload 1 36 static, upload 1 36 dynamic]", sink.calls.toString());
+        assertEquals(36, buffers.getResidentBytes());
+        assertEquals(72, buffers.getUploadedBytes());
+
+        // replaced
+        final FloatBuffer replaced = IOUtils.createFloatBuffer(18);
+        obj.setVertexBuffer(replaced);
+        assertEquals(2, buffers.bindArray(replaced));
+        assertEquals(3, buffers.getUploads());
+    }
+
+    @Test
+    public void testDeleted() {
+        final FloatBuffer vertices = IOUtils.createFloatBuffer(9);
+        final Object3DData obj = new Object3DData(vertices);
+        buffers.bindArray(vertices);
+        buffers.unbind();
+        buffers.delete(obj);
+        assertEquals("delete 1", sink.calls.get(sink.calls.size() - 1));
+        assertEquals(0, buffers.size());
+        assertEquals(0, buffers.getResidentBytes());
+    }
+
+    @Test
+    public void testUnusedDeleted() {
+        final FloatBuffer drawn = IOUtils.createFloatBuffer(3);
+        final FloatBuffer removed = IOUtils.createFloatBuffer(3);
+        buffers.bindArray(drawn);
+        buffers.bindArray(removed);
+        for (int i = 0; i < BufferManager.MAX_UNUSED_FRAMES; i++) {
+            buffers.endFrame();
+            buffers.bindArray(drawn);
+        }
+        assertEquals(2, buffers.size());
+
+        buffers.endFrame();
+        assertEquals(1, buffers.size());
+        assertEquals("delete 2", sink.calls.get(sink.calls.size() - 1));
+        assertEquals(12, buffers.getResidentBytes());
+    }
+
+    @Test
+    public void testClientSideFallback() {
+        sink.fail = true;
+        assertEquals(0, buffers.bindArray(IOUtils.createFloatBuffer(3)));
+        assertEquals(0, buffers.getUploads());
+        assertEquals(0, buffers.size());
+    }
+}
@@ -0,0 +1,252 @@
+package org.andresoviedo.android_3d_model_engine.drawer;
+
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+import org.andresoviedo.android_3d_model_engine.animation.Animation;
+import org.andresoviedo.android_3d_model_engine.animation.KeyFrame;
+import org.andresoviedo.android_3d_model_engine.animation.Pose;
+import org.andresoviedo.android_3d_model_engine.model.AnimatedModel;
+import org.andresoviedo.android_3d_model_engine.model.Object3DData;
+import org.andresoviedo.android_3d_model_engine.services.collada.entities.SkeletonData;
+import org.andresoviedo.util.io.IOUtils;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the models skinned on the CPU against the poses skinned vertex by vertex
+ */
+public class CpuSkinningTest {
+
+    @Test
+    public void testMaxJoints() {
+        assertEquals(26, CpuSkinning.getMaxJoints(128));
+        assertEquals(58, CpuSkinning.getMaxJoints(256));
+        assertEquals(CpuSkinning.MAX_JOINTS, CpuSkinning.getMaxJoints(1024));
+        assertEquals(CpuSkinning.MAX_JOINTS, CpuSkinning.getMaxJoints(0));
+
+        final CpuSkinning skinning = new CpuSkinning(new BufferManager(), 0, 1);
+        assertTrue(skinning.isRequired(createModel(100, 10, 3, new Random(0))));
+        assertFalse(skinning.isRequired(createModel(40, 10, 3, new Random(0))));
+        skinning.setMaxJoints(CpuSkinning.getMaxJoints(128));
+        assertTrue(skinning.isRequired(createModel(40, 10, 3, new Random(0))));
+        assertFalse(skinning.isRequired(new Object3DData(IOUtils.createFloatBuffer(9))));
+    }
+
+    @Test
+    public void testSkin() {
+        for (int threads : new int[]{0, 3}) {
+            final Random random = new Random(threads);
+            final AnimatedModel model = createModel(100, 1000, 3, random);
+            final CpuSkinning skinning = new CpuSkinning(new BufferManager(), threads, 100);
+
+            // bind pose
+            Object3DData skinned = skinning.skin(model);
+            assertNotSame(model.getVertexBuffer(), skinned.getVertexBuffer());
+            assertSame(model.getDrawOrder(), skinned.getDrawOrder());
+            assertSkinned(model, skinned);
+
+            // reference poses
+            for (int i = 0; i < 3; i++) {
+                setPose(model, random);
+                assertSame(skinned, skinning.skin(model));
+                assertSkinned(model, skinned);
+            }
+        }
+    }
+
+    @Test
+    public void testSkinsNewPoses() {
+        final List<String> uploads = new ArrayList<>();
+        final BufferManager buffers = new BufferManager(new BufferManager.Sink() {
+
+            private int buffers;
+
+            @Override
+            public int create() {
+                return ++buffers;
+            }
+
+            @Override
+            public void upload(int target, int id, Buffer data, int size, int usage) {
+                uploads.add(id + (usage == GLES20.GL_DYNAMIC_DRAW ? " dynamic" : " static"));
+            }
+
+            @Override
+            public void bind(int target, int id) {
+            }
+
+            @Override
+            public void delete(int id) {
+            }
+        });
+        final AnimatedModel model = createModel(100, 10, 3, new Random(0));
+        final CpuSkinning skinning = new CpuSkinning(buffers, 0, 1);
+
+        // same pose, skinned & uploaded once
+        final Object3DData skinned = skinning.skin(model);
+        buffers.bindArray(skinned.getVertexBuffer());
+        skinning.skin(model);
+        buffers.bindArray(skinned.getVertexBuffer());
+        assertEquals(1, skinning.getSkinnedCount());
+        assertEquals("[1 static]", uploads.toString());
+
+        // new pose, uploaded again as dynamic
+        setPose(model, new Random(1));
+        skinning.skin(model);
+        buffers.bindArray(skinned.getVertexBuffer());
+        assertEquals(2, skinning.getSkinnedCount());
+        assertEquals("[1 static, 1 dynamic]", uploads.toString());
+    }
+
+    @Test
+    public void testSkinnedFrameCalls() {
+        final GLES20RendererTest.RecordingGL gl = new GLES20RendererTest.RecordingGL();
+        final BufferManager buffers = new BufferManager();
+        buffers.setGL(GLValidator.wrap(gl, GLValidator.Mode.OFF, 1));
+        final AnimatedModel model = createModel(100, 10, 3, new Random(0));
+        final CpuSkinning skinning = new CpuSkinning(buffers, 0, 1);
+        final Random random = new Random(1);
+        for (int frame = 0; frame < 3; frame++) {
+            gl.calls.clear();
+            setPose(model, random);
+            final Object3DData skinned = skinning.skin(model);
+            buffers.bindArray(skinned.getVertexBuffer());
+            buffers.bindArray(skinned.getNormalsBuffer());
+            buffers.bindElements(skinned.getDrawOrder());
+            buffers.unbind();
+            buffers.endFrame();
+            skinning.endFrame();
+            if (frame == 0) continue;
+
+            // the skinned vertices & normals are uploaded again, no error checking
+            assertEquals("{glBindBuffer=3, glBufferData=2}", gl.calls.toString());
+        }
+    }
+
+    /**
+     * Manual benchmark: skinning of a big model, in the calling thread and by the workers
+     */
+    @Test
+    @Ignore
+    public void benchmark() {
+        final int cores = Runtime.getRuntime().availableProcessors();
+        final AnimatedModel model = createModel(100, 100000, 3, new Random(0));
+        final int iterations = 200;
+        for (int round = 0; round < 3; round++) {
+            for (int threads : new int[]{0, Math.max(2, cores)}) {
+                final CpuSkinning skinning = new CpuSkinning(new BufferManager(), threads, 4096);
+                final Random random = new Random(round);
+                long time = 0;
+                for (int i = 0; i < iterations; i++) {
+                    setPose(model, random);
+                    final long start = System.nanoTime();
+                    skinning.skin(model);
+                    time += System.nanoTime() - start;
+                }
+                System.out.println("vertices: 100000, threads: " + threads + ", skin: " + time / iterations / 1000
+                        + " us");
+            }
+        }
+    }
+
+    /**
+     * Random mesh, weights & pose. Some influences have no weight or an invalid joint
+     */
+    private static AnimatedModel createModel(int joints, int vertices, int influences, Random random) {
+        final FloatBuffer vertexBuffer = IOUtils.createFloatBuffer(vertices * 3);
+        final FloatBuffer normalsBuffer = IOUtils.createFloatBuffer(vertices * 3);
+        for (int i = 0; i < vertices * 3; i += 3) {
+            vertexBuffer.put(random.nextFloat() * 2 - 1).put(random.nextFloat() * 2 - 1).put(random.nextFloat() * 2 - 1);
+            final float[] normal = {random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, 1};
+            final float length = Matrix.length(normal[0], normal[1], normal[2]);
+            normalsBuffer.put(normal[0] / length).put(normal[1] / length).put(normal[2] / length);
+        }
+        final FloatBuffer jointIds = IOUtils.createFloatBuffer(vertices * influences);
+        final FloatBuffer weights = IOUtils.createFloatBuffer(vertices * influences);
+        for (int i = 0; i < vertices; i++) {
+            float total = 0;
+            final float[] vertexWeights = new float[influences];
+            for (int k = 0; k < influences; k++) {
+                vertexWeights[k] = k == 2 && i % 5 == 0 ? 0 : random.nextFloat();
+                total += vertexWeights[k];
+            }
+            for (int k = 0; k < influences; k++) {
+                jointIds.put(k == 1 && i % 7 == 0 ? joints + 3 : random.nextInt(joints));
+                weights.put(vertexWeights[k] / total);
+            }
+        }
+
+        final AnimatedModel ret = new AnimatedModel(vertexBuffer);
+        ret.setNormalsBuffer(normalsBuffer);
+        ret.setJointIds(jointIds);
+        ret.setVertexWeights(weights);
+        final SkeletonData skeleton = new SkeletonData(joints, null);
+        for (int j = 0; j < joints; j++) {
+            skeleton.incrementBoneCount();
+        }
+        ret.setJointsData(skeleton);
+        ret.doAnimation(new Animation(1, new KeyFrame[0]));
+        return ret;
+    }
+
+    /**
+     * Rotation & translation of every joint
+     */
+    private static void setPose(AnimatedModel model, Random random) {
+        final Pose pose = new Pose(model.getBoneCount());
+        for (float[] matrix : pose.getJointTransforms()) {
+            Matrix.setRotateM(matrix, 0, random.nextFloat() * 360, random.nextFloat(), random.nextFloat(), 1);
+            Matrix.translateM(matrix, 0, random.nextFloat(), random.nextFloat(), random.nextFloat());
+        }
+        model.setPose(pose);
+    }
+
+    /**
+     * Skin every vertex with {@link Matrix}, like the vertex shader does
+     */
+    private static void assertSkinned(AnimatedModel model, Object3DData skinned) {
+        final float[][] pose = model.getJointTransforms();
+        final int vertices = model.getVertexBuffer().capacity() / 3;
+        final int influences = model.getJointIds().capacity() / vertices;
+        final float[] vertex = new float[4];
+        final float[] normal = new float[4];
+        final float[] temp = new float[4];
+        for (int i = 0; i < vertices; i++) {
+            final float[] position = new float[4];
+            final float[] direction = new float[4];
+            for (int k = 0; k < 3; k++) {
+                vertex[k] = model.getVertexBuffer().get(i * 3 + k);
+                normal[k] = model.getNormalsBuffer().get(i * 3 + k);
+            }
+            vertex[3] = 1;
+            normal[3] = 0;
+            for (int k = 0; k < influences; k++) {
+                final int joint = (int) model.getJointIds().get(i * influences + k);
+                if (joint >= pose.length) continue;
+                final float weight = model.getVertexWeights().get(i * influences + k);
+                Matrix.multiplyMV(temp, 0, pose[joint], 0, vertex, 0);
+                for (int c = 0; c < 4; c++) position[c] += temp[c] * weight;
+                Matrix.multiplyMV(temp, 0, pose[joint], 0, normal, 0);
+                for (int c = 0; c < 4; c++) direction[c] += temp[c] * weight;
+            }
+            final float length = Matrix.length(direction[0], direction[1], direction[2]);
+            for (int c = 0; c < 3; c++) {
+                assertEquals("vertex " + i, position[c] / position[3], skinned.getVertexBuffer().get(i * 3 + c), 1e-4f);
+                assertEquals("normal " + i, direction[c] / length, skinned.getNormalsBuffer().get(i * 3 + c), 1e-4f);
+            }
+        }
+    }
+}
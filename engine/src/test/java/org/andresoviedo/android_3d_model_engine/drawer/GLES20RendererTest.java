@@ -0,0 +1,473 @@
+package org.andresoviedo.android_3d_model_engine.drawer;
+
+import android.opengl.GLES20;
+
+import org.andresoviedo.android_3d_model_engine.model.AnimatedModel;
+import org.andresoviedo.android_3d_model_engine.model.Element;
+import org.andresoviedo.android_3d_model_engine.model.Material;
+import org.andresoviedo.android_3d_model_engine.services.collada.entities.JointData;
+import org.andresoviedo.android_3d_model_engine.services.collada.entities.SkeletonData;
+import org.andresoviedo.util.io.IOUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Counts the OpenGL calls of the drawer with a recording stand-in
+ */
+public class GLES20RendererTest {
+
+    // like the cowboy.dae model
+    private static final int JOINTS = 16;
+    private static final int VERTICES = 1000;
+
+    /**
+     * Counts the calls by name. Uniform locations are the ordinal of the variable. The call named
+     * <code>failOn</code> raises an error
+     */
+    public static class RecordingGL implements GL20 {
+
+        final Map<String, Integer> calls = new TreeMap<>();
+        final List<Integer> programs = new ArrayList<>();
+        final List<Integer> drawCounts = new ArrayList<>();
+        int jointsUploaded;
+        float[] jointMatrices;
+        int drawType;
+        String failOn;
+        boolean instancing;
+        boolean programBinary;
+        boolean rejectBinaries;
+        String driver = "driver";
+        private int lastProgram;
+        private int lastName;
+        private final Map<Integer, Boolean> linked = new HashMap<>();
+        private int error = GLES20.GL_NO_ERROR;
+
+        private void record(String call) {
+            final Integer count = calls.get(call);
+            calls.put(call, count == null ? 1 : count + 1);
+            if (call.equals(failOn) && error == GLES20.GL_NO_ERROR) {
+                error = GLES20.GL_INVALID_ENUM;
+            }
+        }
+
+        int total() {
+            int ret = 0;
+            for (Integer count : calls.values()) {
+                ret += count;
+            }
+            return ret;
+        }
+
+        public int count(String call) {
+            final Integer count = calls.get(call);
+            return count == null ? 0 : count;
+        }
+
+        @Override
+        public void glUseProgram(int program) {
+            programs.add(program);
+            record("glUseProgram");
+        }
+
+        @Override
+        public int glGetAttribLocation(int program, String name) {
+            record("glGetAttribLocation");
+            for (ShaderVariable variable : ShaderVariable.values()) {
+                if (variable.name.equals(name)) return variable.ordinal();
+            }
+            return -1;
+        }
+
+        @Override
+        public int glGetUniformLocation(int program, String name) {
+            record("glGetUniformLocation");
+            for (ShaderVariable variable : ShaderVariable.values()) {
+                if (variable.name.equals(name)) return variable.ordinal();
+            }
+            return -1;
+        }
+
+        @Override
+        public void glEnableVertexAttribArray(int index) {
+            record("glEnableVertexAttribArray");
+        }
+
+        @Override
+        public void glDisableVertexAttribArray(int index) {
+            record("glDisableVertexAttribArray");
+        }
+
+        @Override
+        public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, Buffer ptr) {
+            record("glVertexAttribPointer");
+        }
+
+        @Override
+        public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, int offset) {
+            record("glVertexAttribPointer");
+        }
+
+        @Override
+        public void glVertexAttrib4fv(int index, float[] values, int offset) {
+            record("glVertexAttrib4fv");
+        }
+
+        @Override
+        public void glUniform1i(int location, int x) {
+            record("glUniform1i");
+        }
+
+        @Override
+        public void glUniform3fv(int location, int count, float[] v, int offset) {
+            record("glUniform3fv");
+        }
+
+        @Override
+        public void glUniform4fv(int location, int count, float[] v, int offset) {
+            record("glUniform4fv");
+        }
+
+        @Override
+        public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset) {
+            record("glUniformMatrix4fv");
+            if (location == ShaderVariable.JOINT_TRANSFORMS.ordinal()) {
+                jointsUploaded += count;
+                jointMatrices = value;
+            }
+        }
+
+        @Override
+        public void glActiveTexture(int texture) {
+            record("glActiveTexture");
+        }
+
+        @Override
+        public void glBindTexture(int target, int texture) {
+            record("glBindTexture");
+        }
+
+        @Override
+        public void glGenBuffers(int n, int[] buffers, int offset) {
+            record("glGenBuffers");
+            for (int i = 0; i < n; i++) {
+                buffers[offset + i] = ++lastName;
+            }
+        }
+
+        @Override
+        public void glBindBuffer(int target, int buffer) {
+            record("glBindBuffer");
+        }
+
+        @Override
+        public void glBufferData(int target, int size, Buffer data, int usage) {
+            record("glBufferData");
+        }
+
+        @Override
+        public void glDeleteBuffers(int n, int[] buffers, int offset) {
+            record("glDeleteBuffers");
+        }
+
+        @Override
+        public void glGenTextures(int n, int[] textures, int offset) {
+            record("glGenTextures");
+            for (int i = 0; i < n; i++) {
+                textures[offset + i] = ++lastName;
+            }
+        }
+
+        @Override
+        public void glTexImage2D(int target, int level, int internalformat, int width, int height, int border,
+                                 int format, int type, Buffer pixels) {
+            record("glTexImage2D");
+        }
+
+        @Override
+        public void glTexSubImage2D(int target, int level, int xoffset, int yoffset, int width, int height,
+                                    int format, int type, Buffer pixels) {
+            record("glTexSubImage2D");
+        }
+
+        @Override
+        public void glTexParameteri(int target, int pname, int param) {
+            record("glTexParameteri");
+        }
+
+        @Override
+        public void glDeleteTextures(int n, int[] textures, int offset) {
+            record("glDeleteTextures");
+        }
+
+        @Override
+        public void glDrawArrays(int mode, int first, int count) {
+            record("glDrawArrays");
+        }
+
+        @Override
+        public void glDrawElements(int mode, int count, int type, Buffer indices) {
+            drawCounts.add(count);
+            drawType = type;
+            record("glDrawElements");
+        }
+
+        @Override
+        public void glDrawElements(int mode, int count, int type, int offset) {
+            drawCounts.add(count);
+            drawType = type;
+            record("glDrawElements");
+        }
+
+        @Override
+        public boolean supportsInstancing() {
+            return instancing;
+        }
+
+        @Override
+        public void glVertexAttribDivisor(int index, int divisor) {
+            record("glVertexAttribDivisor");
+        }
+
+        @Override
+        public void glDrawArraysInstanced(int mode, int first, int count, int instances) {
+            record("glDrawArraysInstanced");
+        }
+
+        @Override
+        public void glDrawElementsInstanced(int mode, int count, int type, Buffer indices, int instances) {
+            drawCounts.add(count * instances);
+            record("glDrawElementsInstanced");
+        }
+
+        @Override
+        public void glDrawElementsInstanced(int mode, int count, int type, int offset, int instances) {
+            drawCounts.add(count * instances);
+            record("glDrawElementsInstanced");
+        }
+
+        @Override
+        public int glCreateShader(int type) {
+            record("glCreateShader");
+            return 1;
+        }
+
+        @Override
+        public void glShaderSource(int shader, String string) {
+            record("glShaderSource");
+        }
+
+        @Override
+        public void glCompileShader(int shader) {
+            record("glCompileShader");
+        }
+
+        @Override
+        public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+            params[offset] = 1;
+        }
+
+        @Override
+        public String glGetShaderInfoLog(int shader) {
+            return "";
+        }
+
+        @Override
+        public void glDeleteShader(int shader) {
+            record("glDeleteShader");
+        }
+
+        @Override
+        public int glCreateProgram() {
+            record("glCreateProgram");
+            return ++lastProgram;
+        }
+
+        @Override
+        public void glAttachShader(int program, int shader) {
+            record("glAttachShader");
+        }
+
+        @Override
+        public void glBindAttribLocation(int program, int index, String name) {
+            record("glBindAttribLocation");
+        }
+
+        @Override
+        public void glLinkProgram(int program) {
+            record("glLinkProgram");
+            linked.put(program, true);
+        }
+
+        @Override
+        public void glGetProgramiv(int program, int pname, int[] params, int offset) {
+            if (pname == GLES20.GL_LINK_STATUS) {
+                params[offset] = linked.containsKey(program) && linked.get(program) ? 1 : 0;
+            } else {
+                // binary length
+                params[offset] = 8;
+            }
+        }
+
+        @Override
+        public String glGetProgramInfoLog(int program) {
+            return "";
+        }
+
+        @Override
+        public void glDeleteProgram(int program) {
+            record("glDeleteProgram");
+        }
+
+        @Override
+        public String glGetString(int name) {
+            return driver + name;
+        }
+
+        @Override
+        public boolean supportsProgramBinary() {
+            return programBinary;
+        }
+
+        @Override
+        public void glProgramParameteri(int program, int pname, int value) {
+            record("glProgramParameteri");
+        }
+
+        @Override
+        public void glGetProgramBinary(int program, int bufSize, int[] length, int lengthOffset, int[] binaryFormat,
+                                       int binaryFormatOffset, Buffer binary) {
+            record("glGetProgramBinary");
+            length[lengthOffset] = bufSize;
+            binaryFormat[binaryFormatOffset] = 1;
+        }
+
+        @Override
+        public void glProgramBinary(int program, int binaryFormat, Buffer binary, int length) {
+            record("glProgramBinary");
+            linked.put(program, !rejectBinaries);
+        }
+
+        @Override
+        public int glGetError() {
+            record("glGetError");
+            final int ret = error;
+            error = GLES20.GL_NO_ERROR;
+            return ret;
+        }
+    }
+
+    /**
+     * Uploads nothing
+     */
+    static class NullSink implements BufferManager.Sink {
+
+        private int buffers;
+
+        @Override
+        public int create() {
+            return ++buffers;
+        }
+
+        @Override
+        public void upload(int target, int id, Buffer data, int size, int usage) {
+        }
+
+        @Override
+        public void bind(int target, int id) {
+        }
+
+        @Override
+        public void delete(int id) {
+        }
+    }
+
+    @Test
+    public void testLocationsResolvedOnce() throws IOException {
+        final RecordingGL gl = new RecordingGL();
+        final GLES20Renderer renderer = createRenderer(Shader.ANIMATION | Shader.LIGHTING | Shader.TEXTURE | Shader.COLORS, gl);
+        assertEquals(ShaderVariable.values().length,
+                gl.count("glGetAttribLocation") + gl.count("glGetUniformLocation"));
+
+        final AnimatedModel model = createAnimatedModel();
+        for (int frame = 0; frame < 3; frame++) {
+            gl.calls.clear();
+            gl.jointsUploaded = 0;
+            model.getJointTransforms()[0][12] = frame;
+            draw(renderer, model);
+
+            // no lookups, the joint matrices at once
+            assertEquals(0, gl.count("glGetAttribLocation") + gl.count("glGetUniformLocation"));
+            assertEquals(JOINTS, gl.jointsUploaded);
+            // model, view, projection, bind shape & joints. Then only the joints change
+            assertEquals(frame == 0 ? 5 : 1, gl.count("glUniformMatrix4fv"));
+        }
+    }
+
+    @Test
+    public void testJointMatricesPacked() throws IOException {
+        final RecordingGL gl = new RecordingGL();
+        final GLES20Renderer renderer = createRenderer(Shader.ANIMATION, gl);
+        final AnimatedModel model = createAnimatedModel();
+        for (int i = 0; i < JOINTS; i++) {
+            model.getJointTransforms()[i][12] = i;
+        }
+        draw(renderer, model);
+        for (int i = 0; i < JOINTS; i++) {
+            assertEquals(i, gl.jointMatrices[i * 16 + 12], 0f);
+        }
+    }
+
+    static void draw(GLES20Renderer renderer, AnimatedModel model) {
+        final float[] matrix = new float[16];
+        renderer.draw(model, matrix, matrix, 1, new float[3], null, new float[3]);
+    }
+
+    static GLES20Renderer createRenderer(int mask, GL20 gl) throws IOException {
+        return createRenderer(mask, new StateTracker(gl), 1);
+    }
+
+    static GLES20Renderer createRenderer(int mask, StateTracker gl, int program) throws IOException {
+        final GLES20Renderer ret = new GLES20Renderer(Shader.getId(mask), program, Shader.getFeatures(mask),
+                new BufferManager(new NullSink()), gl);
+        if ((mask & Shader.ANIMATION) != 0) {
+            assertTrue(ret.toString(), ret.toString().contains("in_weights"));
+        }
+        return ret;
+    }
+
+    static AnimatedModel createAnimatedModel() {
+        final AnimatedModel ret = new AnimatedModel(IOUtils.createFloatBuffer(VERTICES * 3));
+        ret.setNormalsBuffer(IOUtils.createFloatBuffer(VERTICES * 3));
+        ret.setColorsBuffer(IOUtils.createFloatBuffer(VERTICES * 4));
+        ret.setTextureBuffer(IOUtils.createFloatBuffer(VERTICES * 2));
+        ret.setJointIds(IOUtils.createFloatBuffer(VERTICES * 3));
+        ret.setVertexWeights(IOUtils.createFloatBuffer(VERTICES * 3));
+        ret.setDrawMode(GLES20.GL_TRIANGLES);
+        ret.setDrawUsingArrays(false);
+
+        final Element element = new Element("element", IOUtils.createIntBuffer(VERTICES), null);
+        element.setMaterial(new Material("material"));
+        ret.setElements(Collections.singletonList(element));
+
+        final float[] matrix = {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1};
+        final JointData root = new JointData("root", "Root", "root", matrix, null, null, null,
+                matrix.clone(), matrix.clone(), null, null);
+        final SkeletonData skeleton = new SkeletonData(JOINTS, root);
+        for (int i = 0; i < JOINTS; i++) {
+            skeleton.incrementBoneCount();
+        }
+        ret.setJointsData(skeleton);
+        return ret;
+    }
+}
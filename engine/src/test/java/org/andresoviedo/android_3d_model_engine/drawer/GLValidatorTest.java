@@ -0,0 +1,149 @@
+package org.andresoviedo.android_3d_model_engine.drawer;
+
+import android.opengl.GLES20;
+
+import org.andresoviedo.android_3d_model_engine.drawer.GLES20RendererTest.RecordingGL;
+import org.andresoviedo.android_3d_model_engine.model.AnimatedModel;
+import org.andresoviedo.android_3d_model_engine.model.Object3DData;
+import org.andresoviedo.util.io.IOUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+
+import static org.andresoviedo.android_3d_model_engine.drawer.GLES20RendererTest.createAnimatedModel;
+import static org.andresoviedo.android_3d_model_engine.drawer.GLES20RendererTest.createRenderer;
+import static org.andresoviedo.android_3d_model_engine.drawer.GLES20RendererTest.draw;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Counts the <code>glGetError</code> calls of every validation mode
+ */
+public class GLValidatorTest {
+
+    private static final int FRAMES = 10;
+
+    @Test
+    public void testOff() throws IOException {
+        final RecordingGL gl = new RecordingGL();
+        assertSame(gl, GLValidator.wrap(gl, GLValidator.Mode.OFF, 1));
+
+        // the support of GL_UNSIGNED_INT is checked once
+        final int[] checks = drawFrames(gl, gl, null);
+        assertEquals(1, checks[0]);
+        for (int frame = 1; frame < FRAMES; frame++) {
+            assertEquals(0, checks[frame]);
+        }
+    }
+
+    @Test
+    public void testFull() throws IOException {
+        final RecordingGL gl = new RecordingGL();
+        final GLValidator validator = (GLValidator) GLValidator.wrap(gl, GLValidator.Mode.FULL, 1);
+        final int[] checks = drawFrames(gl, validator, validator);
+        for (int frame = 1; frame < FRAMES; frame++) {
+            assertTrue(checks[frame] > 0);
+            assertEquals(checks[1], checks[frame]);
+        }
+        assertEquals(0, validator.getErrors());
+        assertNull(validator.getFirstError());
+    }
+
+    @Test
+    public void testSampled() throws IOException {
+        final RecordingGL gl = new RecordingGL();
+        final GLValidator validator = (GLValidator) GLValidator.wrap(gl, GLValidator.Mode.SAMPLED, 4);
+        final int[] checks = drawFrames(gl, validator, validator);
+        for (int frame = 1; frame < FRAMES; frame++) {
+            if (frame % 4 == 0) {
+                assertTrue(checks[frame] > 0);
+            } else {
+                assertEquals(0, checks[frame]);
+            }
+        }
+    }
+
+    @Test
+    public void testFirstErrorRecorded() throws IOException {
+        final RecordingGL gl = new RecordingGL();
+        gl.failOn = "glBindTexture";
+        final GLValidator validator = (GLValidator) GLValidator.wrap(gl, GLValidator.Mode.FULL, 1);
+        validator.glBindTexture(GLES20.GL_TEXTURE_2D, 1);
+        gl.failOn = "glUseProgram";
+        validator.glUseProgram(1);
+
+        assertEquals(2, validator.getErrors());
+        assertTrue(validator.getFirstError(), validator.getFirstError().startsWith("glBindTexture: glError 0x500"));
+
+        // the caller still sees the error
+        assertEquals(GLES20.GL_INVALID_ENUM, validator.glGetError());
+        assertEquals(GLES20.GL_NO_ERROR, validator.glGetError());
+    }
+
+    @Test
+    public void testUnsignedIntNotSupported() throws IOException {
+        final RecordingGL gl = new RecordingGL();
+        gl.failOn = "glDrawElements";
+        final GLValidator validator = (GLValidator) GLValidator.wrap(gl, GLValidator.Mode.FULL, 1);
+        final GLES20Renderer renderer = createRenderer(Shader.ANIMATION, validator);
+        final AnimatedModel model = createAnimatedModel();
+        draw(renderer, model);
+        assertEquals(GLES20.GL_UNSIGNED_INT, gl.drawType);
+
+        // the error checked by the validator is seen by the drawer, so it falls back to short indices
+        gl.failOn = null;
+        draw(renderer, model);
+        assertEquals(GLES20.GL_UNSIGNED_SHORT, gl.drawType);
+        assertFalse(validator.getFirstError().isEmpty());
+    }
+
+    @Test
+    public void testBufferUploads() {
+        // no glGetError unless the validation is on
+        assertEquals(0, uploadBuffers(GLValidator.Mode.OFF).count("glGetError"));
+        final RecordingGL validated = uploadBuffers(GLValidator.Mode.FULL);
+        assertEquals(validated.count("glGenBuffers") + validated.count("glBindBuffer")
+                + validated.count("glBufferData") + validated.count("glDeleteBuffers"), validated.count("glGetError"));
+    }
+
+    /**
+     * @return the calls of the upload & the deletion of a vertex and an index buffer
+     */
+    private static RecordingGL uploadBuffers(GLValidator.Mode mode) {
+        final RecordingGL gl = new RecordingGL();
+        final BufferManager buffers = new BufferManager();
+        buffers.setGL(GLValidator.wrap(gl, mode, 1));
+        final FloatBuffer vertices = IOUtils.createFloatBuffer(9);
+        final Object3DData obj = new Object3DData(vertices);
+        obj.setDrawOrder(IOUtils.createIntBuffer(3));
+        buffers.bindArray(vertices);
+        buffers.bindElements(obj.getDrawOrder());
+        buffers.unbind();
+        buffers.delete(obj);
+        assertEquals(2, gl.count("glBufferData"));
+        assertEquals(2, gl.count("glDeleteBuffers"));
+        return gl;
+    }
+
+    /**
+     * @return number of glGetError calls per frame
+     */
+    private static int[] drawFrames(RecordingGL recorder, GL20 gl, GLValidator validator) throws IOException {
+        final GLES20Renderer renderer = createRenderer(Shader.ANIMATION | Shader.LIGHTING | Shader.TEXTURE | Shader.COLORS, gl);
+        final AnimatedModel model = createAnimatedModel();
+        final int[] ret = new int[FRAMES];
+        for (int frame = 0; frame < FRAMES; frame++) {
+            recorder.calls.clear();
+            draw(renderer, model);
+            ret[frame] = recorder.count("glGetError");
+            if (validator != null) {
+                validator.endFrame();
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,88 @@
+package org.andresoviedo.android_3d_model_engine.drawer;
+
+import org.andresoviedo.android_3d_model_engine.drawer.GLES20RendererTest.RecordingGL;
+import org.andresoviedo.android_3d_model_engine.model.AnimatedModel;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.andresoviedo.android_3d_model_engine.drawer.GLES20RendererTest.createAnimatedModel;
+import static org.andresoviedo.android_3d_model_engine.drawer.GLES20RendererTest.createRenderer;
+import static org.andresoviedo.android_3d_model_engine.drawer.GLES20RendererTest.draw;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the draws of a repeated geometry, drawn as instances and as clones
+ */
+public class InstancingTest {
+
+    private static final int INSTANCES = 100;
+
+    private final RecordingGL gl = new RecordingGL();
+
+    @Test
+    public void testInstanced() throws IOException {
+        gl.instancing = true;
+        final GLES20Renderer renderer = createRenderer(Shader.LIGHTING, gl);
+        draw(renderer, createModel());
+
+        // a single draw, with the transforms as an instanced attribute
+        assertEquals(1, gl.count("glDrawElementsInstanced"));
+        assertEquals(0, gl.count("glDrawElements"));
+        assertEquals(4, gl.count("glVertexAttribDivisor"));
+    }
+
+    @Test
+    public void testFallback() throws IOException {
+        final GLES20Renderer renderer = createRenderer(Shader.LIGHTING, gl);
+        draw(renderer, createModel());
+
+        // a draw per instance, but the vertex attributes are set up once
+        assertEquals(0, gl.count("glDrawElementsInstanced"));
+        assertEquals(INSTANCES, gl.count("glDrawElements"));
+        assertEquals(4, gl.count("glVertexAttrib4fv"));
+        assertEquals(2, gl.count("glVertexAttribPointer"));
+    }
+
+    @Test
+    public void testClones() throws IOException {
+        final GLES20Renderer renderer = createRenderer(Shader.LIGHTING, gl);
+        final List<AnimatedModel> clones = new ArrayList<>();
+        for (int i = 0; i < INSTANCES; i++) {
+            clones.add(createAnimatedModel());
+        }
+        for (AnimatedModel clone : clones) {
+            draw(renderer, clone);
+        }
+        assertEquals(INSTANCES, gl.count("glDrawElements"));
+        assertEquals(2 * INSTANCES, gl.count("glVertexAttribPointer"));
+    }
+
+    @Test
+    public void testWorldBoundsOfInstances() {
+        final AnimatedModel model = createAnimatedModel();
+        model.getVertexBuffer().put(0, -1).put(1, -1).put(2, -1).put(3, 1).put(4, 1).put(5, 1);
+        model.getElements().get(0).getIndexBuffer().put(1, 1);
+        final float[] transforms = new float[32];
+        for (int i = 0; i < 2; i++) {
+            transforms[i * 16] = transforms[i * 16 + 5] = transforms[i * 16 + 10] = transforms[i * 16 + 15] = 1;
+        }
+        transforms[16 + 12] = 10;
+        model.setInstanceTransforms(transforms);
+        assertArrayEquals(new float[]{-1, -1, -1, 11, 1, 1}, model.getWorldBounds(), 1e-5f);
+    }
+
+    private static AnimatedModel createModel() {
+        final AnimatedModel ret = createAnimatedModel();
+        final float[] transforms = new float[INSTANCES * 16];
+        for (int i = 0; i < INSTANCES; i++) {
+            transforms[i * 16] = transforms[i * 16 + 5] = transforms[i * 16 + 10] = transforms[i * 16 + 15] = 1;
+            transforms[i * 16 + 12] = i;
+        }
+        ret.setInstanceTransforms(transforms);
+        return ret;
+    }
+}
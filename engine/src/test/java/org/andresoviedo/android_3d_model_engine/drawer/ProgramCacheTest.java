@@ -0,0 +1,149 @@
+package org.andresoviedo.android_3d_model_engine.drawer;
+
+import org.andresoviedo.android_3d_model_engine.drawer.GLES20RendererTest.RecordingGL;
+import org.andresoviedo.android_3d_model_engine.model.AnimatedModel;
+import org.andresoviedo.android_3d_model_engine.model.Object3DData;
+import org.andresoviedo.util.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.andresoviedo.android_3d_model_engine.drawer.GLES20RendererTest.createAnimatedModel;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the programs predicted for the scene are compiled ahead, and loaded from their binaries the next time
+ */
+public class ProgramCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final RecordingGL gl = new RecordingGL();
+    private Map<String, String> shadersCode;
+    private List<Object3DData> objects;
+
+    @Before
+    public void setUp() throws IOException {
+        gl.programBinary = true;
+        shadersCode = readShaders();
+
+        // lit, coloured & textured model
+        final AnimatedModel model = createAnimatedModel();
+        model.getElements().get(0).getMaterial().setTextureFile("texture.png");
+        objects = Collections.<Object3DData>singletonList(model);
+    }
+
+    @Test
+    public void testKey() {
+        final String[] attributes = {"a_Position"};
+        final String key = ProgramCache.getKey("vertex", "fragment", attributes, "driver");
+        assertEquals(40, key.length());
+        assertEquals(key, ProgramCache.getKey("vertex", "fragment", attributes, "driver"));
+        assertNotEquals(key, ProgramCache.getKey("vertex", "fragment", attributes, "driver 2"));
+        assertNotEquals(key, ProgramCache.getKey("vertex2", "fragment", attributes, "driver"));
+        assertNotEquals(key, ProgramCache.getKey("vertex", "fragment", new String[]{"a_Normal"}, "driver"));
+        // sources are not just concatenated
+        assertNotEquals(key, ProgramCache.getKey("vertexf", "ragment", attributes, "driver"));
+    }
+
+    @Test
+    public void testPredicted() {
+        final Set<Integer> masks = new LinkedHashSet<>();
+        RendererFactory.predict(objects.get(0), masks);
+        // lights, textures & colors on and off
+        assertEquals(8, masks.size());
+        assertTrue(masks.contains(Shader.LIGHTING | Shader.TEXTURE | Shader.COLORS));
+        assertTrue(masks.contains(Shader.DEFAULT));
+        assertFalse(masks.contains(Shader.ANIMATION));
+    }
+
+    @Test
+    public void testWarmUpWithinBudget() {
+        final RendererFactory factory = new RendererFactory(shadersCode, new ProgramCache(null), gl);
+        for (int i = 0; i < 8; i++) {
+            assertEquals(1, factory.warmUp(objects, 1));
+        }
+        assertEquals(0, factory.warmUp(objects, 1));
+        assertEquals(8, factory.getPrograms().getCompiled());
+
+        // the drawer is already built
+        factory.getDrawer(objects.get(0), false, true, true, true, true);
+        assertEquals(8, gl.count("glLinkProgram"));
+    }
+
+    @Test
+    public void testBinariesLoaded() throws IOException {
+        final File dir = folder.newFolder("programs");
+        final RendererFactory factory = new RendererFactory(shadersCode, new ProgramCache(dir), gl);
+        factory.warmUp(objects, Integer.MAX_VALUE);
+        assertEquals(8, factory.getPrograms().getCompiled());
+        assertEquals(8, factory.getPrograms().getSaved());
+        assertEquals(8, dir.list().length);
+
+        // next start: no compilation
+        gl.calls.clear();
+        final RendererFactory next = new RendererFactory(readShaders(), new ProgramCache(dir), gl);
+        next.warmUp(objects, Integer.MAX_VALUE);
+        assertEquals(8, next.getPrograms().getLoaded());
+        assertEquals(0, next.getPrograms().getCompiled());
+        assertEquals(0, gl.count("glCompileShader"));
+    }
+
+    @Test
+    public void testDriverChanged() throws IOException {
+        final File dir = folder.newFolder("programs");
+        new RendererFactory(shadersCode, new ProgramCache(dir), gl).warmUp(objects, Integer.MAX_VALUE);
+
+        // binaries of another driver are not used
+        gl.driver = "updated driver";
+        final RendererFactory next = new RendererFactory(readShaders(), new ProgramCache(dir), gl);
+        next.warmUp(objects, Integer.MAX_VALUE);
+        assertEquals(0, next.getPrograms().getLoaded());
+        assertEquals(8, next.getPrograms().getCompiled());
+    }
+
+    @Test
+    public void testRejectedBinaries() throws IOException {
+        final File dir = folder.newFolder("programs");
+        new RendererFactory(shadersCode, new ProgramCache(dir), gl).warmUp(objects, Integer.MAX_VALUE);
+
+        // compiled again and saved again
+        gl.rejectBinaries = true;
+        final RendererFactory next = new RendererFactory(readShaders(), new ProgramCache(dir), gl);
+        next.warmUp(objects, Integer.MAX_VALUE);
+        assertEquals(8, next.getPrograms().getRejected());
+        assertEquals(8, next.getPrograms().getCompiled());
+        assertEquals(8, next.getPrograms().getSaved());
+    }
+
+    static Map<String, String> readShaders() throws IOException {
+        File dir = new File("src/main/res/raw");
+        if (!dir.isDirectory()) {
+            dir = new File("engine/src/main/res/raw");
+        }
+        final Map<String, String> ret = new HashMap<>();
+        for (File file : dir.listFiles()) {
+            try (InputStream stream = new FileInputStream(file)) {
+                ret.put(file.getName(), new String(IOUtils.read(stream), Charset.forName("UTF-8")));
+            }
+        }
+        return ret;
+    }
+}
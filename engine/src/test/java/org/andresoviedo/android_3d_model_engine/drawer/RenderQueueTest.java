@@ -0,0 +1,138 @@
+package org.andresoviedo.android_3d_model_engine.drawer;
+
+import org.andresoviedo.android_3d_model_engine.drawer.GLES20RendererTest.RecordingGL;
+import org.andresoviedo.android_3d_model_engine.model.AnimatedModel;
+import org.andresoviedo.android_3d_model_engine.model.Element;
+import org.andresoviedo.android_3d_model_engine.model.Material;
+import org.andresoviedo.util.io.IOUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.andresoviedo.android_3d_model_engine.drawer.GLES20RendererTest.createAnimatedModel;
+import static org.andresoviedo.android_3d_model_engine.drawer.GLES20RendererTest.createRenderer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the draws are sorted by render state and the redundant state changes are skipped
+ */
+public class RenderQueueTest {
+
+    private final RecordingGL gl = new RecordingGL();
+    private final StateTracker state = new StateTracker(gl);
+    private final RenderQueue queue = new RenderQueue();
+    private final float[] matrix = new float[16];
+    private final float[] vector = new float[3];
+
+    @Test
+    public void testSortedByProgram() throws IOException {
+        final GLES20Renderer anim = createRenderer(Shader.ANIMATION, state, 1);
+        final GLES20Renderer animColors = createRenderer(Shader.ANIMATION | Shader.COLORS, state, 2);
+        for (int i = 0; i < 4; i++) {
+            add(i % 2 == 0 ? anim : animColors, createAnimatedModel());
+        }
+        queue.flush();
+        state.endFrame();
+
+        assertEquals(Arrays.asList(1, 2), gl.programs);
+        assertEquals(2, state.getProgramChanges());
+        assertEquals(4, gl.drawCounts.size());
+    }
+
+    @Test
+    public void testTranslucentElementsLast() throws IOException {
+        final GLES20Renderer anim = createRenderer(Shader.ANIMATION, state, 1);
+        add(anim, createModel(1f, 0.5f, 1f));
+        add(anim, createAnimatedModel());
+        queue.flush();
+
+        // opaque elements of both objects, then the translucent one
+        assertEquals(Arrays.asList(3, 9, 1000, 6), gl.drawCounts);
+    }
+
+    @Test
+    public void testElementsBoundOnce() throws IOException {
+        final GLES20Renderer anim = createRenderer(Shader.ANIMATION, state, 1);
+        add(anim, createModel(1f));
+        queue.flush();
+        final int attributes = gl.count("glVertexAttribPointer");
+
+        gl.calls.clear();
+        add(anim, createModel(1f, 1f, 1f));
+        queue.flush();
+        assertEquals(attributes, gl.count("glVertexAttribPointer"));
+        assertEquals(3, gl.count("glDrawElements"));
+    }
+
+    @Test
+    public void testRedundantStateSkipped() throws IOException {
+        final GLES20Renderer anim = createRenderer(Shader.ANIMATION, state, 1);
+        final AnimatedModel model = createAnimatedModel();
+        anim.draw(model, matrix, matrix, -1, vector, null, vector);
+        state.endFrame();
+        final int uniformWrites = state.getUniformWrites();
+        final int arrayChanges = state.getArrayChanges();
+        assertTrue(uniformWrites > 0);
+        assertTrue(arrayChanges > 0);
+
+        // nothing changed since the last draw
+        gl.calls.clear();
+        anim.draw(model, matrix, matrix, -1, vector, null, vector);
+        state.endFrame();
+        assertEquals(0, state.getProgramChanges());
+        assertEquals(0, state.getUniformWrites());
+        assertEquals(0, state.getArrayChanges());
+        assertEquals(0, gl.count("glUseProgram") + gl.count("glUniformMatrix4fv") + gl.count("glEnableVertexAttribArray")
+                + gl.count("glDisableVertexAttribArray"));
+        assertTrue(state.getSkipped() > 0);
+    }
+
+    @Test
+    public void testTooManyObjects() throws IOException {
+        final GLES20Renderer anim = createRenderer(Shader.ANIMATION, state, 1);
+        final AnimatedModel model = createAnimatedModel();
+        for (int i = 0; i < 1 << 16; i++) {
+            add(anim, model);
+        }
+        try {
+            add(anim, model);
+            fail("object overflow");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        queue.flush();
+        assertEquals(1 << 16, gl.drawCounts.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testTextureOutOfRange() throws IOException {
+        queue.add(createRenderer(Shader.ANIMATION, state, 1), createAnimatedModel(), matrix, matrix, 1 << 16,
+                vector, null, vector);
+    }
+
+    private void add(Renderer renderer, AnimatedModel model) {
+        queue.add(renderer, model, matrix, matrix, -1, vector, null, vector);
+    }
+
+    /**
+     * @return a model with an element per alpha, having 3, 6, 9... indices
+     */
+    private static AnimatedModel createModel(float... alphas) {
+        final AnimatedModel ret = createAnimatedModel();
+        final List<Element> elements = new ArrayList<>();
+        for (int i = 0; i < alphas.length; i++) {
+            final Element element = new Element("element" + i, IOUtils.createIntBuffer((i + 1) * 3), null);
+            final Material material = new Material("material" + i);
+            material.setAlpha(alphas[i]);
+            element.setMaterial(material);
+            elements.add(element);
+        }
+        ret.setElements(elements);
+        return ret;
+    }
+}
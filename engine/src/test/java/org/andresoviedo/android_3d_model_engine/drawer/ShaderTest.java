@@ -0,0 +1,77 @@
+package org.andresoviedo.android_3d_model_engine.drawer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the shader variants generated from the feature mask
+ */
+public class ShaderTest {
+
+    @Test
+    public void testGenerate() {
+        assertEquals("#define LIGHTING\n#define COLORS\nvoid main(){}",
+                Shader.generate("void main(){}", Shader.LIGHTING | Shader.COLORS));
+        assertEquals("#version 100\n#define TEXTURE\nvoid main(){}",
+                Shader.generate("#version 100\nvoid main(){}", Shader.TEXTURE));
+
+        // no features, same source
+        final String source = "void main(){}";
+        assertSame(source, Shader.generate(source, Shader.DEFAULT));
+    }
+
+    @Test
+    public void testIds() {
+        assertEquals("anim_light_texture_colors_",
+                Shader.getId(Shader.ANIMATION | Shader.LIGHTING | Shader.TEXTURE | Shader.COLORS));
+        assertEquals("light_colors_", Shader.getId(Shader.getMask(false, true, false, true)));
+        assertEquals("default", Shader.getId(Shader.DEFAULT));
+        assertEquals("skybox_", Shader.getId(Shader.SKYBOX));
+    }
+
+    @Test
+    public void testFeatures() {
+        final Set<String> features = Shader.getFeatures(Shader.ANIMATION | Shader.TEXTURE);
+        assertTrue(features.contains("in_weights"));
+        assertTrue(features.contains("a_TexCoordinate"));
+        assertFalse(features.contains("a_Normal"));
+        assertFalse(features.contains("a_Color"));
+        assertTrue(Shader.getFeatures(Shader.SKYBOX).contains("u_TextureCube"));
+    }
+
+    @Test
+    public void testVariants() throws IOException {
+        final Map<String, String> shadersCode = ProgramCacheTest.readShaders();
+        final String vertexShaderCode = shadersCode.get(Shader.VERTEX_SHADER);
+        final String fragmentShaderCode = shadersCode.get(Shader.FRAGMENT_SHADER);
+        assertBalanced(vertexShaderCode);
+        assertBalanced(fragmentShaderCode);
+
+        // a source per variant
+        final Set<String> variants = new HashSet<>();
+        for (int mask = 0; mask < Shader.SKYBOX; mask++) {
+            variants.add(Shader.generate(vertexShaderCode, mask) + Shader.generate(fragmentShaderCode, mask));
+        }
+        assertEquals(16, variants.size());
+    }
+
+    private static void assertBalanced(String source) {
+        int depth = 0;
+        for (String line : source.split("\n")) {
+            line = line.trim();
+            if (line.startsWith("#if")) depth++;
+            else if (line.startsWith("#endif")) depth--;
+            assertTrue(line, depth >= 0);
+        }
+        assertEquals(0, depth);
+    }
+}
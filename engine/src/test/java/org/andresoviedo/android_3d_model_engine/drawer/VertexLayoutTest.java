@@ -0,0 +1,129 @@
+package org.andresoviedo.android_3d_model_engine.drawer;
+
+import android.opengl.GLES20;
+
+import org.andresoviedo.android_3d_model_engine.model.AnimatedModel;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.andresoviedo.android_3d_model_engine.drawer.GLES20RendererTest.createAnimatedModel;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the quantization error of the vertex attributes is within tolerance
+ */
+public class VertexLayoutTest {
+
+    private final Random random = new Random(1);
+
+    @Test
+    public void testQuantized() {
+        final AnimatedModel model = createModel();
+        final VertexLayout layout = VertexLayout.build(model, VertexLayout.Format.QUANTIZED);
+        assertNotNull(layout);
+
+        // 32 bytes per vertex, instead of 72
+        assertEquals(32, layout.getStride());
+        assertEquals(72 * layout.getVertexCount(), layout.getSourceBytes());
+
+        // positions within a step of the longest axis: 200 in 65534 steps
+        assertError(model.getVertexBuffer(), layout, ShaderVariable.A_POSITION, 3, 100f / Short.MAX_VALUE);
+        assertError(model.getColorsBuffer(), layout, ShaderVariable.A_COLOR, 4, 0.5f / 255 + 1e-6f);
+        assertError(model.getTextureBuffer(), layout, ShaderVariable.A_TEX_COORDINATE, 2, 0.5f / 65535 + 1e-6f);
+        assertError(model.getVertexWeights(), layout, ShaderVariable.IN_WEIGHTS, 3, 0.5f / 65535 + 1e-6f);
+        assertError(model.getJointIds(), layout, ShaderVariable.IN_JOINT_INDICES, 3, 0);
+
+        // the direction of the normals is kept: less than 1 degree
+        final float[] normal = new float[3];
+        for (int v = 0; v < layout.getVertexCount(); v++) {
+            layout.read(ShaderVariable.A_NORMAL, v, normal);
+            final float x = model.getNormalsBuffer().get(v * 3), y = model.getNormalsBuffer().get(v * 3 + 1),
+                    z = model.getNormalsBuffer().get(v * 3 + 2);
+            final double cos = (x * normal[0] + y * normal[1] + z * normal[2])
+                    / Math.sqrt(x * x + y * y + z * z)
+                    / Math.sqrt(normal[0] * normal[0] + normal[1] * normal[1] + normal[2] * normal[2]);
+            assertTrue("normal " + v + ": " + cos, cos > Math.cos(Math.toRadians(1)));
+        }
+    }
+
+    @Test
+    public void testInterleaved() {
+        final AnimatedModel model = createModel();
+        final VertexLayout layout = VertexLayout.build(model, VertexLayout.Format.INTERLEAVED);
+        assertNotNull(layout);
+
+        // same floats, in a single buffer
+        assertEquals(72, layout.getStride());
+        assertEquals(layout.getSourceBytes(), layout.getBytes());
+        assertError(model.getVertexBuffer(), layout, ShaderVariable.A_POSITION, 3, 0);
+        assertError(model.getNormalsBuffer(), layout, ShaderVariable.A_NORMAL, 3, 0);
+        assertError(model.getTextureBuffer(), layout, ShaderVariable.A_TEX_COORDINATE, 2, 0);
+    }
+
+    @Test
+    public void testTiledTextureNotQuantized() {
+        final AnimatedModel model = createModel();
+        model.getTextureBuffer().put(0, 2.5f);
+        final VertexLayout layout = VertexLayout.build(model, VertexLayout.Format.QUANTIZED);
+        assertNotNull(layout);
+        assertEquals(GLES20.GL_FLOAT, layout.get(ShaderVariable.A_TEX_COORDINATE).type);
+        assertError(model.getTextureBuffer(), layout, ShaderVariable.A_TEX_COORDINATE, 2, 0);
+    }
+
+    @Test
+    public void testLayoutRebuilt() {
+        final BufferManager buffers = new BufferManager(new GLES20RendererTest.NullSink());
+        final AnimatedModel model = createModel();
+        assertNull(buffers.getLayout(model));
+
+        buffers.setVertexFormat(VertexLayout.Format.QUANTIZED);
+        final VertexLayout layout = buffers.getLayout(model);
+        assertSame(layout, buffers.getLayout(model));
+        assertEquals(layout.getSourceBytes() - layout.getBytes(), buffers.getSavedBytes());
+
+        // replaced buffer
+        model.setColorsBuffer(model.getColorsBuffer().duplicate());
+        assertTrue(layout != buffers.getLayout(model));
+        assertEquals(layout.getSourceBytes() - layout.getBytes(), buffers.getSavedBytes());
+    }
+
+    private static void assertError(FloatBuffer expected, VertexLayout layout, ShaderVariable variable, int size,
+                                    float tolerance) {
+        final float[] value = new float[size];
+        float max = 0;
+        for (int v = 0; v < layout.getVertexCount(); v++) {
+            assertTrue(layout.read(variable, v, value));
+            for (int c = 0; c < size; c++) {
+                max = Math.max(max, Math.abs(expected.get(v * size + c) - value[c]));
+            }
+        }
+        assertTrue(variable + " error: " + max, max <= tolerance);
+    }
+
+    private AnimatedModel createModel() {
+        final AnimatedModel ret = createAnimatedModel();
+        final int vertices = ret.getVertexBuffer().capacity() / 3;
+        final float[] extent = {200, 20, 2};
+        for (int v = 0; v < vertices; v++) {
+            for (int c = 0; c < 3; c++) {
+                ret.getVertexBuffer().put(v * 3 + c, (random.nextFloat() - 0.5f) * extent[c] + 10);
+                ret.getNormalsBuffer().put(v * 3 + c, random.nextFloat() * 2 - 1);
+                ret.getJointIds().put(v * 3 + c, random.nextInt(60));
+                ret.getVertexWeights().put(v * 3 + c, random.nextFloat());
+            }
+            for (int c = 0; c < 4; c++) {
+                ret.getColorsBuffer().put(v * 4 + c, random.nextFloat());
+            }
+            for (int c = 0; c < 2; c++) {
+                ret.getTextureBuffer().put(v * 2 + c, random.nextFloat());
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,358 @@
+package org.andresoviedo.android_3d_model_engine.services.cache;
+
+import android.opengl.GLES20;
+
+import org.andresoviedo.android_3d_model_engine.animation.Animation;
+import org.andresoviedo.android_3d_model_engine.animation.JointTransform;
+import org.andresoviedo.android_3d_model_engine.animation.KeyFrame;
+import org.andresoviedo.android_3d_model_engine.model.AnimatedModel;
+import org.andresoviedo.android_3d_model_engine.model.Element;
+import org.andresoviedo.android_3d_model_engine.model.Material;
+import org.andresoviedo.android_3d_model_engine.model.Object3DData;
+import org.andresoviedo.android_3d_model_engine.services.collada.entities.JointData;
+import org.andresoviedo.android_3d_model_engine.services.collada.entities.MeshData;
+import org.andresoviedo.android_3d_model_engine.services.collada.entities.SkeletonData;
+import org.andresoviedo.android_3d_model_engine.services.collada.entities.Vertex;
+import org.andresoviedo.util.collection.FloatArrayList;
+import org.andresoviedo.util.collection.IntArrayList;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MeshCacheTest {
+
+    private static final URI MODEL = URI.create("file:///sdcard/models/test.dae");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // stamps of the files referenced by the models
+    private final Map<String, MeshCache.Stamp> files = new HashMap<>();
+
+    private MeshCache newCache() throws IOException {
+        return new MeshCache(folder.newFolder("meshes"), new MeshCache.Resolver() {
+            @Override
+            public MeshCache.Stamp getStamp(String file) {
+                return files.containsKey(file) ? files.get(file) : MeshCache.Stamp.MISSING;
+            }
+        });
+    }
+
+    private static MeshCache.Key key(String content) throws IOException {
+        return MeshCache.Key.of(MODEL, new ByteArrayInputStream(content.getBytes("UTF-8")));
+    }
+
+    @Test
+    public void testMissAndHit() throws IOException {
+        final MeshCache cache = newCache();
+        final int hits = MeshCache.getHits();
+        final int misses = MeshCache.getMisses();
+
+        assertNull(cache.get(key("v 0 0 0")));
+        assertEquals(misses + 1, MeshCache.getMisses());
+
+        cache.put(key("v 0 0 0"), Collections.singletonList(createObject()));
+        assertNotNull(cache.get(key("v 0 0 0")));
+        assertEquals(hits + 1, MeshCache.getHits());
+
+        // model changed
+        assertNull(cache.get(key("v 0 0 1")));
+        assertEquals(misses + 2, MeshCache.getMisses());
+        assertEquals(hits + 1, MeshCache.getHits());
+    }
+
+    @Test
+    public void testFileMetadata() throws IOException {
+        final MeshCache cache = newCache();
+        cache.put(new MeshCache.Key(MODEL.toString(), MeshCache.Stamp.of(7, 1000)),
+                Collections.singletonList(createObject()));
+        assertNotNull(cache.get(new MeshCache.Key(MODEL.toString(), MeshCache.Stamp.of(7, 1000))));
+
+        // model touched, or its time is not known anymore
+        assertNull(cache.get(new MeshCache.Key(MODEL.toString(), MeshCache.Stamp.of(7, 2000))));
+        assertNull(cache.get(key("v 0 0 0")));
+    }
+
+    @Test
+    public void testReferencedFiles() throws IOException {
+        final MeshCache cache = newCache();
+        files.put("texture.png", MeshCache.Stamp.of(3, 1000));
+        cache.put(key("model"), Collections.singletonList(createObject()));
+        assertNotNull(cache.get(key("model")));
+
+        // texture updated
+        files.put("texture.png", MeshCache.Stamp.of(3, 2000));
+        assertNull(cache.get(key("model")));
+
+        // texture removed
+        files.remove("texture.png");
+        assertNull(cache.get(key("model")));
+    }
+
+    @Test
+    public void testMeshData() throws IOException {
+        final MeshCache cache = newCache();
+        cache.put(key("model"), Collections.singletonList(createMeshObject()));
+        final Object3DData actual = cache.get(key("model")).get(0);
+        assertNotNull(actual.getMeshData());
+        assertEquals("lib.mtl", actual.getMeshData().getMaterialFile());
+
+        // the cached model is smoothed like the loaded one
+        final Object3DData expected = createMeshObject();
+        expected.getMeshData().smooth();
+        actual.getMeshData().smooth();
+        assertBufferEquals(expected.getNormalsBuffer(), actual.getNormalsBuffer());
+        assertEquals(1, actual.getNormalsBuffer().get(2), 1e-6f);
+    }
+
+    @Test
+    public void testStaticModel() throws IOException {
+        final MeshCache cache = newCache();
+        final Object3DData expected = createObject();
+        final Object3DData instance = expected.clone();
+        instance.setId("instance");
+
+        cache.put(key("model"), Arrays.asList(expected, instance));
+        final List<Object3DData> actual = cache.get(key("model"));
+
+        assertEquals(2, actual.size());
+        assertObjectEquals(expected, actual.get(0));
+        assertObjectEquals(instance, actual.get(1));
+        assertTrue(actual.get(0).getVertexBuffer().isDirect());
+
+        // materials are shared
+        assertSame(actual.get(0).getElements().get(0).getMaterial(), actual.get(1).getElements().get(0).getMaterial());
+    }
+
+    @Test
+    public void testAnimatedModel() throws IOException {
+        final MeshCache cache = newCache();
+        final AnimatedModel expected = createAnimatedModel();
+
+        cache.put(key("animated"), Collections.<Object3DData>singletonList(expected));
+        final List<Object3DData> actual = cache.get(key("animated"));
+
+        assertEquals(1, actual.size());
+        final AnimatedModel animated = (AnimatedModel) actual.get(0);
+        assertObjectEquals(expected, animated);
+        assertBufferEquals(expected.getJointIds(), animated.getJointIds());
+        assertBufferEquals(expected.getVertexWeights(), animated.getVertexWeights());
+
+        // skeleton
+        assertEquals(expected.getJointCount(), animated.getJointCount());
+        assertEquals(expected.getBoneCount(), animated.getBoneCount());
+        assertJointEquals(expected.getJointsData().getHeadJoint(), animated.getJointsData().getHeadJoint());
+
+        // animation
+        assertEquals(expected.getAnimation().getLength(), animated.getAnimation().getLength(), 0);
+        final KeyFrame[] expectedFrames = expected.getAnimation().getKeyFrames();
+        final KeyFrame[] actualFrames = animated.getAnimation().getKeyFrames();
+        assertEquals(expectedFrames.length, actualFrames.length);
+        for (int i = 0; i < expectedFrames.length; i++) {
+            assertEquals(expectedFrames[i].getTimeStamp(), actualFrames[i].getTimeStamp(), 0);
+            final Map<String, JointTransform> expectedPose = expectedFrames[i].getTransforms();
+            final Map<String, JointTransform> actualPose = actualFrames[i].getTransforms();
+            assertEquals(expectedPose.keySet(), actualPose.keySet());
+            for (String joint : expectedPose.keySet()) {
+                assertArrayEquals(expectedPose.get(joint).getMatrix(), actualPose.get(joint).getMatrix(), 1e-5f);
+                assertArrayEquals(expectedPose.get(joint).getRotation(), actualPose.get(joint).getRotation());
+            }
+        }
+    }
+
+    private static Object3DData createObject() {
+        final FloatArrayList vertices = new FloatArrayList(3);
+        vertices.add(0, 0, 0);
+        vertices.add(1, 0, 0);
+        vertices.add(1, 1, 0);
+        vertices.add(0, 1, 0);
+        final FloatArrayList normals = new FloatArrayList(3);
+        for (int i = 0; i < 4; i++) normals.add(0, 0, 1);
+
+        final IntArrayList indices = new IntArrayList();
+        for (int index : new int[]{0, 1, 2, 0, 2, 3}) indices.add(index);
+
+        final Material material = new Material("red");
+        material.setDiffuse(new float[]{1, 0, 0, 1});
+        material.setAlpha(0.5f);
+        material.setTextureFile("texture.png");
+        material.setTextureData(new byte[]{1, 2, 3});
+        final Element element = new Element("quad", indices, "red");
+        element.setMaterial(material);
+
+        final Object3DData ret = new Object3DData(vertices.toFloatBuffer());
+        ret.setId("quad");
+        ret.setName("Quad");
+        ret.setUri(MODEL);
+        ret.setNormalsBuffer(normals.toFloatBuffer());
+        ret.setElements(Collections.singletonList(element));
+        ret.setDrawMode(GLES20.GL_TRIANGLES);
+        ret.setDrawUsingArrays(false);
+        return ret;
+    }
+
+    /**
+     * 2 triangles sharing an edge, with one normal per face
+     */
+    private static Object3DData createMeshObject() {
+        final FloatArrayList vertices = new FloatArrayList(3);
+        vertices.add(0, 0, 0);
+        vertices.add(1, 0, 0);
+        vertices.add(1, 1, 0);
+        vertices.add(0, 1, 0);
+        final FloatArrayList normals = new FloatArrayList(3);
+        normals.add(0, 0.6f, 0.8f);
+        normals.add(0, -0.6f, 0.8f);
+        final List<Vertex> attributes = new ArrayList<>();
+        for (int[] corner : new int[][]{{0, 0}, {1, 0}, {2, 0}, {0, 1}, {2, 1}, {3, 1}}) {
+            final Vertex vertex = new Vertex(corner[0]);
+            vertex.setNormalIndex(corner[1]);
+            attributes.add(vertex);
+        }
+        final IntArrayList indices = new IntArrayList();
+        for (int i = 0; i < 6; i++) indices.add(i);
+
+        final MeshData meshData = new MeshData.Builder().id("mesh").vertices(vertices).normals(normals)
+                .colors(new FloatArrayList(4)).textures(new FloatArrayList(2)).vertexAttributes(attributes)
+                .addElement(new Element("mesh", indices, null)).materialFile("lib.mtl").build();
+        final Object3DData ret = new Object3DData(meshData.getVertexBuffer());
+        ret.setId("mesh");
+        ret.setMeshData(meshData);
+        ret.setNormalsBuffer(meshData.getNormalsBuffer());
+        ret.setElements(meshData.getElements());
+        ret.setDrawMode(GLES20.GL_TRIANGLES);
+        return ret;
+    }
+
+    private static AnimatedModel createAnimatedModel() {
+        final Object3DData quad = createObject();
+        final AnimatedModel ret = new AnimatedModel(quad.getVertexBuffer());
+        ret.setId("animated");
+        ret.setAuthoringTool("Blender");
+        ret.setElements(quad.getElements());
+        ret.setDrawMode(GLES20.GL_TRIANGLES);
+        ret.setDrawUsingArrays(false);
+
+        final FloatArrayList joints = new FloatArrayList(3);
+        final FloatArrayList weights = new FloatArrayList(3);
+        for (int i = 0; i < 4; i++) {
+            joints.add(0, 1, 0);
+            weights.add(0.25f, 0.75f, 0);
+        }
+        ret.setJointIds(joints.toFloatBuffer());
+        ret.setVertexWeights(weights.toFloatBuffer());
+
+        // skeleton
+        final float[] matrix = {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 2, 3, 4, 1};
+        final Map<String, String> materials = new HashMap<>();
+        materials.put("red", "red-material");
+        final JointData root = new JointData("root", "Root", "root", matrix, new Float[]{1f, 1f, 1f},
+                new Float[]{null, 90f, null}, new Float[3], matrix.clone(), matrix.clone(), null, materials);
+        root.setIndex(0);
+        root.setInverseBindTransform(matrix.clone());
+        final JointData bone = new JointData("bone", "Bone", "bone", matrix, null, null, null,
+                matrix.clone(), matrix.clone(), "animated", null);
+        bone.setIndex(1);
+        root.addChild(bone);
+        final SkeletonData skeleton = new SkeletonData(2, root);
+        skeleton.incrementBoneCount();
+        skeleton.incrementBoneCount();
+        ret.setJointsData(skeleton);
+
+        // animation
+        final List<KeyFrame> frames = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final Map<String, JointTransform> pose = new HashMap<>();
+            pose.put("root", new JointTransform(matrix.clone()));
+            final JointTransform rotation = JointTransform.ofRotation(new Float[]{null, i * 10f, null});
+            rotation.addLocation(new Float[]{1f, 2f, 3f});
+            pose.put("bone", rotation);
+            frames.add(new KeyFrame(i * 0.5f, pose));
+        }
+        ret.doAnimation(new Animation(1.0f, frames.toArray(new KeyFrame[0])));
+        return ret;
+    }
+
+    private static void assertObjectEquals(Object3DData expected, Object3DData actual) {
+        assertEquals(expected.getClass(), actual.getClass());
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getUri(), actual.getUri());
+        assertEquals(expected.getAuthoringTool(), actual.getAuthoringTool());
+        assertEquals(expected.getDrawMode(), actual.getDrawMode());
+        assertEquals(expected.isDrawUsingArrays(), actual.isDrawUsingArrays());
+        assertBufferEquals(expected.getVertexBuffer(), actual.getVertexBuffer());
+        assertBufferEquals(expected.getNormalsBuffer(), actual.getNormalsBuffer());
+        assertBufferEquals(expected.getTextureBuffer(), actual.getTextureBuffer());
+        assertBufferEquals(expected.getColorsBuffer(), actual.getColorsBuffer());
+
+        assertEquals(expected.getElements().size(), actual.getElements().size());
+        for (int i = 0; i < expected.getElements().size(); i++) {
+            final Element e = expected.getElements().get(i);
+            final Element a = actual.getElements().get(i);
+            assertEquals(e.getId(), a.getId());
+            assertEquals(e.getMaterialId(), a.getMaterialId());
+            final IntBuffer ei = e.getIndexBuffer();
+            final IntBuffer ai = a.getIndexBuffer();
+            assertEquals(ei.capacity(), ai.capacity());
+            for (int k = 0; k < ei.capacity(); k++) {
+                assertEquals(ei.get(k), ai.get(k));
+            }
+            assertEquals(e.getMaterial().getName(), a.getMaterial().getName());
+            assertArrayEquals(e.getMaterial().getDiffuse(), a.getMaterial().getDiffuse(), 0);
+            assertNull(a.getMaterial().getAmbient());
+            assertEquals(e.getMaterial().getAlpha(), a.getMaterial().getAlpha(), 0);
+            assertEquals(e.getMaterial().getTextureFile(), a.getMaterial().getTextureFile());
+            assertArrayEquals(e.getMaterial().getTextureData(), a.getMaterial().getTextureData());
+        }
+    }
+
+    private static void assertJointEquals(JointData expected, JointData actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getSid(), actual.getSid());
+        assertEquals(expected.getGeometryId(), actual.getGeometryId());
+        assertEquals(expected.getMaterials(), actual.getMaterials());
+        assertEquals(expected.getIndex(), actual.getIndex());
+        assertArrayEquals(expected.getBindLocalMatrix(), actual.getBindLocalMatrix(), 0);
+        assertArrayEquals(expected.getBindLocalScale(), actual.getBindLocalScale());
+        assertArrayEquals(expected.getBindLocalRotation(), actual.getBindLocalRotation());
+        assertArrayEquals(expected.getBindLocalLocation(), actual.getBindLocalLocation());
+        assertArrayEquals(expected.getBindTransform(), actual.getBindTransform(), 0);
+        assertArrayEquals(expected.getInverseBindTransform(), actual.getInverseBindTransform(), 0);
+        assertEquals(expected.getChildren().size(), actual.getChildren().size());
+        for (int i = 0; i < expected.getChildren().size(); i++) {
+            assertJointEquals(expected.getChildren().get(i), actual.getChildren().get(i));
+        }
+    }
+
+    private static void assertBufferEquals(FloatBuffer expected, FloatBuffer actual) {
+        if (expected == null || actual == null) {
+            assertEquals(expected, actual);
+            return;
+        }
+        assertEquals(expected.capacity(), actual.capacity());
+        for (int i = 0; i < expected.capacity(); i++) {
+            assertEquals(Float.floatToIntBits(expected.get(i)), Float.floatToIntBits(actual.get(i)));
+        }
+    }
+}
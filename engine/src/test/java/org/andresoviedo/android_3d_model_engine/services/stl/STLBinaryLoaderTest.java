@@ -0,0 +1,190 @@
+package org.andresoviedo.android_3d_model_engine.services.stl;
+
+import org.andresoviedo.android_3d_model_engine.services.collada.entities.MeshData;
+import org.andresoviedo.util.collection.FloatArrayList;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the memory mapped loader produces the same buffers than the STL parser
+ */
+public class STLBinaryLoaderTest {
+
+    @Test
+    public void testSameAsParser() throws IOException {
+        final File file = createModel(1000);
+        try {
+            final MeshData expected = loadWithParser(file);
+            assertResultEquals(expected, load(file, 1));
+            assertResultEquals(expected, load(file, 4));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testParallelSameAsParser() throws IOException {
+        final File file = createModel(300000);
+        try {
+            final MeshData expected = loadWithParser(file);
+            assertResultEquals(expected, load(file, 4));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testNotBinary() throws IOException {
+        final byte[] ascii = ("solid test\n" +
+                "facet normal 0 0 1\n outer loop\n  vertex 0 0 0\n  vertex 1 0 0\n  vertex 0 1 0\n endloop\nendfacet\n" +
+                "endsolid test\n").getBytes(Charset.forName("UTF-8"));
+        assertNull(new STLBinaryLoader(1).load(ByteBuffer.wrap(ascii)));
+
+        // truncated file
+        final ByteBuffer data = ByteBuffer.allocate(STLBinaryLoader.HEADER_SIZE + STLBinaryLoader.RECORD_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        data.putInt(80, 2);
+        assertNull(new STLBinaryLoader(1).load(data));
+        data.putInt(80, 1);
+        assertNotNull(new STLBinaryLoader(1).load(data));
+    }
+
+    /**
+     * Compares the parser with the memory mapped loader. Run manually.
+     */
+    @Ignore
+    @Test
+    public void benchmark() throws IOException {
+        final File file = createModel(2000000);
+        try {
+            final int cores = Runtime.getRuntime().availableProcessors();
+            for (int i = 0; i < 3; i++) {
+                long start = System.nanoTime();
+                loadWithParser(file).getVertexBuffer();
+                final long parser = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                load(file, 1);
+                final long sequential = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                load(file, cores);
+                final long parallel = System.nanoTime() - start;
+
+                System.out.println("size: " + file.length() / 1024 / 1024 + " MB, parser: " + parser / 1000000
+                        + " ms, mapped: " + sequential / 1000000 + " ms, mapped (" + cores + " threads): "
+                        + parallel / 1000000 + " ms");
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static STLBinaryLoader.Result load(File file, int threads) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return new STLBinaryLoader(threads).load(raf.getChannel());
+        }
+    }
+
+    /**
+     * Same steps than {@link STLLoaderTask} without the fast path
+     */
+    private static MeshData loadWithParser(File file) throws IOException {
+        final STLFileReader reader = new STLFileReader(file);
+        try {
+            final int totalFaces = reader.getNumOfFacets()[0];
+            final FloatArrayList vertices = new FloatArrayList(3, totalFaces * 3);
+            final FloatArrayList normals = new FloatArrayList(3, totalFaces * 3);
+            final double[] normal = new double[3];
+            final double[][] triangle = new double[3][3];
+            int counter = 0;
+            while (reader.getNextFacet(normal, triangle) && counter++ < totalFaces) {
+                for (int i = 0; i < 3; i++) {
+                    normals.add((float) normal[0], (float) normal[1], (float) normal[2]);
+                }
+                for (int i = 0; i < 3; i++) {
+                    vertices.add((float) triangle[i][0], (float) triangle[i][1], (float) triangle[i][2]);
+                }
+            }
+            final MeshData mesh = new MeshData.Builder().vertices(vertices).normals(normals).build();
+            mesh.fixNormals();
+            return mesh;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Random facets, some of them with missing, invalid or wrong normals and some degenerated
+     */
+    private static File createModel(int facets) throws IOException {
+        final Random random = new Random(1);
+        final ByteBuffer data = ByteBuffer.allocate(STLBinaryLoader.HEADER_SIZE + facets * STLBinaryLoader.RECORD_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        data.position(80);
+        data.putInt(facets);
+        for (int i = 0; i < facets; i++) {
+            final float[] facet = new float[12];
+            for (int j = 0; j < 12; j++) {
+                facet[j] = random.nextFloat() * 2 - 1;
+            }
+            switch (i % 7) {
+                case 1:
+                    facet[0] = facet[1] = facet[2] = 0;
+                    break;
+                case 2:
+                    facet[1] = Float.NaN;
+                    break;
+                case 3:
+                    facet[2] = Float.POSITIVE_INFINITY;
+                    break;
+                case 4:
+                    System.arraycopy(facet, 3, facet, 9, 3);
+                    break;
+                case 5:
+                    facet[0] = facet[1] = facet[2] = 0;
+                    System.arraycopy(facet, 3, facet, 6, 3);
+                    System.arraycopy(facet, 3, facet, 9, 3);
+                    break;
+                default:
+            }
+            for (float value : facet) {
+                data.putFloat(value);
+            }
+            data.putShort((short) 0);
+        }
+        final File file = File.createTempFile("model", ".stl");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data.array());
+        }
+        return file;
+    }
+
+    private static void assertResultEquals(MeshData expected, STLBinaryLoader.Result actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getVertexBuffer().capacity() / 9, actual.facets);
+        assertBufferEquals(expected.getVertexBuffer(), actual.vertexBuffer);
+        assertBufferEquals(expected.getNormalsBuffer(), actual.normalsBuffer);
+    }
+
+    private static void assertBufferEquals(FloatBuffer expected, FloatBuffer actual) {
+        assertEquals(expected.capacity(), actual.capacity());
+        for (int i = 0; i < expected.capacity(); i++) {
+            assertEquals("index " + i, Float.floatToIntBits(expected.get(i)), Float.floatToIntBits(actual.get(i)));
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.andresoviedo.android_3d_model_engine.services.stl;
+
+import org.andresoviedo.util.collection.FloatArrayList;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the single pass parser produces the same facets than the {@link STLFileReader}
+ */
+public class STLFastASCIIParserTest {
+
+    private static final String STL = "solid test\n" +
+            "facet normal 0 0 1\n outer loop\n  vertex 0 0 0\n  vertex 1 0 0\n  vertex 0 1 0\n endloop\nendfacet\n" +
+            "\n" +
+            "  facet   normal NaN 0 1e-1\r\n\touter loop\r\n\t\tvertex 1.5e2 -2 +3\r\n\t\tvertex 1,5 2,25 -0,5\r\n" +
+            "\t\tvertex .5 0.0000001 123456789\r\n\tendloop\r\nendfacet\r\n" +
+            "facet normal nan 1 1\n outer loop\n  vertex 0 0 0\n  vertex 0 0 0\n  vertex 1 1 1\n endloop\nendfacet\n" +
+            "end solid test\n";
+
+    @Test
+    public void testSameAsParser() throws IOException {
+        final byte[] data = STL.getBytes(Charset.forName("UTF-8"));
+        final STLFastASCIIParser parser = new STLFastASCIIParser();
+        assertTrue(parser.parse(new ByteArrayInputStream(data)));
+        assertEquals(9, parser.getVertices().size());
+        assertEquals(1.5f, parser.getVertices().get(4, 0), 0f);
+
+        final File file = write(data);
+        try {
+            assertFacetsEquals(file, parser);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testGoldenModels() throws IOException {
+        File dir = new File("models");
+        if (!dir.isDirectory()) {
+            dir = new File("../models");
+        }
+        final File[] files = dir.listFiles();
+        assertTrue("models folder not found", files != null);
+        for (File file : files) {
+            if (!file.getName().toLowerCase(Locale.ROOT).endsWith(".stl")) continue;
+            final STLFastASCIIParser parser = new STLFastASCIIParser();
+            try (InputStream stream = new FileInputStream(file)) {
+                if (!parser.parse(stream)) continue;
+            }
+            assertFacetsEquals(file, parser);
+        }
+    }
+
+    @Test
+    public void testNotAscii() throws IOException {
+        assertFalse(new STLFastASCIIParser().parse(new ByteArrayInputStream(new byte[84])));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownKeyword() throws IOException {
+        final byte[] data = "solid test\nfacet normal 0 0 1\n inner loop\n".getBytes(Charset.forName("UTF-8"));
+        new STLFastASCIIParser().parse(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * Compares the single pass parser with the STL parser. Run manually.
+     */
+    @Ignore
+    @Test
+    public void benchmark() throws IOException {
+        final File file = createModel(1000000);
+        try {
+            for (int i = 0; i < 3; i++) {
+                long start = System.nanoTime();
+                final STLFileReader reader = new STLFileReader(file);
+                final double[] normal = new double[3];
+                final double[][] triangle = new double[3][3];
+                final FloatArrayList vertices = new FloatArrayList(3, reader.getNumOfFacets()[0] * 3);
+                while (reader.getNextFacet(normal, triangle)) {
+                    for (int j = 0; j < 3; j++) {
+                        vertices.add((float) triangle[j][0], (float) triangle[j][1], (float) triangle[j][2]);
+                    }
+                }
+                reader.close();
+                final long old = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                try (InputStream stream = new FileInputStream(file)) {
+                    new STLFastASCIIParser().parse(stream);
+                }
+                final long fast = System.nanoTime() - start;
+
+                System.out.println("size: " + file.length() / 1024 / 1024 + " MB, parser: " + old / 1000000
+                        + " ms, single pass: " + fast / 1000000 + " ms");
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static File createModel(int facets) throws IOException {
+        final Random random = new Random(1);
+        final File file = File.createTempFile("model", ".stl");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            out.write("solid benchmark\n".getBytes(Charset.forName("UTF-8")));
+            for (int i = 0; i < facets; i++) {
+                final StringBuilder sb = new StringBuilder();
+                sb.append(String.format(Locale.ROOT, "facet normal %e %e %e\n outer loop\n",
+                        random.nextFloat(), random.nextFloat(), random.nextFloat()));
+                for (int j = 0; j < 3; j++) {
+                    sb.append(String.format(Locale.ROOT, "  vertex %e %e %e\n",
+                            random.nextFloat(), random.nextFloat(), random.nextFloat()));
+                }
+                sb.append(" endloop\nendfacet\n");
+                out.write(sb.toString().getBytes(Charset.forName("UTF-8")));
+            }
+            out.write("endsolid benchmark\n".getBytes(Charset.forName("UTF-8")));
+        }
+        return file;
+    }
+
+    private static File write(byte[] data) throws IOException {
+        final File file = File.createTempFile("model", ".stl");
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return file;
+    }
+
+    private static void assertFacetsEquals(File file, STLFastASCIIParser actual) throws IOException {
+        final STLFileReader reader = new STLFileReader(file);
+        try {
+            final double[] normal = new double[3];
+            final double[][] triangle = new double[3][3];
+            int facet = 0;
+            while (reader.getNextFacet(normal, triangle)) {
+                for (int i = 0; i < 3; i++) {
+                    final int index = facet * 3 + i;
+                    for (int j = 0; j < 3; j++) {
+                        assertEquals(file + " facet " + facet, Float.floatToIntBits((float) normal[j]),
+                                Float.floatToIntBits(actual.getNormals().get(index, j)));
+                        assertEquals(file + " facet " + facet, Float.floatToIntBits((float) triangle[i][j]),
+                                Float.floatToIntBits(actual.getVertices().get(index, j)));
+                    }
+                }
+                facet++;
+            }
+            assertEquals(facet * 3, actual.getVertices().size());
+            assertEquals(facet * 3, actual.getNormals().size());
+        } finally {
+            reader.close();
+        }
+    }
+}
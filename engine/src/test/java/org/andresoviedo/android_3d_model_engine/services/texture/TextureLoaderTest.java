@@ -0,0 +1,369 @@
+package org.andresoviedo.android_3d_model_engine.services.texture;
+
+import org.andresoviedo.android_3d_model_engine.drawer.GLES20RendererTest.RecordingGL;
+import org.andresoviedo.android_3d_model_engine.drawer.GLValidator;
+import org.andresoviedo.android_3d_model_engine.model.Material;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the texture pipeline with a stub decoder and a stub upload sink
+ */
+public class TextureLoaderTest {
+
+    private static final long TIMEOUT = 5000;
+
+    /**
+     * The image is: width, height, fail, and optionally any other bytes to tell apart images of the same size
+     */
+    private static final class StubDecoder implements TextureLoader.Decoder {
+
+        private final AtomicInteger decoded = new AtomicInteger();
+
+        @Override
+        public TextureLoader.Texture decode(byte[] data) throws IOException {
+            decoded.incrementAndGet();
+            if (data[2] != 0) throw new IOException("corrupted image");
+            final int width = data[0], height = data[1];
+            final ByteBuffer pixels = ByteBuffer.allocateDirect(width * height * 4);
+            for (int i = 0; i < pixels.capacity(); i++) {
+                pixels.put(i, (byte) i);
+            }
+            return new TextureLoader.Texture(width, height, pixels);
+        }
+    }
+
+    /**
+     * Records the uploaded pixels and the rows of every call
+     */
+    private static final class StubSink implements TextureLoader.UploadSink {
+
+        private final Map<Integer, byte[]> textures = new HashMap<>();
+        private final List<Integer> uploads = new ArrayList<>();
+        private final List<Integer> deleted = new ArrayList<>();
+
+        @Override
+        public int create(int width, int height) {
+            textures.put(textures.size() + 1, new byte[width * height * 4]);
+            return textures.size();
+        }
+
+        @Override
+        public void upload(int textureId, int row, int width, int rows, ByteBuffer pixels) {
+            pixels.get(textures.get(textureId), row * width * 4, rows * width * 4);
+            uploads.add(rows);
+        }
+
+        @Override
+        public void delete(int textureId) {
+            deleted.add(textureId);
+        }
+    }
+
+    /**
+     * Reads the same image every time
+     */
+    private static final class StubSource implements TextureLoader.Source {
+
+        private final AtomicInteger read = new AtomicInteger();
+
+        @Override
+        public byte[] read(Material material) {
+            read.incrementAndGet();
+            return new byte[]{2, 2, 0};
+        }
+    }
+
+    private final StubDecoder decoder = new StubDecoder();
+    private final StubSource source = new StubSource();
+    private final StubSink sink = new StubSink();
+
+    @Test
+    public void testBudgetedUpload() throws Exception {
+        final TextureLoader loader = new TextureLoader(decoder, sink, 2, 4);
+        final byte[] image = {16, 16, 0};
+
+        // decoded in background
+        assertEquals(-1, loader.getTextureId(image));
+        waitForQueue(loader, 1);
+
+        // 4 rows per frame
+        int frames = 0;
+        while (loader.getTextureId(image) == -1) {
+            assertEquals(16 * 4 * 4, loader.upload(256));
+            frames++;
+        }
+        assertEquals(4, frames);
+        assertEquals(1, loader.getTextureId(image));
+        assertEquals(0, loader.upload(256));
+        assertArrayEquals(expectedPixels(16, 16), sink.textures.get(1));
+
+        // already uploaded
+        loader.request(image);
+        assertEquals(0, loader.upload(256));
+        assertEquals(1, decoder.decoded.get());
+    }
+
+    @Test
+    public void testRowWiderThanBudget() throws Exception {
+        final TextureLoader loader = new TextureLoader(decoder, sink, 1, 4);
+        final byte[] image = {8, 3, 0};
+        loader.request(image);
+        waitForQueue(loader, 1);
+
+        // 1 row per frame
+        assertEquals(32, loader.upload(10));
+        assertEquals(32, loader.upload(10));
+        assertEquals(-1, loader.getTextureId(image));
+        assertEquals(32, loader.upload(10));
+        assertEquals(1, loader.getTextureId(image));
+        assertArrayEquals(expectedPixels(8, 3), sink.textures.get(1));
+    }
+
+    @Test
+    public void testSeveralTexturesPerFrame() throws Exception {
+        final TextureLoader loader = new TextureLoader(decoder, sink, 1, 4);
+        final byte[] image1 = {2, 2, 0, 1};
+        final byte[] image2 = {2, 2, 0, 2};
+        loader.request(image1);
+        loader.request(image2);
+        waitForQueue(loader, 2);
+
+        assertEquals(32, loader.upload(1024));
+        assertEquals(1, loader.getTextureId(image1));
+        assertEquals(2, loader.getTextureId(image2));
+    }
+
+    @Test
+    public void testBoundedQueue() throws Exception {
+        final TextureLoader loader = new TextureLoader(decoder, sink, 1, 1);
+        final byte[][] images = {{1, 1, 0, 1}, {1, 1, 0, 2}, {1, 1, 0, 3}};
+        for (byte[] image : images) {
+            loader.request(image);
+        }
+
+        // 1 texture queued and the worker waiting for room
+        waitForQueue(loader, 1);
+        final long start = System.currentTimeMillis();
+        while (decoder.decoded.get() < 2 && System.currentTimeMillis() - start < TIMEOUT) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        assertEquals(2, decoder.decoded.get());
+        assertEquals(1, loader.getQueueSize());
+
+        // draining the queue lets the worker continue. The worker may queue the next texture while uploading
+        int uploaded = 0;
+        while (uploaded < images.length * 4) {
+            waitForQueue(loader, 1);
+            uploaded += loader.upload(1024);
+        }
+        assertEquals(images.length * 4, uploaded);
+        for (byte[] image : images) {
+            assertTrue(loader.getTextureId(image) > 0);
+        }
+    }
+
+    @Test
+    public void testDecodingError() throws Exception {
+        final TextureLoader loader = new TextureLoader(decoder, sink, 1, 4);
+        final byte[] image = {1, 1, 1};
+        loader.request(image);
+        final long start = System.currentTimeMillis();
+        while (decoder.decoded.get() == 0 && System.currentTimeMillis() - start < TIMEOUT) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+
+        // never uploaded nor decoded again
+        assertEquals(0, loader.upload(1024));
+        assertEquals(-1, loader.getTextureId(image));
+        loader.request(image);
+        Thread.sleep(50);
+        assertEquals(1, decoder.decoded.get());
+        assertTrue(sink.textures.isEmpty());
+    }
+
+    @Test
+    public void testSameImageUploadedOnce() throws Exception {
+        final TextureManager manager = new TextureManager();
+        final TextureLoader loader = new TextureLoader(decoder, sink, manager, 1, 4);
+        loader.request(new byte[]{2, 2, 0});
+        waitForQueue(loader, 1);
+        loader.upload(1024);
+
+        // same image, different array
+        final byte[] image = {2, 2, 0};
+        loader.request(image);
+        final long start = System.currentTimeMillis();
+        while (loader.getTextureId(image) == -1) {
+            assertTrue("timeout", System.currentTimeMillis() - start < TIMEOUT);
+            Thread.sleep(1);
+        }
+        assertEquals(1, loader.getTextureId(image));
+        assertEquals(1, decoder.decoded.get());
+        assertEquals(1, manager.getHits());
+        assertEquals(1, sink.textures.size());
+    }
+
+    @Test
+    public void testBoundTextureNotEvicted() throws Exception {
+        final TextureManager manager = new TextureManager(16);
+        final TextureLoader loader = new TextureLoader(decoder, sink, manager, 1, 4);
+        final Material material = new Material();
+        material.setTextureData(new byte[]{2, 2, 0});
+        final byte[] image = {2, 2, 0, 1};
+
+        // uploaded, but not bound yet
+        assertEquals(-1, loader.bind(material));
+        waitForQueue(loader, 1);
+        loader.upload(1024);
+        assertEquals(1, loader.bind(material));
+        assertEquals(1, material.getTextureId());
+
+        // over budget, the bound texture is kept
+        loader.request(image);
+        waitForQueue(loader, 1);
+        loader.upload(1024);
+        loader.upload(1024);
+        assertEquals(Collections.singletonList(2), sink.deleted);
+        assertEquals(1, manager.size());
+
+        // unbound, so it's deleted when the other one is uploaded again
+        loader.release(material);
+        assertEquals(-1, material.getTextureId());
+        loader.request(image);
+        waitForQueue(loader, 1);
+        loader.upload(1024);
+        loader.upload(1024);
+        assertEquals(Arrays.asList(2, 1), sink.deleted);
+        assertEquals(2, manager.getEvictions());
+    }
+
+    @Test
+    public void testReleaseSource() throws Exception {
+        final TextureManager manager = new TextureManager();
+        final TextureLoader loader = new TextureLoader(decoder, sink, manager, source, 1, 4);
+        final Material material = new Material();
+        material.setTextureFile("texture.png");
+        material.setTextureData(new byte[]{2, 2, 0});
+        loader.request(material.getTextureData());
+        loader.releaseSource(material);
+        waitForQueue(loader, 1);
+        loader.upload(1024);
+        assertEquals(3, manager.getHeapBytes());
+
+        // released once bound
+        assertEquals(1, loader.bind(material));
+        assertNull(material.getTextureData());
+        assertEquals(0, manager.getHeapBytes());
+        assertEquals(1, loader.bind(material));
+
+        // not released, it couldn't be read again
+        final Material embedded = new Material();
+        embedded.setTextureData(new byte[]{2, 2, 0, 1});
+        loader.request(embedded.getTextureData());
+        loader.releaseSource(embedded);
+        waitForQueue(loader, 1);
+        loader.upload(1024);
+        assertEquals(2, loader.bind(embedded));
+        assertNotNull(embedded.getTextureData());
+        assertEquals(4, manager.getHeapBytes());
+    }
+
+    @Test
+    public void testContextLost() throws Exception {
+        final TextureManager manager = new TextureManager();
+        final TextureLoader loader = new TextureLoader(decoder, sink, manager, source, 1, 4);
+        final Material released = new Material();
+        released.setTextureFile("texture.png");
+        released.setTextureData(new byte[]{2, 2, 0});
+        final Material kept = new Material();
+        kept.setTextureData(new byte[]{2, 2, 0, 1});
+        loader.releaseSource(released);
+        loader.request(released.getTextureData());
+        loader.request(kept.getTextureData());
+        waitForQueue(loader, 2);
+        loader.upload(1024);
+        assertEquals(1, loader.bind(released));
+        assertEquals(2, loader.bind(kept));
+        assertNull(released.getTextureData());
+
+        // new context: the ids are not valid and the released image is read again
+        loader.reset();
+        assertEquals(-1, released.getTextureId());
+        assertEquals(-1, kept.getTextureId());
+        assertEquals(0, manager.size());
+        assertEquals(-1, loader.bind(kept));
+        waitForQueue(loader, 2);
+        assertEquals(1, source.read.get());
+        loader.upload(1024);
+        assertTrue(loader.bind(released) > 2);
+        assertTrue(loader.bind(kept) > 2);
+        assertEquals(4, sink.textures.size());
+
+        // and released again once bound
+        assertNull(released.getTextureData());
+        assertNotNull(kept.getTextureData());
+    }
+
+    @Test
+    public void testGLUploadSinkValidation() throws Exception {
+        // no glGetError unless the validation is on
+        assertEquals(0, uploadToGL(GLValidator.Mode.OFF).count("glGetError"));
+        final RecordingGL validated = uploadToGL(GLValidator.Mode.FULL);
+        assertEquals(validated.count("glGenTextures") + validated.count("glBindTexture")
+                + validated.count("glTexImage2D") + validated.count("glTexParameteri")
+                + validated.count("glTexSubImage2D") + validated.count("glDeleteTextures"), validated.count("glGetError"));
+    }
+
+    /**
+     * @return the calls of the upload & the deletion of a texture
+     */
+    private RecordingGL uploadToGL(GLValidator.Mode mode) throws Exception {
+        final RecordingGL gl = new RecordingGL();
+        final TextureLoader.GLUploadSink sink = new TextureLoader.GLUploadSink(GLValidator.wrap(gl, mode, 1));
+        final TextureLoader loader = new TextureLoader(decoder, sink, 1, 4);
+        final byte[] image = {4, 4, 0};
+        loader.request(image);
+        waitForQueue(loader, 1);
+        loader.upload(1024);
+        final int textureId = loader.getTextureId(image);
+        assertTrue(textureId > 0);
+        sink.delete(textureId);
+        assertEquals(1, gl.count("glTexSubImage2D"));
+        assertEquals(1, gl.count("glDeleteTextures"));
+        return gl;
+    }
+
+    private static void waitForQueue(TextureLoader loader, int size) throws InterruptedException {
+        final long start = System.currentTimeMillis();
+        while (loader.getQueueSize() < size) {
+            assertTrue("timeout", System.currentTimeMillis() - start < TIMEOUT);
+            Thread.sleep(1);
+        }
+    }
+
+    private static byte[] expectedPixels(int width, int height) {
+        final byte[] ret = new byte[width * height * 4];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = (byte) i;
+        }
+        return ret;
+    }
+}
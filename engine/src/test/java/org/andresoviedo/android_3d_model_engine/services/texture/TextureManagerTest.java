@@ -0,0 +1,89 @@
+package org.andresoviedo.android_3d_model_engine.services.texture;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the eviction policy of the {@link TextureManager}
+ */
+public class TextureManagerTest {
+
+    @Test
+    public void testKey() {
+        assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", TextureManager.key("abc".getBytes()));
+        assertNotEquals(TextureManager.key(new byte[]{1}), TextureManager.key(new byte[]{2}));
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        final TextureManager manager = new TextureManager(1000);
+        assertEquals(-1, manager.get("a"));
+        assertEquals(1, manager.put("a", 1, 100, 10));
+        assertEquals(1, manager.get("a"));
+        assertEquals(1, manager.get("a"));
+        assertEquals(2, manager.getHits());
+        assertEquals(1, manager.getMisses());
+
+        // already registered
+        assertEquals(1, manager.put("a", 2, 100, 10));
+        assertEquals(1, manager.size());
+        assertEquals(100, manager.getGpuBytes());
+        assertEquals(10, manager.getHeapBytes());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() {
+        final TextureManager manager = new TextureManager(250);
+        manager.put("a", 1, 100, 10);
+        manager.put("b", 2, 100, 10);
+        assertTrue(manager.evict().isEmpty());
+
+        // a is used after b
+        manager.get("a");
+        manager.put("c", 3, 100, 10);
+        assertEquals(Collections.singletonList(2), manager.evict());
+        assertEquals(-1, manager.get("b"));
+        assertEquals(200, manager.getGpuBytes());
+        assertEquals(20, manager.getHeapBytes());
+        assertEquals(1, manager.getEvictions());
+    }
+
+    @Test
+    public void testReferencedNotEvicted() {
+        final TextureManager manager = new TextureManager(150);
+        manager.put("a", 1, 100, 10);
+        manager.put("b", 2, 100, 10);
+        manager.put("c", 3, 100, 10);
+        assertTrue(manager.acquire(1));
+        assertTrue(manager.acquire(2));
+
+        // over budget, but only c can be evicted
+        assertEquals(Collections.singletonList(3), manager.evict());
+        assertEquals(200, manager.getGpuBytes());
+        assertTrue(manager.evict().isEmpty());
+
+        // released textures are evicted
+        manager.release(2);
+        manager.release(1);
+        assertEquals(Collections.singletonList(1), manager.evict());
+        assertEquals(1, manager.size());
+        assertFalse(manager.acquire(1));
+    }
+
+    @Test
+    public void testReleaseSource() {
+        final TextureManager manager = new TextureManager(1000);
+        manager.put("a", 1, 100, 10);
+        manager.put("b", 2, 100, 20);
+        manager.releaseSource(1);
+        manager.releaseSource(1);
+        assertEquals(20, manager.getHeapBytes());
+        assertEquals(200, manager.getGpuBytes());
+    }
+}
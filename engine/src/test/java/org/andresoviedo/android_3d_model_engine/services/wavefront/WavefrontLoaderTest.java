@@ -0,0 +1,245 @@
+package org.andresoviedo.android_3d_model_engine.services.wavefront;
+
+import android.opengl.GLES20;
+
+import org.andresoviedo.android_3d_model_engine.model.Element;
+import org.andresoviedo.android_3d_model_engine.services.collada.entities.MeshData;
+import org.andresoviedo.android_3d_model_engine.services.collada.entities.Vertex;
+import org.andresoviedo.util.io.IOUtils;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.charset.Charset;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the parallel parser produces the same meshes than the sequential one
+ */
+public class WavefrontLoaderTest {
+
+    private static final String OBJ = "mtllib materials.mtl\n" +
+            "v 0 0 0\nv 1 0 0\nv 1 1 0\nv 0 1 0\n" +
+            "vt 0 0\nvt 1 0\nvt 1 1\nvt 0 1\n" +
+            "vn 0 0 1\n" +
+            "o first\n" +
+            "g front\n" +
+            "usemtl red\n" +
+            "s 1\n" +
+            "f 1/1/1 2/2/1 3/3/1 4/4/1\n" +
+            "usemtl green\n" +
+            "f -4/-4/-1 -2/-2/-1 -1/-1/-1\n" +
+            "o second\n" +
+            "v 0 0 1\nv 1 0 1\nv 1 1 1\n" +
+            "s off\n" +
+            "f -3 -2 -1\n" +
+            "g back\n" +
+            "v 0 0 2\nv 1 0 2\n" +
+            "f -2 -1 5\n" +
+            "f 1//1 2//1 6//1\n" +
+            "# comment\n" +
+            "f a b c\n";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static WavefrontLoader loader(int threads) {
+        return new WavefrontLoader(GLES20.GL_TRIANGLE_FAN, null, threads);
+    }
+
+    @Test
+    public void testParallelSameAsSequential() throws IOException {
+        final byte[] data = OBJ.getBytes(Charset.forName("UTF-8"));
+        final List<MeshData> expected = loader(1).loadModel("test", new ByteArrayInputStream(data));
+
+        // every line in its own chunk
+        assertMeshesEquals(expected, loader(4).loadModelParallel("test", ByteBuffer.wrap(data), 1));
+        assertMeshesEquals(expected, loader(2).loadModelParallel("test", ByteBuffer.wrap(data), 64));
+
+        // not backed by an array, like a memory mapped file
+        final ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        assertMeshesEquals(expected, loader(2).loadModelParallel("test", direct, 64));
+        assertEquals(0, direct.position());
+
+        // check relative indices
+        final List<Element> elements = expected.get(1).getElements();
+        final List<Vertex> vertices = expected.get(1).getVerticesAttributes();
+        assertEquals(4, vertices.get(elements.get(0).getIndices().get(0)).getVertexIndex());
+        assertEquals(7, vertices.get(elements.get(1).getIndices().get(0)).getVertexIndex());
+        assertEquals(4, vertices.get(elements.get(1).getIndices().get(2)).getVertexIndex());
+    }
+
+    @Test
+    public void testGoldenModels() throws IOException {
+        File dir = new File("models");
+        if (!dir.isDirectory()) {
+            dir = new File("../models");
+        }
+        final File[] files = dir.listFiles();
+        assertTrue("models folder not found", files != null);
+        for (File file : files) {
+            if (!file.getName().toLowerCase(Locale.ROOT).endsWith(".obj")) continue;
+            final byte[] data = IOUtils.read(file);
+            final List<MeshData> expected = loader(1).loadModel(file.getName(), new ByteArrayInputStream(data));
+            final List<MeshData> actual = loader(4).loadModelParallel(file.getName(), ByteBuffer.wrap(data), 16 * 1024);
+            assertMeshesEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void testFileMapped() throws IOException {
+        final byte[] data = createModel(4000);
+        final File file = folder.newFile("model.obj");
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        final List<MeshData> expected = loader(1).loadModel("test", new ByteArrayInputStream(data));
+
+        // parsed in parallel from the mapped file, the stream is never read
+        try (FileInputStream stream = new FileInputStream(file) {
+            @Override
+            public int read() {
+                throw new AssertionError("stream read");
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                throw new AssertionError("stream read");
+            }
+        }) {
+            assertMeshesEquals(expected, loader(2).loadModel("test", stream, -1));
+        }
+    }
+
+    @Test
+    public void testStreamReadOnce() throws IOException {
+        final byte[] data = createModel(4000);
+        final List<MeshData> expected = loader(1).loadModel("test", new ByteArrayInputStream(data));
+
+        // the stream can't be mapped, so it's read into a single array as long as the stream
+        final Map<byte[], Boolean> arrays = new IdentityHashMap<>();
+        final FilterInputStream stream = new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                arrays.put(b, true);
+                return super.read(b, off, len);
+            }
+        };
+        assertMeshesEquals(expected, loader(2).loadModel("test", stream, data.length));
+        assertEquals(1, arrays.size());
+        assertEquals(data.length, arrays.keySet().iterator().next().length);
+    }
+
+    /**
+     * Scaling benchmark. Run manually.
+     */
+    @Ignore
+    @Test
+    public void benchmark() throws IOException {
+        final byte[] data = createModel(500000);
+        final int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            final WavefrontLoader loader = loader(threads);
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < 5; i++) {
+                final long start = System.nanoTime();
+                if (threads == 1) {
+                    loader.loadModel("benchmark", new ByteArrayInputStream(data));
+                } else {
+                    loader.loadModelParallel("benchmark", ByteBuffer.wrap(data), data.length / (threads * 4));
+                }
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.println("threads: " + threads + ", time: " + best / 1000000 + " ms");
+        }
+    }
+
+    private static byte[] createModel(int faces) {
+        final Random random = new Random(1);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < faces * 3; i++) {
+            sb.append(String.format(Locale.ROOT, "v %f %f %f\n", random.nextFloat(), random.nextFloat(), random.nextFloat()));
+            sb.append(String.format(Locale.ROOT, "vn %f %f %f\n", random.nextFloat(), random.nextFloat(), random.nextFloat()));
+        }
+        for (int i = 0; i < faces; i++) {
+            final int a = i * 3 + 1;
+            sb.append("f ").append(a).append("//").append(a).append(' ').append(a + 1).append("//").append(a + 1)
+                    .append(' ').append(a + 2).append("//").append(a + 2).append('\n');
+        }
+        return sb.toString().getBytes(Charset.forName("UTF-8"));
+    }
+
+    private static void assertMeshesEquals(List<MeshData> expected, List<MeshData> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int m = 0; m < expected.size(); m++) {
+            final MeshData e = expected.get(m);
+            final MeshData a = actual.get(m);
+            assertEquals(e.getId(), a.getId());
+            assertEquals(e.getMaterialFile(), a.getMaterialFile());
+
+            // vertex attributes
+            assertEquals(e.getVerticesAttributes().size(), a.getVerticesAttributes().size());
+            for (int i = 0; i < e.getVerticesAttributes().size(); i++) {
+                final Vertex ev = e.getVerticesAttributes().get(i);
+                final Vertex av = a.getVerticesAttributes().get(i);
+                assertEquals(ev.getVertexIndex(), av.getVertexIndex());
+                assertEquals(ev.getTextureIndex(), av.getTextureIndex());
+                assertEquals(ev.getNormalIndex(), av.getNormalIndex());
+            }
+            assertBufferEquals(e.getVertexBuffer(), a.getVertexBuffer());
+            assertBufferEquals(e.getNormalsBuffer(), a.getNormalsBuffer());
+            assertBufferEquals(e.getTextureBuffer(), a.getTextureBuffer());
+
+            // elements
+            assertEquals(e.getElements().size(), a.getElements().size());
+            for (int i = 0; i < e.getElements().size(); i++) {
+                final Element ee = e.getElements().get(i);
+                final Element ae = a.getElements().get(i);
+                assertEquals(ee.getId(), ae.getId());
+                assertEquals(ee.getMaterialId(), ae.getMaterialId());
+                assertArrayEquals(ee.getIndices().toArray(), ae.getIndices().toArray());
+            }
+
+            // smoothing groups
+            final Map<String, List<Vertex>> es = e.getSmoothingGroups();
+            final Map<String, List<Vertex>> as = a.getSmoothingGroups();
+            assertEquals(es == null, as == null);
+            if (es != null) {
+                assertEquals(es.keySet(), as.keySet());
+                for (String key : es.keySet()) {
+                    assertEquals(es.get(key).size(), as.get(key).size());
+                }
+            }
+        }
+    }
+
+    private static void assertBufferEquals(FloatBuffer expected, FloatBuffer actual) {
+        if (expected == null || actual == null) {
+            assertEquals(expected, actual);
+            return;
+        }
+        assertEquals(expected.capacity(), actual.capacity());
+        for (int i = 0; i < expected.capacity(); i++) {
+            assertEquals(Float.floatToIntBits(expected.get(i)), Float.floatToIntBits(actual.get(i)));
+        }
+    }
+}
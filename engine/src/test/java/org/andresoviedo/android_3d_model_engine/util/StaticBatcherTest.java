@@ -0,0 +1,132 @@
+package org.andresoviedo.android_3d_model_engine.util;
+
+import android.opengl.GLES20;
+
+import org.andresoviedo.android_3d_model_engine.model.Element;
+import org.andresoviedo.android_3d_model_engine.model.Material;
+import org.andresoviedo.android_3d_model_engine.model.Object3DData;
+import org.andresoviedo.util.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StaticBatcherTest {
+
+    private static final int OBJECTS = 100;
+
+    private final List<Object3DData> objects = new ArrayList<>();
+    private final Material red = material("red", 1, 0, 0);
+    private final Material blue = material("blue", 0, 0, 1);
+
+    @Before
+    public void setUp() {
+        // triangles along the x axis, alternating 2 materials
+        for (int i = 0; i < OBJECTS; i++) {
+            objects.add(triangle("triangle_" + i, i % 2 == 0 ? red : blue).setLocation(new float[]{i, 0, 0}));
+        }
+    }
+
+    @Test
+    public void testBatched() {
+        final StaticBatcher batcher = new StaticBatcher(objects);
+
+        // a batch, with an element per material
+        assertEquals(1, batcher.getBatches().size());
+        assertEquals(OBJECTS, batcher.getSourceDrawCalls());
+        assertEquals(2, batcher.getDrawCalls());
+        for (Object3DData obj : objects) {
+            assertTrue(batcher.isBatched(obj));
+        }
+
+        // vertices in world space
+        final Object3DData batch = batcher.getBatches().get(0);
+        assertEquals(3 * 3 * OBJECTS, batch.getVertexBuffer().capacity());
+        assertEquals(OBJECTS - 1, batch.getVertexBuffer().get((OBJECTS - 1) * 9), 1e-5f);
+
+        // indices mapped to the objects
+        final Element element = batch.getElements().get(1);
+        assertSame(blue, element.getMaterial());
+        assertEquals(3 * OBJECTS / 2, element.getIndexBuffer().capacity());
+        assertSame(objects.get(1), batcher.getSource(batch, 1, 0));
+        assertSame(objects.get(3), batcher.getSource(batch, 1, 3));
+        assertNull(batcher.getSource(batch, 1, 3 * OBJECTS / 2));
+    }
+
+    @Test
+    public void testHiddenAndMoved() {
+        final StaticBatcher batcher = new StaticBatcher(objects);
+        final Object3DData batch = batcher.getBatches().get(0);
+
+        // hidden and moved objects are drawn on their own
+        objects.get(1).hide();
+        objects.get(2).setLocation(new float[]{0, 10, 0});
+        batcher.update(objects.get(3));
+        assertFalse(batcher.isBatched(objects.get(1)));
+        assertFalse(batcher.isBatched(objects.get(2)));
+        assertFalse(batcher.isBatched(objects.get(3)));
+        assertEquals(3 * (OBJECTS / 2 - 2), batch.getElements().get(1).getIndexBuffer().capacity());
+        assertSame(objects.get(5), batcher.getSource(batch, 1, 0));
+
+        // back in the batch
+        objects.get(1).show();
+        objects.get(2).setLocation(new float[]{2, 0, 0});
+        batcher.update(null);
+        assertTrue(batcher.isBatched(objects.get(1)));
+        assertTrue(batcher.isBatched(objects.get(2)));
+        assertEquals(3 * OBJECTS / 2, batch.getElements().get(1).getIndexBuffer().capacity());
+
+        // all hidden
+        for (Object3DData obj : objects) {
+            obj.hide();
+        }
+        batcher.update(null);
+        assertFalse(batch.isVisible());
+        assertEquals(0, batcher.getDrawCalls());
+    }
+
+    @Test
+    public void testNotBatched() {
+        // different vertex attributes & lines
+        objects.get(0).setNormalsBuffer(null);
+        objects.get(1).setDrawMode(GLES20.GL_LINES);
+        final StaticBatcher batcher = new StaticBatcher(objects);
+        assertFalse(batcher.isBatched(objects.get(0)));
+        assertFalse(batcher.isBatched(objects.get(1)));
+        assertEquals(OBJECTS - 2, batcher.getSourceDrawCalls());
+    }
+
+    private static Material material(String name, float r, float g, float b) {
+        final Material ret = new Material(name);
+        ret.setDiffuse(new float[]{r, g, b});
+        return ret;
+    }
+
+    private static Object3DData triangle(String id, Material material) {
+        final FloatBuffer vertices = IOUtils.createFloatBuffer(9);
+        vertices.put(new float[]{0, 0, 0, 1, 0, 0, 0, 1, 0});
+        final FloatBuffer normals = IOUtils.createFloatBuffer(9);
+        normals.put(new float[]{0, 0, 1, 0, 0, 1, 0, 0, 1});
+        final IntBuffer indices = IOUtils.createIntBuffer(3);
+        indices.put(new int[]{0, 1, 2});
+
+        final Element element = new Element(id, indices, null);
+        element.setMaterial(material);
+        final Object3DData ret = new Object3DData(vertices, indices);
+        ret.setNormalsBuffer(normals);
+        ret.setDrawMode(GLES20.GL_TRIANGLES);
+        ret.setElements(Collections.singletonList(element));
+        ret.setId(id);
+        return ret;
+    }
+}
@@ -0,0 +1,91 @@
+package org.andresoviedo.android_3d_model_engine.util;
+
+import org.andresoviedo.android_3d_model_engine.model.Element;
+import org.andresoviedo.android_3d_model_engine.services.collada.entities.Vertex;
+import org.andresoviedo.util.collection.FloatArrayList;
+import org.andresoviedo.util.collection.IntArrayList;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class VertexWelderTest {
+
+    private static Vertex vertex(int v, int t, int n) {
+        final Vertex ret = new Vertex(v);
+        ret.setTextureIndex(t);
+        ret.setNormalIndex(n);
+        return ret;
+    }
+
+    @Test
+    public void testWeldQuad() {
+        // quad as 2 triangles, one vertex per corner
+        final List<Vertex> vertices = new ArrayList<>();
+        final IntArrayList indices = new IntArrayList();
+        final int[][] corners = {{0, 0, 0}, {1, 1, 0}, {2, 2, 0}, {0, 0, 0}, {2, 2, 0}, {3, 3, 0}};
+        for (int[] corner : corners) {
+            indices.add(vertices.size());
+            vertices.add(vertex(corner[0], corner[1], corner[2]));
+        }
+        final List<Element> elements = Collections.singletonList(new Element("quad", indices, null));
+
+        final List<Vertex> welded = VertexWelder.weld(vertices, elements);
+
+        assertEquals(4, welded.size());
+        assertArrayEquals(new int[]{0, 1, 2, 0, 2, 3}, indices.toArray());
+        assertSame(vertices.get(0), welded.get(0));
+        assertSame(vertices.get(5), welded.get(3));
+    }
+
+    @Test
+    public void testNoWeldOnDifferentAttributes() {
+        // same position, different normal or texture
+        final List<Vertex> vertices = new ArrayList<>();
+        vertices.add(vertex(0, 0, 0));
+        vertices.add(vertex(0, 0, 1));
+        vertices.add(vertex(0, 1, 0));
+        vertices.add(vertex(0, 0, 0));
+        final IntArrayList indices = new IntArrayList();
+        for (int i = 0; i < vertices.size(); i++) indices.add(i);
+        final List<Element> elements = Collections.singletonList(new Element("test", indices, null));
+
+        final List<Vertex> welded = new ArrayList<>();
+        final int[] remap = VertexWelder.weld(vertices, elements, welded, null, null, null);
+
+        assertEquals(3, welded.size());
+        assertArrayEquals(new int[]{0, 1, 2, 0}, remap);
+    }
+
+    @Test
+    public void testWeldByValue() {
+        // one normal per corner, but with the same value
+        final FloatArrayList normals = new FloatArrayList(3);
+        normals.add(0, 1, 0);
+        normals.add(0, 0, 1);
+        normals.add(0, 1, 0);
+
+        final List<Vertex> vertices = new ArrayList<>();
+        vertices.add(vertex(7, -1, 0));
+        vertices.add(vertex(7, -1, 1));
+        vertices.add(vertex(7, -1, 2));
+        final IntArrayList indices = new IntArrayList();
+        indices.add(2);
+        indices.add(1);
+        indices.add(0);
+        final List<Element> elements = Collections.singletonList(new Element("test", indices, null));
+
+        final List<Vertex> welded = new ArrayList<>();
+        final int[] remap = VertexWelder.weld(vertices, elements, welded, null, normals, null);
+
+        assertEquals(2, welded.size());
+        assertSame(vertices.get(2), welded.get(0));
+        assertArrayEquals(new int[]{0, 1, 0}, indices.toArray());
+        assertArrayEquals(new int[]{0, 1, 0}, remap);
+    }
+}
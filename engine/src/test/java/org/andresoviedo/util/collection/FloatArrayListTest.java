@@ -0,0 +1,70 @@
+package org.andresoviedo.util.collection;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FloatArrayListTest {
+
+    @Test
+    public void testGrowth() {
+        final FloatArrayList list = new FloatArrayList(3, 1);
+        for (int i = 0; i < 100; i++) {
+            list.add(i, i + 0.5f, -i);
+        }
+        assertEquals(100, list.size());
+        assertTrue(list.array().length >= 300);
+        for (int i = 0; i < 100; i++) {
+            assertArrayEquals(new float[]{i, i + 0.5f, -i}, list.get(i), 0);
+        }
+    }
+
+    @Test
+    public void testStride() {
+        final FloatArrayList list = new FloatArrayList(2);
+        list.add(1, 2, 3);
+        list.add(new float[]{4});
+        assertEquals(2, list.getStride());
+        assertArrayEquals(new float[]{1, 2}, list.get(0), 0);
+        assertArrayEquals(new float[]{4, 0}, list.get(1), 0);
+
+        // the components of a vector are contiguous in the backing array
+        list.set(1, 1, 5);
+        assertEquals(5, list.get(1, 1), 0);
+        assertArrayEquals(new float[]{1, 2, 4, 5}, Arrays.copyOf(list.array(), 4), 0);
+
+        final FloatArrayList other = new FloatArrayList(2);
+        other.addAll(list);
+        other.add(list, 0);
+        assertEquals(3, other.size());
+        assertTrue(other.sameVector(0, 2));
+        assertFalse(other.sameVector(0, 1));
+
+        final FloatBuffer buffer = other.toFloatBuffer();
+        assertEquals(6, buffer.capacity());
+        assertEquals(5, buffer.get(3), 0);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testBounds() {
+        final FloatArrayList list = new FloatArrayList(3, 10);
+        list.add(1, 2, 3);
+
+        // inside the backing array, but past the size
+        list.get(1, 0);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testBoundsAfterClear() {
+        final FloatArrayList list = new FloatArrayList(3);
+        list.add(1, 2, 3);
+        list.clear();
+        list.get(0, new float[3]);
+    }
+}
@@ -0,0 +1,51 @@
+package org.andresoviedo.util.collection;
+
+import org.junit.Test;
+
+import java.nio.IntBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IntArrayListTest {
+
+    @Test
+    public void testGrowth() {
+        final IntArrayList list = new IntArrayList(1);
+        for (int i = 0; i < 100; i++) {
+            list.add(i * 2);
+        }
+        assertEquals(100, list.size());
+        assertTrue(list.array().length >= 100);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i * 2, list.get(i));
+        }
+    }
+
+    @Test
+    public void testArray() {
+        final IntArrayList list = new IntArrayList();
+        list.add(3);
+        list.add(4);
+        list.set(1, 5);
+
+        // the backing array may be longer than the list
+        assertEquals(3, list.array()[0]);
+        assertEquals(5, list.array()[1]);
+        assertArrayEquals(new int[]{3, 5}, list.toArray());
+
+        final IntBuffer buffer = list.toIntBuffer();
+        assertEquals(2, buffer.capacity());
+        assertEquals(5, buffer.get(1));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testBounds() {
+        final IntArrayList list = new IntArrayList(10);
+        list.add(1);
+
+        // inside the backing array, but past the size
+        list.get(1);
+    }
+}
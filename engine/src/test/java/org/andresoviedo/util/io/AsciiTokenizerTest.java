@@ -0,0 +1,135 @@
+package org.andresoviedo.util.io;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsciiTokenizerTest {
+
+    private static AsciiTokenizer tokenizer(String text, int bufferSize) {
+        return new AsciiTokenizer(new ByteArrayInputStream(text.getBytes(Charset.forName("UTF-8"))), bufferSize);
+    }
+
+    @Test
+    public void testFloats() throws IOException {
+        final String[] values = {"0", "-0", "1", "-1", "1.5", "+2.25", ".5", "-.5", "5.", "0.000001", "123456.789",
+                "1e10", "1.0E-5", "-3.4028235e38", "1.4e-45", "0.123456789012345678901234", "12345678901234567890",
+                "NaN", "Infinity", "-0.707107", "0.333333"};
+        final StringBuilder line = new StringBuilder();
+        for (String value : values) {
+            line.append(value).append("  \t");
+        }
+        final AsciiTokenizer sut = tokenizer(line.toString(), 16);
+        assertTrue(sut.nextLine());
+        for (String value : values) {
+            assertEquals(value, Float.parseFloat(value), sut.nextFloat(), 0f);
+        }
+        assertFalse(sut.hasNext());
+        assertFalse(sut.nextLine());
+    }
+
+    @Test
+    public void testLines() throws IOException {
+        final AsciiTokenizer sut = tokenizer("# comment\r\n\r\n  v 1 2 3\nvn 0 1 0\nf 1/2/3 -4//-5 6\n" +
+                "usemtl  material name  \nvt 0.5", 16);
+
+        assertTrue(sut.nextLine());
+        assertEquals('#', sut.peek());
+        assertEquals("# comment", sut.line());
+
+        assertTrue(sut.nextLine());
+        assertEquals(3, sut.getLineNumber());
+        assertFalse(sut.keyword("vn"));
+        assertTrue(sut.keyword("v"));
+        assertEquals(1f, sut.nextFloat(), 0f);
+        assertEquals(2f, sut.nextFloat(), 0f);
+        assertEquals(3f, sut.nextFloat(), 0f);
+
+        assertTrue(sut.nextLine());
+        assertFalse(sut.keyword("v"));
+        assertTrue(sut.keyword("vn"));
+
+        assertTrue(sut.nextLine());
+        assertTrue(sut.keyword("f"));
+        assertEquals(1, sut.nextInt());
+        assertTrue(sut.skip('/'));
+        assertEquals(2, sut.nextInt());
+        assertTrue(sut.skip('/'));
+        assertEquals(3, sut.nextInt());
+        assertEquals(-4, sut.nextInt());
+        assertTrue(sut.skip('/'));
+        assertTrue(sut.skip('/'));
+        assertEquals(-5, sut.nextInt());
+        assertEquals(6, sut.nextInt());
+        assertFalse(sut.skip('/'));
+        assertFalse(sut.hasNext());
+
+        assertTrue(sut.nextLine());
+        assertTrue(sut.keyword("usemtl"));
+        assertEquals("material name", sut.rest());
+
+        assertTrue(sut.nextLine());
+        assertTrue(sut.keyword("vt"));
+        assertEquals(0.5f, sut.nextFloat(), 0f);
+        assertFalse(sut.hasNext());
+
+        assertFalse(sut.nextLine());
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testWrongInt() throws IOException {
+        final AsciiTokenizer sut = tokenizer("f a/b/c", 16);
+        assertTrue(sut.nextLine());
+        assertTrue(sut.keyword("f"));
+        sut.nextInt();
+    }
+
+    @Test
+    public void testByteBuffer() throws IOException {
+        final byte[] text = "# header\nv 1 2 3\nusemtl a long material name\nf 1 2 3"
+                .getBytes(Charset.forName("UTF-8"));
+        final ByteBuffer direct = ByteBuffer.allocateDirect(text.length);
+        direct.put(text).position(9);
+        for (ByteBuffer data : new ByteBuffer[]{direct, (ByteBuffer) ByteBuffer.wrap(text).position(9)}) {
+            // lines longer than the block
+            final AsciiTokenizer sut = new AsciiTokenizer(data, 16);
+            assertTrue(sut.nextLine());
+            assertTrue(sut.keyword("v"));
+            assertEquals(3f, sut.nextFloat() + sut.nextFloat(), 0f);
+            assertTrue(sut.nextLine());
+            assertTrue(sut.keyword("usemtl"));
+            assertEquals("a long material name", sut.rest());
+            assertTrue(sut.nextLine());
+            assertTrue(sut.keyword("f"));
+            assertEquals(6, sut.nextInt() + sut.nextInt() + sut.nextInt());
+            assertFalse(sut.nextLine());
+            assertEquals(9, data.position());
+        }
+    }
+
+    @Test
+    public void testIntRange() throws IOException {
+        final AsciiTokenizer sut = tokenizer("f 2147483647 -2147483648 2147483648 -2147483649 99999999999", 16);
+        assertTrue(sut.nextLine());
+        assertTrue(sut.keyword("f"));
+        assertEquals(Integer.MAX_VALUE, sut.nextInt());
+        assertEquals(Integer.MIN_VALUE, sut.nextInt());
+        for (int i = 0; i < 3; i++) {
+            try {
+                sut.nextInt();
+                fail("out of range");
+            } catch (NumberFormatException e) {
+                // expected
+            }
+            sut.skipToken();
+        }
+    }
+}
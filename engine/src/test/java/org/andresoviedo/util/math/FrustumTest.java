@@ -0,0 +1,78 @@
+package org.andresoviedo.util.math;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrustumTest {
+
+    private final Frustum frustum = new Frustum();
+
+    @Before
+    public void setUp() {
+        // perspective of 90 degrees, near 1, far 10, looking down -z from the origin
+        final float near = 1, far = 10;
+        final float[] matrix = new float[16];
+        matrix[0] = 1;
+        matrix[5] = 1;
+        matrix[10] = (far + near) / (near - far);
+        matrix[11] = -1;
+        matrix[14] = 2 * far * near / (near - far);
+        frustum.update(matrix);
+    }
+
+    @Test
+    public void testInside() {
+        assertTrue(frustum.intersects(new float[]{-1, -1, -6, 1, 1, -4}));
+    }
+
+    @Test
+    public void testOutside() {
+        // behind the camera
+        assertFalse(frustum.intersects(new float[]{-1, -1, 2, 1, 1, 4}));
+        // beyond the far plane
+        assertFalse(frustum.intersects(new float[]{-1, -1, -20, 1, 1, -12}));
+        // left & above
+        assertFalse(frustum.intersects(new float[]{-20, -1, -6, -10, 1, -4}));
+        assertFalse(frustum.intersects(new float[]{-1, 10, -6, 1, 20, -4}));
+    }
+
+    @Test
+    public void testStraddling() {
+        // crossing the near plane and the right plane
+        assertTrue(frustum.intersects(new float[]{-1, -1, -2, 1, 1, 2}));
+        assertTrue(frustum.intersects(new float[]{4, -1, -6, 10, 1, -4}));
+    }
+
+    @Test
+    public void testTransform() {
+        final float[] bounds = {-1, -2, -3, 1, 2, 3};
+        final float[] out = new float[6];
+
+        // translated
+        final float[] matrix = identity();
+        matrix[12] = 10;
+        Frustum.transform(bounds, matrix, out);
+        assertArrayEquals(new float[]{9, -2, -3, 11, 2, 3}, out, 1e-5f);
+
+        // rotated 90 degrees around z: x and y swap
+        Math3DUtils.setRotateM(matrix, 0, 90, 0, 0, 1);
+        Frustum.transform(bounds, matrix, out);
+        assertArrayEquals(new float[]{-2, -1, -3, 2, 1, 3}, out, 1e-5f);
+
+        // the translated box is culled
+        final float[] translation = identity();
+        translation[14] = 20;
+        Frustum.transform(new float[]{-1, -1, -6, 1, 1, -4}, translation, out);
+        assertFalse(frustum.intersects(out));
+    }
+
+    private static float[] identity() {
+        final float[] ret = new float[16];
+        ret[0] = ret[5] = ret[10] = ret[15] = 1;
+        return ret;
+    }
+}
@@ -0,0 +1,24 @@
+package org.andresoviedo.util.xml;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class XmlParserTest {
+
+    @Test
+    public void testParseFloats() {
+        assertArrayEquals(new float[]{1f, -2.5f, 3e-2f, 0.5f},
+                XmlParser.parseFloats("  1 -2.5\n\t3e-2  0,5 ", 4), 0f);
+        assertArrayEquals(new float[]{1f, 2f}, XmlParser.parseFloats("1 2", 10), 0f);
+        assertEquals(0, XmlParser.parseFloats(null, 0).length);
+    }
+
+    @Test
+    public void testParseInts() {
+        assertArrayEquals(new int[]{0, 1, 2, 10, 200}, XmlParser.parseInts("0 1 2\n10   200"));
+        assertEquals(0, XmlParser.parseInts("").length);
+        assertEquals(0, XmlParser.parseInts(null).length);
+    }
+}